@@ -3,12 +3,21 @@ package net.woggioni.rbcs.api;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import io.netty.util.ReferenceCounted;
 import lombok.extern.slf4j.Slf4j;
 import net.woggioni.rbcs.api.message.CacheMessage;
 
 @Slf4j
 public abstract class CacheHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * Set on the client channel while reading from the client is suspended by a cache handler,
+     * the server stops requesting more data from the socket until it is cleared
+     */
+    public static final AttributeKey<Boolean> READ_SUSPENDED = AttributeKey.valueOf(CacheHandler.class, "readSuspended");
+
     private boolean requestFinished = false;
 
     abstract protected void channelRead0(ChannelHandlerContext ctx, CacheMessage msg);
@@ -50,6 +59,33 @@ public abstract class CacheHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Stops reading the request body from the client until {@link #resumeReading(ChannelHandlerContext)} is called,
+     * to be used when the backend can't keep up with the client
+     */
+    protected void suspendReading(ChannelHandlerContext ctx) {
+        ctx.channel().attr(READ_SUSPENDED).set(true);
+    }
+
+    /**
+     * Resumes reading the request body from the client, can be called from any thread
+     */
+    protected void resumeReading(ChannelHandlerContext ctx) {
+        if(ctx.executor().inEventLoop()) {
+            Attribute<Boolean> readSuspended = ctx.channel().attr(READ_SUSPENDED);
+            if(Boolean.TRUE.equals(readSuspended.getAndSet(null))) {
+                ctx.read();
+            }
+        } else {
+            ctx.executor().execute(() -> resumeReading(ctx));
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        resumeReading(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         super.exceptionCaught(ctx, cause);
@@ -12,4 +12,17 @@ public interface CacheHandlerFactory extends AsyncCloseable {
             ChannelFactory<SocketChannel> socketChannelFactory,
             ChannelFactory<DatagramChannel> datagramChannelFactory
     );
+
+    /**
+     * Invoked once when the server starts, before any handler is created,
+     * factories of remote caches can use it to connect to their servers in advance
+     * and to schedule background tasks on {@code eventLoopGroup}
+     */
+    default void start(
+            Configuration configuration,
+            EventLoopGroup eventLoopGroup,
+            ChannelFactory<SocketChannel> socketChannelFactory,
+            ChannelFactory<DatagramChannel> datagramChannelFactory
+    ) {
+    }
 }
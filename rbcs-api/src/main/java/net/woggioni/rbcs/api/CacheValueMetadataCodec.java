@@ -0,0 +1,121 @@
+package net.woggioni.rbcs.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of {@link CacheValueMetadata}, shared by all the cache backends.
+ * A record starts with a version byte, followed by the content disposition and the MIME type, each one
+ * encoded as a varint holding its UTF-8 length plus one (zero meaning null) and its UTF-8 bytes.
+ * Records written with Java serialization by older versions (that always start with 0xAC)
+ * are still accepted by {@link #read(ByteBuf, int)}.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class CacheValueMetadataCodec {
+
+    private static final byte VERSION = 1;
+
+    // First byte of the Java serialization stream magic number
+    private static final byte LEGACY_MAGIC = (byte) 0xAC;
+
+    /**
+     * @return the number of bytes {@link #write(ByteBuf, CacheValueMetadata)} is going to write for {@code metadata}
+     */
+    public static int encodedSize(CacheValueMetadata metadata) {
+        return 1 + stringSize(metadata.getContentDisposition()) + stringSize(metadata.getMimeType());
+    }
+
+    public static void write(ByteBuf buf, CacheValueMetadata metadata) {
+        buf.writeByte(VERSION);
+        writeString(buf, metadata.getContentDisposition());
+        writeString(buf, metadata.getMimeType());
+    }
+
+    /**
+     * Reads a record of {@code length} bytes from {@code buf}
+     */
+    public static CacheValueMetadata read(ByteBuf buf, int length) throws IOException {
+        if (length <= 0 || buf.readableBytes() < length) {
+            throw new IOException("Truncated cache value metadata");
+        }
+        ByteBuf record = buf.readSlice(length);
+        byte version = record.readByte();
+        if (version == LEGACY_MAGIC) {
+            record.readerIndex(0);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteBufInputStream(record))) {
+                return (CacheValueMetadata) ois.readObject();
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("Invalid legacy cache value metadata", ex);
+            }
+        } else if (version != VERSION) {
+            throw new IOException("Unsupported cache value metadata version " + version);
+        }
+        try {
+            String contentDisposition = readString(record);
+            String mimeType = readString(record);
+            return new CacheValueMetadata(contentDisposition, mimeType);
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Truncated cache value metadata", ex);
+        }
+    }
+
+    private static int stringSize(String s) {
+        if (s == null) {
+            return 1;
+        }
+        int length = ByteBufUtil.utf8Bytes(s);
+        return varIntSize(length + 1) + length;
+    }
+
+    private static void writeString(ByteBuf buf, String s) {
+        if (s == null) {
+            buf.writeByte(0);
+        } else {
+            writeVarInt(buf, ByteBufUtil.utf8Bytes(s) + 1);
+            ByteBufUtil.writeUtf8(buf, s);
+        }
+    }
+
+    private static String readString(ByteBuf buf) throws IOException {
+        int length = readVarInt(buf) - 1;
+        if (length < 0) {
+            return null;
+        }
+        return buf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+        return size;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuf buf) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = buf.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed cache value metadata");
+    }
+}
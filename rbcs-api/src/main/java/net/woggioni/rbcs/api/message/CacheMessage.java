@@ -12,6 +12,16 @@ public sealed interface CacheMessage {
     @RequiredArgsConstructor
     final class CacheGetRequest implements CacheMessage {
         private final String key;
+
+        /**
+         * Whether only the metadata of the value is needed (e.g. to answer a HEAD request),
+         * handlers can then avoid fetching the value itself, any content they send is discarded
+         */
+        private final boolean metadataOnly;
+
+        public CacheGetRequest(String key) {
+            this(key, false);
+        }
     }
 
     @Getter
@@ -24,9 +34,19 @@ public sealed interface CacheMessage {
     final class CacheValueFoundResponse extends CacheGetResponse {
         private final CacheValueMetadata metadata;
 
-        public CacheValueFoundResponse(String key, CacheValueMetadata metadata) {
+        /**
+         * Size of the value in bytes, or -1 if it isn't known before the value is sent
+         */
+        private final long contentLength;
+
+        public CacheValueFoundResponse(String key, CacheValueMetadata metadata, long contentLength) {
             super(key);
             this.metadata = metadata;
+            this.contentLength = contentLength;
+        }
+
+        public CacheValueFoundResponse(String key, CacheValueMetadata metadata) {
+            this(key, metadata, -1);
         }
     }
 
@@ -41,6 +61,15 @@ public sealed interface CacheMessage {
     final class CachePutRequest implements CacheMessage {
         private final String key;
         private final CacheValueMetadata metadata;
+
+        /**
+         * Size of the value in bytes, as declared by the client, or -1 if it isn't known in advance
+         */
+        private final long contentLength;
+
+        public CachePutRequest(String key, CacheValueMetadata metadata) {
+            this(key, metadata, -1);
+        }
     }
 
     @Getter
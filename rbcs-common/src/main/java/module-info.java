@@ -6,6 +6,8 @@ module net.woggioni.rbcs.common {
     requires net.woggioni.jwo;
     requires io.netty.buffer;
     requires io.netty.transport;
+    requires com.github.luben.zstd_jni;
+    requires org.lz4.java;
 
     provides java.net.spi.URLStreamHandlerProvider with net.woggioni.rbcs.common.RbcsUrlStreamHandlerFactory;
     exports net.woggioni.rbcs.common;
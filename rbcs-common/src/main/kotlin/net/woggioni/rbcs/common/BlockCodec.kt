@@ -0,0 +1,291 @@
+package net.woggioni.rbcs.common
+
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+import com.github.luben.zstd.Zstd
+import io.netty.buffer.ByteBuf
+import com.github.luben.zstd.ZstdDictCompress
+import com.github.luben.zstd.ZstdDictDecompress
+import net.jpountz.lz4.LZ4Exception
+import net.jpountz.lz4.LZ4Factory
+
+/**
+ * Compresses and decompresses independent blocks of data,
+ * it must be safe to use the same instance from multiple threads concurrently
+ */
+interface BlockCodec : AutoCloseable {
+
+    /**
+     * Identifier of the codec, stored in the header of the compressed stream
+     */
+    val id: Int
+
+    /**
+     * Returns a buffer containing the compressed version of the given block
+     */
+    fun compress(src: ByteArray, off: Int, len: Int): ByteBuffer
+
+    /**
+     * Decompresses the given block into [dst], whose size must match the size of the original block
+     */
+    fun decompress(src: ByteArray, off: Int, len: Int, dst: ByteArray)
+
+    /**
+     * Releases the native resources held by the codec
+     */
+    override fun close() {}
+}
+
+class DeflateBlockCodec(val level: Int = Deflater.DEFAULT_COMPRESSION) : BlockCodec {
+    override val id get() = BlockCompression.DEFLATE
+
+    /**
+     * Pool of the [Deflater] and [Inflater] instances used by this codec and by the streams created from it
+     */
+    val pool = ZlibPool(level)
+
+    override fun compress(src: ByteArray, off: Int, len: Int): ByteBuffer {
+        val deflater = pool.borrowDeflater()
+        try {
+            deflater.setInput(src, off, len)
+            deflater.finish()
+            // zlib's compressBound() plus the zlib header and trailer
+            var result = ByteArray(len + (len ushr 12) + (len ushr 14) + (len ushr 25) + 19)
+            var written = 0
+            while (!deflater.finished()) {
+                if (written == result.size) {
+                    result = result.copyOf(result.size * 2)
+                }
+                written += deflater.deflate(result, written, result.size - written)
+            }
+            return ByteBuffer.wrap(result, 0, written)
+        } finally {
+            pool.release(deflater)
+        }
+    }
+
+    override fun decompress(src: ByteArray, off: Int, len: Int, dst: ByteArray) {
+        val inflater = pool.borrowInflater()
+        try {
+            inflater.setInput(src, off, len)
+            var written = 0
+            while (written < dst.size && !inflater.finished()) {
+                val inflated = inflater.inflate(dst, written, dst.size - written)
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break
+                written += inflated
+            }
+            if (written != dst.size) {
+                throw IOException("Corrupted compressed block: expected ${dst.size} bytes, got $written")
+            }
+        } catch (ex: DataFormatException) {
+            throw IOException(ex)
+        } finally {
+            pool.release(inflater)
+        }
+    }
+
+    override fun close() {
+        pool.close()
+    }
+}
+
+/**
+ * Zstandard codec, optionally using a dictionary trained offline (e.g. with `zstd --train`)
+ * from a sample of cache entries, which greatly improves the compression ratio of small values.
+ * Frames compressed without a dictionary can be decompressed by a codec that has one.
+ */
+class ZstdBlockCodec(
+    level: Int = Zstd.defaultCompressionLevel(),
+    dictionary: ByteArray? = null,
+) : BlockCodec {
+    override val id get() = BlockCompression.ZSTD
+
+    private val level = level.takeIf { it >= 0 } ?: Zstd.defaultCompressionLevel()
+
+    private val compressionDictionary = dictionary?.let { ZstdDictCompress(it, this.level) }
+
+    private val decompressionDictionary = dictionary?.let(::ZstdDictDecompress)
+
+    override fun compress(src: ByteArray, off: Int, len: Int): ByteBuffer {
+        val result = ByteArray(Zstd.compressBound(len.toLong()).toInt())
+        val written = if (compressionDictionary != null) {
+            Zstd.compressFastDict(result, 0, src, off, len, compressionDictionary)
+        } else {
+            Zstd.compressByteArray(result, 0, result.size, src, off, len, level)
+        }
+        if (Zstd.isError(written)) {
+            throw IOException("Zstandard compression failed: ${Zstd.getErrorName(written)}")
+        }
+        return ByteBuffer.wrap(result, 0, written.toInt())
+    }
+
+    override fun decompress(src: ByteArray, off: Int, len: Int, dst: ByteArray) {
+        val written = if (decompressionDictionary != null) {
+            Zstd.decompressFastDict(dst, 0, src, off, len, decompressionDictionary)
+        } else {
+            Zstd.decompressByteArray(dst, 0, dst.size, src, off, len)
+        }
+        if (Zstd.isError(written)) {
+            throw IOException("Zstandard decompression failed: ${Zstd.getErrorName(written)}")
+        } else if (written != dst.size.toLong()) {
+            throw IOException("Corrupted compressed block: expected ${dst.size} bytes, got $written")
+        }
+    }
+
+    override fun close() {
+        compressionDictionary?.close()
+        decompressionDictionary?.close()
+    }
+}
+
+/**
+ * LZ4 codec in fast mode, it trades compression ratio for very high throughput
+ */
+class Lz4BlockCodec : BlockCodec {
+    override val id get() = BlockCompression.LZ4
+
+    private val factory = LZ4Factory.fastestInstance()
+
+    private val compressor = factory.fastCompressor()
+
+    private val decompressor = factory.safeDecompressor()
+
+    override fun compress(src: ByteArray, off: Int, len: Int): ByteBuffer {
+        val result = ByteArray(compressor.maxCompressedLength(len))
+        val written = compressor.compress(src, off, len, result, 0, result.size)
+        return ByteBuffer.wrap(result, 0, written)
+    }
+
+    override fun decompress(src: ByteArray, off: Int, len: Int, dst: ByteArray) {
+        val written = try {
+            decompressor.decompress(src, off, len, dst, 0, dst.size)
+        } catch (ex: LZ4Exception) {
+            throw IOException(ex)
+        }
+        if (written != dst.size) {
+            throw IOException("Corrupted compressed block: expected ${dst.size} bytes, got $written")
+        }
+    }
+}
+
+/**
+ * Layout of the block-compressed format:
+ *
+ * - header: magic number (4 bytes), codec id (1 byte), block size (4 bytes)
+ * - a sequence of frames, each made of its uncompressed size (4 bytes), its compressed size (4 bytes)
+ *   and the compressed data, every frame is independent from the others and all of them
+ *   but the last one contain exactly block size bytes of uncompressed data
+ * - end marker: a zero uncompressed size (4 bytes)
+ * - frame index: compressed and uncompressed size (4 bytes each) for every frame,
+ *   followed by the number of frames (4 bytes) and by the magic number (4 bytes)
+ *
+ * The index at the end allows random access to the frames when the whole stream is available
+ */
+object BlockCompression {
+    const val MAGIC = 0x52424346
+
+    const val HEADER_SIZE = Int.SIZE_BYTES + 1 + Int.SIZE_BYTES
+
+    const val FRAME_HEADER_SIZE = Int.SIZE_BYTES * 2
+
+    const val TRAILER_SIZE = Int.SIZE_BYTES * 2
+
+    const val DEFAULT_BLOCK_SIZE = 0x40000
+
+    const val DEFLATE = 1
+
+    const val ZSTD = 2
+
+    const val LZ4 = 3
+
+    private val deflate = DeflateBlockCodec()
+
+    private val zstd by lazy { ZstdBlockCodec() }
+
+    private val lz4 by lazy { Lz4BlockCodec() }
+
+    /**
+     * Returns the [BlockCodec] that can decompress the frames written with the given codec id
+     */
+    fun codec(id: Int): BlockCodec = when (id) {
+        DEFLATE -> deflate
+        ZSTD -> zstd
+        LZ4 -> lz4
+        else -> throw IOException("Unknown block compression codec with id $id")
+    }
+
+    /**
+     * Returns a stream that compresses the data written to it with [codec] and writes it to [out].
+     * Deflate without a block size produces a plain zlib stream, as older versions used to do,
+     * every other combination produces the framed format, whose header records the codec
+     * so that values can be decompressed regardless of the compression settings in use when reading them
+     */
+    fun compressingStream(out: OutputStream, codec: BlockCodec, blockSize: Int?): OutputStream =
+        if (blockSize == null && codec is DeflateBlockCodec) {
+            PooledDeflaterOutputStream(out, codec.pool)
+        } else {
+            BlockCompressorOutputStream(out, codec, blockSize ?: DEFAULT_BLOCK_SIZE)
+        }
+
+    /**
+     * Returns a stream that decompresses the data written to it (in any of the formats produced by
+     * [compressingStream]) and writes it to [out], preferring [preferred] for the frames it can decompress
+     * (which matters when it uses a dictionary)
+     */
+    fun decompressingStream(out: OutputStream, preferred: BlockCodec): OutputStream =
+        DecompressingOutputStream(out, { id ->
+            if (id == preferred.id) preferred else codec(id)
+        }, inflaters = (preferred as? DeflateBlockCodec)?.pool)
+
+    /**
+     * Completes the compressed stream returned by [compressingStream] without closing the underlying stream
+     */
+    fun finish(stream: OutputStream) {
+        when (stream) {
+            is PooledDeflaterOutputStream -> stream.finish()
+            is DeflaterOutputStream -> stream.finish()
+            is BlockCompressorOutputStream -> stream.finish()
+        }
+    }
+
+    /**
+     * Releases the resources held by the compressed stream returned by [compressingStream]
+     * without writing anything else, closing it afterward doesn't complete the compressed stream
+     */
+    fun abort(stream: OutputStream) {
+        when (stream) {
+            is PooledDeflaterOutputStream -> stream.abort()
+            is BlockCompressorOutputStream -> stream.abort()
+        }
+    }
+
+    /**
+     * Writes the readable bytes of [buf] to [stream], advancing its reader index,
+     * streams returned by [compressingStream] consume direct buffers without copying them on the heap
+     */
+    fun write(stream: OutputStream, buf: ByteBuf) {
+        if (stream is PooledDeflaterOutputStream) {
+            stream.write(buf)
+        } else {
+            buf.readBytes(stream, buf.readableBytes())
+        }
+    }
+
+    internal fun writeInt(out: OutputStream, value: Int) {
+        out.write(value ushr 24)
+        out.write(value ushr 16)
+        out.write(value ushr 8)
+        out.write(value)
+    }
+
+    internal fun readInt(buffer: ByteArray, offset: Int) =
+        ((buffer[offset].toInt() and 0xff) shl 24) or
+                ((buffer[offset + 1].toInt() and 0xff) shl 16) or
+                ((buffer[offset + 2].toInt() and 0xff) shl 8) or
+                (buffer[offset + 3].toInt() and 0xff)
+}
@@ -0,0 +1,190 @@
+package net.woggioni.rbcs.common
+
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Splits the data written to it in blocks of [blockSize] bytes, compresses them independently
+ * on [executor] and writes the resulting frames to [out] in order (see [BlockCompression] for the layout).
+ * [out] is only ever written from the thread calling the methods of this class.
+ *
+ * The calling thread (usually a Netty event loop) never waits for a block that is still queued on [executor]:
+ * when it needs a block that hasn't been picked up by a worker yet, it compresses it itself,
+ * so it can only wait for a block a worker has already started compressing.
+ */
+class BlockCompressorOutputStream(
+    private val out: OutputStream,
+    private val codec: BlockCodec,
+    private val blockSize: Int = BlockCompression.DEFAULT_BLOCK_SIZE,
+    private val executor: Executor = ForkJoinPool.commonPool(),
+    private val maxInFlight: Int = Runtime.getRuntime().availableProcessors() * 2,
+) : OutputStream() {
+
+    private class Frame(val uncompressedSize: Int, val data: ByteBuffer)
+
+    /**
+     * A block that gets compressed by whichever thread claims it first, a worker of [executor] or the caller
+     */
+    private inner class Block(private val data: ByteArray, private val size: Int) : Runnable {
+        private val claimed = AtomicBoolean(false)
+        val frame = CompletableFuture<Frame>()
+
+        override fun run() {
+            if (claimed.compareAndSet(false, true)) {
+                try {
+                    frame.complete(Frame(size, codec.compress(data, 0, size)))
+                } catch (ex: Throwable) {
+                    frame.completeExceptionally(ex)
+                }
+            }
+        }
+
+        fun cancel() {
+            claimed.set(true)
+        }
+    }
+
+    private var block = ByteArray(blockSize)
+    private var position = 0
+    private val inFlight = ArrayDeque<Block>()
+    private val index = ByteArrayOutputStream()
+    private var frames = 0
+    private var headerWritten = false
+    private var finished = false
+
+    override fun write(b: Int) {
+        block[position++] = b.toByte()
+        if (position == blockSize) {
+            submitBlock()
+        }
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            val n = minOf(remaining, blockSize - position)
+            System.arraycopy(b, offset, block, position, n)
+            position += n
+            offset += n
+            remaining -= n
+            if (position == blockSize) {
+                submitBlock()
+            }
+        }
+    }
+
+    private fun submitBlock() {
+        val data = block
+        val size = position
+        block = ByteArray(blockSize)
+        position = 0
+        val pending = Block(data, size)
+        inFlight.addLast(pending)
+        try {
+            executor.execute(pending)
+        } catch (_: RejectedExecutionException) {
+            // Compressed by the calling thread when its frame is needed
+        }
+        drain(inFlight.size >= maxInFlight)
+    }
+
+    /**
+     * Writes the frames that have already been compressed, preserving their order;
+     * if [force] is true at least the oldest pending frame is written, compressing it on the calling thread
+     * if no worker has started yet
+     */
+    private fun drain(force: Boolean) {
+        var mustWrite = force
+        while (true) {
+            val head = inFlight.firstOrNull() ?: break
+            if (!head.frame.isDone) {
+                if (!mustWrite) break
+                head.run()
+            }
+            writeFrame(join(inFlight.removeFirst().frame))
+            mustWrite = false
+        }
+    }
+
+    private fun join(future: CompletableFuture<Frame>) = try {
+        future.join()
+    } catch (ex: CompletionException) {
+        throw (ex.cause as? IOException) ?: IOException(ex.cause ?: ex)
+    }
+
+    private fun writeHeader() {
+        if (!headerWritten) {
+            BlockCompression.writeInt(out, BlockCompression.MAGIC)
+            out.write(codec.id)
+            BlockCompression.writeInt(out, blockSize)
+            headerWritten = true
+        }
+    }
+
+    private fun writeFrame(frame: Frame) {
+        writeHeader()
+        val compressedSize = frame.data.remaining()
+        BlockCompression.writeInt(out, frame.uncompressedSize)
+        BlockCompression.writeInt(out, compressedSize)
+        out.write(frame.data.array(), frame.data.arrayOffset() + frame.data.position(), compressedSize)
+        BlockCompression.writeInt(index, compressedSize)
+        BlockCompression.writeInt(index, frame.uncompressedSize)
+        ++frames
+    }
+
+    /**
+     * Compresses the remaining data and writes the end of the stream without closing [out]
+     */
+    fun finish() {
+        if (finished) return
+        if (position > 0) {
+            if (inFlight.isEmpty()) {
+                // Not worth dispatching the last block to another thread
+                writeFrame(Frame(position, codec.compress(block, 0, position)))
+                position = 0
+            } else {
+                submitBlock()
+            }
+        }
+        while (inFlight.isNotEmpty()) {
+            drain(true)
+        }
+        writeHeader()
+        BlockCompression.writeInt(out, 0)
+        index.writeTo(out)
+        BlockCompression.writeInt(out, frames)
+        BlockCompression.writeInt(out, BlockCompression.MAGIC)
+        finished = true
+    }
+
+    /**
+     * Discards the data that hasn't been compressed yet, the stream can only be closed afterward
+     */
+    fun abort() {
+        inFlight.forEach(Block::cancel)
+        inFlight.clear()
+        position = 0
+        finished = true
+    }
+
+    override fun flush() {
+        out.flush()
+    }
+
+    override fun close() {
+        try {
+            finish()
+        } finally {
+            out.close()
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package net.woggioni.rbcs.common
+
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.Inflater
+import java.util.zip.InflaterOutputStream
+
+/**
+ * Decompresses a stream in the [BlockCompression] format as it is written to it,
+ * frames are decompressed in parallel on [executor] and written to [out] in order.
+ * [out] is only ever written from the thread calling the methods of this class.
+ *
+ * Like [BlockCompressorOutputStream], the calling thread never waits for a frame that is still queued on [executor]:
+ * it decompresses the frames it needs that haven't been picked up by a worker yet by itself.
+ */
+class BlockDecompressorOutputStream(
+    private val out: OutputStream,
+    private val codecs: (Int) -> BlockCodec = BlockCompression::codec,
+    private val executor: Executor = ForkJoinPool.commonPool(),
+    private val maxInFlight: Int = Runtime.getRuntime().availableProcessors() * 2,
+) : OutputStream() {
+
+    private enum class State {
+        HEADER, UNCOMPRESSED_SIZE, COMPRESSED_SIZE, FRAME, TRAILER
+    }
+
+    /**
+     * A frame that gets decompressed by whichever thread claims it first, a worker of [executor] or the caller
+     */
+    private class Frame(private val codec: BlockCodec, private val data: ByteArray, private val size: Int) : Runnable {
+        private val claimed = AtomicBoolean(false)
+        val block = CompletableFuture<ByteArray>()
+
+        override fun run() {
+            if (claimed.compareAndSet(false, true)) {
+                try {
+                    block.complete(ByteArray(size).also {
+                        codec.decompress(data, 0, data.size, it)
+                    })
+                } catch (ex: Throwable) {
+                    block.completeExceptionally(ex)
+                }
+            }
+        }
+    }
+
+    private var state = State.HEADER
+    private val sizeBuffer = ByteArray(Int.SIZE_BYTES)
+    private var buffer = ByteArray(BlockCompression.HEADER_SIZE)
+    private var filled = 0
+    private var codec: BlockCodec? = null
+    private var blockSize = 0
+    private var uncompressedSize = 0
+    private val inFlight = ArrayDeque<Frame>()
+    private var closed = false
+
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            if (state == State.TRAILER) {
+                // The frame index is only useful for random access
+                return
+            }
+            val n = minOf(remaining, buffer.size - filled)
+            System.arraycopy(b, offset, buffer, filled, n)
+            filled += n
+            offset += n
+            remaining -= n
+            if (filled == buffer.size) {
+                next()
+            }
+        }
+    }
+
+    private fun next() {
+        when (state) {
+            State.HEADER -> {
+                if (BlockCompression.readInt(buffer, 0) != BlockCompression.MAGIC) {
+                    throw IOException("Invalid block compression header")
+                }
+                codec = codecs(buffer[Int.SIZE_BYTES].toInt() and 0xff)
+                blockSize = BlockCompression.readInt(buffer, Int.SIZE_BYTES + 1)
+                if (blockSize <= 0) {
+                    throw IOException("Invalid block size $blockSize")
+                }
+                expect(State.UNCOMPRESSED_SIZE, Int.SIZE_BYTES)
+            }
+
+            State.UNCOMPRESSED_SIZE -> {
+                uncompressedSize = BlockCompression.readInt(buffer, 0)
+                if (uncompressedSize == 0) {
+                    expect(State.TRAILER, 0)
+                } else if (uncompressedSize < 0 || uncompressedSize > blockSize) {
+                    throw IOException("Invalid frame size $uncompressedSize")
+                } else {
+                    expect(State.COMPRESSED_SIZE, Int.SIZE_BYTES)
+                }
+            }
+
+            State.COMPRESSED_SIZE -> {
+                val compressedSize = BlockCompression.readInt(buffer, 0)
+                // Guard against allocating huge buffers because of corrupted data
+                if (compressedSize < 0 || compressedSize > blockSize + (blockSize ushr 1) + 0x400) {
+                    throw IOException("Invalid compressed frame size $compressedSize")
+                }
+                expect(State.FRAME, compressedSize)
+                if (compressedSize == 0) next()
+            }
+
+            State.FRAME -> {
+                submitFrame(buffer, uncompressedSize)
+                expect(State.UNCOMPRESSED_SIZE, Int.SIZE_BYTES)
+            }
+
+            State.TRAILER -> {}
+        }
+    }
+
+    private fun expect(state: State, size: Int) {
+        this.state = state
+        // Frame buffers are handed over to the executor, so they can never be reused
+        buffer = if (state != State.FRAME && size == Int.SIZE_BYTES) sizeBuffer else ByteArray(size)
+        filled = 0
+    }
+
+    private fun submitFrame(data: ByteArray, size: Int) {
+        val pending = Frame(codec!!, data, size)
+        inFlight.addLast(pending)
+        try {
+            executor.execute(pending)
+        } catch (_: RejectedExecutionException) {
+            // Decompressed by the calling thread when its block is needed
+        }
+        drain(inFlight.size >= maxInFlight)
+    }
+
+    /**
+     * Writes the blocks that have already been decompressed, preserving their order;
+     * if [force] is true at least the oldest pending block is written, decompressing it on the calling thread
+     * if no worker has started yet
+     */
+    private fun drain(force: Boolean) {
+        var mustWrite = force
+        while (true) {
+            val head = inFlight.firstOrNull() ?: break
+            if (!head.block.isDone) {
+                if (!mustWrite) break
+                head.run()
+            }
+            val block = try {
+                inFlight.removeFirst().block.join()
+            } catch (ex: CompletionException) {
+                throw (ex.cause as? IOException) ?: IOException(ex.cause ?: ex)
+            }
+            out.write(block)
+            mustWrite = false
+        }
+    }
+
+    /**
+     * Decompresses all the pending frames and writes them to [out], without closing it
+     */
+    fun finish() {
+        while (inFlight.isNotEmpty()) {
+            drain(true)
+        }
+        if (state != State.TRAILER) {
+            throw IOException("Unexpected end of block compressed stream")
+        }
+    }
+
+    override fun flush() {
+        drain(false)
+        out.flush()
+    }
+
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            finish()
+        } finally {
+            out.close()
+        }
+    }
+}
+
+private class PooledInflaterOutputStream(
+    out: OutputStream,
+    private val pool: ZlibPool,
+    private val inflater: Inflater = pool.borrowInflater(),
+) : InflaterOutputStream(out, inflater) {
+    private var released = false
+
+    override fun close() {
+        try {
+            super.close()
+        } finally {
+            if (!released) {
+                released = true
+                pool.release(inflater)
+            }
+        }
+    }
+}
+
+/**
+ * Decompresses either a stream in the [BlockCompression] format or a plain zlib stream
+ * (as written by [java.util.zip.DeflaterOutputStream]), detecting the format from its first bytes;
+ * zlib streams are decompressed with an [Inflater] borrowed from [inflaters], if provided
+ */
+class DecompressingOutputStream(
+    private val out: OutputStream,
+    private val codecs: (Int) -> BlockCodec = BlockCompression::codec,
+    private val executor: Executor = ForkJoinPool.commonPool(),
+    private val inflaters: ZlibPool? = null,
+) : OutputStream() {
+
+    private val probe = ByteArray(Int.SIZE_BYTES)
+    private var probed = 0
+    private var delegate: OutputStream? = null
+
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        delegate?.let {
+            it.write(b, off, len)
+            return
+        }
+        val n = minOf(len, probe.size - probed)
+        System.arraycopy(b, off, probe, probed, n)
+        probed += n
+        if (probed == probe.size) {
+            createDelegate(BlockCompression.readInt(probe, 0) == BlockCompression.MAGIC)
+            if (len > n) {
+                delegate!!.write(b, off + n, len - n)
+            }
+        }
+    }
+
+    private fun createDelegate(framed: Boolean) = if (framed) {
+        BlockDecompressorOutputStream(out, codecs, executor)
+    } else if (inflaters != null) {
+        PooledInflaterOutputStream(out, inflaters)
+    } else {
+        InflaterOutputStream(out)
+    }.also {
+        delegate = it
+        it.write(probe, 0, probed)
+    }
+
+    override fun flush() {
+        delegate?.flush() ?: out.flush()
+    }
+
+    override fun close() {
+        (delegate ?: createDelegate(false)).close()
+    }
+}
@@ -0,0 +1,30 @@
+package net.woggioni.rbcs.common
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Compression algorithms supported by the cache backends
+ */
+enum class CompressionMode {
+    /**
+     * Deflate mode
+     */
+    DEFLATE,
+
+    /**
+     * Zstandard mode, supports compression levels from 1 to 22 and an optional dictionary
+     */
+    ZSTD,
+
+    /**
+     * LZ4 fast mode, the compression level is ignored
+     */
+    LZ4;
+
+    fun createCodec(level: Int, dictionary: Path?): BlockCodec = when (this) {
+        DEFLATE -> DeflateBlockCodec(level)
+        ZSTD -> ZstdBlockCodec(level, dictionary?.let(Files::readAllBytes))
+        LZ4 -> Lz4BlockCodec()
+    }
+}
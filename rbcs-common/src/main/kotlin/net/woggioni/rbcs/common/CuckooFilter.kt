@@ -0,0 +1,158 @@
+package net.woggioni.rbcs.common
+
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.math.pow
+
+/**
+ * Approximate set of keys with no false negatives, implemented as a cuckoo filter with buckets of 4 slots
+ * holding 16-bit fingerprints (partial-key cuckoo hashing, see Fan et al. "Cuckoo Filter: Practically Better Than Bloom").
+ * Keys can't be removed, the filter is meant to be rebuilt from scratch when stale keys need to be dropped.
+ */
+class CuckooFilter(expectedEntries: Int) {
+
+    private companion object {
+        private const val BUCKET_SIZE = 4
+        private const val MAX_KICKS = 500
+        private const val MAX_LOAD_FACTOR = 0.95
+        private const val FINGERPRINT_BITS = 16
+        private const val MAX_BUCKETS = 1 shl 28
+
+        private fun hash(key: ByteArray): Long {
+            // 64 bit FNV-1a, followed by the MurmurHash3 finalizer to spread the bits of short keys
+            var h = -0x340d631b7bdddcdbL
+            for (b in key) {
+                h = (h xor (b.toLong() and 0xff)) * 0x100000001b3L
+            }
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return h xor (h ushr 33)
+        }
+    }
+
+    // Smallest power of 2 keeping the load factor below the maximum once the expected entries have been added
+    private val bucketCount = Math.ceil(expectedEntries / (BUCKET_SIZE * MAX_LOAD_FACTOR)).toInt()
+        .coerceIn(2, MAX_BUCKETS)
+        .let { Integer.highestOneBit(it - 1) shl 1 }
+
+    private val mask = bucketCount - 1
+
+    // A zero slot is empty, fingerprints are never zero
+    private val slots = ShortArray(bucketCount * BUCKET_SIZE)
+
+    // The fingerprint left without a slot by an insertion that failed to relocate it, still part of the filter
+    private var victim: Short = 0
+    private var victimBucket = 0
+
+    private val lock = ReentrantReadWriteLock()
+
+    /**
+     * Number of distinct fingerprints stored in the filter
+     */
+    var size = 0
+        private set
+
+    /**
+     * Number of bytes used by the filter's table
+     */
+    val memoryUsage: Long
+        get() = slots.size.toLong() * Short.SIZE_BYTES
+
+    /**
+     * Whether the filter is too full to accept new keys
+     */
+    val isFull: Boolean
+        get() = lock.read { victim != 0.toShort() }
+
+    /**
+     * Probability that a key that was never added is reported as present, given the current occupancy
+     */
+    val expectedFalsePositiveRate: Double
+        get() {
+            val loadFactor = size.toDouble() / slots.size
+            return 1 - (1 - 1.0 / ((1 shl FINGERPRINT_BITS) - 1)).pow(2 * BUCKET_SIZE * loadFactor)
+        }
+
+    private fun fingerprint(h: Long) = (h ushr (64 - FINGERPRINT_BITS)).toInt().let {
+        if (it == 0) 1 else it
+    }.toShort()
+
+    private fun alternateBucket(bucket: Int, fingerprint: Short) =
+        (bucket xor ((fingerprint.toInt() and 0xffff) * 0x5bd1e995)) and mask
+
+    private fun bucketContains(bucket: Int, fingerprint: Short): Boolean {
+        val start = bucket * BUCKET_SIZE
+        for (i in start until start + BUCKET_SIZE) {
+            if (slots[i] == fingerprint) return true
+        }
+        return false
+    }
+
+    private fun bucketInsert(bucket: Int, fingerprint: Short): Boolean {
+        val start = bucket * BUCKET_SIZE
+        for (i in start until start + BUCKET_SIZE) {
+            if (slots[i] == 0.toShort()) {
+                slots[i] = fingerprint
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun contains(bucket: Int, alternate: Int, fingerprint: Short) =
+        bucketContains(bucket, fingerprint) || bucketContains(alternate, fingerprint) ||
+                (victim == fingerprint && (victimBucket == bucket || victimBucket == alternate))
+
+    /**
+     * @return false if [key] has definitely never been added, true if it might have been
+     */
+    fun mightContain(key: ByteArray): Boolean {
+        val h = hash(key)
+        val fingerprint = fingerprint(h)
+        val bucket = h.toInt() and mask
+        return lock.read {
+            contains(bucket, alternateBucket(bucket, fingerprint), fingerprint)
+        }
+    }
+
+    /**
+     * Adds [key] to the filter
+     * @return false if the filter is full, in which case [key] hasn't been added
+     */
+    fun add(key: ByteArray): Boolean {
+        val h = hash(key)
+        var fingerprint = fingerprint(h)
+        val bucket = h.toInt() and mask
+        val alternate = alternateBucket(bucket, fingerprint)
+        return lock.write {
+            when {
+                // Since keys are never removed, there is no need to store the same fingerprint twice
+                contains(bucket, alternate, fingerprint) -> true
+                victim != 0.toShort() -> false
+                bucketInsert(bucket, fingerprint) || bucketInsert(alternate, fingerprint) -> {
+                    ++size
+                    true
+                }
+
+                else -> {
+                    ++size
+                    val random = ThreadLocalRandom.current()
+                    var current = if (random.nextBoolean()) bucket else alternate
+                    repeat(MAX_KICKS) {
+                        val slot = current * BUCKET_SIZE + random.nextInt(BUCKET_SIZE)
+                        val evicted = slots[slot]
+                        slots[slot] = fingerprint
+                        fingerprint = evicted
+                        current = alternateBucket(current, fingerprint)
+                        if (bucketInsert(current, fingerprint)) return@write true
+                    }
+                    victim = fingerprint
+                    victimBucket = current
+                    true
+                }
+            }
+        }
+    }
+}
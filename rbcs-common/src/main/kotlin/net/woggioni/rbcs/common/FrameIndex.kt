@@ -0,0 +1,107 @@
+package net.woggioni.rbcs.common
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Index of the frames of a stream in the [BlockCompression] format,
+ * it allows to locate and decompress only the frames that overlap a range of the uncompressed data
+ */
+class FrameIndex private constructor(
+    val codecId: Int,
+    val blockSize: Int,
+    private val compressedOffsets: LongArray,
+    private val compressedSizes: IntArray,
+    private val uncompressedSizes: IntArray,
+) {
+    val frames: Int
+        get() = compressedSizes.size
+
+    val uncompressedSize: Long
+        get() = if (frames == 0) 0 else blockSize.toLong() * (frames - 1) + uncompressedSizes[frames - 1]
+
+    /**
+     * Returns the index of the frame containing the byte at the given position of the uncompressed data
+     */
+    fun frameAt(uncompressedPosition: Long): Int {
+        if (uncompressedPosition < 0 || uncompressedPosition >= uncompressedSize) {
+            throw IndexOutOfBoundsException("Position $uncompressedPosition is out of bounds")
+        }
+        return (uncompressedPosition / blockSize).toInt()
+    }
+
+    /**
+     * Returns the offset of the compressed data of the given frame, relative to the start of the stream
+     */
+    fun compressedOffset(frame: Int) = compressedOffsets[frame]
+
+    fun compressedSize(frame: Int) = compressedSizes[frame]
+
+    fun uncompressedSize(frame: Int) = uncompressedSizes[frame]
+
+    /**
+     * Returns the offset of the first byte of the given frame in the uncompressed data
+     */
+    fun uncompressedOffset(frame: Int) = blockSize.toLong() * frame
+
+    /**
+     * Reads and decompresses a single frame of a stream starting at [start] in [channel]
+     */
+    fun readFrame(channel: FileChannel, start: Long, frame: Int, codec: BlockCodec = BlockCompression.codec(codecId)): ByteArray {
+        val compressed = ByteArray(compressedSizes[frame])
+        readFully(channel, ByteBuffer.wrap(compressed), start + compressedOffsets[frame])
+        return ByteArray(uncompressedSizes[frame]).also {
+            codec.decompress(compressed, 0, compressed.size, it)
+        }
+    }
+
+    companion object {
+
+        /**
+         * Reads the frame index of a stream in the [BlockCompression] format occupying
+         * the region of [channel] that goes from [start] (inclusive) to [end] (exclusive)
+         */
+        fun read(channel: FileChannel, start: Long, end: Long): FrameIndex {
+            val header = ByteBuffer.allocate(BlockCompression.HEADER_SIZE)
+            readFully(channel, header, start)
+            if (header.getInt(0) != BlockCompression.MAGIC) {
+                throw IOException("Invalid block compression header")
+            }
+            val codecId = header.get(Int.SIZE_BYTES).toInt() and 0xff
+            val blockSize = header.getInt(Int.SIZE_BYTES + 1)
+
+            val trailer = ByteBuffer.allocate(BlockCompression.TRAILER_SIZE)
+            readFully(channel, trailer, end - BlockCompression.TRAILER_SIZE)
+            val frames = trailer.getInt(0)
+            if (trailer.getInt(Int.SIZE_BYTES) != BlockCompression.MAGIC || frames < 0 ||
+                frames.toLong() * BlockCompression.FRAME_HEADER_SIZE > end - start
+            ) {
+                throw IOException("Invalid block compression trailer")
+            }
+            val entries = ByteBuffer.allocate(frames * BlockCompression.FRAME_HEADER_SIZE)
+            readFully(channel, entries, end - BlockCompression.TRAILER_SIZE - entries.capacity())
+            entries.flip()
+            val compressedOffsets = LongArray(frames)
+            val compressedSizes = IntArray(frames)
+            val uncompressedSizes = IntArray(frames)
+            var offset = BlockCompression.HEADER_SIZE.toLong()
+            for (i in 0 until frames) {
+                compressedSizes[i] = entries.getInt()
+                uncompressedSizes[i] = entries.getInt()
+                compressedOffsets[i] = offset + BlockCompression.FRAME_HEADER_SIZE
+                offset += BlockCompression.FRAME_HEADER_SIZE + compressedSizes[i]
+            }
+            return FrameIndex(codecId, blockSize, compressedOffsets, compressedSizes, uncompressedSizes)
+        }
+
+        private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+            var pos = position
+            while (buffer.hasRemaining()) {
+                val read = channel.read(buffer, pos)
+                if (read < 0) throw IOException("Unexpected end of file")
+                pos += read
+            }
+        }
+    }
+}
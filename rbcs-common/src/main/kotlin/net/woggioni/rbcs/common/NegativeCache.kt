@@ -0,0 +1,79 @@
+package net.woggioni.rbcs.common
+
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Bounded set of keys recently found missing on a remote backend, each one remembered for [ttl],
+ * so that repeated lookups of a key nobody has produced yet don't all reach the backend.
+ * Entries live in a direct-mapped table without any locking, a new entry replaces the one occupying its slot.
+ * A miss is only recorded if no [invalidate] that could concern its key happened since the lookup was sent
+ * (tracked through the [stamp] taken before sending it).
+ */
+class NegativeCache(capacity: Int, ttl: Duration) {
+
+    private companion object {
+        private const val STRIPES = 1024
+
+        private fun hash(key: ByteArray): Int {
+            // MurmurHash3 finalizer, to make the low bits depend on the whole key
+            var h = key.contentHashCode()
+            h = (h xor (h ushr 16)) * -0x7a143595
+            h = (h xor (h ushr 13)) * -0x3d4d51cb
+            return h xor (h ushr 16)
+        }
+    }
+
+    private class Entry(val key: ByteArray, val expiresAt: Long)
+
+    private val ttlNanos = ttl.toNanos()
+
+    private val slots = AtomicReferenceArray<Entry?>(
+        capacity.coerceIn(2, 1 shl 30).let { Integer.highestOneBit(it - 1) shl 1 }
+    )
+
+    private val mask = slots.length() - 1
+
+    // Bumped whenever one of the keys mapped to the stripe is invalidated
+    private val stripes = AtomicIntegerArray(STRIPES)
+
+    private fun stripe(h: Int) = (h ushr 16) and (STRIPES - 1)
+
+    /**
+     * @return a stamp to be passed to [missed] if the lookup of [key], sent after this call, finds nothing
+     */
+    fun stamp(key: ByteArray) = stripes[stripe(hash(key))]
+
+    /**
+     * @return true if [key] has been found missing less than the TTL ago
+     */
+    fun isMissing(key: ByteArray): Boolean {
+        val entry = slots[hash(key) and mask] ?: return false
+        return entry.expiresAt - System.nanoTime() > 0 && entry.key.contentEquals(key)
+    }
+
+    fun missed(key: ByteArray, stamp: Int) {
+        val h = hash(key)
+        val index = h and mask
+        val entry = Entry(key, System.nanoTime() + ttlNanos)
+        slots.set(index, entry)
+        // Checked after publishing the entry, so that a concurrent invalidation either sees it or gets seen here
+        if (stripes[stripe(h)] != stamp) {
+            slots.compareAndSet(index, entry, null)
+        }
+    }
+
+    /**
+     * Forgets that [key] was missing, to be called as soon as a value has been written under [key]
+     */
+    fun invalidate(key: ByteArray) {
+        val h = hash(key)
+        stripes.incrementAndGet(stripe(h))
+        val index = h and mask
+        val entry = slots[index]
+        if (entry != null && entry.key.contentEquals(key)) {
+            slots.compareAndSet(index, entry, null)
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package net.woggioni.rbcs.common
 
+import java.security.MessageDigest
 import java.security.SecureRandom
 import java.security.spec.KeySpec
 import java.util.Base64
+import java.util.EnumMap
 import javax.crypto.SecretKeyFactory
 import javax.crypto.spec.PBEKeySpec
 
@@ -20,6 +22,15 @@ object PasswordSecurity {
         PBKDF2WithHmacSHA384("PBKDF2WithHmacSHA384",384, 1);
     }
 
+    // Looking up a SecretKeyFactory is expensive and instances are not thread-safe
+    private val secretKeyFactories = ThreadLocal.withInitial {
+        EnumMap<Algorithm, SecretKeyFactory>(Algorithm::class.java)
+    }
+
+    private fun secretKeyFactory(algorithm: Algorithm) = secretKeyFactories.get().getOrPut(algorithm) {
+        SecretKeyFactory.getInstance(algorithm.codeName)
+    }
+
     private fun concat(arr1: ByteArray, arr2: ByteArray): ByteArray {
         val result = ByteArray(arr1.size + arr2.size)
         var j = 0
@@ -41,11 +52,19 @@ object PasswordSecurity {
             result
         }
         val spec: KeySpec = PBEKeySpec(password.toCharArray(), actualSalt, algorithm.iterations, algorithm.keyLength)
-        val factory = SecretKeyFactory.getInstance(algorithm.codeName)
-        val hash = factory.generateSecret(spec).encoded
+        val hash = secretKeyFactory(algorithm).generateSecret(spec).encoded
         return String(Base64.getEncoder().encode(concat(hash, actualSalt)))
     }
 
+    /**
+     * @return whether [password] matches [encodedPasswordHash], as returned by [hashPassword]
+     */
+    fun verifyPassword(password: String, encodedPasswordHash: String, algorithm: Algorithm = Algorithm.PBKDF2WithHmacSHA512): Boolean {
+        val (hash, salt) = decodePasswordHash(encodedPasswordHash, algorithm)
+        val spec: KeySpec = PBEKeySpec(password.toCharArray(), salt, algorithm.iterations, algorithm.keyLength)
+        return MessageDigest.isEqual(hash, secretKeyFactory(algorithm).generateSecret(spec).encoded)
+    }
+
     fun decodePasswordHash(encodedPasswordHash : String, algorithm: Algorithm = Algorithm.PBKDF2WithHmacSHA512) : Pair<ByteArray, ByteArray> {
         val decoded = Base64.getDecoder().decode(encodedPasswordHash)
         val hash = ByteArray(algorithm.keyLength / 8)
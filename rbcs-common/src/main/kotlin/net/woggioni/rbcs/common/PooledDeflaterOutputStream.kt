@@ -0,0 +1,104 @@
+package net.woggioni.rbcs.common
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+import io.netty.buffer.ByteBuf
+
+/**
+ * Writes a zlib stream to [out] (like [java.util.zip.DeflaterOutputStream]) using a [Deflater]
+ * borrowed from [pool], which is returned as soon as the stream is finished or aborted.
+ * [write] with a [ByteBuf] feeds its NIO buffers to the [Deflater] directly,
+ * so that direct buffers don't need to be copied on the heap first.
+ */
+class PooledDeflaterOutputStream(
+    private val out: OutputStream,
+    private val pool: ZlibPool,
+    bufferSize: Int = 0x2000,
+) : OutputStream() {
+
+    private var deflater: Deflater? = pool.borrowDeflater()
+    private val buffer = ByteArray(bufferSize)
+    private var closed = false
+
+    private fun deflater() = deflater ?: throw IllegalStateException("Stream already finished")
+
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        val deflater = deflater()
+        deflater.setInput(b, off, len)
+        deflate(deflater)
+    }
+
+    fun write(input: ByteBuffer) {
+        val deflater = deflater()
+        deflater.setInput(input)
+        deflate(deflater)
+    }
+
+    /**
+     * Compresses all the readable bytes of [buf], advancing its reader index
+     */
+    fun write(buf: ByteBuf) {
+        val readable = buf.readableBytes()
+        if (buf.nioBufferCount() == 1) {
+            write(buf.internalNioBuffer(buf.readerIndex(), readable))
+        } else {
+            for (nioBuffer in buf.nioBuffers()) {
+                write(nioBuffer)
+            }
+        }
+        buf.skipBytes(readable)
+    }
+
+    private fun deflate(deflater: Deflater) {
+        while (!deflater.needsInput()) {
+            val written = deflater.deflate(buffer, 0, buffer.size)
+            if (written > 0) out.write(buffer, 0, written)
+        }
+    }
+
+    /**
+     * Writes the end of the zlib stream without closing [out] and returns the [Deflater] to the pool
+     */
+    fun finish() {
+        val deflater = deflater ?: return
+        this.deflater = null
+        try {
+            deflater.finish()
+            while (!deflater.finished()) {
+                val written = deflater.deflate(buffer, 0, buffer.size)
+                if (written > 0) out.write(buffer, 0, written)
+            }
+        } finally {
+            pool.release(deflater)
+        }
+    }
+
+    /**
+     * Returns the [Deflater] to the pool without writing anything else to [out]
+     */
+    fun abort() {
+        deflater?.let {
+            deflater = null
+            pool.release(it)
+        }
+    }
+
+    override fun flush() {
+        out.flush()
+    }
+
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            finish()
+        } finally {
+            out.close()
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.woggioni.rbcs.common
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Pool of reusable [Deflater] and [Inflater] instances shared by all threads, so that instances released by
+ * short-lived threads (like the workers of the common fork-join pool) can be reused by the others.
+ * Native zlib memory is released deterministically: at most [maxIdle] instances of each kind are kept,
+ * the ones exceeding it are ended when they are released, and [close] ends all the idle ones
+ * (instances released afterward are ended immediately).
+ */
+class ZlibPool(
+    private val level: Int = Deflater.DEFAULT_COMPRESSION,
+    private val maxIdle: Int = Runtime.getRuntime().availableProcessors() * 2,
+) : AutoCloseable {
+
+    private inner class Idle<T : Any>(private val end: (T) -> Unit) {
+        private val instances = ConcurrentLinkedQueue<T>()
+
+        // Tracked separately since ConcurrentLinkedQueue.size is linear in the number of elements
+        private val size = AtomicInteger(0)
+
+        fun poll(): T? = instances.poll()?.also {
+            size.decrementAndGet()
+        }
+
+        fun offer(instance: T) {
+            if (!closed && size.incrementAndGet() <= maxIdle) {
+                instances.offer(instance)
+                // The pool might have been closed in the meantime
+                if (closed) clear()
+            } else {
+                size.decrementAndGet()
+                end(instance)
+            }
+        }
+
+        fun clear() {
+            while (true) {
+                end(poll() ?: break)
+            }
+        }
+    }
+
+    @Volatile
+    private var closed = false
+
+    private val deflaters = Idle(Deflater::end)
+
+    private val inflaters = Idle(Inflater::end)
+
+    fun borrowDeflater(): Deflater = deflaters.poll() ?: Deflater(level)
+
+    fun borrowInflater(): Inflater = inflaters.poll() ?: Inflater()
+
+    /**
+     * Returns a [Deflater] to the pool, it must not be used by the caller afterward
+     */
+    fun release(deflater: Deflater) {
+        deflater.reset()
+        deflaters.offer(deflater)
+    }
+
+    /**
+     * Returns an [Inflater] to the pool, it must not be used by the caller afterward
+     */
+    fun release(inflater: Inflater) {
+        inflater.reset()
+        inflaters.offer(inflater)
+    }
+
+    override fun close() {
+        closed = true
+        deflaters.clear()
+        inflaters.clear()
+    }
+}
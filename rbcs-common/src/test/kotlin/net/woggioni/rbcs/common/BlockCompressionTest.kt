@@ -0,0 +1,139 @@
+package net.woggioni.rbcs.common
+
+import java.io.ByteArrayOutputStream
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.Random
+import java.util.zip.DeflaterOutputStream
+import io.netty.buffer.Unpooled
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
+
+class BlockCompressionTest {
+
+    private fun randomData(size: Int) = Random(101325).let { random ->
+        // Compressible data with some entropy
+        ByteArray(size) { (random.nextInt(16) + 'a'.code).toByte() }
+    }
+
+    private fun compress(data: ByteArray, blockSize: Int, codec: BlockCodec = DeflateBlockCodec()): ByteArray {
+        val baos = ByteArrayOutputStream()
+        val random = Random(0)
+        BlockCompressorOutputStream(baos, codec, blockSize).use { stream ->
+            var written = 0
+            while (written < data.size) {
+                val len = minOf(random.nextInt(blockSize * 2) + 1, data.size - written)
+                stream.write(data, written, len)
+                written += len
+            }
+        }
+        return baos.toByteArray()
+    }
+
+    private fun decompress(data: ByteArray): ByteArray {
+        val baos = ByteArrayOutputStream()
+        val random = Random(0)
+        DecompressingOutputStream(baos).use { stream ->
+            var written = 0
+            while (written < data.size) {
+                val len = minOf(random.nextInt(0x1000) + 1, data.size - written)
+                stream.write(data, written, len)
+                written += len
+            }
+        }
+        return baos.toByteArray()
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [0, 1, 0x3ff, 0x400, 0x401, 0x12345])
+    fun roundTrip(size: Int) {
+        val data = randomData(size)
+        val compressed = compress(data, 0x400)
+        Assertions.assertArrayEquals(data, decompress(compressed))
+    }
+
+    @Test
+    fun neverWaitsForQueuedBlocks() {
+        val data = randomData(0x12345)
+        val baos = ByteArrayOutputStream()
+        // An executor whose workers are all busy: every block has to be compressed by the calling thread
+        BlockCompressorOutputStream(baos, DeflateBlockCodec(), 0x400, executor = {}, maxInFlight = 4).use { stream ->
+            stream.write(data)
+        }
+        Assertions.assertArrayEquals(data, decompress(baos.toByteArray()))
+    }
+
+    @Test
+    fun neverWaitsForQueuedFrames() {
+        val data = randomData(0x12345)
+        val compressed = compress(data, 0x400)
+        val baos = ByteArrayOutputStream()
+        // An executor whose workers are all busy: every frame has to be decompressed by the calling thread
+        BlockDecompressorOutputStream(baos, executor = {}, maxInFlight = 4).use { stream ->
+            stream.write(compressed)
+        }
+        Assertions.assertArrayEquals(data, baos.toByteArray())
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [BlockCompression.DEFLATE, BlockCompression.ZSTD, BlockCompression.LZ4])
+    fun codecs(codecId: Int) {
+        val data = randomData(0x12345)
+        val compressed = compress(data, 0x4000, BlockCompression.codec(codecId))
+        Assertions.assertTrue(compressed.size < data.size)
+        Assertions.assertArrayEquals(data, decompress(compressed))
+    }
+
+    @Test
+    fun legacyZlibStream() {
+        val data = randomData(0x12345)
+        val baos = ByteArrayOutputStream()
+        DeflaterOutputStream(baos).use {
+            it.write(data)
+        }
+        Assertions.assertArrayEquals(data, decompress(baos.toByteArray()))
+    }
+
+    @Test
+    fun pooledDeflaterStream() {
+        val data = randomData(0x12345)
+        DeflateBlockCodec().use { codec ->
+            repeat(2) {
+                val baos = ByteArrayOutputStream()
+                BlockCompression.compressingStream(baos, codec, null).use { stream ->
+                    val direct = Unpooled.directBuffer(data.size).writeBytes(data, 0, 0x10000)
+                    BlockCompression.write(stream, direct)
+                    Assertions.assertEquals(0, direct.readableBytes())
+                    direct.release()
+                    stream.write(data, 0x10000, data.size - 0x10000)
+                }
+                Assertions.assertArrayEquals(data, decompress(baos.toByteArray()))
+            }
+        }
+    }
+
+    @Test
+    fun frameIndex(@TempDir tmpDir: Path) {
+        val data = randomData(0x12345)
+        val blockSize = 0x1000
+        val compressed = compress(data, blockSize)
+        val prefix = ByteArray(7)
+        val file = tmpDir.resolve("data.bin")
+        Files.write(file, prefix + compressed)
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            val index = FrameIndex.read(channel, prefix.size.toLong(), prefix.size.toLong() + compressed.size)
+            Assertions.assertEquals((data.size + blockSize - 1) / blockSize, index.frames)
+            Assertions.assertEquals(data.size.toLong(), index.uncompressedSize)
+            val position = 0x10001L
+            val frame = index.frameAt(position)
+            val block = index.readFrame(channel, prefix.size.toLong(), frame)
+            val offset = index.uncompressedOffset(frame).toInt()
+            Assertions.assertArrayEquals(data.copyOfRange(offset, offset + block.size), block)
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.woggioni.rbcs.common
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class CuckooFilterTest {
+
+    private fun key(n: Int) = "key-$n".toByteArray()
+
+    @Test
+    fun noFalseNegatives() {
+        val entries = 100_000
+        val filter = CuckooFilter(entries)
+        for (i in 0 until entries) {
+            Assertions.assertTrue(filter.add(key(i)))
+        }
+        Assertions.assertFalse(filter.isFull)
+        for (i in 0 until entries) {
+            Assertions.assertTrue(filter.mightContain(key(i)))
+        }
+        // Adding a key again doesn't take additional space
+        val size = filter.size
+        filter.add(key(0))
+        Assertions.assertEquals(size, filter.size)
+
+        val falsePositives = (entries until 2 * entries).count {
+            filter.mightContain(key(it))
+        }
+        val falsePositiveRate = falsePositives.toDouble() / entries
+        Assertions.assertTrue(falsePositiveRate < 2 * filter.expectedFalsePositiveRate + 1e-4) {
+            "False positive rate $falsePositiveRate exceeds the expected ${filter.expectedFalsePositiveRate}"
+        }
+    }
+
+    @Test
+    fun full() {
+        val filter = CuckooFilter(64)
+        var added = 0
+        while (filter.add(key(added))) {
+            ++added
+        }
+        Assertions.assertTrue(filter.isFull)
+        Assertions.assertTrue(added >= 64)
+        Assertions.assertFalse(filter.add(key(added)))
+        for (i in 0 until added) {
+            Assertions.assertTrue(filter.mightContain(key(i)))
+        }
+        Assertions.assertEquals(filter.memoryUsage, 32L * 4 * Short.SIZE_BYTES)
+    }
+}
@@ -0,0 +1,33 @@
+package net.woggioni.rbcs.common
+
+import java.time.Duration
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class NegativeCacheTest {
+
+    private fun key(n: Int) = "key-$n".toByteArray()
+
+    @Test
+    fun invalidation() {
+        val cache = NegativeCache(16, Duration.ofMinutes(1))
+        cache.missed(key(0), cache.stamp(key(0)))
+        Assertions.assertTrue(cache.isMissing(key(0)))
+        Assertions.assertFalse(cache.isMissing(key(1)))
+        cache.invalidate(key(0))
+        Assertions.assertFalse(cache.isMissing(key(0)))
+
+        // A miss observed by a lookup sent before the key got written must not be remembered
+        val stamp = cache.stamp(key(1))
+        cache.invalidate(key(1))
+        cache.missed(key(1), stamp)
+        Assertions.assertFalse(cache.isMissing(key(1)))
+    }
+
+    @Test
+    fun expiry() {
+        val cache = NegativeCache(16, Duration.ZERO)
+        cache.missed(key(0), cache.stamp(key(0)))
+        Assertions.assertFalse(cache.isMissing(key(0)))
+    }
+}
@@ -5,6 +5,7 @@ import java.security.Security
 import java.util.Base64
 import net.woggioni.rbcs.common.PasswordSecurity.decodePasswordHash
 import net.woggioni.rbcs.common.PasswordSecurity.hashPassword
+import net.woggioni.rbcs.common.PasswordSecurity.verifyPassword
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.params.ParameterizedTest
@@ -22,6 +23,8 @@ class PasswordHashingTest {
         Assertions.assertEquals(encoded,
             hashPassword(password, salt = salt.let(Base64.getEncoder()::encodeToString), algorithm = algo)
         )
+        Assertions.assertTrue(verifyPassword(password, encoded, algo))
+        Assertions.assertFalse(verifyPassword("passw0rd", encoded, algo))
     }
 
     @Test
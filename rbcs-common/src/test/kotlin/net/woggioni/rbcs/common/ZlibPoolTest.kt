@@ -0,0 +1,44 @@
+package net.woggioni.rbcs.common
+
+import java.util.zip.Deflater
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class ZlibPoolTest {
+
+    @Test
+    fun instancesReleasedByOtherThreadsAreReused() {
+        ZlibPool(maxIdle = 2).use { pool ->
+            val borrowed = (0 until 3).map { pool.borrowDeflater() }
+            Thread {
+                borrowed.forEach(pool::release)
+            }.apply {
+                start()
+                join()
+            }
+            val reused = (0 until 3).map { pool.borrowDeflater() }
+            // Only maxIdle instances are kept, the other one has been ended
+            Assertions.assertEquals(2, reused.count { candidate -> borrowed.any { it === candidate } })
+            reused.forEach(pool::release)
+        }
+    }
+
+    @Test
+    fun closeEndsIdleInstances() {
+        val pool = ZlibPool(maxIdle = 4)
+        val deflater = pool.borrowDeflater()
+        pool.release(deflater)
+        pool.close()
+        Assertions.assertThrows(NullPointerException::class.java) {
+            deflater.setInput(ByteArray(1))
+            deflater.deflate(ByteArray(16))
+        }
+        // Instances released after the pool has been closed are ended right away
+        val late = Deflater()
+        pool.release(late)
+        Assertions.assertThrows(NullPointerException::class.java) {
+            late.setInput(ByteArray(1))
+            late.deflate(ByteArray(16))
+        }
+    }
+}
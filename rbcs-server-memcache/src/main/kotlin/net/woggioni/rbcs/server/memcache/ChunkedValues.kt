@@ -0,0 +1,79 @@
+package net.woggioni.rbcs.server.memcache
+
+import java.io.IOException
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+
+/**
+ * Values larger than the configured maximum item size are stored in memcache split in chunks,
+ * each one stored as a separate item under a key derived from the key of the value
+ * (so that chunks can be spread across different servers), plus a small manifest item stored under the key itself.
+ * The manifest is written last and is marked by the [MANIFEST_FLAG] item flag, so that readers can tell it apart
+ * from a regular value; every write uses a new random generation in the chunk keys, so that
+ * a manifest never refers to the chunks written by a concurrent PUT of the same key.
+ */
+internal object ChunkedValues {
+
+    const val MANIFEST_FLAG = 0x1
+
+    private const val MANIFEST_VERSION = 1
+
+    class Manifest(
+        val generation: Long,
+        val chunks: Int,
+        val totalSize: Int,
+    ) {
+        fun write(alloc: ByteBufAllocator): ByteBuf = alloc.buffer(Int.SIZE_BYTES * 3 + Long.SIZE_BYTES).apply {
+            writeInt(MANIFEST_VERSION)
+            writeLong(generation)
+            writeInt(chunks)
+            writeInt(totalSize)
+        }
+
+        companion object {
+            fun read(buf: ByteBuf): Manifest {
+                if (buf.readableBytes() < Int.SIZE_BYTES * 3 + Long.SIZE_BYTES) {
+                    throw IOException("Truncated chunked value manifest")
+                }
+                val version = buf.readInt()
+                if (version != MANIFEST_VERSION) {
+                    throw IOException("Unsupported chunked value manifest version $version")
+                }
+                return Manifest(buf.readLong(), buf.readInt(), buf.readInt())
+            }
+        }
+    }
+
+    fun isManifest(response: BinaryMemcacheResponse): Boolean {
+        val extras = response.extras()
+        return extras != null && extras.readableBytes() >= Int.SIZE_BYTES &&
+                (extras.getInt(extras.readerIndex()) and MANIFEST_FLAG) != 0
+    }
+
+    /**
+     * @return the key of the chunk number [index] of the value stored under [key]
+     */
+    fun chunkKey(key: ByteArray, generation: Long, index: Int): ByteArray =
+        key + ":${java.lang.Long.toHexString(generation)}:$index".toByteArray(Charsets.US_ASCII)
+
+    /**
+     * @return the chunk number encoded in a key created with [chunkKey]
+     */
+    fun chunkIndex(key: ByteBuf): Int {
+        var result = 0
+        var multiplier = 1
+        var i = key.writerIndex() - 1
+        while (i >= key.readerIndex()) {
+            val c = key.getByte(i).toInt()
+            if (c == ':'.code) break
+            if (c < '0'.code || c > '9'.code) {
+                throw IOException("Invalid chunk key")
+            }
+            result += (c - '0'.code) * multiplier
+            multiplier *= 10
+            --i
+        }
+        return result
+    }
+}
@@ -1,21 +1,33 @@
 package net.woggioni.rbcs.server.memcache
 
+import java.nio.file.Path
 import java.time.Duration
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 import io.netty.channel.ChannelFactory
+import io.netty.channel.ChannelHandler
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.pool.FixedChannelPool
 import io.netty.channel.socket.DatagramChannel
 import io.netty.channel.socket.SocketChannel
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheClientCodec
 import net.woggioni.rbcs.api.CacheHandler
 import net.woggioni.rbcs.api.CacheHandlerFactory
 import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.common.NegativeCache
 import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.info
+import net.woggioni.rbcs.server.memcache.client.KetamaRing
+import net.woggioni.rbcs.server.memcache.client.LatencyTracker
 import net.woggioni.rbcs.server.memcache.client.MemcacheClient
+import net.woggioni.rbcs.server.memcache.client.MemcacheConnectionPool
+import net.woggioni.rbcs.server.memcache.client.MetaMemcacheClientCodec
+import net.woggioni.rbcs.server.memcache.client.NodeHealth
 
 data class MemcacheCacheConfiguration(
     val servers: List<Server>,
@@ -24,28 +36,96 @@ data class MemcacheCacheConfiguration(
     val digestAlgorithm: String? = null,
     val compressionMode: CompressionMode? = null,
     val compressionLevel: Int,
+    val compressionBlockSize: Int? = null,
+    val compressionDictionary: Path? = null,
+    val replicas: Int = 0,
+    val readTimeout: Duration? = null,
+    val hedgePercentile: Double? = null,
+    val ejectionBackoff: Duration = Duration.ofSeconds(1),
+    val maxItemSize: Int? = null,
+    val slidingExpiry: Boolean = false,
+    val metadataKey: Boolean = false,
+    val negativeCacheTtl: Duration? = null,
+    val negativeCacheSize: Int = 0x10000,
+    val healthCheckInterval: Duration? = null,
+    val protocol: Protocol = Protocol.BINARY,
 ) : Configuration.Cache {
 
     companion object {
         private val log = createLogger<MemcacheCacheConfiguration>()
     }
 
-    enum class CompressionMode {
+    enum class Protocol {
         /**
-         * Deflate mode
+         * The binary protocol, deprecated in recent memcached releases
          */
-        DEFLATE
+        BINARY,
+
+        /**
+         * The text meta protocol, available since memcached 1.6
+         */
+        META;
+
+        fun newCodec(chunkSize: Int): ChannelHandler = when (this) {
+            BINARY -> BinaryMemcacheClientCodec(chunkSize, true)
+            META -> MetaMemcacheClientCodec(chunkSize)
+        }
     }
 
     data class Server(
         val endpoint: HostAndPort,
         val connectionTimeoutMillis: Int?,
-        val maxConnections: Int
+        val maxConnections: Int,
+        val weight: Int = 1,
+        val multiplexedConnections: Int? = null,
+        val minConnections: Int = 0,
     )
 
     override fun materialize() = object : CacheHandlerFactory {
 
-        private val connectionPoolMap = ConcurrentHashMap<HostAndPort, FixedChannelPool>()
+        private val connectionPoolMap = ConcurrentHashMap<HostAndPort, MemcacheConnectionPool>()
+
+        private val codec = compressionMode?.createCodec(compressionLevel, compressionDictionary)
+
+        private val ring = KetamaRing(servers.map { it to it.weight }) { it.endpoint.toString() }
+
+        private val health = NodeHealth(ejectionBackoff, probed = healthCheckInterval != null)
+
+        private val latencyTracker = hedgePercentile?.let(::LatencyTracker)
+
+        private val negativeCache = negativeCacheTtl?.let { NegativeCache(negativeCacheSize, it) }
+
+        @Volatile
+        private var healthCheck: ScheduledFuture<*>? = null
+
+        override fun start(
+            cfg: Configuration,
+            eventLoop: EventLoopGroup,
+            socketChannelFactory: ChannelFactory<SocketChannel>,
+            datagramChannelFactory: ChannelFactory<DatagramChannel>,
+        ) {
+            val client = MemcacheClient(
+                ring,
+                replicas,
+                health,
+                protocol,
+                cfg.connection.chunkSize,
+                eventLoop,
+                socketChannelFactory,
+                connectionPoolMap
+            )
+            client.warmUp().thenRun {
+                log.info {
+                    "Memcache connection pools warmed up"
+                }
+            }
+            healthCheck = healthCheckInterval?.let { interval ->
+                val timeout = readTimeout ?: interval
+                eventLoop.scheduleAtFixedRate({
+                    client.probe(timeout)
+                }, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS)
+            }
+        }
 
         override fun newHandler(
             cfg : Configuration,
@@ -55,7 +135,10 @@ data class MemcacheCacheConfiguration(
         ): CacheHandler {
             return MemcacheCacheHandler(
                 MemcacheClient(
-                    this@MemcacheCacheConfiguration.servers,
+                    ring,
+                    replicas,
+                    health,
+                    protocol,
                     cfg.connection.chunkSize,
                     eventLoop,
                     socketChannelFactory,
@@ -63,15 +146,23 @@ data class MemcacheCacheConfiguration(
                 ),
                 keyPrefix,
                 digestAlgorithm,
-                compressionMode != null,
-                compressionLevel,
+                codec,
+                compressionBlockSize,
                 cfg.connection.chunkSize,
-                maxAge
+                maxAge,
+                readTimeout,
+                latencyTracker,
+                maxItemSize,
+                slidingExpiry,
+                metadataKey,
+                negativeCache,
             )
         }
 
         override fun asyncClose() = object : CompletableFuture<Void>() {
             init {
+                healthCheck?.cancel(false)
+                whenComplete { _, _ -> codec?.close() }
                 val failure = AtomicReference<Throwable>(null)
                 val pools = connectionPoolMap.values.toList()
                 val npools = pools.size
@@ -80,9 +171,9 @@ data class MemcacheCacheConfiguration(
                     complete(null)
                 } else {
                     pools.forEach { pool ->
-                        pool.closeAsync().addListener {
-                            if (!it.isSuccess) {
-                                failure.compareAndSet(null, it.cause())
+                        pool.close().whenComplete { _, ex ->
+                            if (ex != null) {
+                                failure.compareAndSet(null, ex)
                             }
                             if (finished.incrementAndGet() == npools) {
                                 when (val ex = failure.get()) {
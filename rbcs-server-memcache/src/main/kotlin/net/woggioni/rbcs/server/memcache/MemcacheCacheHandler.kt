@@ -1,8 +1,7 @@
 package net.woggioni.rbcs.server.memcache
 
-import java.io.ByteArrayOutputStream
-import java.io.ObjectInputStream
-import java.io.ObjectOutputStream
+import java.io.IOException
+import java.io.EOFException
 import java.nio.ByteBuffer
 import java.nio.channels.Channels
 import java.nio.channels.FileChannel
@@ -13,14 +12,19 @@ import java.net.InetSocketAddress
 import java.time.Duration
 import java.time.Instant
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
-import java.util.zip.Deflater
-import java.util.zip.DeflaterOutputStream
-import java.util.zip.InflaterOutputStream
 import io.netty.channel.Channel as NettyChannel
 import io.netty.buffer.ByteBuf
 import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.CompositeByteBuf
+import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.memcache.DefaultLastMemcacheContent
 import io.netty.handler.codec.memcache.DefaultMemcacheContent
@@ -32,6 +36,7 @@ import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponseStatus
 import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheRequest
 import net.woggioni.rbcs.api.CacheHandler
 import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.api.CacheValueMetadataCodec
 import net.woggioni.rbcs.api.exception.ContentTooLargeException
 import net.woggioni.rbcs.api.message.CacheMessage
 import net.woggioni.rbcs.api.message.CacheMessage.CacheContent
@@ -43,8 +48,11 @@ import net.woggioni.rbcs.api.message.CacheMessage.CacheValueNotFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.LastCacheContent
 import net.woggioni.rbcs.api.SpanHandle
 import net.woggioni.rbcs.api.TelemetryController
+import net.woggioni.rbcs.common.BlockCodec
+import net.woggioni.rbcs.common.BlockCompression
 import net.woggioni.rbcs.common.ByteBufInputStream
 import net.woggioni.rbcs.common.ByteBufOutputStream
+import net.woggioni.rbcs.common.NegativeCache
 import net.woggioni.rbcs.common.RBCS.loadService
 import net.woggioni.rbcs.common.RBCS.processCacheKey
 import net.woggioni.rbcs.common.RBCS.toIntOrNull
@@ -52,6 +60,8 @@ import net.woggioni.rbcs.common.createLogger
 import net.woggioni.rbcs.common.debug
 import net.woggioni.rbcs.common.extractChunk
 import net.woggioni.rbcs.common.trace
+import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.memcache.client.LatencyTracker
 import net.woggioni.rbcs.server.memcache.client.MemcacheClient
 import net.woggioni.rbcs.server.memcache.client.MemcacheRequestController
 import net.woggioni.rbcs.server.memcache.client.MemcacheResponseHandler
@@ -60,14 +70,27 @@ class MemcacheCacheHandler(
     private val client: MemcacheClient,
     private val keyPrefix: String?,
     private val digestAlgorithm: String?,
-    private val compressionEnabled: Boolean,
-    private val compressionLevel: Int,
+    private val codec: BlockCodec?,
+    private val compressionBlockSize: Int?,
     private val chunkSize: Int,
-    private val maxAge: Duration
+    private val maxAge: Duration,
+    private val readTimeout: Duration? = null,
+    private val latencyTracker: LatencyTracker? = null,
+    private val maxItemSize: Int? = null,
+    private val slidingExpiry: Boolean = false,
+    private val metadataKey: Boolean = false,
+    private val negativeCache: NegativeCache? = null,
 ) : CacheHandler() {
     companion object {
         private val log = createLogger<MemcacheCacheHandler>()
 
+        /**
+         * Maximum number of chunks of a large value being written at the same time
+         */
+        private const val MAX_IN_FLIGHT_CHUNKS = 4
+
+        private val METADATA_KEY_SUFFIX = ":meta".toByteArray()
+
         private fun encodeExpiry(expiry: Duration): Int {
             val expirySeconds = expiry.toSeconds()
             return expirySeconds.toInt().takeIf { it.toLong() == expirySeconds }
@@ -83,6 +106,19 @@ class MemcacheCacheHandler(
 
     }
 
+    /**
+     * Upload of a value whose servers are all ejected, the body is discarded and the client is told the value
+     * has been stored, as if memcache had evicted it right away
+     */
+    private class DiscardedPutRequest(val key: String) : InProgressRequest
+
+    private interface InProgressUpload : InProgressRequest {
+        /**
+         * Number of bytes of the value received from the client so far
+         */
+        val totalSize: Long
+    }
+
     private inner class InProgressGetRequest(
         val key: String,
         private val ctx: ChannelHandlerContext
@@ -90,13 +126,14 @@ class MemcacheCacheHandler(
         private val acc = ctx.alloc().compositeBuffer()
         private val chunk = ctx.alloc().compositeBuffer()
         private val outputStream = ByteBufOutputStream(chunk).let {
-            if (compressionEnabled) {
-                InflaterOutputStream(it)
+            if (codec != null) {
+                BlockCompression.decompressingStream(it, codec)
             } else {
                 it
             }
         }
-        private var responseSent = false
+        var responseSent = false
+            private set
         private var metadataSize: Int? = null
 
         fun write(buf: ByteBuf) {
@@ -108,20 +145,16 @@ class MemcacheCacheHandler(
                 ?.takeIf { !responseSent }
                 ?.takeIf { acc.readableBytes() >= it }
                 ?.let { mSize ->
-                    val metadata = ObjectInputStream(ByteBufInputStream(acc)).use {
-                        acc.retain()
-                        it.readObject() as CacheValueMetadata
-                    }
+                    val metadata = CacheValueMetadataCodec.read(acc, mSize)
                     log.trace(ctx) {
                         "Sending response from cache"
                     }
                     sendMessageAndFlush(ctx, CacheValueFoundResponse(key, metadata))
                     responseSent = true
-                    acc.readerIndex(Int.SIZE_BYTES + mSize)
                 }
             if (responseSent) {
                 acc.readBytes(outputStream, acc.readableBytes())
-                if (acc.readableBytes() >= chunkSize) {
+                if (chunk.readableBytes() >= chunkSize) {
                     flush(false)
                 }
             }
@@ -157,40 +190,252 @@ class MemcacheCacheHandler(
         }
     }
 
+    private inner class InProgressManifestRequest(
+        val key: String,
+        private val ctx: ChannelHandlerContext,
+        private val baseKey: ByteArray,
+        private val memcacheSpan: SpanHandle?,
+    ) : InProgressRequest {
+        private val acc = ctx.alloc().compositeBuffer()
+
+        fun write(buf: ByteBuf) {
+            acc.addComponent(true, buf.retain())
+        }
+
+        fun commit() {
+            val manifest = try {
+                ChunkedValues.Manifest.read(acc)
+            } finally {
+                acc.release()
+            }
+            log.debug(ctx) {
+                "Value for key $key is split in ${manifest.chunks} chunks"
+            }
+            ChunkedGet(ctx, key, baseKey, manifest, memcacheSpan).start()
+        }
+
+        fun rollback() {
+            acc.release()
+        }
+    }
+
+    /**
+     * Fetches the chunks of a value from their servers, grouping the chunks stored on the same server in a pipeline
+     * of quiet GETKQ requests terminated by a NOOP, and streams them to the client in order as they arrive.
+     * Chunks a server doesn't return are requested to the next replica of their key; memcache evicts chunks
+     * independently, so a chunk that is missing from all of them is a cache miss as long as nothing has been
+     * sent to the client yet.
+     */
+    private inner class ChunkedGet(
+        private val ctx: ChannelHandlerContext,
+        private val key: String,
+        private val baseKey: ByteArray,
+        private val manifest: ChunkedValues.Manifest,
+        private val memcacheSpan: SpanHandle?,
+    ) {
+        private val output = InProgressGetRequest(key, ctx)
+        private val received = HashMap<Int, ByteBuf>()
+        private var next = 0
+        private val failed = AtomicBoolean(false)
+        private val candidates = Array(manifest.chunks) { index ->
+            client.readCandidates(Unpooled.wrappedBuffer(chunkKey(index)))
+        }
+
+        fun start() {
+            inProgressRequest = output
+            if (manifest.chunks == 0) {
+                complete()
+                return
+            }
+            fetch((0 until manifest.chunks).toList(), 0, null)
+        }
+
+        private fun chunkKey(index: Int) = ChunkedValues.chunkKey(baseKey, manifest.generation, index)
+
+        /**
+         * Requests each chunk in [indexes] to the server at position [attempt] in its candidates list,
+         * [cause] is the reason why the previous attempt failed, if any
+         */
+        private fun fetch(indexes: List<Int>, attempt: Int, cause: Throwable?) {
+            val exhausted = indexes.count { attempt >= candidates[it].size }
+            if (exhausted > 0) {
+                if (cause != null) {
+                    fail(cause)
+                } else {
+                    miss("$exhausted chunk(s) of the value for key $key are missing from memcache")
+                }
+                return
+            }
+            indexes.groupBy { candidates[it][attempt] }.forEach { (server, group) ->
+                fetch(server, group, attempt)
+            }
+        }
+
+        private fun fetch(server: MemcacheCacheConfiguration.Server, indexes: List<Int>, attempt: Int) {
+            val responseHandler = object : MemcacheResponseHandler {
+                private val found = HashSet<Int>()
+                private var index = -1
+                private var chunk: CompositeByteBuf? = null
+                private var done = false
+
+                private fun retry(cause: Throwable?) {
+                    done = true
+                    chunk?.release()
+                    chunk = null
+                    val missing = indexes.filterNot(found::contains)
+                    if (missing.isNotEmpty()) {
+                        log.debug(ctx) {
+                            "${missing.size} chunk(s) of the value for key $key are missing from memcache server ${server.endpoint}"
+                        }
+                        fetch(missing, attempt + 1, cause)
+                    }
+                }
+
+                override fun responseReceived(response: BinaryMemcacheResponse) {
+                    if (done) return
+                    if (response.opcode() == BinaryMemcacheOpcodes.NOOP) {
+                        retry(null)
+                    } else if (response.status() == BinaryMemcacheResponseStatus.SUCCESS) {
+                        index = ChunkedValues.chunkIndex(response.key())
+                        chunk = ctx.alloc().compositeBuffer()
+                    } else {
+                        retry(MemcacheException(response.status()))
+                    }
+                }
+
+                override fun contentReceived(content: MemcacheContent) {
+                    val chunk = this.chunk ?: return
+                    chunk.addComponent(true, content.content().retain())
+                    if (content is LastMemcacheContent) {
+                        this.chunk = null
+                        found.add(index)
+                        deliver(index, chunk)
+                    }
+                }
+
+                override fun exceptionCaught(ex: Throwable) {
+                    if (!done) {
+                        retry(ex)
+                    }
+                }
+            }
+            client.sendRequest(server, responseHandler).whenComplete { requestHandle, ex ->
+                if (ex != null) {
+                    responseHandler.exceptionCaught(ex)
+                } else {
+                    log.trace(ctx) {
+                        "Fetching ${indexes.size} chunk(s) of the value for key $key from memcache server ${server.endpoint}"
+                    }
+                    for (index in indexes) {
+                        val chunkKey = chunkKey(index)
+                        requestHandle.sendRequest(newGetRequest(ctx.alloc(), chunkKey, true))
+                        requestHandle.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                    }
+                    requestHandle.sendRequest(DefaultBinaryMemcacheRequest().apply {
+                        setOpcode(BinaryMemcacheOpcodes.NOOP)
+                    })
+                    requestHandle.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                }
+            }
+        }
+
+        private fun deliver(index: Int, chunk: ByteBuf) {
+            synchronized(this) {
+                if (failed.get()) {
+                    chunk.release()
+                    return
+                }
+                received[index] = chunk
+                while (true) {
+                    val buf = received.remove(next) ?: break
+                    try {
+                        output.write(buf)
+                    } finally {
+                        buf.release()
+                    }
+                    ++next
+                }
+                if (next == manifest.chunks) {
+                    complete()
+                }
+            }
+        }
+
+        private fun complete() {
+            inProgressRequest = null
+            output.commit()
+            telemetryController?.endSpan(memcacheSpan)
+        }
+
+        /**
+         * @return false if the request had already been aborted
+         */
+        private fun abort() = synchronized(this) {
+            failed.compareAndSet(false, true).also { aborted ->
+                if (aborted) {
+                    received.values.forEach(ByteBuf::release)
+                    received.clear()
+                    if (inProgressRequest === output) {
+                        inProgressRequest = null
+                    }
+                    output.rollback()
+                }
+            }
+        }
+
+        private fun miss(reason: String) {
+            val notFound = synchronized(this) {
+                !output.responseSent && abort()
+            }
+            if (notFound) {
+                log.debug(ctx) {
+                    "$reason, reporting a cache miss"
+                }
+                telemetryController?.endSpan(memcacheSpan)
+                sendMessageAndFlush(ctx, CacheValueNotFoundResponse(key))
+            } else {
+                // Part of the value has already been sent to the client
+                fail(IOException(reason))
+            }
+        }
+
+        private fun fail(ex: Throwable) {
+            if (abort()) {
+                telemetryController?.endSpan(memcacheSpan, ex)
+                this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+            }
+        }
+    }
+
     private inner class InProgressPutRequest(
         private val ch: NettyChannel,
         metadata: CacheValueMetadata,
         val digest: ByteBuf,
-        val requestController: CompletableFuture<MemcacheRequestController>,
+        val targets: List<MemcacheCacheConfiguration.Server>,
+        val aggregator: SetAggregator,
         private val alloc: ByteBufAllocator,
         val entryKey: String,
         val memcacheSpanRef: AtomicReference<SpanHandle?>,
-    ) : InProgressRequest {
-        private var totalSize = 0
+    ) : InProgressUpload {
+        override var totalSize = 0L
+            private set
         private var tmpFile: FileChannel? = null
         private val accumulator = alloc.compositeBuffer()
         private val stream = ByteBufOutputStream(accumulator).let {
-            if (compressionEnabled) {
-                DeflaterOutputStream(it, Deflater(compressionLevel))
+            if (codec != null) {
+                BlockCompression.compressingStream(it, codec, compressionBlockSize)
             } else {
                 it
             }
         }
 
         init {
-            ByteArrayOutputStream().let { baos ->
-                ObjectOutputStream(baos).use {
-                    it.writeObject(metadata)
-                }
-                val serializedBytes = baos.toByteArray()
-                accumulator.writeInt(serializedBytes.size)
-                accumulator.writeBytes(serializedBytes)
-            }
+            writeMetadata(accumulator, metadata)
         }
 
         fun write(buf: ByteBuf) {
             totalSize += buf.readableBytes()
-            buf.readBytes(stream, buf.readableBytes())
+            BlockCompression.write(stream, buf)
             tmpFile?.let {
                 flushToDisk(it, accumulator)
             }
@@ -237,12 +482,229 @@ class MemcacheCacheHandler(
         }
 
         fun rollback() {
+            BlockCompression.abort(stream)
             stream.close()
             digest.release()
             tmpFile?.close()
         }
     }
 
+    /**
+     * Forwards the request body to memcache as it is received from the client, which is only possible
+     * when the size of the value is known before the SET request is sent (compression disabled and
+     * a Content-Length provided by the client). Reading from the client is suspended while the memcache connections
+     * are being acquired or aren't writable, so that a slow server doesn't cause the body to pile up in memory.
+     */
+    private inner class InProgressStreamingPutRequest(
+        private val ctx: ChannelHandlerContext,
+        metadata: CacheValueMetadata,
+        private val digest: ByteBuf,
+        targets: List<MemcacheCacheConfiguration.Server>,
+        aggregator: SetAggregator,
+        private val contentLength: Long,
+        val entryKey: String,
+        private val memcacheSpanRef: AtomicReference<SpanHandle?>,
+    ) : InProgressUpload {
+        private val header = ctx.alloc().buffer(metadataSize(metadata)).also {
+            writeMetadata(it, metadata)
+        }
+        private val valueSize = header.readableBytes() + contentLength.toInt()
+
+        // All the fields below are only accessed from the event loop of the client channel
+        private var controllers: List<MemcacheRequestController>? = null
+        private val pending = ArrayDeque<ByteBuf>()
+        private var pendingBytes = 0
+        private var received = 0L
+
+        override val totalSize
+            get() = received
+
+        private var last = false
+        private var aborted = false
+
+        val requestControllers = targets.map { server ->
+            val responseHandler = aggregator.newResponseHandler(::writabilityChanged)
+            client.sendRequest(server, responseHandler).whenComplete { _, ex ->
+                ex?.let(responseHandler::exceptionCaught)
+            }
+        }
+
+        init {
+            val futures = requestControllers.map { future ->
+                future.handle { requestController, _ -> requestController }
+            }
+            CompletableFuture.allOf(*futures.toTypedArray()).whenComplete { _, _ ->
+                // Replicas whose connection couldn't be acquired have already been accounted for as failures
+                inEventLoop {
+                    start(futures.mapNotNull { it.join() })
+                }
+            }
+        }
+
+        private fun inEventLoop(action: () -> Unit) {
+            if (ctx.executor().inEventLoop()) {
+                action()
+            } else {
+                ctx.executor().execute(action)
+            }
+        }
+
+        private fun start(controllers: List<MemcacheRequestController>) {
+            if (aborted) return
+            this.controllers = controllers
+            memcacheSpanRef.set(startSetSpan(ctx, controllers.firstOrNull()))
+            log.trace(ctx) {
+                "Streaming SET request to ${controllers.size} memcache server(s)"
+            }
+            try {
+                for (requestController in controllers) {
+                    requestController.sendRequest(newSetRequest(ctx.alloc(), digest.retainedDuplicate(), 0, valueSize))
+                    requestController.sendContent(DefaultMemcacheContent(header.retainedDuplicate()))
+                }
+            } finally {
+                digest.release()
+                header.release()
+            }
+            while (true) {
+                val buf = pending.removeFirstOrNull() ?: break
+                forward(buf, last && pending.isEmpty())
+            }
+            pendingBytes = 0
+            checkWritability()
+        }
+
+        private fun account(buf: ByteBuf) {
+            received += buf.readableBytes()
+            if (received > contentLength) {
+                throw IOException("Request body is larger than its declared Content-Length")
+            }
+        }
+
+        private fun forward(buf: ByteBuf, isLast: Boolean) {
+            try {
+                for (requestController in controllers!!) {
+                    if (isLast) {
+                        requestController.sendContent(DefaultLastMemcacheContent(buf.retainedDuplicate()))
+                    } else {
+                        requestController.sendContent(DefaultMemcacheContent(buf.retainedDuplicate()))
+                    }
+                }
+            } finally {
+                buf.release()
+            }
+        }
+
+        private fun checkWritability() {
+            if (controllers?.all { it.channel.isWritable } == true) {
+                resumeReading(ctx)
+            } else {
+                suspendReading(ctx)
+            }
+        }
+
+        private fun writabilityChanged(writable: Boolean) {
+            if (writable) {
+                inEventLoop {
+                    if (!aborted && !last) checkWritability()
+                }
+            }
+        }
+
+        fun write(buf: ByteBuf) {
+            account(buf)
+            if (controllers == null) {
+                pending.addLast(buf.retain())
+                pendingBytes += buf.readableBytes()
+                if (pendingBytes > 0x100000) {
+                    log.trace(ctx) {
+                        "Memcache connections not acquired yet, suspending reading from the client"
+                    }
+                    suspendReading(ctx)
+                }
+            } else {
+                forward(buf.retain(), false)
+                if (controllers?.all { it.channel.isWritable } != true) {
+                    suspendReading(ctx)
+                }
+            }
+        }
+
+        fun finish(buf: ByteBuf) {
+            account(buf)
+            if (received != contentLength) {
+                throw IOException("Request body is shorter than its declared Content-Length")
+            }
+            last = true
+            if (controllers == null) {
+                pending.addLast(buf.retain())
+            } else {
+                forward(buf.retain(), true)
+            }
+        }
+
+        fun rollback(cause: Throwable) {
+            inEventLoop {
+                if (!aborted) {
+                    aborted = true
+                    pending.forEach(ByteBuf::release)
+                    pending.clear()
+                    if (controllers == null) {
+                        digest.release()
+                        header.release()
+                    }
+                    requestControllers.forEach {
+                        it.thenAccept { controller ->
+                            controller.exceptionCaught(cause)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a GET request for [key], or a GAT request that also pushes its expiry forward by [maxAge]
+     * if sliding expiry is enabled; when [quiet] is true the key is echoed back in the response and misses are silent
+     */
+    private fun newGetRequest(alloc: ByteBufAllocator, key: ByteArray, quiet: Boolean = false) =
+        DefaultBinaryMemcacheRequest(alloc.buffer(key.size).writeBytes(key)).apply {
+            if (slidingExpiry) {
+                setOpcode(if (quiet) BinaryMemcacheOpcodes.GATKQ else BinaryMemcacheOpcodes.GAT)
+                setExtras(alloc.buffer(Int.SIZE_BYTES, Int.SIZE_BYTES).writeInt(encodeExpiry(maxAge)))
+            } else {
+                setOpcode(if (quiet) BinaryMemcacheOpcodes.GETKQ else BinaryMemcacheOpcodes.GET)
+            }
+        }
+
+    /**
+     * @return the number of bytes [writeMetadata] is going to write for [metadata]
+     */
+    private fun metadataSize(metadata: CacheValueMetadata) =
+        Int.SIZE_BYTES + CacheValueMetadataCodec.encodedSize(metadata)
+
+    /**
+     * Writes the size of the encoded [metadata] followed by the encoded [metadata] itself,
+     * the layout every value stored in memcache starts with
+     */
+    private fun writeMetadata(buf: ByteBuf, metadata: CacheValueMetadata) {
+        buf.writeInt(CacheValueMetadataCodec.encodedSize(metadata))
+        CacheValueMetadataCodec.write(buf, metadata)
+    }
+
+    private fun startSetSpan(ctx: ChannelHandlerContext, requestController: MemcacheRequestController?) =
+        telemetryController?.startSpan("SET")?.apply {
+            setAttribute("db.system", "memcache")
+            setAttribute("db.operation.name", "SET")
+            requestController?.channel?.remoteAddress()?.let { remoteAddr ->
+                if (remoteAddr is InetSocketAddress) {
+                    remoteAddr.hostString?.let {
+                        setAttribute("server.address", it)
+                    }
+                    setAttribute("server.port", remoteAddr.port.toLong())
+                }
+            }
+        }
+
     private var inProgressRequest: InProgressRequest? = null
 
     override fun channelRead0(ctx: ChannelHandlerContext, msg: CacheMessage) {
@@ -255,39 +717,121 @@ class MemcacheCacheHandler(
         }
     }
 
-    private fun handleGetRequest(ctx: ChannelHandlerContext, msg: CacheGetRequest) {
-        log.debug(ctx) {
-            "Fetching ${msg.key} from memcache"
+    /**
+     * Sends a GET request to the server owning the key, falling back to its replicas if it fails or times out;
+     * when hedging is enabled, a replica is also queried if the first server doesn't answer within
+     * the configured latency percentile. The first server to answer wins, the responses of the others get ignored.
+     */
+    private inner class GetOperation(
+        private val ctx: ChannelHandlerContext,
+        private val msg: CacheGetRequest,
+        private val key: ByteArray,
+        private val memcacheSpan: SpanHandle?,
+    ) {
+        private val servers = Unpooled.wrappedBuffer(key).let(client::readCandidates)
+        private val nextAttempt = AtomicInteger(0)
+        private val failures = AtomicInteger(0)
+        private val winner = AtomicReference<Attempt?>(null)
+
+        // Taken before sending any request, so that a miss is not remembered if the key gets written in the meantime
+        private val missStamp = negativeCache?.stamp(key) ?: 0
+
+        fun start() {
+            if (servers.isEmpty()) {
+                log.debug(ctx) {
+                    "No memcache server available for key ${msg.key}, reporting a cache miss"
+                }
+                telemetryController?.endSpan(memcacheSpan)
+                sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
+                return
+            }
+            launchNext()
+            val hedgeDelay = latencyTracker?.percentile()
+            if (hedgeDelay != null && servers.size > 1) {
+                ctx.executor().schedule({
+                    if (winner.get() == null) {
+                        log.debug(ctx) {
+                            "No response from memcache for key ${msg.key} after ${hedgeDelay}ns, querying a replica"
+                        }
+                        launchNext()
+                    }
+                }, hedgeDelay, TimeUnit.NANOSECONDS)
+            }
         }
-        val key = ctx.alloc().buffer().also {
-            it.writeBytes(processCacheKey(msg.key, keyPrefix, digestAlgorithm))
+
+        private fun launchNext(): Boolean {
+            val index = nextAttempt.getAndIncrement()
+            if (index >= servers.size) return false
+            Attempt(servers[index]).start()
+            return true
         }
-        val memcacheSpan = telemetryController?.startSpan("GET")?.apply {
-            setAttribute("db.system", "memcache")
-            setAttribute("db.operation.name", "GET")
-            val remoteAddr = ctx.channel().remoteAddress()
-            if (remoteAddr is InetSocketAddress) {
-                remoteAddr.hostString?.let {
-                    setAttribute("server.address", it)
+
+        private inner class Attempt(private val server: MemcacheCacheConfiguration.Server) : MemcacheResponseHandler {
+            private val startTime = System.nanoTime()
+            private val finished = AtomicBoolean(false)
+            private var timeout: ScheduledFuture<*>? = null
+
+            fun start() {
+                readTimeout?.let { readTimeout ->
+                    timeout = ctx.executor().schedule({
+                        if (finished.compareAndSet(false, true)) {
+                            client.reportFailure(server)
+                            failed(TimeoutException("No response from memcache server ${server.endpoint} after $readTimeout"))
+                        }
+                    }, readTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                }
+                client.sendRequest(server, this).whenComplete { requestHandle, ex ->
+                    if (ex != null) {
+                        if (finished.compareAndSet(false, true)) {
+                            timeout?.cancel(false)
+                            failed(ex)
+                        }
+                    } else {
+                        log.trace(ctx) {
+                            "Sending GET request for key ${msg.key} to memcache server ${server.endpoint}"
+                        }
+                        requestHandle.sendRequest(newGetRequest(ctx.alloc(), key))
+                        requestHandle.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                    }
                 }
-                setAttribute("server.port", remoteAddr.port.toLong())
             }
-        }
-        val responseHandler = object : MemcacheResponseHandler {
+
+            private fun failed(ex: Throwable) {
+                log.debug(ctx) {
+                    "GET request for key ${msg.key} to memcache server ${server.endpoint} failed: ${ex.message}"
+                }
+                val failed = failures.incrementAndGet()
+                if (!launchNext() && failed == servers.size && winner.get() == null) {
+                    telemetryController?.endSpan(memcacheSpan, ex)
+                    this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+                }
+            }
+
             override fun responseReceived(response: BinaryMemcacheResponse) {
+                timeout?.cancel(false)
+                if (!finished.compareAndSet(false, true) || !winner.compareAndSet(null, this)) {
+                    // This attempt timed out, or another one answered first
+                    return
+                }
+                latencyTracker?.record(System.nanoTime() - startTime)
                 val status = response.status()
                 when (status) {
                     BinaryMemcacheResponseStatus.SUCCESS -> {
                         log.debug(ctx) {
                             "Cache hit for key ${msg.key} on memcache"
                         }
-                        inProgressRequest = InProgressGetRequest(msg.key, ctx)
+                        inProgressRequest = if (ChunkedValues.isManifest(response)) {
+                            InProgressManifestRequest(msg.key, ctx, key, memcacheSpan)
+                        } else {
+                            InProgressGetRequest(msg.key, ctx)
+                        }
                     }
 
                     BinaryMemcacheResponseStatus.KEY_ENOENT -> {
                         log.debug(ctx) {
                             "Cache miss for key ${msg.key} on memcache"
                         }
+                        negativeCache?.missed(key, missStamp)
                         telemetryController?.endSpan(memcacheSpan)
                         sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
                     }
@@ -301,83 +845,472 @@ class MemcacheCacheHandler(
             }
 
             override fun contentReceived(content: MemcacheContent) {
+                if (winner.get() !== this) return
                 log.trace(ctx) {
                     "${if (content is LastMemcacheContent) "Last chunk" else "Chunk"} of ${
                         content.content().readableBytes()
                     } bytes received from memcache for key ${msg.key}"
                 }
-                (inProgressRequest as? InProgressGetRequest)?.let { inProgressGetRequest ->
-                    inProgressGetRequest.write(content.content())
-                    if (content is LastMemcacheContent) {
-                        inProgressRequest = null
-                        inProgressGetRequest.commit()
-                        telemetryController?.endSpan(memcacheSpan)
+                when (val request = inProgressRequest) {
+                    is InProgressGetRequest -> {
+                        request.write(content.content())
+                        if (content is LastMemcacheContent) {
+                            inProgressRequest = null
+                            request.commit()
+                            telemetryController?.endSpan(memcacheSpan)
+                        }
+                    }
+
+                    is InProgressManifestRequest -> {
+                        request.write(content.content())
+                        if (content is LastMemcacheContent) {
+                            inProgressRequest = null
+                            try {
+                                request.commit()
+                            } catch (ex: IOException) {
+                                telemetryController?.endSpan(memcacheSpan, ex)
+                                this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+                            }
+                        }
                     }
                 }
             }
 
             override fun exceptionCaught(ex: Throwable) {
-                telemetryController?.endSpan(memcacheSpan, ex)
-                (inProgressRequest as? InProgressGetRequest).let { inProgressGetRequest ->
-                    inProgressGetRequest?.let {
-                        inProgressRequest = null
-                        it.rollback()
+                if (winner.get() === this) {
+                    telemetryController?.endSpan(memcacheSpan, ex)
+                    when (val request = inProgressRequest) {
+                        is InProgressGetRequest -> {
+                            inProgressRequest = null
+                            request.rollback()
+                        }
+
+                        is InProgressManifestRequest -> {
+                            inProgressRequest = null
+                            request.rollback()
+                        }
                     }
+                    this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+                } else if (finished.compareAndSet(false, true)) {
+                    timeout?.cancel(false)
+                    failed(ex)
                 }
-                this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
             }
         }
-        client.sendRequest(key.retainedDuplicate(), responseHandler).thenAccept { requestHandle ->
-            log.trace(ctx) {
-                "Sending GET request for key ${msg.key} to memcache"
+    }
+
+    private fun handleGetRequest(ctx: ChannelHandlerContext, msg: CacheGetRequest) {
+        log.debug(ctx) {
+            "Fetching ${msg.key} from memcache"
+        }
+        val key = processCacheKey(msg.key, keyPrefix, digestAlgorithm)
+        if (negativeCache?.isMissing(key) == true) {
+            log.debug(ctx) {
+                "Cache miss for key ${msg.key} on the negative cache"
+            }
+            sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
+            return
+        }
+        val memcacheSpan = telemetryController?.startSpan("GET")?.apply {
+            setAttribute("db.system", "memcache")
+            setAttribute("db.operation.name", "GET")
+            val remoteAddr = ctx.channel().remoteAddress()
+            if (remoteAddr is InetSocketAddress) {
+                remoteAddr.hostString?.let {
+                    setAttribute("server.address", it)
+                }
+                setAttribute("server.port", remoteAddr.port.toLong())
             }
-            val request = DefaultBinaryMemcacheRequest(key).apply {
-                setOpcode(BinaryMemcacheOpcodes.GET)
+        }
+        if (msg.isMetadataOnly && metadataKey) {
+            MetadataGet(ctx, msg, key, memcacheSpan).start()
+        } else {
+            GetOperation(ctx, msg, key, memcacheSpan).start()
+        }
+    }
+
+    /**
+     * Key of the small item holding the size and the metadata of the value stored under [key]
+     */
+    private fun metadataKey(key: ByteArray) = key + METADATA_KEY_SUFFIX
+
+    /**
+     * Stores the metadata of a value that has just been written, failures are only logged
+     * since metadata-only requests fall back to fetching the value
+     */
+    private fun writeMetadataKey(ctx: ChannelHandlerContext, key: ByteArray, metadata: CacheValueMetadata, size: Long) {
+        val metaKey = metadataKey(key)
+        val targets = client.writeTargets(Unpooled.wrappedBuffer(metaKey))
+        if (targets.isEmpty()) return
+        val record = ctx.alloc().buffer(Long.SIZE_BYTES + metadataSize(metadata)).also {
+            it.writeLong(size)
+            writeMetadata(it, metadata)
+        }
+        val aggregator = SetAggregator(targets.size) { ex ->
+            if (ex != null) {
+                log.warn(ctx) {
+                    "Failed to write the metadata of ${String(key)}: ${ex.message}"
+                }
             }
-            requestHandle.sendRequest(request)
-            requestHandle.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
         }
+        sendSet(ctx, acquire(targets, aggregator), ctx.alloc().buffer(metaKey.size).writeBytes(metaKey), 0, record)
     }
 
-    private fun handlePutRequest(ctx: ChannelHandlerContext, msg: CachePutRequest) {
-        val key = ctx.alloc().buffer().also {
-            it.writeBytes(processCacheKey(msg.key, keyPrefix, digestAlgorithm))
+    /**
+     * Answers a metadata-only request reading just the metadata item of the value,
+     * falling back to a regular [GetOperation] if it's missing (e.g. for values written before it was enabled);
+     * servers that fail to answer are replaced by the next replica of the metadata key
+     */
+    private inner class MetadataGet(
+        private val ctx: ChannelHandlerContext,
+        private val msg: CacheGetRequest,
+        private val key: ByteArray,
+        private val memcacheSpan: SpanHandle?,
+    ) : MemcacheResponseHandler {
+        private val metaKey = metadataKey(key)
+        private val servers = client.readCandidates(Unpooled.wrappedBuffer(metaKey))
+        private var attempt = 0
+        private var record: CompositeByteBuf? = null
+
+        fun start() {
+            val server = servers.getOrNull(attempt) ?: let {
+                log.debug(ctx) {
+                    "No memcache server available for the metadata of key ${msg.key}, fetching the value"
+                }
+                GetOperation(ctx, msg, key, memcacheSpan).start()
+                return
+            }
+            client.sendRequest(server, this).whenComplete { requestHandle, ex ->
+                if (ex != null) {
+                    exceptionCaught(ex)
+                } else {
+                    requestHandle.sendRequest(newGetRequest(ctx.alloc(), metaKey))
+                    requestHandle.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                }
+            }
         }
-        val memcacheSpanRef = AtomicReference<SpanHandle?>(null)
-        val responseHandler = object : MemcacheResponseHandler {
+
+        override fun responseReceived(response: BinaryMemcacheResponse) {
+            when (val status = response.status()) {
+                BinaryMemcacheResponseStatus.SUCCESS -> {
+                    record = ctx.alloc().compositeBuffer()
+                }
+
+                BinaryMemcacheResponseStatus.KEY_ENOENT -> {
+                    log.debug(ctx) {
+                        "No metadata for key ${msg.key} on memcache, fetching the value"
+                    }
+                    GetOperation(ctx, msg, key, memcacheSpan).start()
+                }
+
+                else -> exceptionCaught(MemcacheException(status))
+            }
+        }
+
+        override fun contentReceived(content: MemcacheContent) {
+            val buf = record ?: return
+            buf.addComponent(true, content.content().retain())
+            if (content is LastMemcacheContent) {
+                record = null
+                try {
+                    val size = buf.readLong()
+                    val metadataSize = buf.readInt()
+                    val metadata = CacheValueMetadataCodec.read(buf, metadataSize)
+                    telemetryController?.endSpan(memcacheSpan)
+                    sendMessage(ctx, CacheValueFoundResponse(msg.key, metadata, size))
+                    sendMessageAndFlush(ctx, LastCacheContent(Unpooled.EMPTY_BUFFER))
+                } catch (ex: IOException) {
+                    exceptionCaught(ex)
+                } finally {
+                    buf.release()
+                }
+            }
+        }
+
+        override fun exceptionCaught(ex: Throwable) {
+            record?.release()
+            record = null
+            if (++attempt < servers.size) {
+                log.debug(ctx) {
+                    "Failed to fetch the metadata of key ${msg.key} from memcache: ${ex.message}, trying a replica"
+                }
+                start()
+            } else {
+                telemetryController?.endSpan(memcacheSpan, ex)
+                this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+            }
+        }
+    }
+
+    /**
+     * Collects the responses of the SET requests sent to the server owning a key and to its replicas,
+     * the write succeeds if at least one of them succeeds
+     */
+    private class SetAggregator(targets: Int, private val onCompletion: (Throwable?) -> Unit) {
+        private val remaining = AtomicInteger(targets)
+        private val successes = AtomicInteger(0)
+        private val failure = AtomicReference<Throwable?>(null)
+
+        private fun completed(ex: Throwable?) {
+            if (ex == null) {
+                successes.incrementAndGet()
+            } else {
+                failure.compareAndSet(null, ex)
+            }
+            if (remaining.decrementAndGet() == 0) {
+                onCompletion(if (successes.get() > 0) null else failure.get())
+            }
+        }
+
+        /**
+         * Fails the write regardless of the responses that haven't been received yet
+         */
+        fun fail(ex: Throwable) {
+            if (remaining.getAndSet(0) > 0) {
+                onCompletion(ex)
+            }
+        }
+
+        fun newResponseHandler(onWritabilityChanged: ((Boolean) -> Unit)? = null) = object : MemcacheResponseHandler {
+            private val done = AtomicBoolean(false)
+
+            private fun complete(ex: Throwable?) {
+                if (done.compareAndSet(false, true)) {
+                    completed(ex)
+                }
+            }
+
             override fun responseReceived(response: BinaryMemcacheResponse) {
                 val status = response.status()
                 when (status) {
-                    BinaryMemcacheResponseStatus.SUCCESS -> {
-                        log.debug(ctx) {
-                            "Inserted key ${msg.key} into memcache"
-                        }
-                        telemetryController?.endSpan(memcacheSpanRef.get())
-                        sendMessageAndFlush(ctx, CachePutResponse(msg.key))
-                    }
-
-                    else -> {
-                        val ex = MemcacheException(status)
-                        telemetryController?.endSpan(memcacheSpanRef.get(), ex)
-                        this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
-                    }
+                    BinaryMemcacheResponseStatus.SUCCESS -> complete(null)
+                    else -> complete(MemcacheException(status))
                 }
             }
 
             override fun contentReceived(content: MemcacheContent) {}
 
             override fun exceptionCaught(ex: Throwable) {
-                telemetryController?.endSpan(memcacheSpanRef.get(), ex)
-                this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
+                complete(ex)
+            }
+
+            override fun writabilityChanged(writable: Boolean) {
+                onWritabilityChanged?.invoke(writable)
+            }
+        }
+    }
+
+    private fun newSetRequest(alloc: ByteBufAllocator, key: ByteBuf, flags: Int, valueSize: Int) =
+        DefaultBinaryMemcacheRequest().apply {
+            val extras = alloc.buffer(8, 8)
+            extras.writeInt(flags)
+            extras.writeInt(encodeExpiry(maxAge))
+            setOpcode(BinaryMemcacheOpcodes.SET)
+            setKey(key)
+            setExtras(extras)
+            setTotalBodyLength(key.readableBytes() + extras.readableBytes() + valueSize)
+        }
+
+    /**
+     * Acquires a connection to each of [targets] for a SET request whose response is collected by [aggregator],
+     * connections that can't be acquired are accounted for as failures
+     */
+    private fun acquire(
+        targets: List<MemcacheCacheConfiguration.Server>,
+        aggregator: SetAggregator
+    ) = targets.map { server ->
+        val responseHandler = aggregator.newResponseHandler()
+        client.sendRequest(server, responseHandler).whenComplete { _, ex ->
+            ex?.let(responseHandler::exceptionCaught)
+        }
+    }
+
+    /**
+     * Sends [payload] to all the servers in [requestControllers] (that have been acquired successfully)
+     * in a single SET request, releasing [key] and [payload] afterward
+     */
+    private fun sendSet(
+        ctx: ChannelHandlerContext,
+        requestControllers: List<CompletableFuture<MemcacheRequestController>>,
+        key: ByteBuf,
+        flags: Int,
+        payload: ByteBuf
+    ) {
+        val futures = requestControllers.map { future ->
+            future.handle { requestController, _ -> requestController }
+        }
+        CompletableFuture.allOf(*futures.toTypedArray()).whenComplete { _, _ ->
+            try {
+                for (requestController in futures.mapNotNull { it.join() }) {
+                    requestController.sendRequest(newSetRequest(ctx.alloc(), key.retainedDuplicate(), flags, payload.readableBytes()))
+                    requestController.sendContent(DefaultLastMemcacheContent(payload.retainedDuplicate()))
+                }
+            } finally {
+                key.release()
+                payload.release()
+            }
+        }
+    }
+
+    /**
+     * Writes a value too large to fit in a single memcache item as a sequence of chunks, followed by its manifest
+     */
+    private inner class ChunkedPut(
+        private val ctx: ChannelHandlerContext,
+        private val putRequest: InProgressPutRequest,
+        private val key: ByteBuf,
+        private val payloadSize: Int,
+        private val payloadSource: ReadableByteChannel,
+        private val itemSize: Int,
+    ) {
+        private val baseKey = ByteBufUtil.getBytes(key)
+        private val generation = ThreadLocalRandom.current().nextLong()
+        private val chunks = ((payloadSize.toLong() + itemSize - 1) / itemSize).toInt()
+        private var nextChunk = 0
+        private val completedChunks = AtomicInteger(0)
+        private val failed = AtomicBoolean(false)
+
+        fun start() {
+            log.debug(ctx) {
+                "Splitting value for key ${putRequest.entryKey} in $chunks chunks"
+            }
+            repeat(minOf(MAX_IN_FLIGHT_CHUNKS, chunks)) {
+                sendNextChunk()
+            }
+        }
+
+        private fun sendNextChunk() {
+            val index: Int
+            val payload: ByteBuf
+            synchronized(this) {
+                if (nextChunk == chunks || failed.get()) return
+                index = nextChunk++
+                val size = minOf(itemSize.toLong(), payloadSize.toLong() - index.toLong() * itemSize).toInt()
+                payload = try {
+                    val buffer = ByteBuffer.allocate(size)
+                    while (buffer.hasRemaining()) {
+                        if (payloadSource.read(buffer) < 0) throw EOFException()
+                    }
+                    buffer.flip()
+                    Unpooled.wrappedBuffer(buffer)
+                } catch (ex: IOException) {
+                    fail(ex)
+                    return
+                }
+            }
+            val chunkKey = ChunkedValues.chunkKey(baseKey, generation, index)
+            val targets = client.writeTargets(Unpooled.wrappedBuffer(chunkKey))
+            if (targets.isEmpty()) {
+                payload.release()
+                fail(IOException("No memcache server available for chunk $index of the value for key ${putRequest.entryKey}"))
+                return
+            }
+            val aggregator = SetAggregator(targets.size) { ex ->
+                if (ex != null) {
+                    fail(ex)
+                } else if (completedChunks.incrementAndGet() == chunks) {
+                    sendManifest()
+                } else {
+                    sendNextChunk()
+                }
+            }
+            sendSet(ctx, acquire(targets, aggregator), ctx.alloc().buffer(chunkKey.size).writeBytes(chunkKey), 0, payload)
+        }
+
+        private fun sendManifest() {
+            payloadSource.close()
+            log.trace(ctx) {
+                "All the chunks of the value for key ${putRequest.entryKey} have been written, sending manifest"
             }
+            val manifest = ChunkedValues.Manifest(generation, chunks, payloadSize)
+            // The connections for the manifest are only acquired now, holding them while the chunks are being written
+            // could exhaust the pools the chunks are written through
+            sendSet(
+                ctx,
+                acquire(putRequest.targets, putRequest.aggregator),
+                key,
+                ChunkedValues.MANIFEST_FLAG,
+                manifest.write(ctx.alloc())
+            )
         }
 
-        val requestController = client.sendRequest(key.retainedDuplicate(), responseHandler).whenComplete { _, ex ->
-            ex?.let {
+        private fun fail(ex: Throwable) {
+            if (failed.compareAndSet(false, true)) {
+                payloadSource.close()
+                key.release()
+                putRequest.aggregator.fail(ex)
+            }
+        }
+    }
+
+    private fun handlePutRequest(ctx: ChannelHandlerContext, msg: CachePutRequest) {
+        val keyBytes = processCacheKey(msg.key, keyPrefix, digestAlgorithm)
+        val key = ctx.alloc().buffer().also {
+            it.writeBytes(keyBytes)
+        }
+        val memcacheSpanRef = AtomicReference<SpanHandle?>(null)
+        val targets = client.writeTargets(key)
+        if (targets.isEmpty()) {
+            log.debug(ctx) {
+                "No memcache server available for key ${msg.key}, discarding the value"
+            }
+            key.release()
+            inProgressRequest = DiscardedPutRequest(msg.key)
+            return
+        }
+        // The aggregator can only complete after the whole body has been received
+        lateinit var upload: InProgressUpload
+        val aggregator = SetAggregator(targets.size) { ex ->
+            if (ex == null) {
+                log.debug(ctx) {
+                    "Inserted key ${msg.key} into memcache"
+                }
+                negativeCache?.invalidate(keyBytes)
+                if (metadataKey) {
+                    writeMetadataKey(ctx, keyBytes, msg.metadata, upload.totalSize)
+                }
+                telemetryController?.endSpan(memcacheSpanRef.get())
+                sendMessageAndFlush(ctx, CachePutResponse(msg.key))
+            } else {
+                telemetryController?.endSpan(memcacheSpanRef.get(), ex)
                 this@MemcacheCacheHandler.exceptionCaught(ctx, ex)
             }
         }
-        inProgressRequest = InProgressPutRequest(ctx.channel(), msg.metadata, key, requestController, ctx.alloc(), msg.key, memcacheSpanRef)
+        val streamable = codec == null &&
+                msg.contentLength >= 0 &&
+                // Multiplexed connections assemble every request in memory anyway
+                targets.all { it.multiplexedConnections == null } &&
+                (metadataSize(msg.metadata) + msg.contentLength).let { valueSize ->
+                    valueSize <= Int.MAX_VALUE && (maxItemSize == null || valueSize <= maxItemSize)
+                }
+        if (streamable) {
+            log.trace(ctx) {
+                "Value size is known in advance, streaming it to memcache"
+            }
+            upload = InProgressStreamingPutRequest(
+                ctx,
+                msg.metadata,
+                key,
+                targets,
+                aggregator,
+                msg.contentLength,
+                msg.key,
+                memcacheSpanRef
+            )
+            inProgressRequest = upload
+            return
+        }
+        upload = InProgressPutRequest(
+            ctx.channel(),
+            msg.metadata,
+            key,
+            targets,
+            aggregator,
+            ctx.alloc(),
+            msg.key,
+            memcacheSpanRef
+        )
+        inProgressRequest = upload
     }
 
     private fun handleCacheContent(ctx: ChannelHandlerContext, msg: CacheContent) {
@@ -390,6 +1323,10 @@ class MemcacheCacheHandler(
                 request.write(msg.content())
             }
 
+            is InProgressStreamingPutRequest -> {
+                request.write(msg.content())
+            }
+
             is InProgressGetRequest -> {
                 msg.release()
             }
@@ -399,6 +1336,19 @@ class MemcacheCacheHandler(
     private fun handleLastCacheContent(ctx: ChannelHandlerContext, msg: LastCacheContent) {
         val request = inProgressRequest
         when (request) {
+            is DiscardedPutRequest -> {
+                inProgressRequest = null
+                sendMessageAndFlush(ctx, CachePutResponse(request.key))
+            }
+
+            is InProgressStreamingPutRequest -> {
+                log.trace(ctx) {
+                    "Received last chunk of ${msg.content().readableBytes()} bytes for memcache"
+                }
+                request.finish(msg.content())
+                inProgressRequest = null
+            }
+
             is InProgressPutRequest -> {
                 val putRequest = request
                 inProgressRequest = null
@@ -421,6 +1371,10 @@ class MemcacheCacheHandler(
                 putRequest.memcacheSpanRef.set(memcacheSpan)
                 val key = putRequest.digest.retainedDuplicate()
                 val (payloadSize, payloadSource) = putRequest.commit()
+                if (maxItemSize != null && payloadSize > maxItemSize) {
+                    ChunkedPut(ctx, putRequest, key, payloadSize, payloadSource, maxItemSize).start()
+                    return
+                }
                 val extras = ctx.alloc().buffer(8, 8)
                 extras.writeInt(0)
                 extras.writeInt(encodeExpiry(maxAge))
@@ -428,50 +1382,66 @@ class MemcacheCacheHandler(
                 log.trace(ctx) {
                     "Trying to send SET request to memcache"
                 }
-                putRequest.requestController.whenComplete { requestController, ex ->
-                    if (ex == null) {
-                        val remoteAddr = requestController.channel.remoteAddress()
-                        if (remoteAddr is InetSocketAddress) {
-                            remoteAddr.hostString?.let { memcacheSpan?.setAttribute("server.address", it) }
-                            memcacheSpan?.setAttribute("server.port", remoteAddr.port.toLong())
+                // Connections are only acquired once the whole value has been received
+                val requestControllers = acquire(putRequest.targets, putRequest.aggregator).map { future ->
+                    future.handle { requestController, _ -> requestController }
+                }
+                CompletableFuture.allOf(*requestControllers.toTypedArray()).whenComplete { _, _ ->
+                    // Replicas whose connection couldn't be acquired have already been accounted for as failures
+                    val controllers = requestControllers.mapNotNull { it.join() }
+                    try {
+                        controllers.firstOrNull()?.channel?.remoteAddress()?.let { remoteAddr ->
+                            if (remoteAddr is InetSocketAddress) {
+                                remoteAddr.hostString?.let { memcacheSpan?.setAttribute("server.address", it) }
+                                memcacheSpan?.setAttribute("server.port", remoteAddr.port.toLong())
+                            }
                         }
                         log.trace(ctx) {
-                            "Sending SET request to memcache"
+                            "Sending SET request to ${controllers.size} memcache server(s)"
                         }
-                        requestController.sendRequest(DefaultBinaryMemcacheRequest().apply {
-                            setOpcode(BinaryMemcacheOpcodes.SET)
-                            setKey(key)
-                            setExtras(extras)
-                            setTotalBodyLength(totalBodyLength)
-                        })
-                        log.trace(ctx) {
-                            "Sending request payload to memcache"
+                        for (requestController in controllers) {
+                            requestController.sendRequest(DefaultBinaryMemcacheRequest().apply {
+                                setOpcode(BinaryMemcacheOpcodes.SET)
+                                setKey(key.retainedDuplicate())
+                                setExtras(extras.retainedDuplicate())
+                                setTotalBodyLength(totalBodyLength)
+                            })
                         }
-                        payloadSource.use { source ->
-                            val bb = ByteBuffer.allocate(chunkSize)
-                            while (true) {
-                                val read = source.read(bb)
-                                bb.limit()
-                                if (read >= 0 && bb.position() < chunkSize && bb.hasRemaining()) {
-                                    continue
-                                }
-                                val chunk = ctx.alloc().buffer(chunkSize)
-                                bb.flip()
-                                chunk.writeBytes(bb)
-                                bb.clear()
-                                log.trace(ctx) {
-                                    "Sending ${chunk.readableBytes()} bytes chunk to memcache"
-                                }
-                                if (read < 0) {
-                                    requestController.sendContent(DefaultLastMemcacheContent(chunk))
-                                    break
-                                } else {
-                                    requestController.sendContent(DefaultMemcacheContent(chunk))
+                        if (controllers.isNotEmpty()) {
+                            log.trace(ctx) {
+                                "Sending request payload to memcache"
+                            }
+                            payloadSource.use { source ->
+                                val bb = ByteBuffer.allocate(chunkSize)
+                                while (true) {
+                                    val read = source.read(bb)
+                                    bb.limit()
+                                    if (read >= 0 && bb.position() < chunkSize && bb.hasRemaining()) {
+                                        continue
+                                    }
+                                    val chunk = ctx.alloc().buffer(chunkSize)
+                                    bb.flip()
+                                    chunk.writeBytes(bb)
+                                    bb.clear()
+                                    log.trace(ctx) {
+                                        "Sending ${chunk.readableBytes()} bytes chunk to memcache"
+                                    }
+                                    for (requestController in controllers) {
+                                        if (read < 0) {
+                                            requestController.sendContent(DefaultLastMemcacheContent(chunk.retainedDuplicate()))
+                                        } else {
+                                            requestController.sendContent(DefaultMemcacheContent(chunk.retainedDuplicate()))
+                                        }
+                                    }
+                                    chunk.release()
+                                    if (read < 0) break
                                 }
                             }
                         }
-                    } else {
+                    } finally {
                         payloadSource.close()
+                        key.release()
+                        extras.release()
                     }
                 }
             }
@@ -483,16 +1453,23 @@ class MemcacheCacheHandler(
         when (request) {
             is InProgressPutRequest -> {
                 inProgressRequest = null
-                request.requestController.thenAccept { controller ->
-                    controller.exceptionCaught(cause)
-                }
                 request.rollback()
             }
 
+            is InProgressStreamingPutRequest -> {
+                inProgressRequest = null
+                request.rollback(cause)
+            }
+
             is InProgressGetRequest -> {
                 inProgressRequest = null
                 request.rollback()
             }
+
+            is InProgressManifestRequest -> {
+                inProgressRequest = null
+                request.rollback()
+            }
         }
         super.exceptionCaught(ctx, cause)
     }
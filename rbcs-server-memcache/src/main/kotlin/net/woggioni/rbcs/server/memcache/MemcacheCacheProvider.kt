@@ -1,9 +1,11 @@
 package net.woggioni.rbcs.server.memcache
 
+import java.nio.file.Path
 import java.time.Duration
 import java.time.temporal.ChronoUnit
 import net.woggioni.rbcs.api.CacheProvider
 import net.woggioni.rbcs.api.exception.ConfigurationException
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.HostAndPort
 import net.woggioni.rbcs.common.RBCS
 import net.woggioni.rbcs.common.Xml
@@ -34,12 +36,53 @@ class MemcacheCacheProvider : CacheProvider<MemcacheCacheConfiguration> {
         val compressionMode = el.renderAttribute("compression-mode")
             ?.let {
                 when (it) {
-                    "deflate" -> MemcacheCacheConfiguration.CompressionMode.DEFLATE
-                    else -> MemcacheCacheConfiguration.CompressionMode.DEFLATE
+                    "zstd" -> CompressionMode.ZSTD
+                    "lz4" -> CompressionMode.LZ4
+                    else -> CompressionMode.DEFLATE
                 }
             }
         val keyPrefix = el.renderAttribute("key-prefix")
         val digestAlgorithm = el.renderAttribute("digest")
+        val compressionBlockSize = el.renderAttribute("compression-block-size")
+            ?.let(Integer::decode)
+        val compressionDictionary = el.renderAttribute("compression-dictionary")
+            ?.let(Path::of)
+        val replicas = el.renderAttribute("replicas")
+            ?.let(Integer::decode)
+            ?: 0
+        val readTimeout = el.renderAttribute("read-timeout")
+            ?.let(Duration::parse)
+        val hedgePercentile = el.renderAttribute("hedge-percentile")
+            ?.let(String::toDouble)
+        val ejectionBackoff = el.renderAttribute("ejection-backoff")
+            ?.let(Duration::parse)
+            ?: Duration.ofSeconds(1)
+        val maxItemSize = el.renderAttribute("max-item-size")
+            ?.let(Integer::decode)
+        val slidingExpiry = el.renderAttribute("sliding-expiry")
+            ?.let(String::toBoolean)
+            ?: false
+        val metadataKey = el.renderAttribute("metadata-key")
+            ?.let(String::toBoolean)
+            ?: false
+        val negativeCacheTtl = el.renderAttribute("negative-cache-ttl")
+            ?.let(Duration::parse)
+        val negativeCacheSize = el.renderAttribute("negative-cache-size")
+            ?.let(String::toInt)
+            ?: 0x10000
+        val healthCheckInterval = el.renderAttribute("health-check-interval")
+            ?.let(Duration::parse)
+        val protocol = el.renderAttribute("protocol")
+            ?.let {
+                when (it) {
+                    "meta" -> MemcacheCacheConfiguration.Protocol.META
+                    else -> MemcacheCacheConfiguration.Protocol.BINARY
+                }
+            }
+            ?: MemcacheCacheConfiguration.Protocol.BINARY
+        if (compressionMode == CompressionMode.DEFLATE && compressionLevel > 9) {
+            throw ConfigurationException("Deflate compression level must be between -1 and 9")
+        }
         for (child in el.asIterable()) {
             when (child.nodeName) {
                 "server" -> {
@@ -51,7 +94,19 @@ class MemcacheCacheProvider : CacheProvider<MemcacheCacheConfiguration> {
                         ?.let(Duration::toMillis)
                         ?.let(Long::toInt)
                         ?: 10000
-                    servers.add(MemcacheCacheConfiguration.Server(HostAndPort(host, port), connectionTimeout, maxConnections))
+                    val weight = child.renderAttribute("weight")?.toInt() ?: 1
+                    val multiplexedConnections = child.renderAttribute("multiplexed-connections")?.toInt()
+                    val minConnections = child.renderAttribute("min-connections")?.toInt() ?: 0
+                    servers.add(
+                        MemcacheCacheConfiguration.Server(
+                            HostAndPort(host, port),
+                            connectionTimeout,
+                            maxConnections,
+                            weight,
+                            multiplexedConnections,
+                            minConnections,
+                        )
+                    )
                 }
             }
         }
@@ -61,7 +116,20 @@ class MemcacheCacheProvider : CacheProvider<MemcacheCacheConfiguration> {
             keyPrefix,
             digestAlgorithm,
             compressionMode,
-            compressionLevel
+            compressionLevel,
+            compressionBlockSize,
+            compressionDictionary,
+            replicas,
+            readTimeout,
+            hedgePercentile,
+            ejectionBackoff,
+            maxItemSize,
+            slidingExpiry,
+            metadataKey,
+            negativeCacheTtl,
+            negativeCacheSize,
+            healthCheckInterval,
+            protocol,
         )
     }
 
@@ -78,6 +146,11 @@ class MemcacheCacheProvider : CacheProvider<MemcacheCacheConfiguration> {
                         attr("connection-timeout", Duration.of(connectionTimeoutMillis.toLong(), ChronoUnit.MILLIS).toString())
                     }
                     attr("max-connections", server.maxConnections.toString())
+                    attr("weight", server.weight.toString())
+                    server.multiplexedConnections?.let {
+                        attr("multiplexed-connections", it.toString())
+                    }
+                    attr("min-connections", server.minConnections.toString())
                 }
 
             }
@@ -91,11 +164,45 @@ class MemcacheCacheProvider : CacheProvider<MemcacheCacheConfiguration> {
             compressionMode?.let { compressionMode ->
                 attr(
                     "compression-mode", when (compressionMode) {
-                        MemcacheCacheConfiguration.CompressionMode.DEFLATE -> "deflate"
+                        CompressionMode.DEFLATE -> "deflate"
+                        CompressionMode.ZSTD -> "zstd"
+                        CompressionMode.LZ4 -> "lz4"
                     }
                 )
             }
             attr("compression-level", compressionLevel.toString())
+            compressionBlockSize?.let {
+                attr("compression-block-size", it.toString())
+            }
+            compressionDictionary?.let {
+                attr("compression-dictionary", it.toString())
+            }
+            attr("replicas", replicas.toString())
+            readTimeout?.let {
+                attr("read-timeout", it.toString())
+            }
+            hedgePercentile?.let {
+                attr("hedge-percentile", it.toString())
+            }
+            attr("ejection-backoff", ejectionBackoff.toString())
+            maxItemSize?.let {
+                attr("max-item-size", it.toString())
+            }
+            attr("sliding-expiry", slidingExpiry.toString())
+            attr("metadata-key", metadataKey.toString())
+            negativeCacheTtl?.let {
+                attr("negative-cache-ttl", it.toString())
+            }
+            attr("negative-cache-size", negativeCacheSize.toString())
+            healthCheckInterval?.let {
+                attr("health-check-interval", it.toString())
+            }
+            attr(
+                "protocol", when (protocol) {
+                    MemcacheCacheConfiguration.Protocol.BINARY -> "binary"
+                    MemcacheCacheConfiguration.Protocol.META -> "meta"
+                }
+            )
         }
         result
     }
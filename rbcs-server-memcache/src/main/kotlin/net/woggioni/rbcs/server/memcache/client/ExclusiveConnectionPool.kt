@@ -0,0 +1,193 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import io.netty.util.concurrent.Future as NettyFuture
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPipeline
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.pool.AbstractChannelPoolHandler
+import io.netty.channel.pool.FixedChannelPool
+import io.netty.handler.codec.memcache.LastMemcacheContent
+import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.MemcacheObject
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+import io.netty.util.concurrent.GenericFutureListener
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.trace
+import net.woggioni.rbcs.server.memcache.MemcacheCacheConfiguration
+import net.woggioni.rbcs.server.memcache.MemcacheCacheHandler
+
+/**
+ * Every request takes exclusive ownership of a connection until its last content has been written
+ */
+class ExclusiveConnectionPool(
+    bootstrap: Bootstrap,
+    protocol: MemcacheCacheConfiguration.Protocol,
+    chunkSize: Int,
+    private val maxConnections: Int,
+) : MemcacheConnectionPool {
+
+    private companion object {
+        private val log = createLogger<MemcacheCacheHandler>()
+    }
+
+    private val pool = FixedChannelPool(bootstrap, object : AbstractChannelPoolHandler() {
+
+        override fun channelCreated(ch: Channel) {
+            val pipeline: ChannelPipeline = ch.pipeline()
+            pipeline.addLast(protocol.newCodec(chunkSize))
+        }
+    }, maxConnections)
+
+    override fun sendRequest(responseHandler: MemcacheResponseHandler): CompletableFuture<MemcacheRequestController> {
+        val response = CompletableFuture<MemcacheRequestController>()
+        // Custom handler for processing responses
+        pool.acquire().addListener(object : GenericFutureListener<NettyFuture<Channel>> {
+            override fun operationComplete(channelFuture: NettyFuture<Channel>) {
+                if (channelFuture.isSuccess) {
+                    val channel = channelFuture.now
+                    var connectionClosedByTheRemoteServer = true
+                    val closeCallback = {
+                        if (connectionClosedByTheRemoteServer) {
+                            val ex = IOException("The memcache server closed the connection")
+                            val completed = response.completeExceptionally(ex)
+                            if(!completed) responseHandler.exceptionCaught(ex)
+                        }
+                    }
+                    val closeListener = ChannelFutureListener {
+                        closeCallback()
+                    }
+                    channel.closeFuture().addListener(closeListener)
+                    val pipeline = channel.pipeline()
+                    val handler = object : SimpleChannelInboundHandler<MemcacheObject>() {
+                        private var quietResponse = false
+
+                        override fun handlerAdded(ctx: ChannelHandlerContext) {
+                            channel.closeFuture().removeListener(closeListener)
+                        }
+
+                        override fun channelRead0(
+                            ctx: ChannelHandlerContext,
+                            msg: MemcacheObject
+                        ) {
+                            when (msg) {
+                                is BinaryMemcacheResponse -> {
+                                    quietResponse = MemcacheRequestController.isQuiet(msg.opcode())
+                                    responseHandler.responseReceived(msg)
+                                }
+
+                                is LastMemcacheContent -> {
+                                    responseHandler.contentReceived(msg)
+                                    if (!quietResponse) {
+                                        pipeline.remove(this)
+                                    }
+                                }
+
+                                is MemcacheContent -> {
+                                    responseHandler.contentReceived(msg)
+                                }
+                            }
+                        }
+
+                        override fun channelWritabilityChanged(ctx: ChannelHandlerContext) {
+                            responseHandler.writabilityChanged(ctx.channel().isWritable)
+                            ctx.fireChannelWritabilityChanged()
+                        }
+
+                        override fun channelInactive(ctx: ChannelHandlerContext) {
+                            closeCallback()
+                            ctx.fireChannelInactive()
+                        }
+
+                        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+                            connectionClosedByTheRemoteServer = false
+                            ctx.close()
+                            responseHandler.exceptionCaught(cause)
+                        }
+                    }
+
+                    channel.pipeline().addLast(handler)
+                    response.complete(object : MemcacheRequestController {
+                        override val channel: Channel = channel
+
+                        private var channelReleased = false
+                        private var quietRequest = false
+
+                        override fun sendRequest(request: BinaryMemcacheRequest) {
+                            quietRequest = MemcacheRequestController.isQuiet(request.opcode())
+                            channel.writeAndFlush(request)
+                        }
+
+                        override fun sendContent(content: MemcacheContent) {
+                            val last = content is LastMemcacheContent && !quietRequest
+                            channel.writeAndFlush(content).addListener {
+                                if(last) {
+                                    if(!channelReleased) {
+                                        pool.release(channel)
+                                        channelReleased = true
+                                        log.trace(channel) {
+                                            "Channel released"
+                                        }
+                                    }
+                                }
+                            }
+                        }
+
+                        override fun exceptionCaught(ex: Throwable) {
+                            log.warn(ex.message, ex)
+                            connectionClosedByTheRemoteServer = false
+                            channel.close()
+                            if(!channelReleased) {
+                                pool.release(channel)
+                                channelReleased = true
+                                log.trace(channel) {
+                                    "Channel released"
+                                }
+                            }
+                        }
+                    })
+                } else {
+                    response.completeExceptionally(channelFuture.cause())
+                }
+            }
+        })
+        return response
+    }
+
+    override fun warmUp(connections: Int): CompletableFuture<Void> {
+        // All the connections are acquired before releasing any, otherwise the same one would be reused
+        val acquired = (0 until minOf(connections, maxConnections)).map {
+            val result = CompletableFuture<Channel>()
+            pool.acquire().addListener(GenericFutureListener<NettyFuture<Channel>> { future ->
+                if (future.isSuccess) {
+                    result.complete(future.now)
+                } else {
+                    result.completeExceptionally(future.cause())
+                }
+            })
+            result
+        }
+        return CompletableFuture.allOf(*acquired.toTypedArray()).whenComplete { _, _ ->
+            acquired.forEach {
+                it.thenAccept { channel -> pool.release(channel) }
+            }
+        }
+    }
+
+    override fun close() = object : CompletableFuture<Void>() {
+        init {
+            pool.closeAsync().addListener {
+                if (it.isSuccess) {
+                    complete(null)
+                } else {
+                    completeExceptionally(it.cause())
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.security.MessageDigest
+import io.netty.buffer.ByteBuf
+
+/**
+ * Ketama-style consistent hash ring: every node is mapped to a number of points on a 32 bits circle
+ * proportional to its weight, and a key belongs to the first point following its hash.
+ * Adding or removing a node only remaps the keys that fall in the arcs owned by that node.
+ * The ring is immutable and can be safely shared between threads.
+ */
+class KetamaRing<T>(nodes: List<Pair<T, Int>>, private val name: (T) -> String = Any?::toString) {
+
+    companion object {
+        /**
+         * Number of MD5 digests computed for each unit of weight, every digest yields 4 points
+         */
+        private const val DIGESTS_PER_WEIGHT = 40
+
+        /**
+         * Hash function used for the keys, a 32 bits FNV-1a followed by the murmur3 finalizer
+         * (the keys are often digests already, but they might as well be short plain strings)
+         */
+        fun hash(key: ByteBuf): Int {
+            var h = 0x811c9dc5.toInt()
+            for (i in key.readerIndex() until key.writerIndex()) {
+                h = (h xor (key.getByte(i).toInt() and 0xff)) * 0x01000193
+            }
+            h = h xor (h ushr 16)
+            h *= 0x85ebca6b.toInt()
+            h = h xor (h ushr 13)
+            h *= 0xc2b2ae35.toInt()
+            return h xor (h ushr 16)
+        }
+    }
+
+    // Points are stored with their sign bit flipped, so that the signed ordering matches the unsigned one
+    private val points: IntArray
+    private val owners: Array<Any?>
+
+    val nodes: List<T> = nodes.map { it.first }
+
+    init {
+        if (nodes.isEmpty()) {
+            throw IllegalArgumentException("The ring needs at least one node")
+        }
+        val md5 = MessageDigest.getInstance("MD5")
+        val entries = ArrayList<Pair<Int, T>>()
+        for ((node, weight) in nodes) {
+            if (weight < 1) {
+                throw IllegalArgumentException("Invalid weight $weight for node ${name(node)}")
+            }
+            val nodeName = name(node)
+            for (i in 0 until DIGESTS_PER_WEIGHT * weight) {
+                val digest = md5.digest("$nodeName-$i".toByteArray())
+                for (j in 0 until 4) {
+                    val point = (digest[j * 4 + 3].toInt() and 0xff shl 24) or
+                            (digest[j * 4 + 2].toInt() and 0xff shl 16) or
+                            (digest[j * 4 + 1].toInt() and 0xff shl 8) or
+                            (digest[j * 4].toInt() and 0xff)
+                    entries.add((point xor Int.MIN_VALUE) to node)
+                }
+            }
+        }
+        // Ties are broken by the node name so that the ring doesn't depend on the order of the nodes
+        entries.sortWith(compareBy<Pair<Int, T>> { it.first }.thenBy { name(it.second) })
+        points = IntArray(entries.size) { entries[it].first }
+        owners = Array(entries.size) { entries[it].second }
+    }
+
+    /**
+     * @return the node owning [hash], as returned by [KetamaRing.hash]
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(hash: Int): T = owners[indexOf(hash)] as T
+
+    private fun indexOf(hash: Int): Int {
+        val target = hash xor Int.MIN_VALUE
+        var low = 0
+        var high = points.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (points[mid] < target) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return if (low == points.size) 0 else low
+    }
+
+    /**
+     * @return up to [count] distinct nodes accepted by [filter] met walking the ring clockwise from [hash],
+     * the first one being the owner of [hash]; the arcs of the nodes that are filtered out are taken over
+     * by the next accepted node, as if they had been removed from the ring
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun successors(hash: Int, count: Int, filter: (T) -> Boolean = { true }): List<T> {
+        val result = ArrayList<T>(minOf(count, nodes.size))
+        val visited = ArrayList<T>(nodes.size)
+        val start = indexOf(hash)
+        var i = 0
+        while (result.size < count && visited.size < nodes.size && i < points.size) {
+            val node = owners[(start + i) % points.size] as T
+            if (node !in visited) {
+                visited.add(node)
+                if (filter(node)) {
+                    result.add(node)
+                }
+            }
+            ++i
+        }
+        return result
+    }
+
+    /**
+     * @return the node owning [key], its reader index is left untouched
+     */
+    operator fun get(key: ByteBuf) = get(hash(key))
+}
@@ -0,0 +1,34 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Keeps the last [size] latency samples and periodically computes their [percentile]
+ */
+class LatencyTracker(
+    private val percentile: Double,
+    private val size: Int = 1024,
+    private val refreshInterval: Int = 64,
+) {
+    private val samples = AtomicLongArray(size)
+    private val counter = AtomicLong(0)
+
+    @Volatile
+    private var value = -1L
+
+    fun record(nanos: Long) {
+        val n = counter.getAndIncrement()
+        samples.set((n % size).toInt(), nanos)
+        if ((n + 1) % refreshInterval == 0L) {
+            val count = minOf(n + 1, size.toLong()).toInt()
+            val sorted = LongArray(count) { samples.get(it) }.apply { sort() }
+            value = sorted[minOf(count - 1, (count * percentile / 100).toInt())]
+        }
+    }
+
+    /**
+     * @return the latency percentile in nanoseconds, or null if not enough samples have been recorded yet
+     */
+    fun percentile(): Long? = value.takeIf { it >= 0 }
+}
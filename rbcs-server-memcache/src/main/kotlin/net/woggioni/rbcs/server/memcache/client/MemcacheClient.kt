@@ -1,51 +1,50 @@
 package net.woggioni.rbcs.server.memcache.client
 
 
-import java.io.IOException
 import java.net.InetSocketAddress
+import java.time.Duration
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
 import io.netty.util.concurrent.Future as NettyFuture
 import io.netty.bootstrap.Bootstrap
 import io.netty.buffer.ByteBuf
-import io.netty.channel.Channel
 import io.netty.channel.ChannelFactory
-import io.netty.channel.ChannelFutureListener
-import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelOption
-import io.netty.channel.ChannelPipeline
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.SimpleChannelInboundHandler
-import io.netty.channel.pool.AbstractChannelPoolHandler
-import io.netty.channel.pool.FixedChannelPool
 import io.netty.channel.socket.SocketChannel
 import io.netty.handler.codec.memcache.LastMemcacheContent
 import io.netty.handler.codec.memcache.MemcacheContent
-import io.netty.handler.codec.memcache.MemcacheObject
-import io.netty.handler.codec.memcache.binary.BinaryMemcacheClientCodec
-import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
 import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
-import io.netty.util.concurrent.GenericFutureListener
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheRequest
+import io.netty.util.concurrent.ScheduledFuture
 import net.woggioni.rbcs.common.HostAndPort
 import net.woggioni.rbcs.common.createLogger
-import net.woggioni.rbcs.common.trace
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.warn
 import net.woggioni.rbcs.server.memcache.MemcacheCacheConfiguration
 import net.woggioni.rbcs.server.memcache.MemcacheCacheHandler
 
 
 class MemcacheClient(
-    private val servers: List<MemcacheCacheConfiguration.Server>,
+    private val ring: KetamaRing<MemcacheCacheConfiguration.Server>,
+    private val replicas: Int,
+    private val health: NodeHealth,
+    private val protocol: MemcacheCacheConfiguration.Protocol,
     private val chunkSize : Int,
     private val group: EventLoopGroup,
     private val channelFactory: ChannelFactory<SocketChannel>,
-    private val connectionPool: ConcurrentHashMap<HostAndPort, FixedChannelPool>
+    private val connectionPool: ConcurrentHashMap<HostAndPort, MemcacheConnectionPool>
 ) : AutoCloseable {
 
     private companion object {
         private val log = createLogger<MemcacheCacheHandler>()
     }
 
-    private fun newConnectionPool(server: MemcacheCacheConfiguration.Server): FixedChannelPool {
+    private fun newConnectionPool(server: MemcacheCacheConfiguration.Server): MemcacheConnectionPool {
         val bootstrap = Bootstrap().apply {
             group(group)
             channelFactory(channelFactory)
@@ -55,139 +54,135 @@ class MemcacheClient(
                 option(ChannelOption.CONNECT_TIMEOUT_MILLIS, it)
             }
         }
-        val channelPoolHandler = object : AbstractChannelPoolHandler() {
+        return server.multiplexedConnections?.let {
+            MultiplexedConnectionPool(bootstrap, protocol, chunkSize, it)
+        } ?: ExclusiveConnectionPool(bootstrap, protocol, chunkSize, server.maxConnections)
+    }
 
-            override fun channelCreated(ch: Channel) {
-                val pipeline: ChannelPipeline = ch.pipeline()
-                pipeline.addLast(BinaryMemcacheClientCodec(chunkSize, true))
-            }
-        }
-        return FixedChannelPool(bootstrap, channelPoolHandler, server.maxConnections)
+    private fun pool(server: MemcacheCacheConfiguration.Server) = connectionPool.computeIfAbsent(server.endpoint) {
+        newConnectionPool(server)
     }
 
-    fun sendRequest(
-        key: ByteBuf,
-        responseHandler: MemcacheResponseHandler
-    ): CompletableFuture<MemcacheRequestController> {
-        val server = if (servers.size > 1) {
-            var checksum = 0
-            while (key.readableBytes() > 4) {
-                val byte = key.readInt()
-                checksum = checksum xor byte
-            }
-            while (key.readableBytes() > 0) {
-                val byte = key.readByte()
-                checksum = checksum xor byte.toInt()
+    /**
+     * Opens [MemcacheCacheConfiguration.Server.minConnections] connections to every server of the ring
+     */
+    fun warmUp(): CompletableFuture<Void> {
+        val warmUps = ring.nodes.filter { it.minConnections > 0 }.map { server ->
+            pool(server).warmUp(server.minConnections).whenComplete { _, ex ->
+                if (ex != null) {
+                    log.warn {
+                        "Failed to open ${server.minConnections} connection(s) to memcache server ${server.endpoint}: ${ex.message}"
+                    }
+                    health.failure(server.endpoint)
+                }
             }
-            servers[checksum % servers.size]
-        } else {
-            servers.first()
         }
-        key.release()
+        return CompletableFuture.allOf(*warmUps.toTypedArray())
+    }
 
-        val response = CompletableFuture<MemcacheRequestController>()
-        // Custom handler for processing responses
-        val pool = connectionPool.computeIfAbsent(server.endpoint) {
-            newConnectionPool(server)
-        }
-        pool.acquire().addListener(object : GenericFutureListener<NettyFuture<Channel>> {
-            override fun operationComplete(channelFuture: NettyFuture<Channel>) {
-                if (channelFuture.isSuccess) {
-                    val channel = channelFuture.now
-                    var connectionClosedByTheRemoteServer = true
-                    val closeCallback = {
-                        if (connectionClosedByTheRemoteServer) {
-                            val ex = IOException("The memcache server closed the connection")
-                            val completed = response.completeExceptionally(ex)
-                            if(!completed) responseHandler.exceptionCaught(ex)
-                        }
-                    }
-                    val closeListener = ChannelFutureListener {
-                        closeCallback()
-                    }
-                    channel.closeFuture().addListener(closeListener)
-                    val pipeline = channel.pipeline()
-                    val handler = object : SimpleChannelInboundHandler<MemcacheObject>() {
+    /**
+     * Sends a NOOP request to every server of the ring, the outcome of each one is reported to [NodeHealth],
+     * a server that doesn't answer within [timeout] counts as failed
+     */
+    fun probe(timeout: Duration) {
+        for (server in ring.nodes) {
+            val finished = AtomicBoolean(false)
+            var timeoutFuture: ScheduledFuture<*>? = null
+            val handler = object : MemcacheResponseHandler {
+                override fun responseReceived(response: BinaryMemcacheResponse) {
+                    finished.set(true)
+                    timeoutFuture?.cancel(false)
+                }
 
-                        override fun handlerAdded(ctx: ChannelHandlerContext) {
-                            channel.closeFuture().removeListener(closeListener)
-                        }
+                override fun contentReceived(content: MemcacheContent) {}
 
-                        override fun channelRead0(
-                            ctx: ChannelHandlerContext,
-                            msg: MemcacheObject
-                        ) {
-                            when (msg) {
-                                is BinaryMemcacheResponse -> {
-                                    responseHandler.responseReceived(msg)
-                                }
-
-                                is LastMemcacheContent -> {
-                                    responseHandler.contentReceived(msg)
-                                    pipeline.remove(this)
-                                }
-
-                                is MemcacheContent -> {
-                                    responseHandler.contentReceived(msg)
-                                }
+                override fun exceptionCaught(ex: Throwable) {
+                    if (finished.compareAndSet(false, true)) {
+                        timeoutFuture?.cancel(false)
+                        log.debug {
+                            "Health check of memcache server ${server.endpoint} failed: ${ex.message}"
+                        }
+                    }
+                }
+            }
+            sendRequest(server, handler).whenComplete { controller, ex ->
+                if (ex == null) {
+                    timeoutFuture = controller.channel.eventLoop().schedule({
+                        if (finished.compareAndSet(false, true)) {
+                            log.debug {
+                                "Health check of memcache server ${server.endpoint} timed out after $timeout"
                             }
+                            health.failure(server.endpoint)
+                            controller.exceptionCaught(
+                                TimeoutException("No response from memcache server ${server.endpoint} after $timeout")
+                            )
                         }
+                    }, timeout.toNanos(), TimeUnit.NANOSECONDS)
+                    controller.sendRequest(DefaultBinaryMemcacheRequest().apply {
+                        setOpcode(BinaryMemcacheOpcodes.NOOP)
+                    })
+                    controller.sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                } else {
+                    handler.exceptionCaught(ex)
+                }
+            }
+        }
+    }
 
-                        override fun channelInactive(ctx: ChannelHandlerContext) {
-                            closeCallback()
-                            ctx.fireChannelInactive()
-                        }
+    /**
+     * @return the servers that are not ejected among the owner of [key] and its replicas, ejected servers
+     * are replaced by the next available ones on the ring so that requests never wait for a server that is down;
+     * the list is empty only if all the servers are ejected
+     */
+    private fun liveSuccessors(key: ByteBuf) = ring.successors(KetamaRing.hash(key), replicas + 1) {
+        health.isAvailable(it.endpoint)
+    }
 
-                        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
-                            connectionClosedByTheRemoteServer = false
-                            ctx.close()
-                            responseHandler.exceptionCaught(cause)
-                        }
-                    }
+    /**
+     * @return the servers that might hold [key], in the order they should be queried:
+     * the owner of the key first, followed by its replicas
+     */
+    fun readCandidates(key: ByteBuf): List<MemcacheCacheConfiguration.Server> = liveSuccessors(key)
 
-                    channel.pipeline().addLast(handler)
-                    response.complete(object : MemcacheRequestController {
-                        override val channel: Channel = channel
+    /**
+     * @return the servers [key] should be written to
+     */
+    fun writeTargets(key: ByteBuf): List<MemcacheCacheConfiguration.Server> = liveSuccessors(key)
 
-                        private var channelReleased = false
+    fun sendRequest(
+        server: MemcacheCacheConfiguration.Server,
+        responseHandler: MemcacheResponseHandler
+    ): CompletableFuture<MemcacheRequestController> {
+        val pool = pool(server)
+        val trackingHandler = object : MemcacheResponseHandler {
+            override fun responseReceived(response: BinaryMemcacheResponse) {
+                health.success(server.endpoint)
+                responseHandler.responseReceived(response)
+            }
 
-                        override fun sendRequest(request: BinaryMemcacheRequest) {
-                            channel.writeAndFlush(request)
-                        }
+            override fun contentReceived(content: MemcacheContent) {
+                responseHandler.contentReceived(content)
+            }
 
-                        override fun sendContent(content: MemcacheContent) {
-                            channel.writeAndFlush(content).addListener {
-                                if(content is LastMemcacheContent) {
-                                    if(!channelReleased) {
-                                        pool.release(channel)
-                                        channelReleased = true
-                                        log.trace(channel) {
-                                            "Channel released"
-                                        }
-                                    }
-                                }
-                            }
-                        }
+            override fun exceptionCaught(ex: Throwable) {
+                health.failure(server.endpoint)
+                responseHandler.exceptionCaught(ex)
+            }
 
-                        override fun exceptionCaught(ex: Throwable) {
-                            log.warn(ex.message, ex)
-                            connectionClosedByTheRemoteServer = false
-                            channel.close()
-                            if(!channelReleased) {
-                                pool.release(channel)
-                                channelReleased = true
-                                log.trace(channel) {
-                                    "Channel released"
-                                }
-                            }
-                        }
-                    })
-                } else {
-                    response.completeExceptionally(channelFuture.cause())
-                }
+            override fun writabilityChanged(writable: Boolean) {
+                responseHandler.writabilityChanged(writable)
             }
-        })
-        return response
+        }
+        return pool.sendRequest(trackingHandler).whenComplete { _, ex ->
+            if (ex != null) health.failure(server.endpoint)
+        }
+    }
+
+    /**
+     * Reports a failure that hasn't been detected by the connection (like a timeout)
+     */
+    fun reportFailure(server: MemcacheCacheConfiguration.Server) {
+        health.failure(server.endpoint)
     }
 
     fun shutDown(): NettyFuture<*> {
@@ -0,0 +1,22 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Connections to a single memcache server
+ */
+interface MemcacheConnectionPool {
+
+    /**
+     * Reserves a slot for a new request, whose responses are going to be dispatched to [responseHandler]
+     */
+    fun sendRequest(responseHandler: MemcacheResponseHandler): CompletableFuture<MemcacheRequestController>
+
+    /**
+     * Opens up to [connections] connections to the server in advance, so that the first requests
+     * don't have to wait for them to be established
+     */
+    fun warmUp(connections: Int): CompletableFuture<Void>
+
+    fun close(): CompletableFuture<Void>
+}
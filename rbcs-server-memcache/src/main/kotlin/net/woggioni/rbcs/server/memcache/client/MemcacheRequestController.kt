@@ -2,10 +2,41 @@ package net.woggioni.rbcs.server.memcache.client
 
 import io.netty.channel.Channel
 import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
 import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
 
+/**
+ * Sends a request to memcache, every request must be followed by its content, terminated by a
+ * [io.netty.handler.codec.memcache.LastMemcacheContent]. Any number of quiet requests (see [isQuiet]) can be sent
+ * before the final non-quiet one, their responses are all dispatched to the same [MemcacheResponseHandler]
+ * and the response to the final request marks the end of the exchange.
+ */
 interface MemcacheRequestController {
 
+    companion object {
+        private val QUIET_OPCODES = setOf(
+            BinaryMemcacheOpcodes.GETQ,
+            BinaryMemcacheOpcodes.GETKQ,
+            BinaryMemcacheOpcodes.SETQ,
+            BinaryMemcacheOpcodes.ADDQ,
+            BinaryMemcacheOpcodes.REPLACEQ,
+            BinaryMemcacheOpcodes.DELETEQ,
+            BinaryMemcacheOpcodes.INCREMENTQ,
+            BinaryMemcacheOpcodes.DECREMENTQ,
+            BinaryMemcacheOpcodes.QUITQ,
+            BinaryMemcacheOpcodes.FLUSHQ,
+            BinaryMemcacheOpcodes.APPENDQ,
+            BinaryMemcacheOpcodes.PREPENDQ,
+            BinaryMemcacheOpcodes.GATQ,
+            BinaryMemcacheOpcodes.GATKQ,
+        )
+
+        /**
+         * Quiet commands don't get a response in case of success (or, for the GET variants, in case of a miss)
+         */
+        fun isQuiet(opcode: Byte) = opcode in QUIET_OPCODES
+    }
+
     val channel: Channel
 
     fun sendRequest(request : BinaryMemcacheRequest)
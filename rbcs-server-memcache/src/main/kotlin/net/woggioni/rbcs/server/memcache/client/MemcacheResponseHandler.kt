@@ -11,4 +11,10 @@ interface MemcacheResponseHandler {
     fun contentReceived(content : MemcacheContent)
 
     fun exceptionCaught(ex : Throwable)
+
+    /**
+     * Invoked when the connection the request is written to stops (or resumes) accepting writes
+     * without buffering them, see [io.netty.channel.Channel.isWritable]
+     */
+    fun writabilityChanged(writable : Boolean) {}
 }
@@ -0,0 +1,317 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.util.Base64
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.CombinedChannelDuplexHandler
+import io.netty.handler.codec.ByteToMessageDecoder
+import io.netty.handler.codec.DecoderException
+import io.netty.handler.codec.EncoderException
+import io.netty.handler.codec.MessageToMessageEncoder
+import io.netty.handler.codec.TooLongFrameException
+import io.netty.handler.codec.memcache.DefaultLastMemcacheContent
+import io.netty.handler.codec.memcache.DefaultMemcacheContent
+import io.netty.handler.codec.memcache.LastMemcacheContent
+import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.MemcacheObject
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponseStatus
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheResponse
+
+/**
+ * Speaks the text meta protocol of memcached (`mg`, `ms` and `mn` commands, available since memcached 1.6)
+ * while exposing the same messages as [io.netty.handler.codec.memcache.binary.BinaryMemcacheClientCodec],
+ * so that the rest of the client doesn't depend on the protocol in use.
+ * Only the commands sent by RBCS are supported: GET, GAT (translated to a single `mg` with the `T` flag),
+ * their quiet variants, SET, SETQ and NOOP.
+ *
+ * Every command carries an opaque token echoed back by the server, that tells which quiet commands got no response
+ * (quiet commands are sent with the `q` flag, that has the same semantics as the binary quiet opcodes).
+ * Keys are always sent base64 encoded, since they can contain arbitrary bytes.
+ * Items vivified by other clients of the same servers (an empty value returned with the `Z` or `W` flag)
+ * are reported as misses, while stale items (`X` flag) are still returned, since RBCS never rewrites a value
+ * under an existing key.
+ */
+class MetaMemcacheClientCodec(chunkSize: Int) :
+    CombinedChannelDuplexHandler<MetaMemcacheClientCodec.ResponseDecoder, MetaMemcacheClientCodec.RequestEncoder>() {
+
+    private companion object {
+        private const val MAX_LINE_LENGTH = 8192
+        private val CRLF = byteArrayOf('\r'.code.toByte(), '\n'.code.toByte())
+        private val KEY_ENCODER = Base64.getEncoder()
+
+        private val GET_OPCODES = setOf(
+            BinaryMemcacheOpcodes.GET,
+            BinaryMemcacheOpcodes.GETQ,
+            BinaryMemcacheOpcodes.GETK,
+            BinaryMemcacheOpcodes.GETKQ,
+        )
+
+        private val GAT_OPCODES = setOf(
+            BinaryMemcacheOpcodes.GAT,
+            BinaryMemcacheOpcodes.GATQ,
+            BinaryMemcacheOpcodes.GATK,
+            BinaryMemcacheOpcodes.GATKQ,
+        )
+
+        // Commands whose responses echo the key back
+        private val KEY_OPCODES = setOf(
+            BinaryMemcacheOpcodes.GETK,
+            BinaryMemcacheOpcodes.GETKQ,
+            BinaryMemcacheOpcodes.GATK,
+            BinaryMemcacheOpcodes.GATKQ,
+        )
+    }
+
+    private enum class State {
+        LINE, VALUE, TRAILER
+    }
+
+    private class Pending(
+        val token: Int,
+        val opcode: Byte,
+        val opaque: Int,
+        val key: ByteArray,
+        val quiet: Boolean,
+    )
+
+    // Commands sent and not yet answered, in the order they have been sent
+    private val pending = ArrayDeque<Pending>()
+    private var nextToken = 0
+
+    init {
+        init(ResponseDecoder(chunkSize), RequestEncoder())
+    }
+
+    inner class RequestEncoder : MessageToMessageEncoder<MemcacheObject>() {
+
+        // Whether the contents being written are the value of a SET
+        private var sendingValue = false
+
+        override fun encode(ctx: ChannelHandlerContext, msg: MemcacheObject, out: MutableList<Any>) {
+            when (msg) {
+                is BinaryMemcacheRequest -> out.add(encodeRequest(ctx.alloc(), msg))
+                is MemcacheContent -> {
+                    if (sendingValue) {
+                        val content = msg.content()
+                        if (content.isReadable) {
+                            out.add(content.retain())
+                        }
+                        if (msg is LastMemcacheContent) {
+                            sendingValue = false
+                            out.add(Unpooled.wrappedBuffer(CRLF))
+                        }
+                    }
+                }
+            }
+            if (out.isEmpty()) {
+                // Contents terminating commands without a value
+                out.add(Unpooled.EMPTY_BUFFER)
+            }
+        }
+
+        private fun encodeRequest(alloc: ByteBufAllocator, request: BinaryMemcacheRequest): ByteBuf {
+            val opcode = request.opcode()
+            val quiet = MemcacheRequestController.isQuiet(opcode)
+            val key = request.key()?.let(ByteBufUtil::getBytes) ?: ByteArray(0)
+            val token = nextToken++
+            val line = StringBuilder()
+            when (opcode) {
+                in GET_OPCODES, in GAT_OPCODES -> {
+                    line.append("mg ").append(KEY_ENCODER.encodeToString(key)).append(" b v f")
+                    if (opcode in GAT_OPCODES) {
+                        val extras = request.extras()
+                        line.append(" T").append(extras.getInt(extras.readerIndex()))
+                    }
+                }
+
+                BinaryMemcacheOpcodes.SET, BinaryMemcacheOpcodes.SETQ -> {
+                    val extras = request.extras()
+                    val flags = extras.getInt(extras.readerIndex())
+                    val expiry = extras.getInt(extras.readerIndex() + Int.SIZE_BYTES)
+                    val valueLength = request.totalBodyLength() - request.keyLength() - request.extrasLength()
+                    line.append("ms ").append(KEY_ENCODER.encodeToString(key))
+                        .append(' ').append(valueLength)
+                        .append(" b F").append(Integer.toUnsignedString(flags))
+                        .append(" T").append(expiry)
+                    sendingValue = true
+                }
+
+                BinaryMemcacheOpcodes.NOOP -> line.append("mn")
+
+                else -> throw EncoderException(
+                    "Memcache command 0x${Integer.toHexString(opcode.toInt() and 0xff)} is not supported by the meta protocol"
+                )
+            }
+            if (opcode != BinaryMemcacheOpcodes.NOOP) {
+                line.append(" O").append(token)
+                if (quiet) line.append(" q")
+            }
+            line.append("\r\n")
+            pending.addLast(Pending(token, opcode, request.opaque(), key, quiet))
+            return ByteBufUtil.writeAscii(alloc, line)
+        }
+    }
+
+    inner class ResponseDecoder(private val chunkSize: Int) : ByteToMessageDecoder() {
+
+        private var state = State.LINE
+
+        // Bytes of the value being received that have not been read yet
+        private var remaining = 0
+
+        override fun decode(ctx: ChannelHandlerContext, buf: ByteBuf, out: MutableList<Any>) {
+            while (true) {
+                when (state) {
+                    State.LINE -> {
+                        val line = readLine(buf) ?: return
+                        decodeLine(ctx.alloc(), line, out)
+                    }
+
+                    State.VALUE -> {
+                        val read = minOf(remaining, buf.readableBytes(), chunkSize)
+                        if (read == 0) return
+                        val chunk = buf.readRetainedSlice(read)
+                        remaining -= read
+                        if (remaining == 0) {
+                            out.add(DefaultLastMemcacheContent(chunk))
+                            state = State.TRAILER
+                        } else {
+                            out.add(DefaultMemcacheContent(chunk))
+                        }
+                    }
+
+                    State.TRAILER -> {
+                        if (buf.readableBytes() < CRLF.size) return
+                        if (buf.readByte() != CRLF[0] || buf.readByte() != CRLF[1]) {
+                            throw DecoderException("Memcache value not terminated by CRLF")
+                        }
+                        state = State.LINE
+                    }
+                }
+            }
+        }
+
+        private fun readLine(buf: ByteBuf): String? {
+            val eol = buf.indexOf(buf.readerIndex(), buf.writerIndex(), CRLF[1])
+            if (eol < 0) {
+                if (buf.readableBytes() > MAX_LINE_LENGTH) {
+                    throw TooLongFrameException("Memcache response line longer than $MAX_LINE_LENGTH bytes")
+                }
+                return null
+            }
+            val line = buf.toString(buf.readerIndex(), eol - buf.readerIndex(), Charsets.US_ASCII)
+            buf.readerIndex(eol + 1)
+            return line.removeSuffix("\r")
+        }
+
+        private fun decodeLine(alloc: ByteBufAllocator, line: String, out: MutableList<Any>) {
+            val tokens = line.split(' ')
+            when (val code = tokens[0]) {
+                "VA" -> {
+                    val size = tokens.getOrNull(1)?.toIntOrNull()
+                        ?: throw DecoderException("Malformed memcache response: $line")
+                    val flags = tokens.subList(2, tokens.size)
+                    val request = complete(opaqueToken(flags))
+                    val placeholder = size == 0 && flags.any { it == "Z" || it == "W" }
+                    if (placeholder) {
+                        // Vivified by another client that hasn't stored the value yet
+                        if (!request.quiet) {
+                            out.add(response(request, BinaryMemcacheResponseStatus.KEY_ENOENT))
+                            out.add(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                        }
+                        state = State.TRAILER
+                        return
+                    }
+                    val itemFlags = flags.firstOrNull { it.startsWith('f') }
+                        ?.let { Integer.parseUnsignedInt(it, 1, it.length, 10) }
+                        ?: 0
+                    val extras = alloc.buffer(Int.SIZE_BYTES, Int.SIZE_BYTES).writeInt(itemFlags)
+                    out.add(response(request, BinaryMemcacheResponseStatus.SUCCESS, extras, size))
+                    if (size == 0) {
+                        out.add(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                        state = State.TRAILER
+                    } else {
+                        remaining = size
+                        state = State.VALUE
+                    }
+                }
+
+                "HD", "EN", "NS", "EX", "NF" -> {
+                    val flags = tokens.subList(1, tokens.size)
+                    val request = complete(opaqueToken(flags))
+                    val status = when (code) {
+                        "HD" -> BinaryMemcacheResponseStatus.SUCCESS
+                        "NS" -> BinaryMemcacheResponseStatus.NOT_STORED
+                        "EX" -> BinaryMemcacheResponseStatus.KEY_EEXISTS
+                        else -> BinaryMemcacheResponseStatus.KEY_ENOENT
+                    }
+                    out.add(response(request, status))
+                    out.add(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                }
+
+                "MN" -> {
+                    val request = complete { it.opcode == BinaryMemcacheOpcodes.NOOP }
+                    out.add(response(request, BinaryMemcacheResponseStatus.SUCCESS))
+                    out.add(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                }
+
+                "SERVER_ERROR" -> {
+                    // Error responses carry no opaque token, they can only be attributed to the oldest non-quiet command
+                    val status = when {
+                        line.contains("too large") -> BinaryMemcacheResponseStatus.E2BIG
+                        line.contains("out of memory") -> BinaryMemcacheResponseStatus.ENOMEM
+                        else -> throw DecoderException("Memcache server error: $line")
+                    }
+                    out.add(response(complete { !it.quiet }, status))
+                    out.add(LastMemcacheContent.EMPTY_LAST_CONTENT)
+                }
+
+                // The connection can't be trusted anymore after a protocol error
+                else -> throw DecoderException("Unexpected memcache response: $line")
+            }
+        }
+
+        private fun opaqueToken(flags: List<String>) = flags.firstOrNull { it.startsWith('O') }
+            ?.substring(1)
+            ?.toIntOrNull()
+            ?: throw DecoderException("Memcache response without opaque token")
+
+        private fun complete(token: Int) = complete { it.token == token }
+
+        /**
+         * Removes the command the response being decoded belongs to from the pending ones,
+         * together with the quiet commands that precede it, which got no response
+         */
+        private fun complete(predicate: (Pending) -> Boolean): Pending {
+            while (true) {
+                val request = pending.removeFirstOrNull()
+                    ?: throw DecoderException("Memcache response received with no command pending")
+                if (predicate(request)) return request
+                if (!request.quiet) {
+                    throw DecoderException("No response received for a non-quiet memcache command")
+                }
+            }
+        }
+
+        private fun response(
+            request: Pending,
+            status: Short,
+            extras: ByteBuf? = null,
+            valueLength: Int = 0
+        ): BinaryMemcacheResponse {
+            val key = if (request.opcode in KEY_OPCODES) Unpooled.wrappedBuffer(request.key) else null
+            return DefaultBinaryMemcacheResponse(key, extras).apply {
+                setOpcode(request.opcode)
+                setStatus(status)
+                setOpaque(request.opaque)
+                setTotalBodyLength(keyLength().toInt() + extrasLength().toInt() + valueLength)
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.handler.codec.memcache.LastMemcacheContent
+import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.MemcacheObject
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+import io.netty.util.ReferenceCountUtil
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.memcache.MemcacheCacheConfiguration
+import net.woggioni.rbcs.server.memcache.MemcacheCacheHandler
+
+/**
+ * Keeps [connections] long-lived connections open to the server and pipelines many concurrent requests on each of them.
+ * Every request is tagged with a distinct `opaque` value, that memcache echoes back in the response header,
+ * so that responses can be dispatched to the right [MemcacheResponseHandler].
+ * Quiet requests share the `opaque` value of the non-quiet request that terminates them.
+ * The messages of a request are buffered until its last content is sent, then written to the connection all at once
+ * (so that the frames of different requests never interleave), and the connection is flushed once per event loop tick.
+ */
+class MultiplexedConnectionPool(
+    bootstrap: Bootstrap,
+    protocol: MemcacheCacheConfiguration.Protocol,
+    chunkSize: Int,
+    private val connections: Int,
+) : MemcacheConnectionPool {
+
+    private companion object {
+        private val log = createLogger<MemcacheCacheHandler>()
+
+        private val DISCARD = object : MemcacheResponseHandler {
+            override fun responseReceived(response: BinaryMemcacheResponse) {}
+
+            override fun contentReceived(content: MemcacheContent) {}
+
+            override fun exceptionCaught(ex: Throwable) {}
+        }
+    }
+
+    private val bootstrap = bootstrap.clone().handler(object : ChannelInitializer<Channel>() {
+        override fun initChannel(ch: Channel) {
+            ch.pipeline().addLast(protocol.newCodec(chunkSize))
+            ch.pipeline().addLast(Connection(ch))
+        }
+    })
+
+    private val slots = AtomicReferenceArray<CompletableFuture<Connection>?>(connections)
+    private val counter = AtomicInteger(0)
+
+    @Volatile
+    private var closed = false
+
+    internal inner class Connection(private val channel: Channel) : SimpleChannelInboundHandler<MemcacheObject>() {
+
+        // All the fields below are only accessed from the channel's event loop
+        private val pending = HashMap<Int, MemcacheResponseHandler>()
+        private var current: MemcacheResponseHandler? = null
+        private var nextOpaque = 0
+        private var flushScheduled = false
+
+        val isActive: Boolean
+            get() = channel.isActive
+
+        fun close() = channel.close()
+
+        fun newController(responseHandler: MemcacheResponseHandler) = object : MemcacheRequestController {
+            override val channel: Channel
+                get() = this@Connection.channel
+
+            private val messages = ArrayList<Any>()
+            private var opaque: Int? = null
+            private var quiet = false
+
+            override fun sendRequest(request: BinaryMemcacheRequest) {
+                quiet = MemcacheRequestController.isQuiet(request.opcode())
+                messages.add(request)
+            }
+
+            override fun sendContent(content: MemcacheContent) {
+                messages.add(content)
+                if (content is LastMemcacheContent && !quiet) {
+                    val toWrite = messages.toList()
+                    messages.clear()
+                    inEventLoop {
+                        opaque = send(toWrite, responseHandler)
+                    }
+                }
+            }
+
+            override fun exceptionCaught(ex: Throwable) {
+                log.warn(ex.message, ex)
+                messages.forEach(ReferenceCountUtil::release)
+                messages.clear()
+                inEventLoop {
+                    // The connection is still usable, the response to this request (if any) gets ignored
+                    opaque?.let { opaque ->
+                        pending.replace(opaque, DISCARD)
+                    }
+                    if (current === responseHandler) {
+                        current = DISCARD
+                    }
+                }
+            }
+        }
+
+        private fun inEventLoop(action: () -> Unit) {
+            val eventLoop = channel.eventLoop()
+            if (eventLoop.inEventLoop()) {
+                action()
+            } else {
+                eventLoop.execute(action)
+            }
+        }
+
+        private fun send(messages: List<Any>, responseHandler: MemcacheResponseHandler): Int? {
+            if (!channel.isActive) {
+                messages.forEach(ReferenceCountUtil::release)
+                responseHandler.exceptionCaught(IOException("The connection to the memcache server is closed"))
+                return null
+            }
+            val opaque = nextOpaque++
+            pending[opaque] = responseHandler
+            for (msg in messages) {
+                if (msg is BinaryMemcacheRequest) {
+                    msg.setOpaque(opaque)
+                }
+                channel.write(msg, channel.voidPromise())
+            }
+            if (!flushScheduled) {
+                flushScheduled = true
+                channel.eventLoop().execute {
+                    flushScheduled = false
+                    channel.flush()
+                }
+            }
+            return opaque
+        }
+
+        override fun channelRead0(ctx: ChannelHandlerContext, msg: MemcacheObject) {
+            when (msg) {
+                is BinaryMemcacheResponse -> {
+                    val handler = if (MemcacheRequestController.isQuiet(msg.opcode())) {
+                        pending[msg.opaque()]
+                    } else {
+                        pending.remove(msg.opaque())
+                    }
+                    current = handler ?: run {
+                        log.warn(ctx) {
+                            "Received a response with unknown opaque ${msg.opaque()}"
+                        }
+                        DISCARD
+                    }
+                    current?.responseReceived(msg)
+                }
+
+                is LastMemcacheContent -> {
+                    current?.contentReceived(msg)
+                    current = null
+                }
+
+                is MemcacheContent -> {
+                    current?.contentReceived(msg)
+                }
+            }
+        }
+
+        override fun channelInactive(ctx: ChannelHandlerContext) {
+            failAll(IOException("The memcache server closed the connection"))
+            ctx.fireChannelInactive()
+        }
+
+        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+            failAll(cause)
+            ctx.close()
+        }
+
+        private fun failAll(cause: Throwable) {
+            val handlers = listOfNotNull(current) + pending.values
+            current = null
+            pending.clear()
+            handlers.forEach {
+                it.exceptionCaught(cause)
+            }
+        }
+    }
+
+    private fun connection(): CompletableFuture<Connection> {
+        val slot = Math.floorMod(counter.getAndIncrement(), connections)
+        while (true) {
+            val existing = slots.get(slot)
+            if (existing != null && !(existing.isDone && (existing.isCompletedExceptionally || !existing.join().isActive))) {
+                return existing
+            }
+            val fresh = CompletableFuture<Connection>()
+            if (slots.compareAndSet(slot, existing, fresh)) {
+                val connectFuture = bootstrap.connect()
+                connectFuture.addListener {
+                    val channel = connectFuture.channel()
+                    if (it.isSuccess) {
+                        log.debug(channel) {
+                            "Opened multiplexed connection to ${channel.remoteAddress()}"
+                        }
+                        if (closed) channel.close()
+                        fresh.complete(channel.pipeline().get(Connection::class.java))
+                    } else {
+                        fresh.completeExceptionally(it.cause())
+                    }
+                }
+                return fresh
+            }
+        }
+    }
+
+    override fun sendRequest(responseHandler: MemcacheResponseHandler): CompletableFuture<MemcacheRequestController> {
+        if (closed) {
+            return CompletableFuture.failedFuture(IOException("The connection pool is closed"))
+        }
+        return connection().thenApply { it.newController(responseHandler) }
+    }
+
+    override fun warmUp(connections: Int): CompletableFuture<Void> {
+        val opened = (0 until minOf(connections, this.connections)).map {
+            connection()
+        }
+        return CompletableFuture.allOf(*opened.toTypedArray())
+    }
+
+    override fun close(): CompletableFuture<Void> {
+        closed = true
+        val closeFutures = (0 until connections).mapNotNull { slots.getAndSet(it, null) }.map { connection ->
+            connection.handle { conn, _ ->
+                conn
+            }.thenCompose { conn ->
+                val result = CompletableFuture<Void>()
+                if (conn == null) {
+                    result.complete(null)
+                } else {
+                    conn.close().addListener {
+                        result.complete(null)
+                    }
+                }
+                result
+            }
+        }
+        return CompletableFuture.allOf(*closeFutures.toTypedArray())
+    }
+}
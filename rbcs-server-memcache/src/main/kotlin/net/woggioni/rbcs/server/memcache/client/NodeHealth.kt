@@ -0,0 +1,73 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.warn
+
+/**
+ * Passive health tracking of the memcache servers, based on the outcome of the requests sent to them.
+ * A server is ejected after [failureThreshold] consecutive failures, for a time that starts from [backoff]
+ * and doubles (up to [maxBackoff]) every time the first request sent after the ejection fails again.
+ * When [probed] the servers are also checked periodically by [MemcacheClient.probe], in which case an ejected server
+ * is only readmitted after a successful request, so that client requests are never the ones discovering it is still down.
+ */
+class NodeHealth(
+    private val backoff: Duration,
+    private val maxBackoff: Duration = backoff.multipliedBy(64),
+    private val failureThreshold: Int = 3,
+    private val probed: Boolean = false,
+) {
+    private companion object {
+        private val log = createLogger<NodeHealth>()
+    }
+
+    private class State {
+        var consecutiveFailures = 0
+        var ejections = 0
+        var ejectedUntil = 0L
+    }
+
+    private val states = ConcurrentHashMap<HostAndPort, State>()
+
+    fun isAvailable(endpoint: HostAndPort): Boolean {
+        val state = states[endpoint] ?: return true
+        return synchronized(state) {
+            state.ejections == 0 || (!probed && System.nanoTime() - state.ejectedUntil >= 0)
+        }
+    }
+
+    fun success(endpoint: HostAndPort) {
+        val state = states[endpoint] ?: return
+        synchronized(state) {
+            state.consecutiveFailures = 0
+            state.ejections = 0
+        }
+    }
+
+    fun failure(endpoint: HostAndPort) {
+        val state = states.computeIfAbsent(endpoint) { State() }
+        synchronized(state) {
+            val now = System.nanoTime()
+            if (state.ejections > 0 && (probed || now - state.ejectedUntil < 0)) {
+                // Already ejected, this is a request that was sent before the ejection (or a failed probe)
+                return
+            }
+            if (state.ejections > 0 || ++state.consecutiveFailures >= failureThreshold) {
+                val duration = backoff.multipliedBy(1L shl minOf(state.ejections, 30))
+                    .coerceAtMost(maxBackoff)
+                state.ejections += 1
+                state.consecutiveFailures = 0
+                state.ejectedUntil = now + duration.toNanos()
+                log.warn {
+                    if (probed) {
+                        "Memcache server $endpoint ejected until it passes a health check"
+                    } else {
+                        "Memcache server $endpoint ejected for $duration"
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.woggioni.rbcs.server.memcache
+
+import java.io.IOException
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheResponse
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class ChunkedValuesTest {
+
+    @Test
+    fun manifestRoundTrip() {
+        val buf = ChunkedValues.Manifest(-0x123456789abcdefL, 42, 0x2a0000).write(ByteBufAllocator.DEFAULT)
+        try {
+            val manifest = ChunkedValues.Manifest.read(buf)
+            Assertions.assertEquals(-0x123456789abcdefL, manifest.generation)
+            Assertions.assertEquals(42, manifest.chunks)
+            Assertions.assertEquals(0x2a0000, manifest.totalSize)
+            Assertions.assertEquals(0, buf.readableBytes())
+        } finally {
+            buf.release()
+        }
+    }
+
+    @Test
+    fun invalidManifests() {
+        val buf = ChunkedValues.Manifest(1, 2, 3).write(ByteBufAllocator.DEFAULT)
+        try {
+            Assertions.assertThrows(IOException::class.java) {
+                ChunkedValues.Manifest.read(buf.slice(0, buf.readableBytes() - 1))
+            }
+            buf.setInt(0, 2)
+            Assertions.assertThrows(IOException::class.java) {
+                ChunkedValues.Manifest.read(buf)
+            }
+        } finally {
+            buf.release()
+        }
+    }
+
+    @Test
+    fun chunkKeys() {
+        // The key of the value ends with digits, only the part after the last separator is the index
+        val key = "some-key-1234".toByteArray()
+        val generation = 0x7fedcba987654321L
+        val chunkKeys = listOf(0, 7, 10, 12345).associateWith { index ->
+            ChunkedValues.chunkKey(key, generation, index)
+        }
+        for ((index, chunkKey) in chunkKeys) {
+            Assertions.assertArrayEquals(key, chunkKey.copyOf(key.size))
+            Assertions.assertEquals(index, ChunkedValues.chunkIndex(Unpooled.wrappedBuffer(chunkKey)))
+        }
+        Assertions.assertEquals(chunkKeys.size, chunkKeys.values.map { String(it) }.toSet().size)
+        Assertions.assertFalse(
+            ChunkedValues.chunkKey(key, generation, 0).contentEquals(ChunkedValues.chunkKey(key, generation + 1, 0))
+        )
+        Assertions.assertThrows(IOException::class.java) {
+            ChunkedValues.chunkIndex(Unpooled.wrappedBuffer("some-key:1a".toByteArray()))
+        }
+    }
+
+    @Test
+    fun manifestFlag() {
+        fun response(flags: Int?) = DefaultBinaryMemcacheResponse(null, flags?.let {
+            Unpooled.buffer(Int.SIZE_BYTES).writeInt(it)
+        }).apply {
+            setOpcode(BinaryMemcacheOpcodes.GET)
+        }
+        mapOf(ChunkedValues.MANIFEST_FLAG to true, 0 to false, null to false).forEach { (flags, expected) ->
+            val response = response(flags)
+            try {
+                Assertions.assertEquals(expected, ChunkedValues.isManifest(response))
+            } finally {
+                response.release()
+            }
+        }
+    }
+}
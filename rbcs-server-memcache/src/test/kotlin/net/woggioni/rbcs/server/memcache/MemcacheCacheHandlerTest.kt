@@ -0,0 +1,295 @@
+package net.woggioni.rbcs.server.memcache
+
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFactory
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import io.netty.channel.MultiThreadIoEventLoopGroup
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.local.LocalChannel
+import io.netty.channel.local.LocalIoHandler
+import io.netty.channel.nio.NioIoHandler
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheObjectAggregator
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponseStatus
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheServerCodec
+import io.netty.handler.codec.memcache.binary.DefaultFullBinaryMemcacheResponse
+import io.netty.handler.codec.memcache.binary.FullBinaryMemcacheRequest
+import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.api.message.CacheMessage
+import net.woggioni.rbcs.api.message.CacheMessage.CacheContent
+import net.woggioni.rbcs.api.message.CacheMessage.CacheGetRequest
+import net.woggioni.rbcs.api.message.CacheMessage.CachePutRequest
+import net.woggioni.rbcs.api.message.CacheMessage.CachePutResponse
+import net.woggioni.rbcs.api.message.CacheMessage.CacheValueFoundResponse
+import net.woggioni.rbcs.api.message.CacheMessage.CacheValueNotFoundResponse
+import net.woggioni.rbcs.api.message.CacheMessage.LastCacheContent
+import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.server.memcache.client.KetamaRing
+import net.woggioni.rbcs.server.memcache.client.MemcacheClient
+import net.woggioni.rbcs.server.memcache.client.NodeHealth
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+class MemcacheCacheHandlerTest {
+
+    private companion object {
+        private const val MAX_ITEM_SIZE = 0x400
+        private const val TIMEOUT_SECONDS = 10L
+    }
+
+    /**
+     * Binary protocol memcache server keeping its items in memory, it only understands the requests
+     * sent by [MemcacheCacheHandler] when sliding expiry is disabled
+     */
+    private class FakeMemcacheServer : AutoCloseable {
+
+        class Item(val flags: Int, val value: ByteArray)
+
+        val items = ConcurrentHashMap<String, Item>()
+
+        private val group = MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory())
+
+        private val channel = ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel::class.java)
+            .childHandler(object : ChannelInitializer<SocketChannel>() {
+                override fun initChannel(ch: SocketChannel) {
+                    ch.pipeline().addLast(
+                        BinaryMemcacheServerCodec(),
+                        BinaryMemcacheObjectAggregator(Int.MAX_VALUE),
+                        RequestHandler()
+                    )
+                }
+            })
+            .bind(InetAddress.getLoopbackAddress(), 0).sync().channel()
+
+        val port get() = (channel.localAddress() as InetSocketAddress).port
+
+        private inner class RequestHandler : SimpleChannelInboundHandler<FullBinaryMemcacheRequest>() {
+            override fun channelRead0(ctx: ChannelHandlerContext, request: FullBinaryMemcacheRequest) {
+                val key = request.key()?.toString(Charsets.ISO_8859_1) ?: ""
+                when (request.opcode()) {
+                    BinaryMemcacheOpcodes.SET -> {
+                        val extras = request.extras()
+                        items[key] = Item(extras.getInt(extras.readerIndex()), ByteBufUtil.getBytes(request.content()))
+                        respond(ctx, request, BinaryMemcacheResponseStatus.SUCCESS)
+                    }
+
+                    BinaryMemcacheOpcodes.GET, BinaryMemcacheOpcodes.GETKQ -> {
+                        val quiet = request.opcode() == BinaryMemcacheOpcodes.GETKQ
+                        val item = items[key]
+                        if (item != null) {
+                            respond(ctx, request, BinaryMemcacheResponseStatus.SUCCESS, item, quiet)
+                        } else if (!quiet) {
+                            respond(ctx, request, BinaryMemcacheResponseStatus.KEY_ENOENT)
+                        }
+                    }
+
+                    BinaryMemcacheOpcodes.NOOP -> respond(ctx, request, BinaryMemcacheResponseStatus.SUCCESS)
+
+                    else -> respond(ctx, request, BinaryMemcacheResponseStatus.UNKNOWN_COMMAND)
+                }
+            }
+
+            private fun respond(
+                ctx: ChannelHandlerContext,
+                request: FullBinaryMemcacheRequest,
+                status: Short,
+                item: Item? = null,
+                withKey: Boolean = false
+            ) {
+                val key = if (withKey) request.key().retainedDuplicate() else Unpooled.EMPTY_BUFFER
+                val extras = item?.let { Unpooled.buffer(Int.SIZE_BYTES).writeInt(it.flags) } ?: Unpooled.EMPTY_BUFFER
+                val content = item?.let { Unpooled.wrappedBuffer(it.value) } ?: Unpooled.EMPTY_BUFFER
+                val response = DefaultFullBinaryMemcacheResponse(key, extras, content).apply {
+                    setOpcode(request.opcode())
+                    setStatus(status)
+                    setOpaque(request.opaque())
+                    setTotalBodyLength(key.readableBytes() + extras.readableBytes() + content.readableBytes())
+                }
+                ctx.writeAndFlush(response)
+            }
+        }
+
+        override fun close() {
+            channel.close().sync()
+            group.shutdownGracefully().sync()
+        }
+    }
+
+    private lateinit var server: FakeMemcacheServer
+    private lateinit var client: MemcacheClient
+    private lateinit var handlerGroup: MultiThreadIoEventLoopGroup
+    private lateinit var channel: LocalChannel
+
+    // Messages the handlers send to the client
+    private val responses = LinkedBlockingQueue<Any>()
+
+    @BeforeEach
+    fun setUp() {
+        server = FakeMemcacheServer()
+        // A single connection, like the default configuration
+        val memcacheServer = MemcacheCacheConfiguration.Server(HostAndPort("127.0.0.1", server.port), 1000, 1)
+        client = MemcacheClient(
+            KetamaRing(listOf(memcacheServer to memcacheServer.weight)) { it.endpoint.toString() },
+            0,
+            NodeHealth(Duration.ofMinutes(1)),
+            MemcacheCacheConfiguration.Protocol.BINARY,
+            0x1000,
+            MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory()),
+            ChannelFactory<SocketChannel> { NioSocketChannel() },
+            ConcurrentHashMap()
+        )
+        handlerGroup = MultiThreadIoEventLoopGroup(1, LocalIoHandler.newFactory())
+        channel = LocalChannel()
+        handlerGroup.register(channel).sync()
+        channel.pipeline().addLast(object : ChannelOutboundHandlerAdapter() {
+            override fun write(ctx: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+                responses.put(msg)
+                promise.setSuccess()
+            }
+        })
+    }
+
+    @AfterEach
+    fun tearDown() {
+        channel.close().sync()
+        handlerGroup.shutdownGracefully().sync()
+        client.close()
+        server.close()
+    }
+
+    /**
+     * Hands [messages] to a new [MemcacheCacheHandler], as the server does for every request
+     */
+    private fun send(vararg messages: CacheMessage) {
+        channel.eventLoop().submit {
+            channel.pipeline().addLast(
+                MemcacheCacheHandler(
+                    client,
+                    null,
+                    null,
+                    null,
+                    null,
+                    0x1000,
+                    Duration.ofHours(1),
+                    maxItemSize = MAX_ITEM_SIZE,
+                )
+            )
+            for (message in messages) {
+                channel.pipeline().fireChannelRead(message)
+            }
+        }.sync()
+    }
+
+    private fun nextResponse() = responses.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        ?: Assertions.fail<Any>("No response received after $TIMEOUT_SECONDS seconds")
+
+    private fun put(key: String, value: ByteArray) {
+        val messages = mutableListOf<CacheMessage>(CachePutRequest(key, CacheValueMetadata(null, "application/octet-stream")))
+        var offset = 0
+        while (offset < value.size) {
+            val size = minOf(0x1000, value.size - offset)
+            messages += if (offset + size == value.size) {
+                LastCacheContent(Unpooled.wrappedBuffer(value, offset, size))
+            } else {
+                CacheContent(Unpooled.wrappedBuffer(value, offset, size))
+            }
+            offset += size
+        }
+        send(*messages.toTypedArray())
+        Assertions.assertInstanceOf(CachePutResponse::class.java, nextResponse())
+    }
+
+    /**
+     * @return the value stored under [key], or null if it's a cache miss
+     */
+    private fun get(key: String): ByteArray? {
+        send(CacheGetRequest(key))
+        val response = nextResponse()
+        if (response is CacheValueNotFoundResponse) return null
+        Assertions.assertInstanceOf(CacheValueFoundResponse::class.java, response)
+        Assertions.assertEquals("application/octet-stream", (response as CacheValueFoundResponse).metadata.mimeType)
+        val result = Unpooled.buffer()
+        try {
+            while (true) {
+                val content = nextResponse() as CacheContent
+                try {
+                    result.writeBytes(content.content())
+                } finally {
+                    content.release()
+                }
+                if (content is LastCacheContent) break
+            }
+            return ByteBufUtil.getBytes(result)
+        } finally {
+            result.release()
+        }
+    }
+
+    private fun manifest(key: String): ChunkedValues.Manifest {
+        val item = server.items.getValue(key)
+        Assertions.assertEquals(ChunkedValues.MANIFEST_FLAG, item.flags and ChunkedValues.MANIFEST_FLAG)
+        return ChunkedValues.Manifest.read(Unpooled.wrappedBuffer(item.value))
+    }
+
+    private fun chunkKey(key: String, manifest: ChunkedValues.Manifest, index: Int) =
+        String(ChunkedValues.chunkKey(key.toByteArray(), manifest.generation, index), Charsets.ISO_8859_1)
+
+    @Test
+    fun valuesLargerThanTheMaximumItemSizeAreStoredInChunks() {
+        val key = "large-value"
+        val value = Random(101325).nextBytes(MAX_ITEM_SIZE * 10 + 0x123)
+        put(key, value)
+
+        val manifest = manifest(key)
+        Assertions.assertTrue(manifest.chunks > 10)
+        Assertions.assertEquals(manifest.chunks + 1, server.items.size)
+        for (index in 0 until manifest.chunks) {
+            val chunk = server.items.getValue(chunkKey(key, manifest, index))
+            Assertions.assertTrue(chunk.value.size <= MAX_ITEM_SIZE)
+        }
+        Assertions.assertEquals(manifest.totalSize, (0 until manifest.chunks).sumOf {
+            server.items.getValue(chunkKey(key, manifest, it)).value.size
+        })
+
+        Assertions.assertArrayEquals(value, get(key))
+    }
+
+    @Test
+    fun missingChunksAreCacheMisses() {
+        val key = "evicted-value"
+        put(key, Random(101325).nextBytes(MAX_ITEM_SIZE * 4))
+        val manifest = manifest(key)
+        // Nothing can have been sent to the client before the first chunk arrives
+        server.items.remove(chunkKey(key, manifest, 0))
+        Assertions.assertNull(get(key))
+    }
+
+    @Test
+    fun smallValuesAreStoredAsASingleItem() {
+        val key = "small-value"
+        val value = Random(101325).nextBytes(MAX_ITEM_SIZE / 2)
+        put(key, value)
+        Assertions.assertEquals(setOf(key), server.items.keys)
+        Assertions.assertEquals(0, server.items.getValue(key).flags)
+        Assertions.assertArrayEquals(value, get(key))
+    }
+}
@@ -0,0 +1,77 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import kotlin.random.Random
+import io.netty.buffer.Unpooled
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class KetamaRingTest {
+
+    private val keys = Random(101325).let { random ->
+        (0 until 0x10000).map { random.nextBytes(16) }
+    }
+
+    private fun assign(ring: KetamaRing<String>) = keys.map { key ->
+        val buf = Unpooled.wrappedBuffer(key)
+        ring[buf].also {
+            Assertions.assertEquals(key.size, buf.readableBytes())
+        }
+    }
+
+    @Test
+    fun weights() {
+        val ring = KetamaRing(listOf("a" to 1, "b" to 1, "c" to 2))
+        val counts = assign(ring).groupingBy { it }.eachCount()
+        val expected = mapOf("a" to 0.25, "b" to 0.25, "c" to 0.5)
+        for ((node, share) in expected) {
+            Assertions.assertEquals(share, counts.getValue(node).toDouble() / keys.size, 0.05)
+        }
+    }
+
+    @Test
+    fun removingANodeOnlyRemapsItsKeys() {
+        val before = assign(KetamaRing(listOf("a" to 1, "b" to 1, "c" to 1, "d" to 1)))
+        val after = assign(KetamaRing(listOf("a" to 1, "b" to 1, "d" to 1)))
+        for (i in keys.indices) {
+            if (before[i] != "c") {
+                Assertions.assertEquals(before[i], after[i])
+            } else {
+                Assertions.assertNotEquals("c", after[i])
+            }
+        }
+    }
+
+    @Test
+    fun fullHashRange() {
+        val ring = KetamaRing(listOf("a" to 1, "b" to 3))
+        for (hash in intArrayOf(Int.MIN_VALUE, -1, 0, 1, Int.MAX_VALUE)) {
+            Assertions.assertTrue(ring[hash] in setOf("a", "b"))
+        }
+    }
+
+    @Test
+    fun successors() {
+        val ring = KetamaRing(listOf("a" to 1, "b" to 1, "c" to 1))
+        for (key in keys.take(0x100)) {
+            val hash = KetamaRing.hash(Unpooled.wrappedBuffer(key))
+            val successors = ring.successors(hash, 2)
+            Assertions.assertEquals(2, successors.size)
+            Assertions.assertEquals(ring[hash], successors.first())
+            Assertions.assertEquals(2, successors.toSet().size)
+            Assertions.assertEquals(3, ring.successors(hash, 5).size)
+        }
+    }
+
+    @Test
+    fun filteredSuccessors() {
+        val ring = KetamaRing(listOf("a" to 1, "b" to 1, "c" to 1))
+        val withoutB = KetamaRing(listOf("a" to 1, "c" to 1))
+        for (key in keys.take(0x100)) {
+            val hash = KetamaRing.hash(Unpooled.wrappedBuffer(key))
+            val successors = ring.successors(hash, 1) { it != "b" }
+            Assertions.assertEquals(listOf(withoutB[hash]), successors)
+            Assertions.assertEquals(2, ring.successors(hash, 3) { it != "b" }.size)
+            Assertions.assertTrue(ring.successors(hash, 3) { false }.isEmpty())
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.random.Random
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelFactory
+import io.netty.channel.MultiThreadIoEventLoopGroup
+import io.netty.channel.nio.NioIoHandler
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.server.memcache.MemcacheCacheConfiguration
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class MemcacheClientTest {
+
+    private val servers = (1..3).map {
+        MemcacheCacheConfiguration.Server(HostAndPort("memcache-$it", 11211), 1000, 1)
+    }
+
+    private val ring = KetamaRing(servers.map { it to it.weight }) { it.endpoint.toString() }
+
+    private val keys = Random(101325).let { random ->
+        (0 until 0x1000).map { random.nextBytes(16) }
+    }
+
+    @Test
+    fun ejectedServersAreSkipped() {
+        val health = NodeHealth(Duration.ofMinutes(1), failureThreshold = 1)
+        val group = MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory())
+        MemcacheClient(
+            ring,
+            0,
+            health,
+            MemcacheCacheConfiguration.Protocol.BINARY,
+            0x10000,
+            group,
+            ChannelFactory<SocketChannel> { NioSocketChannel() },
+            ConcurrentHashMap()
+        ).use { client ->
+            val ejected = servers.first()
+            health.failure(ejected.endpoint)
+            var remapped = 0
+            for (key in keys) {
+                val owner = ring[Unpooled.wrappedBuffer(key)]
+                val candidates = client.readCandidates(Unpooled.wrappedBuffer(key))
+                Assertions.assertEquals(1, candidates.size)
+                Assertions.assertEquals(candidates, client.writeTargets(Unpooled.wrappedBuffer(key)))
+                if (owner == ejected) {
+                    Assertions.assertNotEquals(ejected, candidates.first())
+                    ++remapped
+                } else {
+                    Assertions.assertEquals(owner, candidates.first())
+                }
+            }
+            Assertions.assertTrue(remapped > 0)
+
+            servers.forEach { health.failure(it.endpoint) }
+            for (key in keys.take(0x10)) {
+                Assertions.assertTrue(client.readCandidates(Unpooled.wrappedBuffer(key)).isEmpty())
+                Assertions.assertTrue(client.writeTargets(Unpooled.wrappedBuffer(key)).isEmpty())
+            }
+        }
+    }
+}
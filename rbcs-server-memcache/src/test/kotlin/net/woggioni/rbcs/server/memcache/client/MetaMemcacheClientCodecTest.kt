@@ -0,0 +1,109 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.util.Base64
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.memcache.DefaultLastMemcacheContent
+import io.netty.handler.codec.memcache.LastMemcacheContent
+import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponseStatus
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheRequest
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class MetaMemcacheClientCodecTest {
+
+    private fun key(s: String) = Unpooled.wrappedBuffer(s.toByteArray())
+
+    private fun base64(s: String) = Base64.getEncoder().encodeToString(s.toByteArray())
+
+    private fun EmbeddedChannel.written() = buildString {
+        while (true) {
+            val buf = readOutbound<ByteBuf>() ?: break
+            append(buf.toString(Charsets.US_ASCII))
+            buf.release()
+        }
+    }
+
+    private fun EmbeddedChannel.receive(s: String) {
+        writeInbound(Unpooled.wrappedBuffer(s.toByteArray(Charsets.US_ASCII)))
+    }
+
+    private fun EmbeddedChannel.readValue() = buildString {
+        while (true) {
+            val content = readInbound<MemcacheContent>()
+            append(content.content().toString(Charsets.US_ASCII))
+            content.release()
+            if (content is LastMemcacheContent) break
+        }
+    }
+
+    @Test
+    fun getAndSet() {
+        val channel = EmbeddedChannel(MetaMemcacheClientCodec(4))
+        channel.writeOutbound(DefaultBinaryMemcacheRequest(key("foo")).apply {
+            setOpcode(BinaryMemcacheOpcodes.GET)
+            setOpaque(42)
+        }, LastMemcacheContent.EMPTY_LAST_CONTENT)
+        Assertions.assertEquals("mg ${base64("foo")} b v f O0\r\n", channel.written())
+
+        channel.receive("VA 10 f7 O0\r\n0123456789\r\n")
+        val response = channel.readInbound<BinaryMemcacheResponse>()
+        Assertions.assertEquals(BinaryMemcacheResponseStatus.SUCCESS, response.status())
+        Assertions.assertEquals(42, response.opaque())
+        Assertions.assertEquals(7, response.extras().getInt(0))
+        Assertions.assertEquals(14, response.totalBodyLength())
+        response.release()
+        Assertions.assertEquals("0123456789", channel.readValue())
+
+        val extras = Unpooled.buffer(8).writeInt(3).writeInt(60)
+        channel.writeOutbound(DefaultBinaryMemcacheRequest(key("bar"), extras).apply {
+            setOpcode(BinaryMemcacheOpcodes.SET)
+            setTotalBodyLength(3 + 8 + 5)
+        }, DefaultLastMemcacheContent(Unpooled.wrappedBuffer("hello".toByteArray())))
+        Assertions.assertEquals("ms ${base64("bar")} 5 b F3 T60 O1\r\nhello\r\n", channel.written())
+
+        channel.receive("HD O1\r\n")
+        val setResponse = channel.readInbound<BinaryMemcacheResponse>()
+        Assertions.assertEquals(BinaryMemcacheOpcodes.SET, setResponse.opcode())
+        Assertions.assertEquals(BinaryMemcacheResponseStatus.SUCCESS, setResponse.status())
+        setResponse.release()
+        Assertions.assertTrue(channel.readInbound<Any>() is LastMemcacheContent)
+        Assertions.assertFalse(channel.finish())
+    }
+
+    @Test
+    fun quietPipeline() {
+        val channel = EmbeddedChannel(MetaMemcacheClientCodec(0x10000))
+        for (k in listOf("a", "b", "c")) {
+            channel.writeOutbound(DefaultBinaryMemcacheRequest(key(k)).apply {
+                setOpcode(BinaryMemcacheOpcodes.GETKQ)
+            }, LastMemcacheContent.EMPTY_LAST_CONTENT)
+        }
+        channel.writeOutbound(DefaultBinaryMemcacheRequest().apply {
+            setOpcode(BinaryMemcacheOpcodes.NOOP)
+        }, LastMemcacheContent.EMPTY_LAST_CONTENT)
+        Assertions.assertEquals(
+            "mg ${base64("a")} b v f O0 q\r\n" +
+                    "mg ${base64("b")} b v f O1 q\r\n" +
+                    "mg ${base64("c")} b v f O2 q\r\n" +
+                    "mn\r\n",
+            channel.written()
+        )
+
+        // "a" is missing, "c" is a placeholder vivified by another client
+        channel.receive("VA 1 f0 O1\r\nx\r\nVA 0 Z O2\r\n\r\nMN\r\n")
+        val response = channel.readInbound<BinaryMemcacheResponse>()
+        Assertions.assertEquals("b", response.key().toString(Charsets.US_ASCII))
+        response.release()
+        Assertions.assertEquals("x", channel.readValue())
+        val noop = channel.readInbound<BinaryMemcacheResponse>()
+        Assertions.assertEquals(BinaryMemcacheOpcodes.NOOP, noop.opcode())
+        noop.release()
+        Assertions.assertTrue(channel.readInbound<Any>() is LastMemcacheContent)
+        Assertions.assertFalse(channel.finish())
+    }
+}
@@ -0,0 +1,167 @@
+package net.woggioni.rbcs.server.memcache.client
+
+import java.io.IOException
+import io.netty.bootstrap.Bootstrap
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.memcache.DefaultLastMemcacheContent
+import io.netty.handler.codec.memcache.DefaultMemcacheContent
+import io.netty.handler.codec.memcache.LastMemcacheContent
+import io.netty.handler.codec.memcache.MemcacheContent
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheOpcodes
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.BinaryMemcacheResponse
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheRequest
+import io.netty.handler.codec.memcache.binary.DefaultBinaryMemcacheResponse
+import net.woggioni.rbcs.server.memcache.MemcacheCacheConfiguration
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class MultiplexedConnectionPoolTest {
+
+    private class Recorder : MemcacheResponseHandler {
+        val events = ArrayList<String>()
+
+        override fun responseReceived(response: BinaryMemcacheResponse) {
+            events.add("response ${response.key()?.toString(Charsets.US_ASCII).orEmpty()}")
+        }
+
+        override fun contentReceived(content: MemcacheContent) {
+            events.add(
+                (if (content is LastMemcacheContent) "last " else "content ") +
+                        content.content().toString(Charsets.US_ASCII)
+            )
+        }
+
+        override fun exceptionCaught(ex: Throwable) {
+            events.add("error ${ex.message}")
+        }
+    }
+
+    private fun key(s: String) = Unpooled.wrappedBuffer(s.toByteArray())
+
+    /**
+     * A connection of the pool on top of an [EmbeddedChannel] without any codec,
+     * so that the request and response objects can be inspected directly
+     */
+    private fun newChannel(): Pair<EmbeddedChannel, MultiplexedConnectionPool.Connection> {
+        val pool = MultiplexedConnectionPool(Bootstrap(), MemcacheCacheConfiguration.Protocol.BINARY, 0x10000, 1)
+        val channel = EmbeddedChannel()
+        val connection = pool.Connection(channel)
+        channel.pipeline().addLast(connection)
+        return channel to connection
+    }
+
+    private fun MemcacheRequestController.send(opcode: Byte, key: String? = null) {
+        sendRequest(DefaultBinaryMemcacheRequest(key?.let(::key)).apply {
+            setOpcode(opcode)
+        })
+        sendContent(LastMemcacheContent.EMPTY_LAST_CONTENT)
+    }
+
+    /**
+     * Returns the opaque values of the requests written to the channel
+     */
+    private fun EmbeddedChannel.writtenOpaques(): List<Int> {
+        runPendingTasks()
+        val result = ArrayList<Int>()
+        while (true) {
+            val msg = readOutbound<Any>() ?: break
+            if (msg is BinaryMemcacheRequest) {
+                result.add(msg.opaque())
+                msg.release()
+            }
+        }
+        return result
+    }
+
+    private fun EmbeddedChannel.respond(opaque: Int, opcode: Byte, key: String?, vararg contents: String) {
+        writeInbound(DefaultBinaryMemcacheResponse(key?.let(::key)).apply {
+            setOpcode(opcode)
+            setOpaque(opaque)
+        })
+        contents.forEachIndexed { index, content ->
+            val buf = Unpooled.wrappedBuffer(content.toByteArray())
+            writeInbound(if (index == contents.size - 1) DefaultLastMemcacheContent(buf) else DefaultMemcacheContent(buf))
+        }
+    }
+
+    @Test
+    fun responsesAreDispatchedByOpaque() {
+        val (channel, connection) = newChannel()
+        val first = Recorder()
+        val second = Recorder()
+        connection.newController(first).send(BinaryMemcacheOpcodes.GET, "a")
+        connection.newController(second).send(BinaryMemcacheOpcodes.GET, "b")
+        val opaques = channel.writtenOpaques()
+        Assertions.assertEquals(2, opaques.toSet().size)
+
+        // Answered out of order, the value of the second one split in many contents
+        channel.respond(opaques[1], BinaryMemcacheOpcodes.GET, null, "b1", "b2", "b3")
+        channel.respond(opaques[0], BinaryMemcacheOpcodes.GET, null, "a1")
+        Assertions.assertEquals(listOf("response ", "last a1"), first.events)
+        Assertions.assertEquals(listOf("response ", "content b1", "content b2", "last b3"), second.events)
+        Assertions.assertFalse(channel.finish())
+    }
+
+    @Test
+    fun quietHitsAreDispatchedUntilTheFinalResponse() {
+        val (channel, connection) = newChannel()
+        val recorder = Recorder()
+        connection.newController(recorder).apply {
+            send(BinaryMemcacheOpcodes.GETKQ, "x")
+            send(BinaryMemcacheOpcodes.GETKQ, "y")
+            send(BinaryMemcacheOpcodes.NOOP)
+        }
+        // Quiet requests share the opaque of the request that terminates them
+        val opaques = channel.writtenOpaques()
+        Assertions.assertEquals(3, opaques.size)
+        val opaque = opaques.toSet().single()
+
+        // "x" is a miss, so it gets no response
+        channel.respond(opaque, BinaryMemcacheOpcodes.GETKQ, "y", "Y")
+        channel.respond(opaque, BinaryMemcacheOpcodes.NOOP, null, "")
+        Assertions.assertEquals(listOf("response y", "last Y", "response ", "last "), recorder.events)
+
+        // The exchange is over, a late response with the same opaque is ignored
+        channel.respond(opaque, BinaryMemcacheOpcodes.GETKQ, "x", "X")
+        Assertions.assertEquals(4, recorder.events.size)
+        Assertions.assertFalse(channel.finish())
+    }
+
+    @Test
+    fun responsesToFailedRequestsAreDiscarded() {
+        val (channel, connection) = newChannel()
+        val failed = Recorder()
+        val failedController = connection.newController(failed)
+        failedController.send(BinaryMemcacheOpcodes.GET, "a")
+        val failedOpaque = channel.writtenOpaques().single()
+        // e.g. the request timed out
+        failedController.exceptionCaught(IOException("Timeout"))
+        channel.respond(failedOpaque, BinaryMemcacheOpcodes.GET, null, "a1", "a2")
+        Assertions.assertEquals(emptyList<String>(), failed.events)
+
+        // A request failing while its response is being received
+        val interrupted = Recorder()
+        val interruptedController = connection.newController(interrupted)
+        interruptedController.send(BinaryMemcacheOpcodes.GET, "b")
+        val interruptedOpaque = channel.writtenOpaques().single()
+        channel.writeInbound(DefaultBinaryMemcacheResponse().apply {
+            setOpcode(BinaryMemcacheOpcodes.GET)
+            setOpaque(interruptedOpaque)
+        })
+        channel.writeInbound(DefaultMemcacheContent(Unpooled.wrappedBuffer("b1".toByteArray())))
+        interruptedController.exceptionCaught(IOException("Timeout"))
+        channel.writeInbound(DefaultLastMemcacheContent(Unpooled.wrappedBuffer("b2".toByteArray())))
+        Assertions.assertEquals(listOf("response ", "content b1"), interrupted.events)
+
+        // The connection is still usable
+        val recorder = Recorder()
+        connection.newController(recorder).send(BinaryMemcacheOpcodes.GET, "c")
+        val opaque = channel.writtenOpaques().single()
+        Assertions.assertNotEquals(failedOpaque, opaque)
+        channel.respond(opaque, BinaryMemcacheOpcodes.GET, null, "c1")
+        Assertions.assertEquals(listOf("response ", "last c1"), recorder.events)
+        Assertions.assertFalse(channel.finish())
+    }
+}
@@ -1,5 +1,6 @@
 package net.woggioni.rbcs.server.redis
 
+import java.nio.file.Path
 import java.time.Duration
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
@@ -7,15 +8,21 @@ import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 import io.netty.channel.ChannelFactory
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.pool.FixedChannelPool
 import io.netty.channel.socket.DatagramChannel
 import io.netty.channel.socket.SocketChannel
 import net.woggioni.rbcs.api.CacheHandler
 import net.woggioni.rbcs.api.CacheHandlerFactory
 import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.api.exception.ConfigurationException
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.common.NegativeCache
 import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.server.redis.client.ClusterSlots
+import net.woggioni.rbcs.server.redis.client.NearCache
 import net.woggioni.rbcs.server.redis.client.RedisClient
+import net.woggioni.rbcs.server.redis.client.RedisConnectionPool
+import net.woggioni.rbcs.server.redis.client.SentinelTopology
 
 data class RedisCacheConfiguration(
     val servers: List<Server>,
@@ -24,17 +31,55 @@ data class RedisCacheConfiguration(
     val digestAlgorithm: String? = null,
     val compressionMode: CompressionMode? = null,
     val compressionLevel: Int,
+    val compressionBlockSize: Int? = null,
+    val compressionDictionary: Path? = null,
+    val slidingExpiry: Boolean = false,
+    val mode: Mode = Mode.STANDALONE,
+    val nearCacheSize: Int? = null,
+    val streamingPut: Boolean = false,
+    val masterName: String? = null,
+    val readFrom: ReadFrom = ReadFrom.PRIMARY,
+    val metadataKey: Boolean = false,
+    val negativeCacheTtl: Duration? = null,
+    val negativeCacheSize: Int = 0x10000,
 ) : Configuration.Cache {
 
     companion object {
         private val log = createLogger<RedisCacheConfiguration>()
     }
 
-    enum class CompressionMode {
+    enum class Mode {
         /**
-         * Deflate mode
+         * Keys are spread across the configured servers, that are unaware of each other
          */
-        DEFLATE
+        STANDALONE,
+
+        /**
+         * The configured servers are seed nodes of a Redis Cluster, keys are routed to the node owning their hash slot
+         */
+        CLUSTER,
+
+        /**
+         * The configured servers are sentinels monitoring the primary named [masterName] and its replicas
+         */
+        SENTINEL
+    }
+
+    enum class ReadFrom {
+        /**
+         * All commands are sent to the primary
+         */
+        PRIMARY,
+
+        /**
+         * Reads are spread across the replicas, falling back to the primary when there are none
+         */
+        REPLICA,
+
+        /**
+         * Reads are sent to the node (primary or replica) with the lowest round trip time
+         */
+        NEAREST
     }
 
     data class Server(
@@ -42,11 +87,30 @@ data class RedisCacheConfiguration(
         val connectionTimeoutMillis: Int?,
         val maxConnections: Int,
         val password: String? = null,
+        val pipelinedConnections: Int? = null,
     )
 
     override fun materialize() = object : CacheHandlerFactory {
 
-        private val connectionPoolMap = ConcurrentHashMap<HostAndPort, FixedChannelPool>()
+        private val connectionPoolMap = ConcurrentHashMap<HostAndPort, RedisConnectionPool>()
+
+        private val codec = compressionMode?.createCodec(compressionLevel, compressionDictionary)
+
+        private val cluster = if (mode == Mode.CLUSTER) {
+            ClusterSlots(this@RedisCacheConfiguration.servers.map { it.endpoint })
+        } else {
+            null
+        }
+
+        private val nearCache = nearCacheSize?.let { NearCache(it.toLong()) }
+
+        private val negativeCache = negativeCacheTtl?.let { NegativeCache(negativeCacheSize, it) }
+
+        private val sentinel = if (mode == Mode.SENTINEL) {
+            SentinelTopology(masterName ?: throw ConfigurationException("A master name is required in sentinel mode"), readFrom)
+        } else {
+            null
+        }
 
         override fun newHandler(
             cfg: Configuration,
@@ -57,22 +121,33 @@ data class RedisCacheConfiguration(
             return RedisCacheHandler(
                 RedisClient(
                     this@RedisCacheConfiguration.servers,
-                    cfg.connection.chunkSize,
                     eventLoop,
                     socketChannelFactory,
-                    connectionPoolMap
+                    connectionPoolMap,
+                    cluster,
+                    nearCache,
+                    sentinel,
                 ),
                 keyPrefix,
                 digestAlgorithm,
-                compressionMode != null,
-                compressionLevel,
+                codec,
+                compressionBlockSize,
                 cfg.connection.chunkSize,
-                maxAge
+                maxAge,
+                slidingExpiry,
+                nearCache,
+                streamingPut,
+                metadataKey,
+                negativeCache,
             )
         }
 
         override fun asyncClose() = object : CompletableFuture<Void>() {
             init {
+                whenComplete { _, _ ->
+                    codec?.close()
+                    nearCache?.close()
+                }
                 val failure = AtomicReference<Throwable>(null)
                 val pools = connectionPoolMap.values.toList()
                 val npools = pools.size
@@ -81,9 +156,9 @@ data class RedisCacheConfiguration(
                     complete(null)
                 } else {
                     pools.forEach { pool ->
-                        pool.closeAsync().addListener {
-                            if (!it.isSuccess) {
-                                failure.compareAndSet(null, it.cause())
+                        pool.close().whenComplete { _, ex ->
+                            if (ex != null) {
+                                failure.compareAndSet(null, ex)
                             }
                             if (finished.incrementAndGet() == npools) {
                                 when (val ex = failure.get()) {
@@ -1,8 +1,5 @@
 package net.woggioni.rbcs.server.redis
 
-import java.io.ByteArrayOutputStream
-import java.io.ObjectInputStream
-import java.io.ObjectOutputStream
 import java.net.InetSocketAddress
 import java.nio.ByteBuffer
 import java.nio.channels.Channels
@@ -12,21 +9,27 @@ import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.StandardOpenOption
 import java.time.Duration
-import java.util.zip.Deflater
-import java.util.zip.DeflaterOutputStream
-import java.util.zip.InflaterOutputStream
+import kotlin.random.Random
 import io.netty.channel.Channel as NettyChannel
 import io.netty.buffer.ByteBuf
 import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.CompositeByteBuf
+import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.BulkStringHeaderRedisMessage
+import io.netty.handler.codec.redis.BulkStringRedisContent
 import io.netty.handler.codec.redis.ErrorRedisMessage
 import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import io.netty.handler.codec.redis.LastBulkStringRedisContent
 import io.netty.handler.codec.redis.RedisMessage
 import io.netty.handler.codec.redis.SimpleStringRedisMessage
+import io.netty.util.ReferenceCountUtil
 import net.woggioni.rbcs.api.CacheHandler
 import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.api.CacheValueMetadataCodec
 import net.woggioni.rbcs.api.exception.ContentTooLargeException
 import net.woggioni.rbcs.api.message.CacheMessage
 import net.woggioni.rbcs.api.message.CacheMessage.CacheContent
@@ -37,8 +40,11 @@ import net.woggioni.rbcs.api.message.CacheMessage.CacheValueFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.CacheValueNotFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.LastCacheContent
 import net.woggioni.rbcs.api.TelemetryController
+import net.woggioni.rbcs.common.BlockCodec
+import net.woggioni.rbcs.common.BlockCompression
 import net.woggioni.rbcs.common.ByteBufInputStream
 import net.woggioni.rbcs.common.ByteBufOutputStream
+import net.woggioni.rbcs.common.NegativeCache
 import net.woggioni.rbcs.common.RBCS.loadService
 import net.woggioni.rbcs.common.RBCS.processCacheKey
 import net.woggioni.rbcs.common.RBCS.toIntOrNull
@@ -47,6 +53,7 @@ import net.woggioni.rbcs.common.debug
 import net.woggioni.rbcs.common.extractChunk
 import net.woggioni.rbcs.common.trace
 import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.redis.client.NearCache
 import net.woggioni.rbcs.server.redis.client.RedisClient
 import net.woggioni.rbcs.server.redis.client.RedisResponseHandler
 
@@ -54,13 +61,37 @@ class RedisCacheHandler(
     private val client: RedisClient,
     private val keyPrefix: String?,
     private val digestAlgorithm: String?,
-    private val compressionEnabled: Boolean,
-    private val compressionLevel: Int,
+    private val codec: BlockCodec?,
+    private val compressionBlockSize: Int?,
     private val chunkSize: Int,
     private val maxAge: Duration,
+    private val slidingExpiry: Boolean = false,
+    private val nearCache: NearCache? = null,
+    private val streamingPut: Boolean = false,
+    private val metadataKey: Boolean = false,
+    private val negativeCache: NegativeCache? = null,
 ) : CacheHandler() {
     companion object {
         private val log = createLogger<RedisCacheHandler>()
+
+        /**
+         * Minimum number of bytes sent to Redis with a single APPEND when streaming a PUT
+         */
+        private const val MIN_APPEND_SIZE = 0x10000
+
+        /**
+         * Reading from the client is suspended when this many APPENDs are waiting for the one in flight
+         */
+        private const val MAX_PENDING_APPENDS = 4
+
+        /**
+         * Publishes a staging key (KEYS[1]) under the key of the entry (KEYS[2]) with a TTL of ARGV[1] seconds,
+         * also storing the metadata record ARGV[2] under KEYS[3] if present
+         */
+        private const val PUBLISH_SCRIPT = "redis.call('RENAME', KEYS[1], KEYS[2]) " +
+                "redis.call('EXPIRE', KEYS[2], ARGV[1]) " +
+                "if KEYS[3] then redis.call('SET', KEYS[3], ARGV[2], 'EX', ARGV[1]) end " +
+                "return redis.status_reply('OK')"
     }
 
     private val telemetryController by lazy {
@@ -75,48 +106,40 @@ class RedisCacheHandler(
     ) : InProgressRequest {
         private val chunk = ctx.alloc().compositeBuffer()
         private val outputStream = ByteBufOutputStream(chunk).let {
-            if (compressionEnabled) {
-                InflaterOutputStream(it)
+            if (codec != null) {
+                BlockCompression.decompressingStream(it, codec)
             } else {
                 it
             }
         }
 
-        fun processResponse(data: ByteBuf) {
-            if (data.readableBytes() < Int.SIZE_BYTES) {
-                log.debug(ctx) {
-                    "Received empty or corrupt data from Redis for key $key"
-                }
-                sendMessageAndFlush(ctx, CacheValueNotFoundResponse(key))
-                data.release()
-                return
-            }
-
-            val metadataSize = data.readInt()
-            if (data.readableBytes() < metadataSize) {
-                log.debug(ctx) {
-                    "Received incomplete metadata from Redis for key $key"
-                }
-                sendMessageAndFlush(ctx, CacheValueNotFoundResponse(key))
-                data.release()
-                return
-            }
+        private val acc = ctx.alloc().compositeBuffer()
+        private var responseSent = false
+        private var metadataSize: Int? = null
 
-            val metadata = ObjectInputStream(ByteBufInputStream(data)).use {
-                data.retain()
-                it.readObject() as CacheValueMetadata
+        fun write(buf: ByteBuf) {
+            acc.addComponent(true, buf.retain())
+            if (metadataSize == null && acc.readableBytes() >= Int.SIZE_BYTES) {
+                metadataSize = acc.readInt()
             }
-            data.readerIndex(Int.SIZE_BYTES + metadataSize)
-
-            log.trace(ctx) {
-                "Sending response from cache"
+            metadataSize
+                ?.takeIf { !responseSent }
+                ?.takeIf { acc.readableBytes() >= it }
+                ?.let { mSize ->
+                    val metadata = CacheValueMetadataCodec.read(acc, mSize)
+                    log.trace(ctx) {
+                        "Sending response from cache"
+                    }
+                    sendMessageAndFlush(ctx, CacheValueFoundResponse(key, metadata))
+                    responseSent = true
+                }
+            if (responseSent) {
+                acc.readBytes(outputStream, acc.readableBytes())
+                acc.discardReadComponents()
+                if (chunk.readableBytes() >= chunkSize) {
+                    flush(false)
+                }
             }
-            sendMessageAndFlush(ctx, CacheValueFoundResponse(key, metadata))
-
-            // Decompress and stream the remaining payload
-            data.readBytes(outputStream, data.readableBytes())
-            data.release()
-            commit()
         }
 
         private fun flush(last: Boolean) {
@@ -136,6 +159,15 @@ class RedisCacheHandler(
         }
 
         fun commit() {
+            if (!responseSent) {
+                log.debug(ctx) {
+                    "Received empty or corrupt data from Redis for key $key"
+                }
+                rollback()
+                sendMessageAndFlush(ctx, CacheValueNotFoundResponse(key))
+                return
+            }
+            acc.release()
             chunk.retain()
             outputStream.close()
             flush(true)
@@ -143,42 +175,37 @@ class RedisCacheHandler(
         }
 
         fun rollback() {
+            acc.release()
             outputStream.close()
         }
     }
 
     private inner class InProgressPutRequest(
         private val ch: NettyChannel,
-        metadata: CacheValueMetadata,
+        val metadata: CacheValueMetadata,
         val keyString: String,
         val keyBytes: ByteBuf,
         private val alloc: ByteBufAllocator,
     ) : InProgressRequest {
-        private var totalSize = 0
+        var totalSize = 0L
+            private set
         private var tmpFile: FileChannel? = null
         private val accumulator = alloc.compositeBuffer()
         private val stream = ByteBufOutputStream(accumulator).let {
-            if (compressionEnabled) {
-                DeflaterOutputStream(it, Deflater(compressionLevel))
+            if (codec != null) {
+                BlockCompression.compressingStream(it, codec, compressionBlockSize)
             } else {
                 it
             }
         }
 
         init {
-            ByteArrayOutputStream().let { baos ->
-                ObjectOutputStream(baos).use {
-                    it.writeObject(metadata)
-                }
-                val serializedBytes = baos.toByteArray()
-                accumulator.writeInt(serializedBytes.size)
-                accumulator.writeBytes(serializedBytes)
-            }
+            writeMetadata(accumulator, metadata)
         }
 
         fun write(buf: ByteBuf) {
             totalSize += buf.readableBytes()
-            buf.readBytes(stream, buf.readableBytes())
+            BlockCompression.write(stream, buf)
             tmpFile?.let {
                 flushToDisk(it, accumulator)
             }
@@ -225,12 +252,228 @@ class RedisCacheHandler(
         }
 
         fun rollback() {
+            BlockCompression.abort(stream)
             stream.close()
             keyBytes.release()
             tmpFile?.close()
         }
     }
 
+    /**
+     * Writes the value to a staging key as it is received from the client (the first chunk with SET,
+     * the following ones with APPEND), then atomically renames it to the key of the entry and sets its expiry
+     * once the last content is received, so that readers never observe a partially written value.
+     * The staging key shares the hash tag of the entry key, so that both live in the same Redis Cluster slot.
+     * At most one command is in flight at any time (so that chunks are appended in order even when they end up
+     * on different connections), while it is in flight reading from the client is suspended if too much data piles up.
+     */
+    private inner class InProgressStreamingPutRequest(
+        private val ctx: ChannelHandlerContext,
+        private val metadata: CacheValueMetadata,
+        val keyString: String,
+        val keyBytes: ByteArray,
+        private val redisKey: String,
+    ) : InProgressRequest {
+        private val stagingKey = "{$redisKey}:staging:${java.lang.Long.toHexString(Random.nextLong())}"
+        private val appendSize = maxOf(chunkSize, MIN_APPEND_SIZE)
+        private val accumulator = ctx.alloc().compositeBuffer()
+        private val stream = ByteBufOutputStream(accumulator).let {
+            if (codec != null) {
+                BlockCompression.compressingStream(it, codec, compressionBlockSize)
+            } else {
+                it
+            }
+        }
+        private val redisSpan = startRedisSpan(ctx, "SET")
+
+        // All the fields below are only accessed from the event loop of the client channel
+        private var inFlight = false
+        private var started = false
+        private var last = false
+        private var aborted = false
+        private var released = false
+        private var received = 0L
+
+        init {
+            writeMetadata(accumulator, metadata)
+        }
+
+        private fun inEventLoop(action: () -> Unit) {
+            if (ctx.executor().inEventLoop()) {
+                action()
+            } else {
+                ctx.executor().execute(action)
+            }
+        }
+
+        fun write(buf: ByteBuf) {
+            received += buf.readableBytes()
+            BlockCompression.write(stream, buf)
+            if (!inFlight) {
+                if (accumulator.readableBytes() >= appendSize) {
+                    sendChunk()
+                }
+            } else if (accumulator.readableBytes() >= appendSize * MAX_PENDING_APPENDS) {
+                log.trace(ctx) {
+                    "Redis can't keep up with the client, suspending reading"
+                }
+                suspendReading(ctx)
+            }
+        }
+
+        fun commit() {
+            last = true
+            BlockCompression.finish(stream)
+            if (!inFlight) {
+                sendNext()
+            }
+        }
+
+        private fun sendNext() {
+            val readable = accumulator.readableBytes()
+            when {
+                aborted -> discard()
+                readable >= appendSize || (last && readable > 0) -> sendChunk()
+                last -> publish()
+                else -> resumeReading(ctx)
+            }
+        }
+
+        private fun sendChunk() {
+            val chunk = extractChunk(accumulator, ctx.alloc())
+            val cmd = if (started) {
+                log.trace(ctx) {
+                    "Appending ${chunk.readableBytes()} bytes to $stagingKey"
+                }
+                buildRedisCommand(ctx.alloc(), "APPEND", stagingKey, chunk)
+            } else {
+                started = true
+                log.trace(ctx) {
+                    "Creating staging key $stagingKey with ${chunk.readableBytes()} bytes"
+                }
+                // The staging key expires on its own if the upload never completes
+                buildRedisCommand(ctx.alloc(), "SET", stagingKey, chunk, "EX", maxAge.toSeconds().toString())
+            }
+            send(cmd) { response ->
+                if (response is IntegerRedisMessage || response is SimpleStringRedisMessage) {
+                    sendNext()
+                } else {
+                    failed(RedisException("Unexpected response while writing $stagingKey: ${response.javaClass.name}"))
+                }
+            }
+            resumeReading(ctx)
+        }
+
+        private fun release() {
+            if (!released) {
+                released = true
+                stream.close()
+            }
+        }
+
+        private fun publish() {
+            release()
+            log.trace(ctx) {
+                "Renaming $stagingKey to $redisKey"
+            }
+            val expirySeconds = maxAge.toSeconds().toString()
+            val cmd = if (metadataKey) {
+                buildRedisCommand(
+                    ctx.alloc(), "EVAL", PUBLISH_SCRIPT, "3", stagingKey, redisKey, metadataKey(redisKey),
+                    expirySeconds, metadataRecord(ctx.alloc(), metadata, received)
+                )
+            } else {
+                buildRedisCommand(ctx.alloc(), "EVAL", PUBLISH_SCRIPT, "2", stagingKey, redisKey, expirySeconds)
+            }
+            send(cmd) { response ->
+                if (response is SimpleStringRedisMessage) {
+                    log.debug(ctx) {
+                        "Inserted key $keyString into Redis"
+                    }
+                    negativeCache?.invalidate(keyBytes)
+                    telemetryController?.endSpan(redisSpan)
+                    sendMessageAndFlush(ctx, CachePutResponse(keyString))
+                } else {
+                    failed(RedisException("Unexpected response for EVAL $keyString: ${response.javaClass.name}"))
+                }
+            }
+        }
+
+        private fun send(cmd: RedisMessage, onReply: (RedisMessage) -> Unit) {
+            inFlight = true
+            val responseHandler = object : RedisResponseHandler {
+                override fun responseReceived(response: RedisMessage) {
+                    ReferenceCountUtil.release(response)
+                    inEventLoop {
+                        inFlight = false
+                        when {
+                            aborted -> discard()
+                            response is ErrorRedisMessage -> {
+                                failed(RedisException("Redis error while writing $keyString: ${response.content()}"))
+                            }
+
+                            else -> onReply(response)
+                        }
+                    }
+                }
+
+                override fun exceptionCaught(ex: Throwable) {
+                    inEventLoop {
+                        inFlight = false
+                        if (aborted) discard() else failed(ex)
+                    }
+                }
+            }
+            client.sendCommand(keyBytes, cmd, responseHandler).whenComplete { _, ex ->
+                ex?.let(responseHandler::exceptionCaught)
+            }
+        }
+
+        private fun failed(ex: Throwable) {
+            if (aborted) return
+            if (inProgressRequest === this) {
+                inProgressRequest = null
+            }
+            rollback()
+            telemetryController?.endSpan(redisSpan, ex)
+            this@RedisCacheHandler.exceptionCaught(ctx, ex)
+        }
+
+        private fun discard() {
+            if (started) {
+                started = false
+                val responseHandler = object : RedisResponseHandler {
+                    override fun responseReceived(response: RedisMessage) {
+                        ReferenceCountUtil.release(response)
+                    }
+
+                    override fun exceptionCaught(ex: Throwable) {
+                        log.debug(ctx) {
+                            "Failed to delete $stagingKey: ${ex.message}"
+                        }
+                    }
+                }
+                client.sendCommand(keyBytes, buildRedisCommand(ctx.alloc(), "UNLINK", stagingKey), responseHandler)
+                    .whenComplete { _, ex ->
+                        ex?.let(responseHandler::exceptionCaught)
+                    }
+            }
+        }
+
+        fun rollback() {
+            if (aborted) return
+            aborted = true
+            if (!last) {
+                BlockCompression.abort(stream)
+            }
+            release()
+            // Otherwise the staging key is deleted when the reply to the command in flight is received
+            if (!inFlight) {
+                discard()
+            }
+        }
+    }
+
     private var inProgressRequest: InProgressRequest? = null
 
     override fun channelRead0(ctx: ChannelHandlerContext, msg: CacheMessage) {
@@ -249,18 +492,54 @@ class RedisCacheHandler(
         }
         val keyBytes = processCacheKey(msg.key, keyPrefix, digestAlgorithm)
         val keyString = String(keyBytes, StandardCharsets.UTF_8)
-        val redisSpan = telemetryController?.startSpan("GET")?.apply {
-            setAttribute("db.system", "redis")
-            setAttribute("db.operation.name", "GET")
-            val remoteAddr = ctx.channel().remoteAddress()
-            if (remoteAddr is InetSocketAddress) {
-                remoteAddr.hostString?.let {
-                    setAttribute("server.address", it)
-                }
-                setAttribute("server.port", remoteAddr.port.toLong())
+        nearCache?.get(keyBytes)?.let { value ->
+            log.debug(ctx) {
+                "Cache hit for key ${msg.key} on the near cache"
+            }
+            val request = InProgressGetRequest(msg.key, ctx)
+            val buf = Unpooled.wrappedBuffer(value)
+            try {
+                request.write(buf)
+            } finally {
+                buf.release()
+            }
+            request.commit()
+            return
+        }
+        if (negativeCache?.isMissing(keyBytes) == true) {
+            log.debug(ctx) {
+                "Cache miss for key ${msg.key} on the negative cache"
             }
+            sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
+            return
+        }
+        if (msg.isMetadataOnly && metadataKey) {
+            handleMetadataRequest(ctx, msg, keyBytes, keyString)
+            return
         }
+        // Taken before sending the command, so that the value is not kept if the key gets modified in the meantime
+        val stamp = nearCache?.stamp(keyBytes) ?: -1
+        val missStamp = negativeCache?.stamp(keyBytes) ?: 0
+        val redisSpan = startRedisSpan(ctx, "GET")
         val responseHandler = object : RedisResponseHandler {
+            private var getRequest: InProgressGetRequest? = null
+
+            // Copy of the value being received, to be kept in the near cache
+            private var copy: ByteArray? = null
+            private var copied = 0
+
+            private fun fitsNearCache(size: Int) = stamp >= 0 && nearCache != null && size <= nearCache.maxEntrySize
+
+            private fun hit(): InProgressGetRequest {
+                log.debug(ctx) {
+                    "Cache hit for key ${msg.key} on Redis"
+                }
+                return InProgressGetRequest(msg.key, ctx).also {
+                    getRequest = it
+                    inProgressRequest = it
+                }
+            }
+
             override fun responseReceived(response: RedisMessage) {
                 when (response) {
                     is FullBulkStringRedisMessage -> {
@@ -268,17 +547,47 @@ class RedisCacheHandler(
                             log.debug(ctx) {
                                 "Cache miss for key ${msg.key} on Redis"
                             }
+                            negativeCache?.missed(keyBytes, missStamp)
                             telemetryController?.endSpan(redisSpan)
                             sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
                         } else {
-                            log.debug(ctx) {
-                                "Cache hit for key ${msg.key} on Redis"
+                            if (fitsNearCache(response.content().readableBytes())) {
+                                nearCache?.put(keyBytes, stamp, ByteBufUtil.getBytes(response.content()))
                             }
-                            telemetryController?.endSpan(redisSpan)
-                            val getRequest = InProgressGetRequest(msg.key, ctx)
-                            inProgressRequest = getRequest
-                            getRequest.processResponse(response.content())
-                            inProgressRequest = null
+                            val request = hit()
+                            try {
+                                request.write(response.content())
+                            } finally {
+                                response.release()
+                            }
+                            contentCompleted(request)
+                        }
+                    }
+
+                    is BulkStringHeaderRedisMessage -> {
+                        if (fitsNearCache(response.bulkStringLength())) {
+                            copy = ByteArray(response.bulkStringLength())
+                        }
+                        hit()
+                    }
+
+                    is BulkStringRedisContent -> {
+                        copy?.let {
+                            val content = response.content()
+                            content.getBytes(content.readerIndex(), it, copied, content.readableBytes())
+                            copied += content.readableBytes()
+                        }
+                        try {
+                            getRequest?.write(response.content())
+                        } finally {
+                            response.release()
+                        }
+                        if (response is LastBulkStringRedisContent) {
+                            copy?.let {
+                                copy = null
+                                nearCache?.put(keyBytes, stamp, it)
+                            }
+                            getRequest?.let(::contentCompleted)
                         }
                     }
 
@@ -292,37 +601,66 @@ class RedisCacheHandler(
                         log.warn(ctx) {
                             "Unexpected response type from Redis for key ${msg.key}: ${response.javaClass.name}"
                         }
+                        ReferenceCountUtil.release(response)
                         telemetryController?.endSpan(redisSpan)
                         sendMessageAndFlush(ctx, CacheValueNotFoundResponse(msg.key))
                     }
                 }
             }
 
+            private fun contentCompleted(request: InProgressGetRequest) {
+                getRequest = null
+                inProgressRequest = null
+                telemetryController?.endSpan(redisSpan)
+                request.commit()
+            }
+
             override fun exceptionCaught(ex: Throwable) {
                 telemetryController?.endSpan(redisSpan, ex)
                 this@RedisCacheHandler.exceptionCaught(ctx, ex)
             }
         }
-        client.sendCommand(keyBytes, ctx.alloc(), responseHandler).thenAccept { channel ->
-            val remoteAddr = channel.remoteAddress()
-            if (remoteAddr is InetSocketAddress) {
-                remoteAddr.hostString?.let { redisSpan?.setAttribute("server.address", it) }
-                redisSpan?.setAttribute("server.port", remoteAddr.port.toLong())
+        val cmd = if (slidingExpiry) {
+            log.trace(ctx) {
+                "Sending GETEX request for key ${msg.key} to Redis"
             }
+            // Pushes the expiry forward on every hit
+            buildRedisCommand(ctx.alloc(), "GETEX", keyString, "EX", maxAge.toSeconds().toString())
+        } else {
             log.trace(ctx) {
                 "Sending GET request for key ${msg.key} to Redis"
             }
-            val cmd = buildRedisCommand(ctx.alloc(), "GET", keyString)
-            channel.writeAndFlush(cmd)
+            buildRedisCommand(ctx.alloc(), "GET", keyString)
+        }
+        // GETEX modifies the entry, so it can't be served by a replica
+        client.sendCommand(keyBytes, cmd, responseHandler, readOnly = !slidingExpiry).whenComplete { channel, ex ->
+            if (ex != null) {
+                responseHandler.exceptionCaught(ex)
+            } else {
+                val remoteAddr = channel.remoteAddress()
+                if (remoteAddr is InetSocketAddress) {
+                    remoteAddr.hostString?.let { redisSpan?.setAttribute("server.address", it) }
+                    redisSpan?.setAttribute("server.port", remoteAddr.port.toLong())
+                }
+            }
         }
     }
 
     private fun handlePutRequest(ctx: ChannelHandlerContext, msg: CachePutRequest) {
         val keyBytes = processCacheKey(msg.key, keyPrefix, digestAlgorithm)
-        val keyBuf = ctx.alloc().buffer().also {
-            it.writeBytes(keyBytes)
+        val keyString = String(keyBytes, StandardCharsets.UTF_8)
+        // In cluster mode the staging key must share the hash slot of the key, which requires a hash tag
+        inProgressRequest = if (streamingPut && (!client.isCluster || ('{' !in keyString && '}' !in keyString))) {
+            log.debug(ctx) {
+                "Streaming ${msg.key} to Redis"
+            }
+            InProgressStreamingPutRequest(ctx, msg.metadata, msg.key, keyBytes, keyString)
+        } else {
+            val keyBuf = ctx.alloc().buffer().also {
+                it.writeBytes(keyBytes)
+            }
+            InProgressPutRequest(ctx.channel(), msg.metadata, msg.key, keyBuf, ctx.alloc())
         }
-        inProgressRequest = InProgressPutRequest(ctx.channel(), msg.metadata, msg.key, keyBuf, ctx.alloc())
     }
 
     private fun handleCacheContent(ctx: ChannelHandlerContext, msg: CacheContent) {
@@ -335,6 +673,10 @@ class RedisCacheHandler(
                 request.write(msg.content())
             }
 
+            is InProgressStreamingPutRequest -> {
+                request.write(msg.content())
+            }
+
             is InProgressGetRequest -> {
                 msg.release()
             }
@@ -352,6 +694,8 @@ class RedisCacheHandler(
                 request.write(msg.content())
                 val keyBytes = processCacheKey(request.keyString, keyPrefix, digestAlgorithm)
                 val keyString = String(keyBytes, StandardCharsets.UTF_8)
+                // The invalidation message sent by Redis is going to arrive later
+                nearCache?.invalidate(keyBytes)
                 val (payloadSize, payloadSource) = request.commit()
 
                 // Read the entire payload into a single ByteBuf for the SET command
@@ -369,17 +713,7 @@ class RedisCacheHandler(
 
                 val expirySeconds = maxAge.toSeconds().toString()
 
-                val redisSpan = telemetryController?.startSpan("SET")?.apply {
-                    setAttribute("db.system", "redis")
-                    setAttribute("db.operation.name", "SET")
-                    val remoteAddr = ctx.channel().remoteAddress()
-                    if (remoteAddr is InetSocketAddress) {
-                        remoteAddr.hostString?.let {
-                            setAttribute("server.address", it)
-                        }
-                        setAttribute("server.port", remoteAddr.port.toLong())
-                    }
-                }
+                val redisSpan = startRedisSpan(ctx, "SET")
 
                 val responseHandler = object : RedisResponseHandler {
                     override fun responseReceived(response: RedisMessage) {
@@ -388,6 +722,10 @@ class RedisCacheHandler(
                                 log.debug(ctx) {
                                     "Inserted key ${request.keyString} into Redis"
                                 }
+                                negativeCache?.invalidate(keyBytes)
+                                if (metadataKey) {
+                                    writeMetadataKey(ctx, keyBytes, keyString, request.metadata, request.totalSize)
+                                }
                                 telemetryController?.endSpan(redisSpan)
                                 sendMessageAndFlush(ctx, CachePutResponse(request.keyString))
                             }
@@ -413,25 +751,33 @@ class RedisCacheHandler(
                 }
 
                 // Use a ByteBuf key for server selection
-                client.sendCommand(keyBytes, ctx.alloc(), responseHandler).thenAccept { channel ->
-                    val remoteAddr = channel.remoteAddress()
-                    if (remoteAddr is InetSocketAddress) {
-                        remoteAddr.hostString?.let { redisSpan?.setAttribute("server.address", it) }
-                        redisSpan?.setAttribute("server.port", remoteAddr.port.toLong())
-                    }
-                    log.trace(ctx) {
-                        "Sending SET request to Redis"
-                    }
-                    // Build SET key value EX seconds
-                    val cmd = buildRedisSetCommand(ctx.alloc(), keyString, valueBuf, expirySeconds)
-                    channel.writeAndFlush(cmd)
-                }.whenComplete { _, ex ->
+                log.trace(ctx) {
+                    "Sending SET request to Redis"
+                }
+                // Build SET key value EX seconds
+                val cmd = buildRedisSetCommand(ctx.alloc(), keyString, valueBuf, expirySeconds)
+                client.sendCommand(keyBytes, cmd, responseHandler).whenComplete { channel, ex ->
                     if (ex != null) {
-                        valueBuf.release()
-                        this@RedisCacheHandler.exceptionCaught(ctx, ex)
+                        responseHandler.exceptionCaught(ex)
+                    } else {
+                        val remoteAddr = channel.remoteAddress()
+                        if (remoteAddr is InetSocketAddress) {
+                            remoteAddr.hostString?.let { redisSpan?.setAttribute("server.address", it) }
+                            redisSpan?.setAttribute("server.port", remoteAddr.port.toLong())
+                        }
                     }
                 }
             }
+
+            is InProgressStreamingPutRequest -> {
+                inProgressRequest = null
+                log.trace(ctx) {
+                    "Received last chunk of ${msg.content().readableBytes()} bytes for Redis"
+                }
+                request.write(msg.content())
+                nearCache?.invalidate(request.keyBytes)
+                request.commit()
+            }
         }
     }
 
@@ -443,6 +789,11 @@ class RedisCacheHandler(
                 request.rollback()
             }
 
+            is InProgressStreamingPutRequest -> {
+                inProgressRequest = null
+                request.rollback()
+            }
+
             is InProgressGetRequest -> {
                 inProgressRequest = null
                 request.rollback()
@@ -451,10 +802,178 @@ class RedisCacheHandler(
         super.exceptionCaught(ctx, cause)
     }
 
-    private fun buildRedisCommand(alloc: ByteBufAllocator, vararg args: String): ArrayRedisMessage {
+    /**
+     * Key of the small entry holding the size and the metadata of the value stored under [redisKey],
+     * it shares the hash tag of [redisKey] so that both can be written by the same script in cluster mode;
+     * commands on it must be routed with the key of the value, so that it lives on the same server
+     * when keys are sharded on the client side
+     */
+    private fun metadataKey(redisKey: String) = "{$redisKey}:meta"
+
+    private fun metadataRecord(alloc: ByteBufAllocator, metadata: CacheValueMetadata, size: Long) =
+        alloc.buffer().also {
+            it.writeLong(size)
+            writeMetadata(it, metadata)
+        }
+
+    /**
+     * Stores the metadata of a value that has just been written, failures are only logged
+     * since metadata-only requests fall back to fetching the value
+     */
+    private fun writeMetadataKey(
+        ctx: ChannelHandlerContext,
+        keyBytes: ByteArray,
+        redisKey: String,
+        metadata: CacheValueMetadata,
+        size: Long
+    ) {
+        val metaKey = metadataKey(redisKey)
+        val cmd = buildRedisCommand(
+            ctx.alloc(), "SET", metaKey, metadataRecord(ctx.alloc(), metadata, size), "EX", maxAge.toSeconds().toString()
+        )
+        val responseHandler = object : RedisResponseHandler {
+            override fun responseReceived(response: RedisMessage) {
+                if (response is ErrorRedisMessage) {
+                    log.warn(ctx) {
+                        "Failed to write the metadata of $redisKey: ${response.content()}"
+                    }
+                }
+                ReferenceCountUtil.release(response)
+            }
+
+            override fun exceptionCaught(ex: Throwable) {
+                log.warn(ctx) {
+                    "Failed to write the metadata of $redisKey: ${ex.message}"
+                }
+            }
+        }
+        client.sendCommand(keyBytes, cmd, responseHandler).whenComplete { _, ex ->
+            ex?.let(responseHandler::exceptionCaught)
+        }
+    }
+
+    /**
+     * Answers a metadata-only request reading just the metadata key of the value,
+     * falling back to a regular GET if it's missing (e.g. for values written before it was enabled)
+     */
+    private fun handleMetadataRequest(
+        ctx: ChannelHandlerContext,
+        msg: CacheGetRequest,
+        keyBytes: ByteArray,
+        redisKey: String
+    ) {
+        log.debug(ctx) {
+            "Fetching metadata of ${msg.key} from Redis"
+        }
+        val metaKey = metadataKey(redisKey)
+        val redisSpan = startRedisSpan(ctx, "GET")
+        val responseHandler = object : RedisResponseHandler {
+            private var record: CompositeByteBuf? = null
+
+            private fun found(buf: ByteBuf) {
+                val size = buf.readLong()
+                val metadataSize = buf.readInt()
+                val metadata = CacheValueMetadataCodec.read(buf, metadataSize)
+                telemetryController?.endSpan(redisSpan)
+                sendMessage(ctx, CacheValueFoundResponse(msg.key, metadata, size))
+                sendMessageAndFlush(ctx, LastCacheContent(Unpooled.EMPTY_BUFFER))
+            }
+
+            private fun notFound() {
+                log.debug(ctx) {
+                    "No metadata for key ${msg.key} on Redis, fetching the value"
+                }
+                telemetryController?.endSpan(redisSpan)
+                handleGetRequest(ctx, CacheGetRequest(msg.key))
+            }
+
+            override fun responseReceived(response: RedisMessage) {
+                when (response) {
+                    is FullBulkStringRedisMessage -> {
+                        try {
+                            if (response.isNull || response.content().readableBytes() == 0) {
+                                notFound()
+                            } else {
+                                found(response.content())
+                            }
+                        } finally {
+                            response.release()
+                        }
+                    }
+
+                    is BulkStringHeaderRedisMessage -> {
+                        record = ctx.alloc().compositeBuffer()
+                    }
+
+                    is BulkStringRedisContent -> {
+                        record?.addComponent(true, response.content().retain())
+                        response.release()
+                        if (response is LastBulkStringRedisContent) {
+                            record?.let {
+                                record = null
+                                try {
+                                    if (it.isReadable) found(it) else notFound()
+                                } finally {
+                                    it.release()
+                                }
+                            }
+                        }
+                    }
+
+                    is ErrorRedisMessage -> {
+                        exceptionCaught(RedisException("Redis error for GET $metaKey: ${response.content()}"))
+                    }
+
+                    else -> {
+                        ReferenceCountUtil.release(response)
+                        notFound()
+                    }
+                }
+            }
+
+            override fun exceptionCaught(ex: Throwable) {
+                record?.release()
+                record = null
+                telemetryController?.endSpan(redisSpan, ex)
+                this@RedisCacheHandler.exceptionCaught(ctx, ex)
+            }
+        }
+        val cmd = buildRedisCommand(ctx.alloc(), "GET", metaKey)
+        client.sendCommand(keyBytes, cmd, responseHandler, readOnly = true)
+            .whenComplete { _, ex ->
+                ex?.let(responseHandler::exceptionCaught)
+            }
+    }
+
+    /**
+     * Writes the size of the encoded [metadata] followed by the encoded [metadata] itself,
+     * the layout every value stored in Redis starts with
+     */
+    private fun writeMetadata(buf: ByteBuf, metadata: CacheValueMetadata) {
+        buf.writeInt(CacheValueMetadataCodec.encodedSize(metadata))
+        CacheValueMetadataCodec.write(buf, metadata)
+    }
+
+    private fun startRedisSpan(ctx: ChannelHandlerContext, operation: String) =
+        telemetryController?.startSpan(operation)?.apply {
+            setAttribute("db.system", "redis")
+            setAttribute("db.operation.name", operation)
+            val remoteAddr = ctx.channel().remoteAddress()
+            if (remoteAddr is InetSocketAddress) {
+                remoteAddr.hostString?.let {
+                    setAttribute("server.address", it)
+                }
+                setAttribute("server.port", remoteAddr.port.toLong())
+            }
+        }
+
+    /**
+     * Builds a command from [args], that can either be [String]s or [ByteBuf]s (whose ownership is transferred)
+     */
+    private fun buildRedisCommand(alloc: ByteBufAllocator, vararg args: Any): ArrayRedisMessage {
         val children = args.map { arg ->
             FullBulkStringRedisMessage(
-                alloc.buffer(arg.toByteArray(StandardCharsets.UTF_8))
+                if (arg is ByteBuf) arg else alloc.buffer(arg.toString().toByteArray(StandardCharsets.UTF_8))
             )
         }
         return ArrayRedisMessage(children)
@@ -1,9 +1,11 @@
 package net.woggioni.rbcs.server.redis
 
+import java.nio.file.Path
 import java.time.Duration
 import java.time.temporal.ChronoUnit
 import net.woggioni.rbcs.api.CacheProvider
 import net.woggioni.rbcs.api.exception.ConfigurationException
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.HostAndPort
 import net.woggioni.rbcs.common.RBCS
 import net.woggioni.rbcs.common.Xml
@@ -34,12 +36,58 @@ class RedisCacheProvider : CacheProvider<RedisCacheConfiguration> {
         val compressionMode = el.renderAttribute("compression-mode")
             ?.let {
                 when (it) {
-                    "deflate" -> RedisCacheConfiguration.CompressionMode.DEFLATE
-                    else -> RedisCacheConfiguration.CompressionMode.DEFLATE
+                    "zstd" -> CompressionMode.ZSTD
+                    "lz4" -> CompressionMode.LZ4
+                    else -> CompressionMode.DEFLATE
                 }
             }
         val keyPrefix = el.renderAttribute("key-prefix")
         val digestAlgorithm = el.renderAttribute("digest")
+        val compressionBlockSize = el.renderAttribute("compression-block-size")
+            ?.let(Integer::decode)
+        val compressionDictionary = el.renderAttribute("compression-dictionary")
+            ?.let(Path::of)
+        val slidingExpiry = el.renderAttribute("sliding-expiry")
+            ?.let(String::toBoolean)
+            ?: false
+        val mode = el.renderAttribute("mode")
+            ?.let {
+                when (it) {
+                    "cluster" -> RedisCacheConfiguration.Mode.CLUSTER
+                    "sentinel" -> RedisCacheConfiguration.Mode.SENTINEL
+                    else -> RedisCacheConfiguration.Mode.STANDALONE
+                }
+            }
+            ?: RedisCacheConfiguration.Mode.STANDALONE
+        val nearCacheSize = el.renderAttribute("near-cache-size")
+            ?.let(Integer::decode)
+        val streamingPut = el.renderAttribute("streaming-put")
+            ?.let(String::toBoolean)
+            ?: false
+        val metadataKey = el.renderAttribute("metadata-key")
+            ?.let(String::toBoolean)
+            ?: false
+        val negativeCacheTtl = el.renderAttribute("negative-cache-ttl")
+            ?.let(Duration::parse)
+        val negativeCacheSize = el.renderAttribute("negative-cache-size")
+            ?.let(String::toInt)
+            ?: 0x10000
+        val masterName = el.renderAttribute("master-name")
+        if (mode == RedisCacheConfiguration.Mode.SENTINEL && masterName == null) {
+            throw ConfigurationException("master-name attribute is required in sentinel mode")
+        }
+        val readFrom = el.renderAttribute("read-from")
+            ?.let {
+                when (it) {
+                    "replica" -> RedisCacheConfiguration.ReadFrom.REPLICA
+                    "nearest" -> RedisCacheConfiguration.ReadFrom.NEAREST
+                    else -> RedisCacheConfiguration.ReadFrom.PRIMARY
+                }
+            }
+            ?: RedisCacheConfiguration.ReadFrom.PRIMARY
+        if (compressionMode == CompressionMode.DEFLATE && compressionLevel > 9) {
+            throw ConfigurationException("Deflate compression level must be between -1 and 9")
+        }
         for (child in el.asIterable()) {
             when (child.nodeName) {
                 "server" -> {
@@ -52,7 +100,16 @@ class RedisCacheProvider : CacheProvider<RedisCacheConfiguration> {
                         ?.let(Long::toInt)
                         ?: 10000
                     val password = child.renderAttribute("password")
-                    servers.add(RedisCacheConfiguration.Server(HostAndPort(host, port), connectionTimeout, maxConnections, password))
+                    val pipelinedConnections = child.renderAttribute("pipelined-connections")?.toInt()
+                    servers.add(
+                        RedisCacheConfiguration.Server(
+                            HostAndPort(host, port),
+                            connectionTimeout,
+                            maxConnections,
+                            password,
+                            pipelinedConnections
+                        )
+                    )
                 }
             }
         }
@@ -62,7 +119,18 @@ class RedisCacheProvider : CacheProvider<RedisCacheConfiguration> {
             keyPrefix,
             digestAlgorithm,
             compressionMode,
-            compressionLevel
+            compressionLevel,
+            compressionBlockSize,
+            compressionDictionary,
+            slidingExpiry,
+            mode,
+            nearCacheSize,
+            streamingPut,
+            masterName,
+            readFrom,
+            metadataKey,
+            negativeCacheTtl,
+            negativeCacheSize,
         )
     }
 
@@ -82,6 +150,9 @@ class RedisCacheProvider : CacheProvider<RedisCacheConfiguration> {
                     server.password?.let { password ->
                         attr("password", password)
                     }
+                    server.pipelinedConnections?.let {
+                        attr("pipelined-connections", it.toString())
+                    }
                 }
 
             }
@@ -95,11 +166,46 @@ class RedisCacheProvider : CacheProvider<RedisCacheConfiguration> {
             compressionMode?.let { compressionMode ->
                 attr(
                     "compression-mode", when (compressionMode) {
-                        RedisCacheConfiguration.CompressionMode.DEFLATE -> "deflate"
+                        CompressionMode.DEFLATE -> "deflate"
+                        CompressionMode.ZSTD -> "zstd"
+                        CompressionMode.LZ4 -> "lz4"
                     }
                 )
             }
             attr("compression-level", compressionLevel.toString())
+            compressionBlockSize?.let {
+                attr("compression-block-size", it.toString())
+            }
+            compressionDictionary?.let {
+                attr("compression-dictionary", it.toString())
+            }
+            attr("sliding-expiry", slidingExpiry.toString())
+            attr(
+                "mode", when (mode) {
+                    RedisCacheConfiguration.Mode.STANDALONE -> "standalone"
+                    RedisCacheConfiguration.Mode.CLUSTER -> "cluster"
+                    RedisCacheConfiguration.Mode.SENTINEL -> "sentinel"
+                }
+            )
+            nearCacheSize?.let {
+                attr("near-cache-size", it.toString())
+            }
+            attr("streaming-put", streamingPut.toString())
+            attr("metadata-key", metadataKey.toString())
+            negativeCacheTtl?.let {
+                attr("negative-cache-ttl", it.toString())
+            }
+            attr("negative-cache-size", negativeCacheSize.toString())
+            masterName?.let {
+                attr("master-name", it)
+            }
+            attr(
+                "read-from", when (readFrom) {
+                    RedisCacheConfiguration.ReadFrom.PRIMARY -> "primary"
+                    RedisCacheConfiguration.ReadFrom.REPLICA -> "replica"
+                    RedisCacheConfiguration.ReadFrom.NEAREST -> "nearest"
+                }
+            )
         }
         result
     }
@@ -0,0 +1,80 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.util.concurrent.atomic.AtomicBoolean
+import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import net.woggioni.rbcs.common.HostAndPort
+
+/**
+ * Slot map of a Redis Cluster, shared by all the [RedisClient]s of a cache. It starts empty (commands are sent
+ * to the seed nodes, that redirect them to the right node) and gets refreshed in the background
+ * with `CLUSTER SLOTS` whenever a command is redirected or addresses an unknown slot.
+ */
+class ClusterSlots(private val seeds: List<HostAndPort>) {
+
+    // Written with racy single-slot updates by MOVED redirects, replaced as a whole on refresh
+    @Volatile
+    private var owners = arrayOfNulls<HostAndPort>(HashSlot.SLOTS)
+
+    private val refreshing = AtomicBoolean(false)
+
+    /**
+     * Nodes that can be asked for the topology of the cluster
+     */
+    @Volatile
+    var nodes: List<HostAndPort> = seeds
+        private set
+
+    /**
+     * @return the primary node serving [slot], if known
+     */
+    operator fun get(slot: Int): HostAndPort? = owners[slot]
+
+    /**
+     * Records the new owner of [slot] after a MOVED redirect
+     */
+    fun moved(slot: Int, node: HostAndPort) {
+        owners[slot] = node
+    }
+
+    /**
+     * @return true if the caller should refresh the slot map, false if a refresh is already in progress
+     */
+    fun startRefresh() = refreshing.compareAndSet(false, true)
+
+    fun refreshFailed() {
+        refreshing.set(false)
+    }
+
+    /**
+     * Replaces the slot map with the one described by a `CLUSTER SLOTS` [reply] received from [source]
+     */
+    fun update(source: HostAndPort, reply: ArrayRedisMessage) {
+        try {
+            val newOwners = arrayOfNulls<HostAndPort>(HashSlot.SLOTS)
+            val primaries = LinkedHashSet<HostAndPort>()
+            for (range in reply.children()) {
+                val fields = (range as? ArrayRedisMessage)?.children() ?: continue
+                if (fields.size < 3) continue
+                val start = (fields[0] as IntegerRedisMessage).value().toInt()
+                val end = (fields[1] as IntegerRedisMessage).value().toInt()
+                val primary = fields[2] as ArrayRedisMessage
+                val host = (primary.children()[0] as FullBulkStringRedisMessage).content()
+                    .toString(Charsets.UTF_8)
+                    // An empty host stands for the node that sent the reply
+                    .takeUnless { it.isEmpty() || it == "?" } ?: source.host
+                val port = (primary.children()[1] as IntegerRedisMessage).value().toInt()
+                val node = HostAndPort(host, port)
+                primaries.add(node)
+                for (slot in start..end) {
+                    newOwners[slot] = node
+                }
+            }
+            owners = newOwners
+            nodes = (primaries + seeds).toList()
+        } finally {
+            refreshing.set(false)
+        }
+    }
+}
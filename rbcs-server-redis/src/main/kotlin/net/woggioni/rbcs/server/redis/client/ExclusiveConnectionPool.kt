@@ -0,0 +1,159 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import io.netty.util.concurrent.Future as NettyFuture
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPipeline
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.channel.pool.AbstractChannelPoolHandler
+import io.netty.channel.pool.FixedChannelPool
+import io.netty.handler.codec.redis.ErrorRedisMessage
+import io.netty.handler.codec.redis.RedisMessage
+import io.netty.util.ReferenceCountUtil
+import io.netty.util.concurrent.GenericFutureListener
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.trace
+import net.woggioni.rbcs.server.redis.RedisCacheHandler
+
+/**
+ * Every command takes exclusive ownership of a connection until its reply has been received
+ */
+class ExclusiveConnectionPool(
+    bootstrap: Bootstrap,
+    password: String?,
+    maxConnections: Int,
+) : RedisConnectionPool {
+
+    private companion object {
+        private val log = createLogger<RedisCacheHandler>()
+    }
+
+    private val pool = FixedChannelPool(bootstrap, object : AbstractChannelPoolHandler() {
+
+        override fun channelCreated(ch: Channel) {
+            val pipeline: ChannelPipeline = ch.pipeline()
+            RedisClient.initPipeline(pipeline)
+            password?.let { password ->
+                // Send AUTH command synchronously on new connections
+                val authCmd = RedisClient.buildCommand("AUTH", password)
+                ch.writeAndFlush(authCmd).addListener(ChannelFutureListener { future ->
+                    if (!future.isSuccess) {
+                        ch.close()
+                    }
+                })
+                // Install a one-shot handler to consume the AUTH response
+                pipeline.addLast(object : SimpleChannelInboundHandler<RedisMessage>() {
+                    override fun channelRead0(ctx: ChannelHandlerContext, msg: RedisMessage) {
+                        when (msg) {
+                            is ErrorRedisMessage -> {
+                                ctx.close()
+                            }
+                            else -> {
+                                // AUTH succeeded, remove this one-shot handler
+                                ctx.pipeline().remove(this)
+                            }
+                        }
+                    }
+                })
+            }
+        }
+    }, maxConnections)
+
+    override fun sendCommand(
+        command: RedisMessage,
+        responseHandler: RedisResponseHandler,
+        asking: Boolean
+    ): CompletableFuture<Channel> {
+        val response = CompletableFuture<Channel>()
+        pool.acquire().addListener(object : GenericFutureListener<NettyFuture<Channel>> {
+            override fun operationComplete(channelFuture: NettyFuture<Channel>) {
+                if (channelFuture.isSuccess) {
+                    val channel = channelFuture.now
+                    var connectionClosedByTheRemoteServer = true
+                    val closeCallback = {
+                        if (connectionClosedByTheRemoteServer) {
+                            val ex = IOException("The Redis server closed the connection")
+                            val completed = response.completeExceptionally(ex)
+                            if (!completed) responseHandler.exceptionCaught(ex)
+                        }
+                    }
+                    val closeListener = ChannelFutureListener {
+                        closeCallback()
+                    }
+                    channel.closeFuture().addListener(closeListener)
+                    val pipeline = channel.pipeline()
+                    val handler = object : SimpleChannelInboundHandler<RedisMessage>(false) {
+                        private var discard = asking
+
+                        override fun handlerAdded(ctx: ChannelHandlerContext) {
+                            channel.closeFuture().removeListener(closeListener)
+                        }
+
+                        override fun channelRead0(
+                            ctx: ChannelHandlerContext,
+                            msg: RedisMessage,
+                        ) {
+                            if (discard) {
+                                // Reply to ASKING
+                                discard = false
+                                ReferenceCountUtil.release(msg)
+                                return
+                            }
+                            if (RedisClient.isLastPart(msg)) {
+                                pipeline.remove(this)
+                                pool.release(channel)
+                                log.trace(channel) {
+                                    "Channel released"
+                                }
+                            }
+                            responseHandler.responseReceived(msg)
+                        }
+
+                        override fun channelInactive(ctx: ChannelHandlerContext) {
+                            closeCallback()
+                            ctx.fireChannelInactive()
+                        }
+
+                        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+                            connectionClosedByTheRemoteServer = false
+                            pipeline.remove(this)
+                            ctx.close()
+                            pool.release(channel)
+                            log.trace(channel) {
+                                "Channel released after exception"
+                            }
+                            responseHandler.exceptionCaught(cause)
+                        }
+                    }
+
+                    channel.pipeline().addLast(handler)
+                    if (asking) {
+                        channel.write(RedisClient.buildCommand("ASKING"))
+                    }
+                    channel.writeAndFlush(command)
+                    response.complete(channel)
+                } else {
+                    ReferenceCountUtil.release(command)
+                    response.completeExceptionally(channelFuture.cause())
+                }
+            }
+        })
+        return response
+    }
+
+    override fun close() = object : CompletableFuture<Void>() {
+        init {
+            pool.closeAsync().addListener {
+                if (it.isSuccess) {
+                    complete(null)
+                } else {
+                    completeExceptionally(it.cause())
+                }
+            }
+        }
+    }
+}
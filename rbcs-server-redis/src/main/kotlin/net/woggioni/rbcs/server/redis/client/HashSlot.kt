@@ -0,0 +1,45 @@
+package net.woggioni.rbcs.server.redis.client
+
+/**
+ * Maps keys to the hash slots of a Redis Cluster, the slot of a key is the CRC16 (XMODEM) of the key modulo 16384.
+ * If the key contains a non-empty hash tag (the substring between the first `{` and the following `}`)
+ * only the hash tag is hashed, so that related keys can be forced to the same slot.
+ */
+object HashSlot {
+
+    const val SLOTS = 16384
+
+    private val TABLE = IntArray(256) { index ->
+        var crc = index shl 8
+        repeat(8) {
+            crc = if (crc and 0x8000 != 0) {
+                (crc shl 1) xor 0x1021
+            } else {
+                crc shl 1
+            }
+        }
+        crc and 0xffff
+    }
+
+    fun crc16(bytes: ByteArray, from: Int = 0, to: Int = bytes.size): Int {
+        var crc = 0
+        for (i in from until to) {
+            crc = ((crc shl 8) xor TABLE[((crc ushr 8) xor bytes[i].toInt()) and 0xff]) and 0xffff
+        }
+        return crc
+    }
+
+    fun of(key: ByteArray): Int {
+        val open = key.indexOf('{'.code.toByte())
+        if (open >= 0) {
+            var close = open + 1
+            while (close < key.size && key[close] != '}'.code.toByte()) {
+                ++close
+            }
+            if (close < key.size && close > open + 1) {
+                return crc16(key, open + 1, close) and (SLOTS - 1)
+            }
+        }
+        return crc16(key) and (SLOTS - 1)
+    }
+}
@@ -0,0 +1,198 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import io.netty.bootstrap.Bootstrap
+import io.netty.buffer.ByteBufUtil
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.ErrorRedisMessage
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import io.netty.handler.codec.redis.RedisMessage
+import io.netty.handler.codec.redis.SimpleStringRedisMessage
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.redis.RedisCacheHandler
+import net.woggioni.rbcs.server.redis.RedisException
+import net.woggioni.rbcs.server.redis.client.RedisClient.Companion.buildCommand
+
+/**
+ * Evicts from [nearCache] the keys modified on a Redis server, using client side caching in broadcasting mode:
+ * a connection subscribed to the `__redis__:invalidate` channel receives the invalidation messages
+ * of a second connection that enabled `CLIENT TRACKING` and redirects them to the first one.
+ * Netty's Redis codec only speaks RESP2, hence the redirection instead of RESP3 push messages.
+ * When either connection is lost the near cache is cleared (since invalidation messages might have been missed)
+ * and both connections are opened again.
+ */
+class InvalidationListener(
+    private val bootstrap: Bootstrap,
+    private val password: String?,
+    private val nearCache: NearCache,
+) : AutoCloseable {
+
+    private companion object {
+        private val log = createLogger<RedisCacheHandler>()
+
+        private const val INVALIDATION_CHANNEL = "__redis__:invalidate"
+        private const val RECONNECT_DELAY_SECONDS = 1L
+    }
+
+    /**
+     * Whether invalidation messages are currently being received
+     */
+    @Volatile
+    var ready = false
+        private set
+
+    @Volatile
+    private var closed = false
+
+    // Incremented every time the connections are lost, so that stale connections can't affect the current ones
+    private val attempt = AtomicInteger(0)
+
+    private val channels = CopyOnWriteArrayList<Channel>()
+
+    fun start() {
+        connect(attempt.get())
+    }
+
+    private fun connect(id: Int) {
+        if (!closed) {
+            open(id, Subscriber(id))
+        }
+    }
+
+    private fun open(id: Int, handler: ChannelHandler) {
+        if (attempt.get() != id) return
+        val connectFuture = bootstrap.clone().handler(object : ChannelInitializer<Channel>() {
+            override fun initChannel(ch: Channel) {
+                RedisClient.initPipeline(ch.pipeline())
+                ch.pipeline().addLast(handler)
+            }
+        }).connect()
+        channels.add(connectFuture.channel())
+        connectFuture.addListener {
+            if (!it.isSuccess) {
+                failed(id, it.cause())
+            }
+        }
+    }
+
+    private fun failed(id: Int, cause: Throwable) {
+        if (!attempt.compareAndSet(id, id + 1)) return
+        ready = false
+        nearCache.clear()
+        channels.forEach(Channel::close)
+        channels.clear()
+        if (!closed) {
+            log.warn {
+                "Not receiving invalidation messages from Redis (${cause.message}), the near cache has been cleared"
+            }
+            bootstrap.config().group().schedule({
+                connect(id + 1)
+            }, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS)
+        }
+    }
+
+    private abstract inner class Connection(protected val id: Int) : SimpleChannelInboundHandler<RedisMessage>() {
+
+        abstract val commands: List<RedisMessage>
+
+        abstract fun replyReceived(ctx: ChannelHandlerContext, msg: RedisMessage)
+
+        override fun channelActive(ctx: ChannelHandlerContext) {
+            password?.let {
+                ctx.write(buildCommand("AUTH", it))
+            }
+            commands.forEach(ctx::write)
+            ctx.flush()
+            ctx.fireChannelActive()
+        }
+
+        override fun channelRead0(ctx: ChannelHandlerContext, msg: RedisMessage) {
+            if (msg is ErrorRedisMessage) {
+                failed(id, RedisException("Redis error while enabling client side caching: ${msg.content()}"))
+            } else {
+                replyReceived(ctx, msg)
+            }
+        }
+
+        override fun channelInactive(ctx: ChannelHandlerContext) {
+            failed(id, IOException("The Redis server closed the connection"))
+            ctx.fireChannelInactive()
+        }
+
+        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+            failed(id, cause)
+            ctx.close()
+        }
+    }
+
+    private inner class Subscriber(id: Int) : Connection(id) {
+        private var clientId: Long? = null
+
+        override val commands = listOf(buildCommand("CLIENT", "ID"), buildCommand("SUBSCRIBE", INVALIDATION_CHANNEL))
+
+        override fun replyReceived(ctx: ChannelHandlerContext, msg: RedisMessage) {
+            if (msg is IntegerRedisMessage) {
+                clientId = msg.value()
+            } else if (msg is ArrayRedisMessage && !msg.isNull) {
+                val children = msg.children()
+                val kind = (children.firstOrNull() as? FullBulkStringRedisMessage)?.content()?.toString(Charsets.UTF_8)
+                when (kind) {
+                    "subscribe" -> clientId?.let {
+                        open(id, Tracker(id, it))
+                    }
+
+                    "message" -> children.getOrNull(2)?.let(::invalidate)
+                }
+            }
+        }
+
+        private fun invalidate(keys: RedisMessage) {
+            if (keys is ArrayRedisMessage && !keys.isNull) {
+                for (key in keys.children()) {
+                    if (key is FullBulkStringRedisMessage && !key.isNull) {
+                        nearCache.invalidate(ByteBufUtil.getBytes(key.content()))
+                    }
+                }
+            } else {
+                // Sent when the database gets flushed
+                nearCache.clear()
+            }
+        }
+    }
+
+    private inner class Tracker(id: Int, clientId: Long) : Connection(id) {
+        private var replies = 0
+
+        override val commands = listOf(buildCommand("CLIENT", "TRACKING", "ON", "REDIRECT", clientId.toString(), "BCAST"))
+
+        override fun replyReceived(ctx: ChannelHandlerContext, msg: RedisMessage) {
+            // The last reply is the one to CLIENT TRACKING, the one before (if any) is for AUTH
+            if (msg is SimpleStringRedisMessage && ++replies == (if (password == null) 1 else 2)) {
+                log.debug(ctx) {
+                    "Receiving invalidation messages from ${ctx.channel().remoteAddress()}"
+                }
+                ready = true
+                nearCache.trackingStarted()
+            }
+        }
+    }
+
+    override fun close() {
+        closed = true
+        attempt.incrementAndGet()
+        ready = false
+        channels.forEach(Channel::close)
+        channels.clear()
+    }
+}
@@ -0,0 +1,127 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import net.woggioni.rbcs.common.HostAndPort
+
+/**
+ * Bounded in-memory copy of recently read Redis values, kept coherent with the servers by an [InvalidationListener]
+ * per server. Values are only stored while every listener is receiving invalidation messages,
+ * and only if no invalidation that could concern their key happened since the read was sent
+ * (tracked through the [stamp] taken before sending it).
+ */
+class NearCache(private val capacity: Long) {
+
+    private companion object {
+        private const val STRIPES = 1024
+    }
+
+    /**
+     * Values larger than this are never stored, so that a single value can't flush the whole cache
+     */
+    val maxEntrySize = capacity / 16
+
+    private val entries = LinkedHashMap<ByteBuffer, ByteArray>(16, 0.75f, true)
+    private var size = 0L
+
+    // Bumped whenever the whole cache is invalidated or the set of listeners changes
+    private val epoch = AtomicLong()
+
+    // Bumped whenever one of the keys mapped to the stripe is invalidated
+    private val stripes = AtomicIntegerArray(STRIPES)
+
+    private val listeners = ConcurrentHashMap<HostAndPort, InvalidationListener>()
+
+    private fun stripe(key: ByteArray) = Math.floorMod(key.contentHashCode(), STRIPES)
+
+    private fun currentStamp(key: ByteArray) = (epoch.get() shl 32) or (stripes[stripe(key)].toLong() and 0xffffffffL)
+
+    private val ready: Boolean
+        get() = listeners.values.all(InvalidationListener::ready)
+
+    /**
+     * Starts listening for the invalidation messages of the server at [endpoint], if not done already
+     */
+    fun listen(endpoint: HostAndPort, listenerFactory: () -> InvalidationListener) {
+        listeners.computeIfAbsent(endpoint) {
+            listenerFactory().also {
+                epoch.incrementAndGet()
+                it.start()
+            }
+        }
+    }
+
+    /**
+     * Stops listening for the invalidation messages of the servers that are not part of [endpoints] anymore
+     * (e.g. a primary replaced by a failover), that would otherwise prevent any value from being stored
+     */
+    fun retain(endpoints: Collection<HostAndPort>) {
+        for ((endpoint, listener) in listeners) {
+            if (endpoint !in endpoints && listeners.remove(endpoint, listener)) {
+                listener.close()
+                // Writes that happened during the topology change might have gone unnoticed
+                clear()
+            }
+        }
+    }
+
+    /**
+     * @return a stamp to be passed to [put] when the value of [key], read after this call, is received,
+     * or -1 if the value can't be stored because invalidation messages are not being received
+     */
+    fun stamp(key: ByteArray) = if (ready) currentStamp(key) else -1
+
+    fun get(key: ByteArray): ByteArray? = synchronized(entries) {
+        entries[ByteBuffer.wrap(key)]
+    }
+
+    fun put(key: ByteArray, stamp: Long, value: ByteArray) {
+        if (stamp < 0 || value.size > maxEntrySize) return
+        synchronized(entries) {
+            // Checked while holding the lock, so that an invalidation either rejects the value or removes it
+            if (!ready || stamp != currentStamp(key)) return
+            entries.put(ByteBuffer.wrap(key), value)?.let {
+                size -= it.size
+            }
+            size += value.size
+            // Evicts the least recently used values
+            val iterator = entries.values.iterator()
+            while (size > capacity && iterator.hasNext()) {
+                size -= iterator.next().size
+                iterator.remove()
+            }
+        }
+    }
+
+    fun invalidate(key: ByteArray) {
+        stripes.incrementAndGet(stripe(key))
+        synchronized(entries) {
+            entries.remove(ByteBuffer.wrap(key))?.let {
+                size -= it.size
+            }
+        }
+    }
+
+    fun clear() {
+        epoch.incrementAndGet()
+        synchronized(entries) {
+            entries.clear()
+            size = 0
+        }
+    }
+
+    /**
+     * Called by a listener that started receiving invalidation messages
+     */
+    internal fun trackingStarted() {
+        epoch.incrementAndGet()
+    }
+
+    fun close() {
+        listeners.values.forEach(InvalidationListener::close)
+        listeners.clear()
+        clear()
+    }
+}
@@ -0,0 +1,87 @@
+package net.woggioni.rbcs.server.redis.client
+
+import io.netty.buffer.CompositeByteBuf
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToMessageDecoder
+import io.netty.handler.codec.redis.ArrayHeaderRedisMessage
+import io.netty.handler.codec.redis.BulkStringHeaderRedisMessage
+import io.netty.handler.codec.redis.BulkStringRedisContent
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.LastBulkStringRedisContent
+import io.netty.handler.codec.redis.RedisMessage
+import io.netty.util.ReferenceCountUtil
+
+/**
+ * Aggregates the bulk strings that are elements of an array into [FullBulkStringRedisMessage]s
+ * (so that [io.netty.handler.codec.redis.RedisArrayAggregator] can assemble the array), while top level bulk strings
+ * are passed through as a [BulkStringHeaderRedisMessage] followed by [BulkStringRedisContent]s,
+ * so that large values can be processed while they are still being received
+ */
+internal class NestedBulkStringAggregator : MessageToMessageDecoder<RedisMessage>() {
+
+    // Number of elements still expected by the arrays being decoded, the innermost one last
+    private val remaining = ArrayDeque<Long>()
+    private var current: CompositeByteBuf? = null
+
+    override fun decode(ctx: ChannelHandlerContext, msg: RedisMessage, out: MutableList<Any>) {
+        if (remaining.isEmpty()) {
+            if (msg is ArrayHeaderRedisMessage && msg.length() > 0) {
+                remaining.addLast(msg.length())
+            }
+            out.add(ReferenceCountUtil.retain(msg))
+            return
+        }
+        when (msg) {
+            is ArrayHeaderRedisMessage -> {
+                out.add(msg)
+                if (msg.length() > 0) {
+                    remaining.addLast(msg.length())
+                } else {
+                    elementCompleted()
+                }
+            }
+
+            is FullBulkStringRedisMessage -> {
+                out.add(msg.retain())
+                elementCompleted()
+            }
+
+            is BulkStringHeaderRedisMessage -> {
+                current = ctx.alloc().compositeBuffer()
+            }
+
+            is BulkStringRedisContent -> {
+                val buffer = current!!
+                buffer.addComponent(true, msg.content().retain())
+                if (msg is LastBulkStringRedisContent) {
+                    current = null
+                    out.add(FullBulkStringRedisMessage(buffer))
+                    elementCompleted()
+                }
+            }
+
+            else -> {
+                out.add(ReferenceCountUtil.retain(msg))
+                elementCompleted()
+            }
+        }
+    }
+
+    private fun elementCompleted() {
+        // A completed array is in turn a completed element of the enclosing one
+        while (remaining.isNotEmpty()) {
+            val left = remaining.removeLast() - 1
+            if (left > 0) {
+                remaining.addLast(left)
+                break
+            }
+        }
+    }
+
+    override fun channelInactive(ctx: ChannelHandlerContext) {
+        current?.release()
+        current = null
+        remaining.clear()
+        super.channelInactive(ctx)
+    }
+}
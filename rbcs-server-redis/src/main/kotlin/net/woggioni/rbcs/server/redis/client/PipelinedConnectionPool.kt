@@ -0,0 +1,219 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.SimpleChannelInboundHandler
+import io.netty.handler.codec.redis.ErrorRedisMessage
+import io.netty.handler.codec.redis.RedisMessage
+import io.netty.util.ReferenceCountUtil
+import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.redis.RedisCacheHandler
+
+/**
+ * Keeps [connections] long-lived connections open to the server and pipelines many concurrent commands on each of them.
+ * Redis replies to the commands sent on a connection in the same order, so every connection keeps a FIFO
+ * of the [RedisResponseHandler]s waiting for a reply; the commands are written as soon as they are issued
+ * and the connection is flushed once per event loop tick.
+ */
+class PipelinedConnectionPool(
+    bootstrap: Bootstrap,
+    private val password: String?,
+    private val connections: Int,
+) : RedisConnectionPool {
+
+    private companion object {
+        private val log = createLogger<RedisCacheHandler>()
+
+        private val DISCARD = object : RedisResponseHandler {
+            override fun responseReceived(response: RedisMessage) {
+                ReferenceCountUtil.release(response)
+            }
+
+            override fun exceptionCaught(ex: Throwable) {}
+        }
+    }
+
+    private val bootstrap = bootstrap.clone().handler(object : ChannelInitializer<Channel>() {
+        override fun initChannel(ch: Channel) {
+            RedisClient.initPipeline(ch.pipeline())
+            ch.pipeline().addLast(Connection(ch))
+        }
+    })
+
+    private val slots = AtomicReferenceArray<CompletableFuture<Connection>?>(connections)
+    private val counter = AtomicInteger(0)
+
+    @Volatile
+    private var closed = false
+
+    private inner class Connection(private val channel: Channel) : SimpleChannelInboundHandler<RedisMessage>(false) {
+
+        // All the fields below are only accessed from the channel's event loop
+        private val pending = ArrayDeque<RedisResponseHandler>()
+        private var flushScheduled = false
+
+        val isActive: Boolean
+            get() = channel.isActive
+
+        fun close() = channel.close()
+
+        fun send(
+            command: RedisMessage,
+            responseHandler: RedisResponseHandler,
+            asking: Boolean = false
+        ): CompletableFuture<Channel> {
+            val result = CompletableFuture<Channel>()
+            val eventLoop = channel.eventLoop()
+            val action = {
+                if (!channel.isActive) {
+                    ReferenceCountUtil.release(command)
+                    result.completeExceptionally(IOException("The connection to the Redis server is closed"))
+                } else {
+                    if (asking) {
+                        pending.addLast(DISCARD)
+                        channel.write(RedisClient.buildCommand("ASKING"), channel.voidPromise())
+                    }
+                    pending.addLast(responseHandler)
+                    channel.write(command, channel.voidPromise())
+                    if (!flushScheduled) {
+                        flushScheduled = true
+                        eventLoop.execute {
+                            flushScheduled = false
+                            channel.flush()
+                        }
+                    }
+                    result.complete(channel)
+                }
+            }
+            if (eventLoop.inEventLoop()) {
+                action()
+            } else {
+                eventLoop.execute(action)
+            }
+            return result
+        }
+
+        override fun channelRead0(ctx: ChannelHandlerContext, msg: RedisMessage) {
+            val handler = if (RedisClient.isLastPart(msg)) pending.removeFirstOrNull() else pending.firstOrNull()
+            if (handler == null) {
+                log.warn(ctx) {
+                    "Received a reply from Redis with no pending command"
+                }
+                ReferenceCountUtil.release(msg)
+            } else {
+                handler.responseReceived(msg)
+            }
+        }
+
+        override fun channelInactive(ctx: ChannelHandlerContext) {
+            failAll(IOException("The Redis server closed the connection"))
+            ctx.fireChannelInactive()
+        }
+
+        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
+            failAll(cause)
+            ctx.close()
+        }
+
+        private fun failAll(cause: Throwable) {
+            val handlers = pending.toList()
+            pending.clear()
+            handlers.forEach {
+                it.exceptionCaught(cause)
+            }
+        }
+    }
+
+    private fun connection(): CompletableFuture<Connection> {
+        val slot = Math.floorMod(counter.getAndIncrement(), connections)
+        while (true) {
+            val existing = slots.get(slot)
+            if (existing != null && !(existing.isDone && (existing.isCompletedExceptionally || !existing.join().isActive))) {
+                return existing
+            }
+            val fresh = CompletableFuture<Connection>()
+            if (slots.compareAndSet(slot, existing, fresh)) {
+                val connectFuture = bootstrap.connect()
+                connectFuture.addListener {
+                    val channel = connectFuture.channel()
+                    if (it.isSuccess) {
+                        log.debug(channel) {
+                            "Opened pipelined connection to ${channel.remoteAddress()}"
+                        }
+                        if (closed) channel.close()
+                        val connection = channel.pipeline().get(Connection::class.java)
+                        password?.let { password ->
+                            // The AUTH reply is the first one received on the connection
+                            connection.send(RedisClient.buildCommand("AUTH", password), object : RedisResponseHandler {
+                                override fun responseReceived(response: RedisMessage) {
+                                    if (response is ErrorRedisMessage) {
+                                        log.warn(channel) {
+                                            "Redis authentication failed: ${response.content()}"
+                                        }
+                                        channel.close()
+                                    }
+                                    ReferenceCountUtil.release(response)
+                                }
+
+                                override fun exceptionCaught(ex: Throwable) {}
+                            })
+                        }
+                        fresh.complete(connection)
+                    } else {
+                        fresh.completeExceptionally(it.cause())
+                    }
+                }
+                return fresh
+            }
+        }
+    }
+
+    override fun sendCommand(
+        command: RedisMessage,
+        responseHandler: RedisResponseHandler,
+        asking: Boolean
+    ): CompletableFuture<Channel> {
+        if (closed) {
+            ReferenceCountUtil.release(command)
+            return CompletableFuture.failedFuture(IOException("The connection pool is closed"))
+        }
+        return connection().handle { connection, ex ->
+            connection to ex
+        }.thenCompose { (connection, ex) ->
+            if (ex != null) {
+                ReferenceCountUtil.release(command)
+                CompletableFuture.failedFuture(ex)
+            } else {
+                connection.send(command, responseHandler, asking)
+            }
+        }
+    }
+
+    override fun close(): CompletableFuture<Void> {
+        closed = true
+        val closeFutures = (0 until connections).mapNotNull { slots.getAndSet(it, null) }.map { connection ->
+            connection.handle { conn, _ ->
+                conn
+            }.thenCompose { conn ->
+                val result = CompletableFuture<Void>()
+                if (conn == null) {
+                    result.complete(null)
+                } else {
+                    conn.close().addListener {
+                        result.complete(null)
+                    }
+                }
+                result
+            }
+        }
+        return CompletableFuture.allOf(*closeFutures.toTypedArray())
+    }
+}
@@ -1,195 +1,392 @@
 package net.woggioni.rbcs.server.redis.client
 
-import java.io.IOException
 import java.net.InetSocketAddress
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import io.netty.util.concurrent.Future as NettyFuture
 import io.netty.bootstrap.Bootstrap
-import io.netty.buffer.ByteBufAllocator
 import io.netty.buffer.Unpooled
 import io.netty.channel.Channel
 import io.netty.channel.ChannelFactory
-import io.netty.channel.ChannelFutureListener
-import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelOption
 import io.netty.channel.ChannelPipeline
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.SimpleChannelInboundHandler
-import io.netty.channel.pool.AbstractChannelPoolHandler
-import io.netty.channel.pool.FixedChannelPool
 import io.netty.channel.socket.SocketChannel
 import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.BulkStringHeaderRedisMessage
+import io.netty.handler.codec.redis.BulkStringRedisContent
 import io.netty.handler.codec.redis.ErrorRedisMessage
 import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.LastBulkStringRedisContent
 import io.netty.handler.codec.redis.RedisArrayAggregator
-import io.netty.handler.codec.redis.RedisBulkStringAggregator
 import io.netty.handler.codec.redis.RedisDecoder
 import io.netty.handler.codec.redis.RedisEncoder
 import io.netty.handler.codec.redis.RedisMessage
-import io.netty.util.concurrent.GenericFutureListener
+import io.netty.util.ReferenceCountUtil
 import net.woggioni.rbcs.common.HostAndPort
 import net.woggioni.rbcs.common.createLogger
-import net.woggioni.rbcs.common.trace
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.warn
 import net.woggioni.rbcs.server.redis.RedisCacheConfiguration
 import net.woggioni.rbcs.server.redis.RedisCacheHandler
+import net.woggioni.rbcs.server.redis.RedisException
 
 
 class RedisClient(
     private val servers: List<RedisCacheConfiguration.Server>,
-    private val chunkSize: Int,
     private val group: EventLoopGroup,
     private val channelFactory: ChannelFactory<SocketChannel>,
-    private val connectionPool: ConcurrentHashMap<HostAndPort, FixedChannelPool>,
+    private val connectionPool: ConcurrentHashMap<HostAndPort, RedisConnectionPool>,
+    private val cluster: ClusterSlots? = null,
+    private val nearCache: NearCache? = null,
+    private val sentinel: SentinelTopology? = null,
 ) : AutoCloseable {
 
-    private companion object {
+    companion object {
         private val log = createLogger<RedisCacheHandler>()
-    }
 
-    private fun newConnectionPool(server: RedisCacheConfiguration.Server): FixedChannelPool {
-        val bootstrap = Bootstrap().apply {
-            group(group)
-            channelFactory(channelFactory)
-            option(ChannelOption.SO_KEEPALIVE, true)
-            remoteAddress(InetSocketAddress(server.endpoint.host, server.endpoint.port))
-            server.connectionTimeoutMillis?.let {
-                option(ChannelOption.CONNECT_TIMEOUT_MILLIS, it)
-            }
-        }
-        val channelPoolHandler = object : AbstractChannelPoolHandler() {
-
-            override fun channelCreated(ch: Channel) {
-                val pipeline: ChannelPipeline = ch.pipeline()
-                pipeline.addLast(RedisEncoder())
-                pipeline.addLast(RedisDecoder())
-                pipeline.addLast(RedisBulkStringAggregator())
-                pipeline.addLast(RedisArrayAggregator())
-                server.password?.let { password ->
-                    // Send AUTH command synchronously on new connections
-                    val authCmd = buildCommand("AUTH", password)
-                    ch.writeAndFlush(authCmd).addListener(ChannelFutureListener { future ->
-                        if (!future.isSuccess) {
-                            ch.close()
-                        }
-                    })
-                    // Install a one-shot handler to consume the AUTH response
-                    pipeline.addLast(object : SimpleChannelInboundHandler<RedisMessage>() {
-                        override fun channelRead0(ctx: ChannelHandlerContext, msg: RedisMessage) {
-                            when (msg) {
-                                is ErrorRedisMessage -> {
-                                    ctx.close()
-                                }
-                                else -> {
-                                    // AUTH succeeded, remove this one-shot handler
-                                    ctx.pipeline().remove(this)
-                                }
-                            }
-                        }
-                    })
-                }
+        /**
+         * Maximum number of MOVED/ASK redirects followed by a single command
+         */
+        private const val MAX_REDIRECTS = 5
+
+        internal fun initPipeline(pipeline: ChannelPipeline) {
+            pipeline.addLast(RedisEncoder())
+            pipeline.addLast(RedisDecoder())
+            pipeline.addLast(NestedBulkStringAggregator())
+            pipeline.addLast(RedisArrayAggregator())
+        }
+
+        internal fun buildCommand(vararg args: String): ArrayRedisMessage {
+            val children = args.map { arg ->
+                FullBulkStringRedisMessage(
+                    Unpooled.wrappedBuffer(arg.toByteArray(StandardCharsets.UTF_8))
+                )
             }
+            return ArrayRedisMessage(children)
+        }
+
+        /**
+         * @return whether [msg] is the last message of a reply (top level bulk strings are streamed,
+         * their reply ends with their last content)
+         */
+        internal fun isLastPart(msg: RedisMessage) = msg !is BulkStringHeaderRedisMessage &&
+                (msg !is BulkStringRedisContent || msg is LastBulkStringRedisContent)
+
+        /**
+         * @return a copy of [command] that can be written to a connection while [command] stays untouched
+         */
+        private fun duplicate(command: RedisMessage): RedisMessage = if (command is ArrayRedisMessage) {
+            ArrayRedisMessage(command.children().map { child ->
+                if (child is FullBulkStringRedisMessage && !child.isNull) {
+                    FullBulkStringRedisMessage(child.content().retainedDuplicate())
+                } else {
+                    child
+                }
+            })
+        } else {
+            ReferenceCountUtil.retain(command)
         }
-        return FixedChannelPool(bootstrap, channelPoolHandler, server.maxConnections)
     }
 
-    private fun buildCommand(vararg args: String): ArrayRedisMessage {
-        val children = args.map { arg ->
-            FullBulkStringRedisMessage(
-                Unpooled.wrappedBuffer(arg.toByteArray(StandardCharsets.UTF_8))
-            )
+    /**
+     * Whether the servers are nodes of a Redis Cluster, where keys touched by the same command must share their slot
+     */
+    val isCluster: Boolean
+        get() = cluster != null
+
+    private fun newBootstrap(server: RedisCacheConfiguration.Server) = Bootstrap().apply {
+        group(group)
+        channelFactory(channelFactory)
+        option(ChannelOption.SO_KEEPALIVE, true)
+        remoteAddress(InetSocketAddress(server.endpoint.host, server.endpoint.port))
+        server.connectionTimeoutMillis?.let {
+            option(ChannelOption.CONNECT_TIMEOUT_MILLIS, it)
         }
-        return ArrayRedisMessage(children)
     }
 
+    private fun newConnectionPool(server: RedisCacheConfiguration.Server): RedisConnectionPool {
+        val bootstrap = newBootstrap(server)
+        return server.pipelinedConnections?.let {
+            PipelinedConnectionPool(bootstrap, server.password, it)
+        } ?: ExclusiveConnectionPool(bootstrap, server.password, server.maxConnections)
+    }
+
+    /**
+     * Sends [command] to the server owning [key], see [RedisConnectionPool.sendCommand].
+     * Commands that don't modify anything should be marked as [readOnly], so that they can be served by replicas
+     */
     fun sendCommand(
         key: ByteArray,
-        alloc: ByteBufAllocator,
+        command: RedisMessage,
         responseHandler: RedisResponseHandler,
+        readOnly: Boolean = false,
     ): CompletableFuture<Channel> {
+        if (sentinel != null) {
+            return sendToPrimaryOrReplica(sentinel, command, responseHandler, readOnly)
+        }
+        if (cluster != null) {
+            return ClusterCommand(cluster, HashSlot.of(key), command, responseHandler).send()
+        }
         val server = if (servers.size > 1) {
-            val keyBuffer = alloc.buffer(key.size)
-            keyBuffer.writeBytes(key)
             var checksum = 0
-            while (keyBuffer.readableBytes() > 4) {
-                val byte = keyBuffer.readInt()
-                checksum = checksum xor byte
+            var i = 0
+            while (key.size - i > 4) {
+                val word = (key[i].toInt() and 0xff shl 24) or
+                        (key[i + 1].toInt() and 0xff shl 16) or
+                        (key[i + 2].toInt() and 0xff shl 8) or
+                        (key[i + 3].toInt() and 0xff)
+                checksum = checksum xor word
+                i += 4
             }
-            while (keyBuffer.readableBytes() > 0) {
-                val byte = keyBuffer.readByte()
-                checksum = checksum xor byte.toInt()
+            while (i < key.size) {
+                checksum = checksum xor key[i].toInt()
+                ++i
             }
-            keyBuffer.release()
             servers[Math.floorMod(checksum, servers.size)]
         } else {
             servers.first()
         }
+        return pool(server.endpoint).sendCommand(command, responseHandler)
+    }
 
-        val response = CompletableFuture<Channel>()
-        val pool = connectionPool.computeIfAbsent(server.endpoint) {
+    /**
+     * @param dataNode false for sentinels, that don't store any data (so there are no invalidation messages to receive)
+     */
+    private fun pool(endpoint: HostAndPort, dataNode: Boolean = true): RedisConnectionPool {
+        // Nodes discovered from the cluster or sentinel topology share the settings of the first configured one
+        val server by lazy {
+            servers.find { it.endpoint == endpoint } ?: servers.first().copy(endpoint = endpoint)
+        }
+        if (dataNode) {
+            nearCache?.listen(endpoint) {
+                InvalidationListener(newBootstrap(server), server.password, nearCache)
+            }
+        }
+        return connectionPool.computeIfAbsent(endpoint) {
             newConnectionPool(server)
         }
-        pool.acquire().addListener(object : GenericFutureListener<NettyFuture<Channel>> {
-            override fun operationComplete(channelFuture: NettyFuture<Channel>) {
-                if (channelFuture.isSuccess) {
-                    val channel = channelFuture.now
-                    var connectionClosedByTheRemoteServer = true
-                    val closeCallback = {
-                        if (connectionClosedByTheRemoteServer) {
-                            val ex = IOException("The Redis server closed the connection")
-                            val completed = response.completeExceptionally(ex)
-                            if (!completed) responseHandler.exceptionCaught(ex)
+    }
+
+    private fun sendToPrimaryOrReplica(
+        topology: SentinelTopology,
+        command: RedisMessage,
+        responseHandler: RedisResponseHandler,
+        readOnly: Boolean,
+    ): CompletableFuture<Channel> {
+        refreshTopology(topology, false)
+        val result = CompletableFuture<Channel>()
+        topology.state.whenComplete { state, ex ->
+            if (ex != null) {
+                ReferenceCountUtil.release(command)
+                result.completeExceptionally(ex)
+            } else {
+                val node = if (readOnly) topology.readNode(state) else state.primary
+                val handler = object : RedisResponseHandler {
+                    override fun responseReceived(response: RedisMessage) {
+                        // Sent by a former primary that has been demoted to replica
+                        if (response is ErrorRedisMessage && response.content().startsWith("READONLY")) {
+                            refreshTopology(topology, true)
                         }
+                        responseHandler.responseReceived(response)
                     }
-                    val closeListener = ChannelFutureListener {
-                        closeCallback()
+
+                    override fun exceptionCaught(ex: Throwable) {
+                        refreshTopology(topology, true)
+                        responseHandler.exceptionCaught(ex)
                     }
-                    channel.closeFuture().addListener(closeListener)
-                    val pipeline = channel.pipeline()
-                    val handler = object : SimpleChannelInboundHandler<RedisMessage>(false) {
+                }
+                pool(node).sendCommand(command, handler).whenComplete { channel, sendException ->
+                    if (sendException != null) {
+                        refreshTopology(topology, true)
+                        result.completeExceptionally(sendException)
+                    } else {
+                        result.complete(channel)
+                    }
+                }
+            }
+        }
+        return result
+    }
 
-                        override fun handlerAdded(ctx: ChannelHandlerContext) {
-                            channel.closeFuture().removeListener(closeListener)
-                        }
+    /**
+     * Asks the sentinels (in order, until one of them answers) for the address of the primary,
+     * then the primary for the addresses of its replicas
+     */
+    private fun refreshTopology(topology: SentinelTopology, force: Boolean) {
+        if (!topology.startRefresh(force)) return
+        fun fail(ex: Throwable) {
+            log.warn {
+                "Failed to discover the Redis primary '${topology.masterName}': ${ex.message}"
+            }
+            topology.refreshFailed(ex)
+        }
 
-                        override fun channelRead0(
-                            ctx: ChannelHandlerContext,
-                            msg: RedisMessage,
-                        ) {
-                            pipeline.remove(this)
-                            pool.release(channel)
-                            log.trace(channel) {
-                                "Channel released"
-                            }
-                            responseHandler.responseReceived(msg)
+        fun discoverReplicas(primary: HostAndPort) {
+            query(pool(primary), buildCommand("ROLE")) { reply, ex ->
+                val replicas = reply?.let(topology::parseReplicas)
+                if (replicas == null) {
+                    fail(ex ?: RedisException("$primary is not a primary"))
+                } else {
+                    log.debug {
+                        "Redis primary '${topology.masterName}' is $primary, with replicas $replicas"
+                    }
+                    topology.refreshed(SentinelTopology.State(primary, replicas))
+                    nearCache?.retain(replicas + primary)
+                    if (topology.measuresLatency) {
+                        (replicas + primary).forEach { node ->
+                            measureLatency(topology, node)
                         }
+                    }
+                }
+            }
+        }
 
-                        override fun channelInactive(ctx: ChannelHandlerContext) {
-                            closeCallback()
-                            ctx.fireChannelInactive()
-                        }
+        fun askSentinel(index: Int) {
+            val sentinel = servers[index].endpoint
+            val cmd = buildCommand("SENTINEL", "GET-MASTER-ADDR-BY-NAME", topology.masterName)
+            query(pool(sentinel, false), cmd) { reply, ex ->
+                val primary = reply?.let(topology::parsePrimary)
+                when {
+                    primary != null -> discoverReplicas(primary)
+                    index + 1 < servers.size -> askSentinel(index + 1)
+                    else -> fail(ex ?: RedisException("No sentinel knows the primary '${topology.masterName}'"))
+                }
+            }
+        }
+        askSentinel(0)
+    }
+
+    private fun measureLatency(topology: SentinelTopology, node: HostAndPort) {
+        val start = System.nanoTime()
+        query(pool(node), buildCommand("PING")) { reply, _ ->
+            if (reply != null && reply !is ErrorRedisMessage) {
+                topology.latencyMeasured(node, System.nanoTime() - start)
+            }
+        }
+    }
+
+    /**
+     * Sends [command] to [pool] and invokes [callback] with its reply (released afterward) or with the error
+     */
+    private fun query(pool: RedisConnectionPool, command: RedisMessage, callback: (RedisMessage?, Throwable?) -> Unit) {
+        val responseHandler = object : RedisResponseHandler {
+            override fun responseReceived(response: RedisMessage) {
+                try {
+                    callback(response, null)
+                } finally {
+                    ReferenceCountUtil.release(response)
+                }
+            }
 
-                        override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
-                            connectionClosedByTheRemoteServer = false
-                            pipeline.remove(this)
-                            ctx.close()
-                            pool.release(channel)
-                            log.trace(channel) {
-                                "Channel released after exception"
-                            }
-                            responseHandler.exceptionCaught(cause)
+            override fun exceptionCaught(ex: Throwable) {
+                callback(null, ex)
+            }
+        }
+        pool.sendCommand(command, responseHandler).whenComplete { _, ex ->
+            ex?.let(responseHandler::exceptionCaught)
+        }
+    }
+
+
+    private fun refreshSlots(cluster: ClusterSlots) {
+        if (!cluster.startRefresh()) return
+        val node = cluster.nodes.random()
+        log.debug {
+            "Refreshing Redis Cluster slot map from $node"
+        }
+        val responseHandler = object : RedisResponseHandler {
+            override fun responseReceived(response: RedisMessage) {
+                try {
+                    if (response is ArrayRedisMessage) {
+                        cluster.update(node, response)
+                    } else {
+                        log.warn {
+                            "Unexpected reply to CLUSTER SLOTS from $node: $response"
                         }
+                        cluster.refreshFailed()
                     }
+                } finally {
+                    ReferenceCountUtil.release(response)
+                }
+            }
 
-                    channel.pipeline().addLast(handler)
-                    response.complete(channel)
-                } else {
-                    response.completeExceptionally(channelFuture.cause())
+            override fun exceptionCaught(ex: Throwable) {
+                log.warn {
+                    "Failed to refresh the Redis Cluster slot map from $node: ${ex.message}"
                 }
+                cluster.refreshFailed()
             }
-        })
-        return response
+        }
+        pool(node).sendCommand(buildCommand("CLUSTER", "SLOTS"), responseHandler).whenComplete { _, ex ->
+            ex?.let(responseHandler::exceptionCaught)
+        }
+    }
+
+    /**
+     * A command sent to a Redis Cluster, following the MOVED and ASK redirects it might get.
+     * [command] is kept until the final reply is received, a copy of it is written at every attempt.
+     */
+    private inner class ClusterCommand(
+        private val cluster: ClusterSlots,
+        private val slot: Int,
+        private val command: RedisMessage,
+        private val responseHandler: RedisResponseHandler,
+    ) : RedisResponseHandler {
+        private var redirects = 0
+        private val released = AtomicBoolean(false)
+
+        fun send(): CompletableFuture<Channel> {
+            val node = cluster[slot] ?: run {
+                refreshSlots(cluster)
+                cluster.nodes.random()
+            }
+            return send(node, false)
+        }
+
+        private fun send(node: HostAndPort, asking: Boolean) =
+            pool(node).sendCommand(duplicate(command), this, asking).whenComplete { _, ex ->
+                if (ex != null) release()
+            }
+
+        private fun release() {
+            if (released.compareAndSet(false, true)) {
+                ReferenceCountUtil.release(command)
+            }
+        }
+
+        override fun responseReceived(response: RedisMessage) {
+            if (response is ErrorRedisMessage && redirects < MAX_REDIRECTS) {
+                // MOVED <slot> <host>:<port> or ASK <slot> <host>:<port>
+                val fields = response.content().split(" ")
+                if (fields.size == 3 && (fields[0] == "MOVED" || fields[0] == "ASK")) {
+                    val separator = fields[2].lastIndexOf(":")
+                    val node = HostAndPort(fields[2].substring(0, separator), fields[2].substring(separator + 1).toInt())
+                    ++redirects
+                    val asking = fields[0] == "ASK"
+                    if (!asking) {
+                        log.debug {
+                            "Slot $slot moved to $node"
+                        }
+                        cluster.moved(slot, node)
+                        refreshSlots(cluster)
+                    }
+                    send(node, asking).whenComplete { _, ex ->
+                        ex?.let(responseHandler::exceptionCaught)
+                    }
+                    return
+                }
+            }
+            if (isLastPart(response)) release()
+            responseHandler.responseReceived(response)
+        }
+
+        override fun exceptionCaught(ex: Throwable) {
+            release()
+            responseHandler.exceptionCaught(ex)
+        }
     }
 
     fun shutDown(): NettyFuture<*> {
@@ -0,0 +1,26 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.util.concurrent.CompletableFuture
+import io.netty.channel.Channel
+import io.netty.handler.codec.redis.RedisMessage
+
+/**
+ * Connections to a single Redis server
+ */
+interface RedisConnectionPool {
+
+    /**
+     * Writes [command] to one of the connections, its reply is going to be dispatched to [responseHandler].
+     * The pool takes ownership of [command], releasing it if it can't be sent.
+     * When [asking] is true the command is preceded, on the same connection, by an `ASKING` command
+     * (whose reply is discarded), as required to follow an `ASK` redirect of a Redis Cluster.
+     * @return the connection the command has been written to
+     */
+    fun sendCommand(
+        command: RedisMessage,
+        responseHandler: RedisResponseHandler,
+        asking: Boolean = false
+    ): CompletableFuture<Channel>
+
+    fun close(): CompletableFuture<Void>
+}
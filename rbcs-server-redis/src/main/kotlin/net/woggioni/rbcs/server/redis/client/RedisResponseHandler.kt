@@ -4,6 +4,14 @@ import io.netty.handler.codec.redis.RedisMessage
 
 interface RedisResponseHandler {
 
+    /**
+     * Invoked with the reply to the command; bulk string replies are delivered incrementally, as a
+     * [io.netty.handler.codec.redis.BulkStringHeaderRedisMessage] followed by
+     * [io.netty.handler.codec.redis.BulkStringRedisContent]s, the last one being a
+     * [io.netty.handler.codec.redis.LastBulkStringRedisContent] (empty and null bulk strings are delivered
+     * as a single [io.netty.handler.codec.redis.FullBulkStringRedisMessage]). The handler is responsible
+     * for releasing the messages it receives.
+     */
     fun responseReceived(response: RedisMessage)
 
     fun exceptionCaught(ex: Throwable)
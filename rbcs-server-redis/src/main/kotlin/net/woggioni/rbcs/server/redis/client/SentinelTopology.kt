@@ -0,0 +1,133 @@
+package net.woggioni.rbcs.server.redis.client
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import io.netty.handler.codec.redis.RedisMessage
+import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.server.redis.RedisCacheConfiguration.ReadFrom
+
+/**
+ * Primary and replicas of the Redis deployment monitored by Sentinel under [masterName], shared by all
+ * the [RedisClient]s of a cache. The primary is asked to the sentinels, its replicas to the primary itself (with `ROLE`);
+ * the topology is refreshed periodically and right after a node fails or rejects a write, which is what happens
+ * when a failover promotes a replica.
+ */
+class SentinelTopology(
+    val masterName: String,
+    private val readFrom: ReadFrom,
+) {
+
+    private companion object {
+        private val REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(10)
+
+        // Minimum time between two refreshes triggered by failures
+        private val MIN_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1)
+    }
+
+    class State(val primary: HostAndPort, val replicas: List<HostAndPort>)
+
+    /**
+     * Completed with the current topology, pending until it is discovered for the first time
+     */
+    @Volatile
+    var state = CompletableFuture<State>()
+        private set
+
+    private val refreshing = AtomicBoolean(false)
+
+    @Volatile
+    private var refreshedAt: Long? = null
+
+    private val counter = AtomicInteger(0)
+
+    // Exponentially weighted moving average of the round trip time of each node, in nanoseconds
+    private val latencies = ConcurrentHashMap<HostAndPort, Long>()
+
+    val measuresLatency: Boolean
+        get() = readFrom == ReadFrom.NEAREST
+
+    /**
+     * @return true if the caller should refresh the topology: when [force] is false only if the last refresh
+     * is older than the refresh interval, in any case only if no other refresh is in progress
+     */
+    fun startRefresh(force: Boolean): Boolean {
+        val now = System.nanoTime()
+        val last = refreshedAt
+        val interval = if (force) MIN_REFRESH_INTERVAL else REFRESH_INTERVAL
+        if (last != null && now - last < interval) return false
+        if (!refreshing.compareAndSet(false, true)) return false
+        refreshedAt = now
+        if (state.isCompletedExceptionally) {
+            state = CompletableFuture()
+        }
+        return true
+    }
+
+    fun refreshed(newState: State) {
+        if (!state.complete(newState)) {
+            state = CompletableFuture.completedFuture(newState)
+        }
+        latencies.keys.retainAll((newState.replicas + newState.primary).toSet())
+        refreshing.set(false)
+    }
+
+    fun refreshFailed(cause: Throwable) {
+        // Commands keep going to the last known topology, if any
+        state.completeExceptionally(cause)
+        refreshing.set(false)
+    }
+
+    fun latencyMeasured(node: HostAndPort, nanos: Long) {
+        latencies.merge(node, nanos) { old, sample ->
+            (old * 7 + sample) / 8
+        }
+    }
+
+    /**
+     * @return the node read-only commands are sent to
+     */
+    fun readNode(state: State): HostAndPort = when (readFrom) {
+        ReadFrom.PRIMARY -> state.primary
+        ReadFrom.REPLICA -> state.replicas.takeIf { it.isNotEmpty() }?.let {
+            it[Math.floorMod(counter.getAndIncrement(), it.size)]
+        } ?: state.primary
+        ReadFrom.NEAREST -> (state.replicas + state.primary).minByOrNull {
+            latencies[it] ?: Long.MAX_VALUE
+        } ?: state.primary
+    }
+
+    /**
+     * Parses the reply to `SENTINEL GET-MASTER-ADDR-BY-NAME`
+     * @return the address of the primary, or null if the sentinel doesn't know it
+     */
+    fun parsePrimary(reply: RedisMessage): HostAndPort? {
+        val fields = (reply as? ArrayRedisMessage)?.takeUnless { it.isNull }?.children() ?: return null
+        if (fields.size < 2) return null
+        return HostAndPort(fields[0].asString(), fields[1].asString().toInt())
+    }
+
+    /**
+     * Parses the reply to `ROLE` sent to a primary
+     * @return the addresses of its replicas, or null if the node is not a primary
+     */
+    fun parseReplicas(reply: RedisMessage): List<HostAndPort>? {
+        val fields = (reply as? ArrayRedisMessage)?.children() ?: return null
+        if (fields.size < 3 || fields[0].asString() != "master") return null
+        return (fields[2] as ArrayRedisMessage).children().mapNotNull { replica ->
+            val replicaFields = (replica as? ArrayRedisMessage)?.children() ?: return@mapNotNull null
+            HostAndPort(replicaFields[0].asString(), replicaFields[1].asString().toInt())
+        }
+    }
+
+    private fun RedisMessage.asString() = when (this) {
+        is FullBulkStringRedisMessage -> content().toString(Charsets.UTF_8)
+        is IntegerRedisMessage -> value().toString()
+        else -> toString()
+    }
+}
@@ -0,0 +1,67 @@
+package net.woggioni.rbcs.server.redis.client
+
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import net.woggioni.rbcs.common.HostAndPort
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class HashSlotTest {
+
+    @Test
+    fun crc16() {
+        // Reference value from the Redis Cluster specification
+        Assertions.assertEquals(0x31C3, HashSlot.crc16("123456789".toByteArray()))
+    }
+
+    @Test
+    fun hashTags() {
+        fun slot(key: String) = HashSlot.of(key.toByteArray())
+
+        Assertions.assertEquals(slot("{user1000}.following"), slot("{user1000}.followers"))
+        Assertions.assertEquals(slot("user1000"), slot("{user1000}.following"))
+        // An empty hash tag is ignored, the whole key is hashed
+        Assertions.assertEquals(HashSlot.crc16("foo{}{bar}".toByteArray()) and 0x3fff, slot("foo{}{bar}"))
+        Assertions.assertEquals(slot("{bar"), slot("foo{{bar}}zap"))
+        Assertions.assertEquals(slot("bar"), slot("foo{bar}{zap}"))
+    }
+
+    private fun bulkString(s: String) = FullBulkStringRedisMessage(Unpooled.wrappedBuffer(s.toByteArray()))
+
+    private fun node(host: String, port: Long) = ArrayRedisMessage(listOf(bulkString(host), IntegerRedisMessage(port)))
+
+    @Test
+    fun clusterSlots() {
+        val seed = HostAndPort("127.0.0.1", 7000)
+        val cluster = ClusterSlots(listOf(seed))
+        Assertions.assertNull(cluster[0])
+        Assertions.assertTrue(cluster.startRefresh())
+        Assertions.assertFalse(cluster.startRefresh())
+        val reply = ArrayRedisMessage(
+            listOf(
+                ArrayRedisMessage(
+                    listOf(IntegerRedisMessage(0), IntegerRedisMessage(8191), node("", 7000), node("127.0.0.1", 7003))
+                ),
+                ArrayRedisMessage(
+                    listOf(IntegerRedisMessage(8192), IntegerRedisMessage(16383), node("127.0.0.1", 7001))
+                ),
+            )
+        )
+        try {
+            cluster.update(seed, reply)
+        } finally {
+            reply.release()
+        }
+        Assertions.assertEquals(seed, cluster[0])
+        Assertions.assertEquals(seed, cluster[8191])
+        Assertions.assertEquals(HostAndPort("127.0.0.1", 7001), cluster[8192])
+        Assertions.assertEquals(HostAndPort("127.0.0.1", 7001), cluster[16383])
+        Assertions.assertEquals(listOf(seed, HostAndPort("127.0.0.1", 7001)), cluster.nodes)
+        Assertions.assertTrue(cluster.startRefresh())
+
+        cluster.moved(0, HostAndPort("127.0.0.1", 7002))
+        Assertions.assertEquals(HostAndPort("127.0.0.1", 7002), cluster[0])
+    }
+}
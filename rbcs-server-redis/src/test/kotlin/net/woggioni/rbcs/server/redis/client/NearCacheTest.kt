@@ -0,0 +1,49 @@
+package net.woggioni.rbcs.server.redis.client
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class NearCacheTest {
+
+    private fun key(n: Int) = "key-$n".toByteArray()
+
+    @Test
+    fun invalidation() {
+        val cache = NearCache(0x1000)
+        val value = ByteArray(16) { it.toByte() }
+
+        cache.put(key(0), cache.stamp(key(0)), value)
+        Assertions.assertArrayEquals(value, cache.get(key(0)))
+        cache.invalidate(key(0))
+        Assertions.assertNull(cache.get(key(0)))
+
+        // A value read before its key gets invalidated must not be kept
+        val stamp = cache.stamp(key(1))
+        cache.invalidate(key(1))
+        cache.put(key(1), stamp, value)
+        Assertions.assertNull(cache.get(key(1)))
+
+        val otherStamp = cache.stamp(key(2))
+        cache.clear()
+        cache.put(key(2), otherStamp, value)
+        Assertions.assertNull(cache.get(key(2)))
+    }
+
+    @Test
+    fun eviction() {
+        val cache = NearCache(0x1000)
+        val value = ByteArray(cache.maxEntrySize.toInt())
+        for (i in 0 until 16) {
+            cache.put(key(i), cache.stamp(key(i)), value)
+        }
+        // Makes key 0 the most recently used one
+        Assertions.assertNotNull(cache.get(key(0)))
+        cache.put(key(16), cache.stamp(key(16)), value)
+        Assertions.assertNotNull(cache.get(key(0)))
+        Assertions.assertNull(cache.get(key(1)))
+        Assertions.assertNotNull(cache.get(key(16)))
+
+        cache.put(key(17), cache.stamp(key(17)), ByteArray(cache.maxEntrySize.toInt() + 1))
+        Assertions.assertNull(cache.get(key(17)))
+    }
+}
@@ -0,0 +1,70 @@
+package net.woggioni.rbcs.server.redis.client
+
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.redis.ArrayRedisMessage
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage
+import io.netty.handler.codec.redis.IntegerRedisMessage
+import io.netty.handler.codec.redis.RedisMessage
+import net.woggioni.rbcs.common.HostAndPort
+import net.woggioni.rbcs.server.redis.RedisCacheConfiguration.ReadFrom
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class SentinelTopologyTest {
+
+    private fun bulkString(s: String) = FullBulkStringRedisMessage(Unpooled.wrappedBuffer(s.toByteArray()))
+
+    private fun <T> RedisMessage.use(action: (RedisMessage) -> T) = try {
+        action(this)
+    } finally {
+        (this as? ArrayRedisMessage)?.release()
+    }
+
+    @Test
+    fun parse() {
+        val topology = SentinelTopology("mymaster", ReadFrom.PRIMARY)
+        val primary = ArrayRedisMessage(listOf(bulkString("10.0.0.1"), bulkString("6379"))).use(topology::parsePrimary)
+        Assertions.assertEquals(HostAndPort("10.0.0.1", 6379), primary)
+        Assertions.assertNull(topology.parsePrimary(ArrayRedisMessage.NULL_INSTANCE))
+
+        val role = ArrayRedisMessage(
+            listOf(
+                bulkString("master"),
+                IntegerRedisMessage(3129659),
+                ArrayRedisMessage(
+                    listOf(
+                        ArrayRedisMessage(listOf(bulkString("10.0.0.2"), bulkString("6379"), bulkString("3129242"))),
+                        ArrayRedisMessage(listOf(bulkString("10.0.0.3"), bulkString("6380"), bulkString("3129543"))),
+                    )
+                )
+            )
+        )
+        Assertions.assertEquals(
+            listOf(HostAndPort("10.0.0.2", 6379), HostAndPort("10.0.0.3", 6380)),
+            role.use(topology::parseReplicas)
+        )
+        val replicaRole = ArrayRedisMessage(
+            listOf(bulkString("slave"), bulkString("10.0.0.1"), IntegerRedisMessage(6379), bulkString("connected"))
+        )
+        Assertions.assertNull(replicaRole.use(topology::parseReplicas))
+    }
+
+    @Test
+    fun readFrom() {
+        val primary = HostAndPort("10.0.0.1", 6379)
+        val replicas = listOf(HostAndPort("10.0.0.2", 6379), HostAndPort("10.0.0.3", 6379))
+        val state = SentinelTopology.State(primary, replicas)
+
+        Assertions.assertEquals(primary, SentinelTopology("mymaster", ReadFrom.PRIMARY).readNode(state))
+
+        val replica = SentinelTopology("mymaster", ReadFrom.REPLICA)
+        Assertions.assertEquals(replicas.toSet(), (0 until 4).map { replica.readNode(state) }.toSet())
+        Assertions.assertEquals(primary, replica.readNode(SentinelTopology.State(primary, emptyList())))
+
+        val nearest = SentinelTopology("mymaster", ReadFrom.NEAREST)
+        nearest.latencyMeasured(primary, 500_000)
+        nearest.latencyMeasured(replicas[0], 900_000)
+        nearest.latencyMeasured(replicas[1], 200_000)
+        Assertions.assertEquals(replicas[1], nearest.readNode(state))
+    }
+}
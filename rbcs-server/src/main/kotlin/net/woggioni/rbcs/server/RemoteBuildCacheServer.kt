@@ -18,6 +18,7 @@ import java.util.regex.Matcher
 import java.util.regex.Pattern
 import javax.naming.ldap.LdapName
 import javax.net.ssl.SSLPeerUnverifiedException
+import javax.net.ssl.SSLSession
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.buffer.ByteBuf
 import io.netty.channel.Channel
@@ -29,6 +30,7 @@ import io.netty.channel.ChannelInboundHandlerAdapter
 import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
 import io.netty.channel.ChannelPromise
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.MultiThreadIoEventLoopGroup
 import io.netty.channel.nio.NioIoHandler
 import io.netty.channel.socket.DatagramChannel
@@ -60,8 +62,7 @@ import net.woggioni.rbcs.api.Configuration
 import net.woggioni.rbcs.api.TelemetryController
 import net.woggioni.rbcs.api.exception.ConfigurationException
 import net.woggioni.rbcs.common.Cidr
-import net.woggioni.rbcs.common.PasswordSecurity.decodePasswordHash
-import net.woggioni.rbcs.common.PasswordSecurity.hashPassword
+import net.woggioni.rbcs.common.PasswordSecurity.verifyPassword
 import net.woggioni.rbcs.common.RBCS.getTrustManager
 import net.woggioni.rbcs.common.RBCS.loadKeystore
 import net.woggioni.rbcs.common.RBCS.loadService
@@ -72,6 +73,7 @@ import net.woggioni.rbcs.common.debug
 import net.woggioni.rbcs.common.info
 import net.woggioni.rbcs.server.auth.AbstractNettyHttpAuthenticator
 import net.woggioni.rbcs.server.auth.Authorizer
+import net.woggioni.rbcs.server.auth.CredentialsCache
 import net.woggioni.rbcs.server.auth.RoleAuthorizer
 import net.woggioni.rbcs.server.configuration.Parser
 import net.woggioni.rbcs.server.configuration.Serializer
@@ -131,31 +133,62 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
     @Sharable
     private class ClientCertificateAuthenticator(
         authorizer: Authorizer,
-        private val anonymousUserGroups: Set<Configuration.Group>?,
-        private val userExtractor: Configuration.UserExtractor?,
-        private val groupExtractor: Configuration.GroupExtractor?,
+        anonymousUserGroups: Set<Configuration.Group>?,
+        private val userExtractor: SubjectDnExtractor?,
+        private val groupExtractor: SubjectDnExtractor?,
+        private val users: Map<String, Configuration.User>,
+        private val groups: Map<String, Configuration.Group>,
     ) : AbstractNettyHttpAuthenticator(authorizer) {
 
+        companion object {
+            private val sessionIdentity: AttributeKey<SessionIdentity> = AttributeKey.valueOf("session-identity")
+        }
+
+        /**
+         * The identity of the client of a TLS session, the peer certificates can only change with the session
+         */
+        private class SessionIdentity(val session: SSLSession, val result: AuthenticationResult?)
+
+        private val anonymous = anonymousUserGroups?.let { AuthenticationResult(null, it) }
+
         override fun authenticate(ctx: ChannelHandlerContext, req: HttpRequest): AuthenticationResult? {
+            val sslHandler = (ctx.pipeline().get(SSL_HANDLER_NAME) as? SslHandler)
+                ?: throw ConfigurationException("Client certificate authentication cannot be used when TLS is disabled")
+            val session = sslHandler.engine().session
+            val attribute = ctx.channel().attr(sessionIdentity)
+            attribute.get()?.takeIf { it.session === session }?.let {
+                return it.result
+            }
+            return resolve(ctx, session).also {
+                attribute.set(SessionIdentity(session, it))
+            }
+        }
+
+        private fun resolve(ctx: ChannelHandlerContext, session: SSLSession): AuthenticationResult? {
             return try {
-                val sslHandler = (ctx.pipeline().get(SSL_HANDLER_NAME) as? SslHandler)
-                    ?: throw ConfigurationException("Client certificate authentication cannot be used when TLS is disabled")
-                val sslEngine = sslHandler.engine()
-                sslEngine.session.peerCertificates.takeIf {
+                session.peerCertificates.takeIf {
                     it.isNotEmpty()
                 }?.let { peerCertificates ->
                     val clientCertificate = peerCertificates.first() as X509Certificate
-                    val user = userExtractor?.extract(clientCertificate)
-                    val group = groupExtractor?.extract(clientCertificate)
+                    // Parsed once for both extractors
+                    val subjectDn = LdapName(clientCertificate.subjectX500Principal.name)
+                    val user = userExtractor?.let { extractor ->
+                        val userName = extractor.extract(subjectDn)
+                        users[userName] ?: throw RuntimeException("Failed to extract user")
+                    }
+                    val group = groupExtractor?.let { extractor ->
+                        val groupName = extractor.extract(subjectDn)
+                        groups[groupName] ?: throw RuntimeException("Failed to extract group")
+                    }
                     val allGroups =
                         ((user?.groups ?: emptySet()).asSequence() + sequenceOf(group).filterNotNull()).toSet()
                     AuthenticationResult(user, allGroups)
-                } ?: anonymousUserGroups?.let { AuthenticationResult(null, it) }
+                } ?: anonymous
             } catch (ex: SSLPeerUnverifiedException) {
                 log.debug(ctx) {
                     ex.message ?: "Error witch client certificate authentication"
                 }
-                anonymousUserGroups?.let { AuthenticationResult(null, it) }
+                anonymous
             }
         }
     }
@@ -163,7 +196,7 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
     @Sharable
     private class ForwardedClientCertificateAuthenticator(
         authorizer: Authorizer,
-        private val anonymousUserGroups: Set<Configuration.Group>?,
+        anonymousUserGroups: Set<Configuration.Group>?,
         private val subjectDnUserExtractor: SubjectDnExtractor?,
         private val subjectDnGroupExtractor: SubjectDnExtractor?,
         private val headerName: String,
@@ -174,6 +207,24 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
 
         companion object {
             private val log = createLogger<ForwardedClientCertificateAuthenticator>()
+
+            private val forwardedIdentity: AttributeKey<ForwardedIdentity> = AttributeKey.valueOf("forwarded-identity")
+
+            private const val IDENTITY_CACHE_SIZE = 0x400
+        }
+
+        /**
+         * The identity of the last subject DN forwarded on a connection, a proxy can forward requests of different
+         * clients on the same connection
+         */
+        private class ForwardedIdentity(val subjectDn: String, val result: AuthenticationResult)
+
+        private val anonymous = anonymousUserGroups?.let { AuthenticationResult(null, it) }
+
+        // Least recently used identities of the subject DNs seen recently
+        private val identities = object : LinkedHashMap<String, AuthenticationResult>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, AuthenticationResult>) =
+                size > IDENTITY_CACHE_SIZE
         }
 
         override fun authenticate(ctx: ChannelHandlerContext, req: HttpRequest): AuthenticationResult? {
@@ -185,14 +236,33 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
                 return null
             }
             val subjectDn = req.headers()[headerName]
-                ?: return anonymousUserGroups?.let { AuthenticationResult(null, it) }
+                ?: return anonymous
+            val attribute = ctx.channel().attr(forwardedIdentity)
+            attribute.get()?.takeIf { it.subjectDn == subjectDn }?.let {
+                return it.result
+            }
+            val result = synchronized(identities) {
+                identities[subjectDn]
+            } ?: resolve(ctx, subjectDn)?.also {
+                synchronized(identities) {
+                    identities[subjectDn] = it
+                }
+            } ?: return anonymous
+            attribute.set(ForwardedIdentity(subjectDn, result))
+            return result
+        }
+
+        /**
+         * @return the identity [subjectDn] maps to, or null if it isn't a valid DN
+         */
+        private fun resolve(ctx: ChannelHandlerContext, subjectDn: String): AuthenticationResult? {
             val ldapName = try {
                 LdapName(subjectDn)
             } catch (_: Exception) {
                 log.debug(ctx) {
                     "Invalid subject DN in header $headerName: $subjectDn"
                 }
-                return anonymousUserGroups?.let { AuthenticationResult(null, it) }
+                return null
             }
             val user = subjectDnUserExtractor?.extract(ldapName)?.let { userName ->
                 users[userName] ?: throw RuntimeException("Failed to extract user '$userName'")
@@ -219,28 +289,52 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
     ) : AbstractNettyHttpAuthenticator(authorizer) {
         companion object {
             private val log = createLogger<NettyHttpBasicAuthenticator>()
+
+            private val verifiedCredentials: AttributeKey<VerifiedCredentials> =
+                AttributeKey.valueOf("verified-credentials")
+
+            private const val CREDENTIALS_CACHE_SIZE = 0x400
+            private val CREDENTIALS_CACHE_TTL = Duration.ofMinutes(5)
         }
 
+        /**
+         * The outcome of the authentication of a connection, reused as long as its requests carry the same credentials
+         */
+        private class VerifiedCredentials(val authorizationHeader: String, val result: AuthenticationResult)
+
+        private val credentialsCache = CredentialsCache(CREDENTIALS_CACHE_SIZE, CREDENTIALS_CACHE_TTL)
+
+        private val anonymous = users[""]?.let { AuthenticationResult(it, it.groups) }
+
         override fun authenticate(ctx: ChannelHandlerContext, req: HttpRequest): AuthenticationResult? {
             val authorizationHeader = req.headers()[HttpHeaderNames.AUTHORIZATION] ?: let {
                 log.debug(ctx) {
                     "Missing Authorization header"
                 }
-                return users[""]?.let { AuthenticationResult(it, it.groups) }
+                return anonymous
+            }
+            val attribute = ctx.channel().attr(verifiedCredentials)
+            attribute.get()?.takeIf { it.authorizationHeader == authorizationHeader }?.let {
+                return it.result
+            }
+            val digest = credentialsCache.digest(authorizationHeader)
+            credentialsCache.get(digest)?.let {
+                attribute.set(VerifiedCredentials(authorizationHeader, it))
+                return it
             }
             val cursor = authorizationHeader.indexOf(' ')
             if (cursor < 0) {
                 log.debug(ctx) {
                     "Invalid Authorization header: '$authorizationHeader'"
                 }
-                return users[""]?.let { AuthenticationResult(it, it.groups) }
+                return anonymous
             }
             val authenticationType = authorizationHeader.substring(0, cursor)
             if ("Basic" != authenticationType) {
                 log.debug(ctx) {
                     "Invalid authentication type header: '$authenticationType'"
                 }
-                return users[""]?.let { AuthenticationResult(it, it.groups) }
+                return anonymous
             }
             val (username, password) = Base64.getDecoder().decode(authorizationHeader.substring(cursor + 1))
                 .let(::String)
@@ -257,11 +351,13 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
 
             return username.let(users::get)?.takeIf { user ->
                 user.password?.let { passwordAndSalt ->
-                    val (_, salt) = decodePasswordHash(passwordAndSalt)
-                    hashPassword(password, Base64.getEncoder().encodeToString(salt)) == passwordAndSalt
+                    verifyPassword(password, passwordAndSalt)
                 } ?: false
             }?.let { user ->
-                AuthenticationResult(user, user.groups)
+                AuthenticationResult(user, user.groups).also {
+                    credentialsCache.put(digest, it)
+                    attribute.set(VerifiedCredentials(authorizationHeader, it))
+                }
             }
         }
     }
@@ -314,8 +410,14 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
                 ClientCertificateAuthenticator(
                     RoleAuthorizer(),
                     cfg.users[""]?.groups,
-                    userExtractor(auth),
-                    groupExtractor(auth)
+                    auth.userExtractor?.let { extractor ->
+                        SubjectDnExtractor(extractor.rdnType, Pattern.compile(extractor.pattern))
+                    },
+                    auth.groupExtractor?.let { extractor ->
+                        SubjectDnExtractor(extractor.rdnType, Pattern.compile(extractor.pattern))
+                    },
+                    cfg.users,
+                    cfg.groups,
                 )
             }
 
@@ -344,34 +446,6 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
 
         private val sslContext: SslContext? = cfg.tls?.let(Companion::createSslCtx)
 
-        private fun userExtractor(authentication: Configuration.ClientCertificateAuthentication) =
-            authentication.userExtractor?.let { extractor ->
-                val pattern = Pattern.compile(extractor.pattern)
-                val rdnType = extractor.rdnType
-                Configuration.UserExtractor { cert: X509Certificate ->
-                    val userName = LdapName(cert.subjectX500Principal.name).rdns.find {
-                        it.type == rdnType
-                    }?.let {
-                        pattern.matcher(it.value.toString())
-                    }?.takeIf(Matcher::matches)?.group(1)
-                    cfg.users[userName] ?: throw RuntimeException("Failed to extract user")
-                }
-            }
-
-        private fun groupExtractor(authentication: Configuration.ClientCertificateAuthentication) =
-            authentication.groupExtractor?.let { extractor ->
-                val pattern = Pattern.compile(extractor.pattern)
-                val rdnType = extractor.rdnType
-                Configuration.GroupExtractor { cert: X509Certificate ->
-                    val groupName = LdapName(cert.subjectX500Principal.name).rdns.find {
-                        it.type == rdnType
-                    }?.let {
-                        pattern.matcher(it.value.toString())
-                    }?.takeIf(Matcher::matches)?.group(1)
-                    cfg.groups[groupName] ?: throw RuntimeException("Failed to extract group")
-                }
-            }
-
         override fun initChannel(ch: Channel) {
             ch.attr(clientIp).set(ch.remoteAddress() as InetSocketAddress)
             log.debug {
@@ -456,6 +530,10 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
             pipeline.addLast(ExceptionHandler.NAME, ExceptionHandler)
         }
 
+        fun start(group: EventLoopGroup) {
+            cacheHandlerFactory.start(cfg, group, channelFactory, datagramChannelFactory)
+        }
+
         override fun asyncClose() = cacheHandlerFactory.asyncClose()
     }
 
@@ -539,6 +617,7 @@ class RemoteBuildCacheServer(private val cfg: Configuration) {
         val workerGroup = MultiThreadIoEventLoopGroup(0, NioIoHandler.newFactory())
 
         val serverInitializer = ServerInitializer(cfg, channelFactory, datagramChannelFactory)
+        serverInitializer.start(workerGroup)
         val bootstrap = ServerBootstrap().apply {
             // Configure the server
             group(bossGroup, workerGroup)
@@ -1,6 +1,7 @@
 package net.woggioni.rbcs.server.auth
 
 import java.net.InetSocketAddress
+import java.util.EnumSet
 import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelHandlerContext
@@ -38,7 +39,16 @@ abstract class AbstractNettyHttpAuthenticator(private val authorizer: Authorizer
         }
     }
 
-    class AuthenticationResult(val user: Configuration.User?, val groups: Set<Group>)
+    class AuthenticationResult(val user: Configuration.User?, val groups: Set<Group>) {
+        /**
+         * Roles granted by the groups of [user] and by [groups], authenticators reuse the same result
+         * for the same identity so that they are only computed once
+         */
+        val roles: Set<Role> = EnumSet.noneOf(Role::class.java).apply {
+            user?.groups?.forEach { addAll(it.roles) }
+            groups.forEach { addAll(it.roles) }
+        }
+    }
 
     abstract fun authenticate(ctx: ChannelHandlerContext, req: HttpRequest): AuthenticationResult?
 
@@ -48,14 +58,7 @@ abstract class AbstractNettyHttpAuthenticator(private val authorizer: Authorizer
             ctx.channel().attr(RemoteBuildCacheServer.userAttribute).set(result.user)
             ctx.channel().attr(RemoteBuildCacheServer.groupAttribute).set(result.groups)
 
-            val roles = (
-                (result.user?.let { user ->
-                    user.groups.asSequence().flatMap { group ->
-                        group.roles.asSequence()
-                    }
-                } ?: emptySequence<Role>()) +
-                        result.groups.asSequence().flatMap { it.roles.asSequence() }
-            ).toSet()
+            val roles = result.roles
             val authorized = authorizer.authorize(roles, msg)
             log.debug {
                 val authorizedMessage = if (authorized) {
@@ -0,0 +1,63 @@
+package net.woggioni.rbcs.server.auth
+
+import java.security.SecureRandom
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicReferenceArray
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Bounded set of recently verified credentials, so that the password hash of a user doesn't have to be
+ * recomputed on every request. Credentials are only kept as a keyed hash (HMAC-SHA256 with a random key
+ * generated at startup), entries live in a direct-mapped table without any locking and expire after [ttl].
+ */
+class CredentialsCache(capacity: Int, ttl: Duration) {
+
+    private companion object {
+        private const val ALGORITHM = "HmacSHA256"
+    }
+
+    private class Entry(
+        val digest: ByteArray,
+        val result: AbstractNettyHttpAuthenticator.AuthenticationResult,
+        val expiresAt: Long
+    )
+
+    private val ttlNanos = ttl.toNanos()
+
+    private val key = SecretKeySpec(ByteArray(32).also(SecureRandom()::nextBytes), ALGORITHM)
+
+    // Mac instances are not thread-safe
+    private val macs = ThreadLocal.withInitial {
+        Mac.getInstance(ALGORITHM).apply { init(key) }
+    }
+
+    private val slots = AtomicReferenceArray<Entry?>(
+        capacity.coerceIn(2, 1 shl 30).let { Integer.highestOneBit(it - 1) shl 1 }
+    )
+
+    private val mask = slots.length() - 1
+
+    private fun index(digest: ByteArray) =
+        ((digest[0].toInt() and 0xff shl 24) or (digest[1].toInt() and 0xff shl 16) or
+                (digest[2].toInt() and 0xff shl 8) or (digest[3].toInt() and 0xff)) and mask
+
+    /**
+     * @return the keyed hash [get] and [put] identify [credentials] with
+     */
+    fun digest(credentials: String): ByteArray = macs.get().doFinal(credentials.toByteArray())
+
+    /**
+     * @return the identity of the user whose credentials hash to [digest], if they have been verified less than the TTL ago
+     */
+    fun get(digest: ByteArray): AbstractNettyHttpAuthenticator.AuthenticationResult? {
+        val entry = slots[index(digest)] ?: return null
+        return entry.result.takeIf {
+            entry.expiresAt - System.nanoTime() > 0 && entry.digest.contentEquals(digest)
+        }
+    }
+
+    fun put(digest: ByteArray, result: AbstractNettyHttpAuthenticator.AuthenticationResult) {
+        slots.set(index(digest), Entry(digest, result, System.nanoTime() + ttlNanos))
+    }
+}
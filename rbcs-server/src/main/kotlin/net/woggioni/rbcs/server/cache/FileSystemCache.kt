@@ -1,29 +1,48 @@
 package net.woggioni.rbcs.server.cache
 
-import java.io.ByteArrayOutputStream
-import java.io.InputStream
-import java.io.ObjectInputStream
-import java.io.ObjectOutputStream
+import java.io.IOException
+import java.io.OutputStream
 import java.io.Serializable
 import java.nio.ByteBuffer
 import java.nio.channels.Channels
 import java.nio.channels.FileChannel
+import java.nio.file.FileAlreadyExistsException
 import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
 import java.nio.file.StandardOpenOption
 import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.security.DigestOutputStream
+import java.security.MessageDigest
 import java.time.Duration
 import java.time.Instant
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import io.netty.buffer.Unpooled
 import net.woggioni.jwo.JWO
 import net.woggioni.rbcs.api.AsyncCloseable
 import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.api.CacheValueMetadataCodec
+import net.woggioni.rbcs.common.CuckooFilter
 import net.woggioni.rbcs.common.createLogger
+import net.woggioni.rbcs.common.debug
+import net.woggioni.rbcs.common.info
+import net.woggioni.rbcs.common.warn
+import net.woggioni.rbcs.server.cache.FileSystemCacheConfiguration.Durability
 
 class FileSystemCache(
     val root: Path,
-    val maxAge: Duration
+    val maxAge: Duration,
+    val durability: Durability = Durability.NONE,
+    val fsyncInterval: Duration = Duration.ofMillis(10),
+    val fsyncBatchSize: Int = 64,
+    val deduplicationDigest: String? = null,
+    presenceFilterCapacity: Int? = null,
 ) : AsyncCloseable {
 
     class EntryValue(val metadata: CacheValueMetadata, val channel : FileChannel, val offset : Long, val size : Long) : Serializable
@@ -32,8 +51,31 @@ class FileSystemCache(
         private val log = createLogger<FileSystemCache>()
     }
 
+    /**
+     * When deduplication is enabled, every distinct content is stored once in this folder
+     * under the hex digest of its content and cache entries are hard links to it,
+     * the number of links of a blob acts as its reference count
+     */
+    private val blobs: Path? = deduplicationDigest?.let {
+        root.resolve(".blobs")
+    }
+
+    /**
+     * Entries linked to a blob share its timestamps with every other entry linked to it,
+     * so the time each of them has been stored at is kept in this folder, as the modification time
+     * of an empty file named after the entry
+     */
+    private val timestamps: Path? = blobs?.let {
+        root.resolve(".timestamps")
+    }
+
+    @Volatile
+    private var hardLinksSupported = true
+
     init {
         Files.createDirectories(root)
+        blobs?.let(Files::createDirectories)
+        timestamps?.let(Files::createDirectories)
     }
 
     @Volatile
@@ -41,67 +83,200 @@ class FileSystemCache(
 
     private var nextGc = Instant.now()
 
-    fun get(key: String): EntryValue? =
-        root.resolve(key).takeIf(Files::exists)
-            ?.let { file ->
-                val size = Files.size(file)
-                val channel = FileChannel.open(file, StandardOpenOption.READ)
-                val source = Channels.newInputStream(channel)
-                val tmp = ByteArray(Integer.BYTES)
-                val buffer = ByteBuffer.wrap(tmp)
-                source.read(tmp)
-                buffer.rewind()
-                val offset = (Integer.BYTES + buffer.getInt()).toLong()
-                var count = 0
-                val wrapper = object : InputStream() {
-                    override fun read(): Int {
-                        return source.read().also {
-                            if (it > 0) count += it
-                        }
-                    }
+    /**
+     * Number of entries the presence filter is sized for, doubled every time it fills up
+     */
+    @Volatile
+    private var presenceFilterCapacity = presenceFilterCapacity
 
-                    override fun read(b: ByteArray, off: Int, len: Int): Int {
-                        return source.read(b, off, len).also {
-                            if (it > 0) count += it
-                        }
-                    }
+    /**
+     * Filter of the keys stored in the cache, used to answer misses without touching the disk,
+     * null until it has been built from the content of the cache folder (or after it filled up)
+     */
+    @Volatile
+    private var presenceFilter: CuckooFilter? = null
 
-                    override fun close() {
-                    }
-                }
-                val metadata = ObjectInputStream(wrapper).use { ois ->
-                    ois.readObject() as CacheValueMetadata
+    /**
+     * The filter being built, entries published in the meantime are added to it as well
+     */
+    @Volatile
+    private var nextPresenceFilter: CuckooFilter? = null
+
+    /**
+     * Whether misses are currently answered by the presence filter
+     */
+    internal val presenceFilterActive: Boolean
+        get() = presenceFilter != null
+
+    // Misses answered by the presence filter, and misses it let through
+    private val filteredMisses = LongAdder()
+    private val unfilteredMisses = LongAdder()
+
+    fun get(key: String): EntryValue? {
+        val filter = presenceFilter
+        if (filter?.mightContain(key.toByteArray()) == false) {
+            filteredMisses.increment()
+            return null
+        }
+        val file = root.resolve(key)
+        if (!Files.exists(file)) {
+            if (filter != null) unfilteredMisses.increment()
+            return null
+        }
+        val size = Files.size(file)
+        val channel = FileChannel.open(file, StandardOpenOption.READ)
+        try {
+            val header = ByteBuffer.allocate(Integer.BYTES)
+            readFully(channel, header)
+            val metadataSize = header.getInt()
+            if (metadataSize < 0 || metadataSize > size - Integer.BYTES) {
+                throw IOException("Corrupted cache entry '$file'")
+            }
+            val record = ByteBuffer.allocate(metadataSize)
+            readFully(channel, record)
+            val metadata = CacheValueMetadataCodec.read(Unpooled.wrappedBuffer(record), metadataSize)
+            return EntryValue(metadata, channel, (Integer.BYTES + metadataSize).toLong(), size)
+        } catch (ex: Throwable) {
+            channel.close()
+            throw ex
+        }
+    }
+
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer) {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        buffer.flip()
+    }
+
+    private fun entryPublished(key: String) {
+        if (presenceFilterCapacity == null) return
+        val bytes = key.toByteArray()
+        nextPresenceFilter?.add(bytes)
+        presenceFilter?.let { filter ->
+            if (!filter.add(bytes)) {
+                // The gc thread builds a larger one
+                presenceFilter = null
+                presenceFilterCapacity = presenceFilterCapacity?.times(2)
+                log.warn {
+                    "The presence filter of '$root' is full, disabling it until it gets rebuilt"
                 }
-                EntryValue(metadata, channel, offset, size)
             }
+        }
+    }
 
-    class FileSink(metadata: CacheValueMetadata, private val path: Path, private val tmpFile: Path) {
+    inner class FileSink(metadata: CacheValueMetadata, private val path: Path, private val tmpFile: Path) {
         val channel: FileChannel
 
+        private val digest = deduplicationDigest?.let(MessageDigest::getInstance)
+
+        /**
+         * Stream to be used to write the entry content, it updates the content digest
+         * when deduplication is enabled
+         */
+        val stream: OutputStream
+
         init {
-            val baos = ByteArrayOutputStream()
-            ObjectOutputStream(baos).use {
-                it.writeObject(metadata)
-            }
+            val metadataSize = CacheValueMetadataCodec.encodedSize(metadata)
+            val header = Unpooled.buffer(Integer.BYTES + metadataSize)
+            header.writeInt(metadataSize)
+            CacheValueMetadataCodec.write(header, metadata)
             Files.newOutputStream(tmpFile).use {
-                val bytes = baos.toByteArray()
-                val buffer = ByteBuffer.allocate(Integer.BYTES)
-                buffer.putInt(bytes.size)
-                buffer.rewind()
-                it.write(buffer.array())
-                it.write(bytes)
+                it.write(header.array(), header.arrayOffset(), header.readableBytes())
+                digest?.update(header.array(), header.arrayOffset(), header.readableBytes())
             }
             channel = FileChannel.open(tmpFile, StandardOpenOption.APPEND)
+            stream = Channels.newOutputStream(channel).let {
+                if (digest != null) {
+                    DigestOutputStream(it, digest)
+                } else {
+                    it
+                }
+            }
+        }
+
+        /**
+         * Makes the entry visible to readers, the returned future completes
+         * once the entry is as durable as the configured [Durability] policy requires
+         */
+        fun commit(): CompletableFuture<Void> = try {
+            when (durability) {
+                Durability.NONE -> {
+                    publish()
+                    CompletableFuture.completedFuture(null)
+                }
+
+                Durability.ALWAYS -> {
+                    channel.force(true)
+                    publish()
+                    syncDirectory(root)
+                    CompletableFuture.completedFuture(null)
+                }
+
+                Durability.BATCH -> groupCommit(this)
+            }
+        } catch (ex: Throwable) {
+            rollback()
+            throw ex
         }
 
-        fun commit() {
+        internal fun publish() {
             channel.close()
-            Files.move(tmpFile, path, StandardCopyOption.ATOMIC_MOVE)
+            val key = path.fileName.toString()
+            if (blobs != null && digest != null && hardLinksSupported) {
+                link(key, blobs.resolve(JWO.bytesToHex(digest.digest())))
+            } else {
+                timestamps?.resolve(key)?.let(Files::deleteIfExists)
+                Files.move(tmpFile, path, StandardCopyOption.ATOMIC_MOVE)
+            }
+            entryPublished(key)
+        }
+
+        private fun link(key: String, blob: Path) {
+            while (true) {
+                try {
+                    Files.createLink(blob, tmpFile)
+                    touchTimestamp(key)
+                    Files.move(tmpFile, path, StandardCopyOption.ATOMIC_MOVE)
+                    return
+                } catch (ex: FileAlreadyExistsException) {
+                    // An identical content is already stored, link the entry to it and discard ours
+                    val link = tmpFile.resolveSibling("${tmpFile.fileName}.link.tmp")
+                    try {
+                        Files.createLink(link, blob)
+                    } catch (_: NoSuchFileException) {
+                        // The blob has just been garbage collected
+                        continue
+                    }
+                    // The timestamps of the blob belong to the entries already linked to it
+                    touchTimestamp(key)
+                    Files.move(link, path, StandardCopyOption.ATOMIC_MOVE)
+                    Files.delete(tmpFile)
+                    return
+                } catch (ex: UnsupportedOperationException) {
+                    log.debug {
+                        "Hard links are not supported in '$root', disabling deduplication"
+                    }
+                    hardLinksSupported = false
+                    timestamps?.resolve(key)?.let(Files::deleteIfExists)
+                    Files.move(tmpFile, path, StandardCopyOption.ATOMIC_MOVE)
+                    return
+                }
+            }
         }
 
         fun rollback() {
             channel.close()
-            Files.delete(path)
+            Files.deleteIfExists(tmpFile)
+        }
+    }
+
+    private fun touchTimestamp(key: String) {
+        timestamps?.resolve(key)?.let { file ->
+            try {
+                Files.createFile(file)
+            } catch (_: FileAlreadyExistsException) {
+            }
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()))
         }
     }
 
@@ -114,6 +289,111 @@ class FileSystemCache(
         return FileSink(metadata, file, tmpFile)
     }
 
+    private class PendingCommit(val sink: FileSink, val future: CompletableFuture<Void>)
+
+    private val syncLock = ReentrantLock()
+    private val syncCondition = syncLock.newCondition()
+    private var pendingCommits = ArrayList<PendingCommit>()
+    private var batchDeadline = 0L
+
+    private fun groupCommit(sink: FileSink): CompletableFuture<Void> {
+        val commit = PendingCommit(sink, CompletableFuture<Void>())
+        // Checked under the lock, so that the fsync thread can't exit between the check and the enqueue
+        val enqueued = syncLock.withLock {
+            if (running) {
+                if (pendingCommits.isEmpty()) {
+                    batchDeadline = System.nanoTime() + fsyncInterval.toNanos()
+                }
+                pendingCommits.add(commit)
+                syncCondition.signal()
+            }
+            running
+        }
+        if (!enqueued) {
+            flush(listOf(commit))
+        }
+        return commit.future
+    }
+
+    /**
+     * Waits until either [fsyncBatchSize] entries are pending or [fsyncInterval] has elapsed
+     * since the first pending entry was committed, then flushes the whole batch at once;
+     * after the cache has been closed it returns the entries still pending, and null once there are none left
+     */
+    private fun nextBatch(): List<PendingCommit>? = syncLock.withLock {
+        while (running && pendingCommits.isEmpty()) {
+            syncCondition.await(1000, TimeUnit.MILLISECONDS)
+        }
+        if (pendingCommits.isEmpty()) return null
+        var remaining = batchDeadline - System.nanoTime()
+        while (running && pendingCommits.size < fsyncBatchSize && remaining > 0) {
+            remaining = syncCondition.awaitNanos(remaining)
+        }
+        pendingCommits.also {
+            pendingCommits = ArrayList()
+        }
+    }
+
+    private fun flush(batch: List<PendingCommit>) {
+        val published = ArrayList<PendingCommit>(batch.size)
+        for (commit in batch) {
+            try {
+                commit.sink.channel.force(true)
+                commit.sink.publish()
+                published.add(commit)
+            } catch (ex: Throwable) {
+                try {
+                    commit.sink.rollback()
+                } catch (suppressed: Throwable) {
+                    ex.addSuppressed(suppressed)
+                }
+                commit.future.completeExceptionally(ex)
+            }
+        }
+        try {
+            syncDirectory(root)
+            for (commit in published) commit.future.complete(null)
+        } catch (ex: Throwable) {
+            for (commit in published) commit.future.completeExceptionally(ex)
+        }
+        log.debug {
+            "Flushed ${published.size} cache entries to disk"
+        }
+    }
+
+    private fun syncDirectory(dir: Path) {
+        try {
+            FileChannel.open(dir, StandardOpenOption.READ).use {
+                it.force(true)
+            }
+        } catch (ex: IOException) {
+            // Some platforms (e.g. Windows) do not allow opening a directory
+            log.debug {
+                "Unable to sync directory '$dir': ${ex.message}"
+            }
+        }
+    }
+
+    private val syncFuture = object : CompletableFuture<Void>() {
+        init {
+            if (durability == Durability.BATCH) {
+                Thread.ofVirtual().name("file-system-cache-fsync").start {
+                    try {
+                        while (true) {
+                            val batch = nextBatch() ?: break
+                            flush(batch)
+                        }
+                        complete(null)
+                    } catch (ex: Throwable) {
+                        completeExceptionally(ex)
+                    }
+                }
+            } else {
+                complete(null)
+            }
+        }
+    }
+
     private val closeFuture = object : CompletableFuture<Void>() {
         init {
             Thread.ofVirtual().name("file-system-cache-gc").start {
@@ -134,14 +414,60 @@ class FileSystemCache(
         if (nextGc < now) {
             val oldestEntry = actualGc(now)
             nextGc = (oldestEntry ?: now).plus(maxAge)
+            // Drops the entries that have just expired from the filter
+            presenceFilterCapacity?.let(::rebuildPresenceFilter)
+        } else if (presenceFilter == null) {
+            presenceFilterCapacity?.let(::rebuildPresenceFilter)
         }
         Thread.sleep(minOf(Duration.between(now, nextGc), Duration.ofSeconds(1)))
     }
 
+    /**
+     * Builds a new presence filter from the entries in the cache folder, doubling its capacity until they all fit
+     */
+    private fun rebuildPresenceFilter(initialCapacity: Int) {
+        var capacity = initialCapacity
+        while (running) {
+            val filter = CuckooFilter(capacity)
+            nextPresenceFilter = filter
+            Files.list(root).use { stream ->
+                stream.filter { path ->
+                    !path.fileName.toString().endsWith(".tmp") && Files.isRegularFile(path)
+                }.forEach { path ->
+                    filter.add(path.fileName.toString().toByteArray())
+                }
+            }
+            if (!filter.isFull) {
+                presenceFilter = filter
+                nextPresenceFilter = null
+                // An entry published concurrently might have filled it after the check
+                if (!filter.isFull) {
+                    logPresenceFilterStats(filter)
+                    break
+                }
+                presenceFilter = null
+            }
+            capacity *= 2
+            presenceFilterCapacity = capacity
+        }
+    }
+
+    private fun logPresenceFilterStats(filter: CuckooFilter) {
+        val filtered = filteredMisses.sumThenReset()
+        val unfiltered = unfilteredMisses.sumThenReset()
+        log.info {
+            "Presence filter of '$root' rebuilt with ${filter.size} entries using ${filter.memoryUsage} bytes, " +
+                    "expected false positive rate: ${"%.4f".format(filter.expectedFalsePositiveRate * 100)}%" +
+                    (filtered + unfiltered).takeIf { it > 0 }?.let {
+                        ", observed since last rebuild: ${"%.4f".format(unfiltered * 100.0 / it)}% ($unfiltered of $it misses)"
+                    }.orEmpty()
+        }
+    }
+
     /**
      * Returns the creation timestamp of the oldest cache entry (if any)
      */
-    private fun actualGc(now: Instant): Instant? {
+    internal fun actualGc(now: Instant): Instant? {
         var result: Instant? = null
         Files.list(root)
             .filter { path ->
@@ -151,19 +477,84 @@ class FileSystemCache(
                     .orElse(true)
             }
             .filter {
-                val creationTimeStamp = Files.readAttributes(it, BasicFileAttributes::class.java)
-                    .creationTime()
-                    .toInstant()
+                val attributes = Files.readAttributes(it, BasicFileAttributes::class.java)
+                if (!attributes.isRegularFile) return@filter false
+                val creationTimeStamp = entryTimestamp(it, attributes)
                 if (result == null || creationTimeStamp < result) {
                     result = creationTimeStamp
                 }
                 now > creationTimeStamp.plus(maxAge)
-            }.forEach(Files::delete)
+            }.forEach { entry ->
+                Files.delete(entry)
+                timestamps?.resolve(entry.fileName)?.let(Files::deleteIfExists)
+            }
+        timestamps?.let {
+            timestampGc(it, now)
+        }
+        blobs?.let {
+            blobGc(it, now)
+        }
         return result
     }
 
+    /**
+     * A deduplicated entry shares its timestamps with the blob it is linked to,
+     * so the time it has been stored at is read from its own file in [timestamps] when there is one
+     */
+    private fun entryTimestamp(entry: Path, attributes: BasicFileAttributes): Instant {
+        val stored = timestamps?.resolve(entry.fileName)?.let { file ->
+            try {
+                Files.getLastModifiedTime(file).toInstant()
+            } catch (_: NoSuchFileException) {
+                null
+            }
+        }
+        return stored ?: entryTimestamp(attributes)
+    }
+
+    private fun entryTimestamp(attributes: BasicFileAttributes) =
+        maxOf(attributes.creationTime().toInstant(), attributes.lastModifiedTime().toInstant())
+
+    /**
+     * Removes the timestamps left behind by entries that are gone, the ones that haven't expired yet
+     * are kept since they might belong to an entry that is being published
+     */
+    private fun timestampGc(timestamps: Path, now: Instant) {
+        Files.list(timestamps).use { stream ->
+            stream.filter { file ->
+                !Files.exists(root.resolve(file.fileName)) && try {
+                    now > Files.getLastModifiedTime(file).toInstant().plus(maxAge)
+                } catch (_: NoSuchFileException) {
+                    false
+                }
+            }.forEach(Files::deleteIfExists)
+        }
+    }
+
+    /**
+     * Removes the blobs that are not referenced by any cache entry anymore,
+     * removing a blob never invalidates the entries linked to it
+     */
+    private fun blobGc(blobs: Path, now: Instant) {
+        Files.list(blobs).use { stream ->
+            stream.filter { blob ->
+                val unreferenced = try {
+                    (Files.getAttribute(blob, "unix:nlink") as Int) < 2
+                } catch (ex: UnsupportedOperationException) {
+                    false
+                }
+                unreferenced || now > entryTimestamp(
+                    Files.readAttributes(blob, BasicFileAttributes::class.java)
+                ).plus(maxAge)
+            }.forEach(Files::deleteIfExists)
+        }
+    }
+
     override fun asyncClose() : CompletableFuture<Void> {
-        running = false
-        return closeFuture
+        syncLock.withLock {
+            running = false
+            syncCondition.signal()
+        }
+        return CompletableFuture.allOf(closeFuture, syncFuture)
     }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package net.woggioni.rbcs.server.cache
 
 import java.nio.file.Path
 import java.time.Duration
+import java.util.concurrent.CompletableFuture
 import io.netty.channel.ChannelFactory
 import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.DatagramChannel
@@ -9,6 +10,7 @@ import io.netty.channel.socket.SocketChannel
 import net.woggioni.jwo.Application
 import net.woggioni.rbcs.api.CacheHandlerFactory
 import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.RBCS
 
 data class FileSystemCacheConfiguration(
@@ -17,19 +19,63 @@ data class FileSystemCacheConfiguration(
     val digestAlgorithm : String?,
     val compressionEnabled: Boolean,
     val compressionLevel: Int,
+    val durability: Durability = Durability.NONE,
+    val fsyncInterval: Duration = Duration.ofMillis(10),
+    val fsyncBatchSize: Int = 64,
+    val deduplicationDigest: String? = null,
+    val compressionBlockSize: Int? = null,
+    val compressionMode: CompressionMode = CompressionMode.DEFLATE,
+    val compressionDictionary: Path? = null,
+    val presenceFilterCapacity: Int? = null,
 ) : Configuration.Cache {
 
+    enum class Durability {
+        /**
+         * Never call fsync, rely on the operating system to eventually flush the data to disk
+         */
+        NONE,
+
+        /**
+         * Sync entries to disk in groups, a PUT request is acknowledged after its group has been synced
+         */
+        BATCH,
+
+        /**
+         * Sync every entry to disk before acknowledging the PUT request
+         */
+        ALWAYS
+    }
+
     override fun materialize() = object : CacheHandlerFactory {
-        private val cache = FileSystemCache(root ?: Application.builder("rbcs").build().computeCacheDirectory(), maxAge)
+        private val cache = FileSystemCache(
+            root ?: Application.builder("rbcs").build().computeCacheDirectory(),
+            maxAge,
+            durability,
+            fsyncInterval,
+            fsyncBatchSize,
+            deduplicationDigest,
+            presenceFilterCapacity,
+        )
+
+        private val codec = compressionMode.takeIf { compressionEnabled }
+            ?.createCodec(compressionLevel, compressionDictionary)
 
-        override fun asyncClose() = cache.asyncClose()
+        override fun asyncClose(): CompletableFuture<Void> = cache.asyncClose().whenComplete { _, _ ->
+            codec?.close()
+        }
 
         override fun newHandler(
             cfg : Configuration,
             eventLoop: EventLoopGroup,
             socketChannelFactory: ChannelFactory<SocketChannel>,
             datagramChannelFactory: ChannelFactory<DatagramChannel>
-        ) = FileSystemCacheHandler(cache, digestAlgorithm, compressionEnabled, compressionLevel, cfg.connection.chunkSize)
+        ) = FileSystemCacheHandler(
+            cache,
+            digestAlgorithm,
+            codec,
+            compressionBlockSize,
+            cfg.connection.chunkSize
+        )
     }
 
     override fun getNamespaceURI() = RBCS.RBCS_NAMESPACE_URI
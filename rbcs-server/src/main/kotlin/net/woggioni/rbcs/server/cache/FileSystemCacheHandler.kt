@@ -1,11 +1,11 @@
 package net.woggioni.rbcs.server.cache
 
+import java.nio.ByteBuffer
 import java.nio.channels.Channels
 import java.util.Base64
-import java.util.zip.Deflater
-import java.util.zip.DeflaterOutputStream
-import java.util.zip.InflaterInputStream
+import java.util.concurrent.CompletableFuture
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.http.LastHttpContent
 import io.netty.handler.stream.ChunkedNioFile
@@ -18,13 +18,18 @@ import net.woggioni.rbcs.api.message.CacheMessage.CachePutResponse
 import net.woggioni.rbcs.api.message.CacheMessage.CacheValueFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.CacheValueNotFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.LastCacheContent
+import net.woggioni.rbcs.common.BlockCodec
+import net.woggioni.rbcs.common.BlockCompression
+import net.woggioni.rbcs.common.ByteBufOutputStream
+import net.woggioni.rbcs.common.FrameIndex
 import net.woggioni.rbcs.common.RBCS.processCacheKey
+import net.woggioni.rbcs.common.extractChunk
 
 class FileSystemCacheHandler(
     private val cache: FileSystemCache,
     private val digestAlgorithm: String?,
-    private val compressionEnabled: Boolean,
-    private val compressionLevel: Int,
+    private val codec: BlockCodec?,
+    private val compressionBlockSize: Int?,
     private val chunkSize: Int
 ) : CacheHandler() {
 
@@ -39,30 +44,49 @@ class FileSystemCacheHandler(
         private val fileSink : FileSystemCache.FileSink
     ) : InProgressRequest {
 
-        private val stream = Channels.newOutputStream(fileSink.channel).let {
-            if (compressionEnabled) {
-                DeflaterOutputStream(it, Deflater(compressionLevel))
+        private val stream = fileSink.stream.let {
+            if (codec != null) {
+                BlockCompression.compressingStream(it, codec, compressionBlockSize)
             } else {
                 it
             }
         }
 
         fun write(buf: ByteBuf) {
-            buf.readBytes(stream, buf.readableBytes())
+            BlockCompression.write(stream, buf)
         }
 
-        fun commit() {
-            stream.close()
-            fileSink.commit()
+        fun commit(): CompletableFuture<Void> {
+            BlockCompression.finish(stream)
+            stream.flush()
+            return fileSink.commit()
         }
 
         fun rollback() {
+            BlockCompression.abort(stream)
             fileSink.rollback()
         }
     }
 
     private var inProgressRequest: InProgressRequest? = null
 
+    /**
+     * @return the size of the value stored in [entryValue], or -1 if it can only be known by decompressing it
+     * (values compressed as a plain zlib stream don't record their uncompressed size)
+     */
+    private fun contentLength(entryValue: FileSystemCache.EntryValue): Long {
+        if (codec == null) return entryValue.size - entryValue.offset
+        val magic = ByteBuffer.allocate(Int.SIZE_BYTES)
+        while (magic.hasRemaining()) {
+            if (entryValue.channel.read(magic, entryValue.offset + magic.position()) < 0) return -1
+        }
+        return if (magic.getInt(0) == BlockCompression.MAGIC) {
+            FrameIndex.read(entryValue.channel, entryValue.offset, entryValue.size).uncompressedSize
+        } else {
+            -1
+        }
+    }
+
     override fun channelRead0(ctx: ChannelHandlerContext, msg: CacheMessage) {
         when (msg) {
             is CacheGetRequest -> handleGetRequest(ctx, msg)
@@ -96,30 +120,47 @@ class FileSystemCacheHandler(
             is InProgressPutRequest -> {
                 inProgressRequest = null
                 request.write(msg.content())
-                request.commit()
-                sendMessageAndFlush(ctx, CachePutResponse(request.key))
+                request.commit().whenCompleteAsync({ _, ex ->
+                    if (ex == null) {
+                        sendMessageAndFlush(ctx, CachePutResponse(request.key))
+                    } else {
+                        this@FileSystemCacheHandler.exceptionCaught(ctx, ex)
+                    }
+                }, ctx.executor())
             }
             is InProgressGetRequest -> {
                 val key = String(Base64.getUrlEncoder().encode(processCacheKey(request.request.key, null, digestAlgorithm)))
                 cache.get(key)?.also { entryValue ->
+                    if (request.request.isMetadataOnly) {
+                        entryValue.channel.use {
+                            sendMessage(
+                                ctx,
+                                CacheValueFoundResponse(request.request.key, entryValue.metadata, contentLength(entryValue))
+                            )
+                        }
+                        sendMessageAndFlush(ctx, LastCacheContent(Unpooled.EMPTY_BUFFER))
+                        return
+                    }
                     sendMessageAndFlush(ctx, CacheValueFoundResponse(request.request.key, entryValue.metadata))
                     entryValue.channel.let { channel ->
-                        if(compressionEnabled) {
-                            InflaterInputStream(Channels.newInputStream(channel)).use { stream ->
-
-                                outerLoop@
-                                while (true) {
-                                    val buf = ctx.alloc().heapBuffer(chunkSize)
-                                    while(buf.readableBytes() < chunkSize) {
-                                        val read = buf.writeBytes(stream, chunkSize)
-                                        if(read < 0) {
-                                            sendMessageAndFlush(ctx, LastCacheContent(buf))
-                                            break@outerLoop
+                        if(codec != null) {
+                            val chunk = ctx.alloc().compositeHeapBuffer()
+                            channel.position(entryValue.offset)
+                            Channels.newInputStream(channel).use { source ->
+                                BlockCompression.decompressingStream(ByteBufOutputStream(chunk.retain()), codec).use { stream ->
+                                    val buffer = ByteArray(chunkSize)
+                                    while (true) {
+                                        val read = source.read(buffer)
+                                        if (read < 0) break
+                                        stream.write(buffer, 0, read)
+                                        if (chunk.readableBytes() >= chunkSize) {
+                                            sendMessageAndFlush(ctx, CacheContent(extractChunk(chunk, ctx.alloc())))
                                         }
                                     }
-                                    sendMessageAndFlush(ctx, CacheContent(buf))
                                 }
                             }
+                            sendMessageAndFlush(ctx, LastCacheContent(extractChunk(chunk, ctx.alloc())))
+                            chunk.release()
                         } else {
                             sendMessage(ctx, ChunkedNioFile(channel, entryValue.offset, entryValue.size - entryValue.offset, chunkSize))
                             sendMessageAndFlush(ctx, LastHttpContent.EMPTY_LAST_CONTENT)
@@ -4,6 +4,8 @@ import java.nio.file.Path
 import java.time.Duration
 import java.util.zip.Deflater
 import net.woggioni.rbcs.api.CacheProvider
+import net.woggioni.rbcs.api.exception.ConfigurationException
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.RBCS
 import net.woggioni.rbcs.common.Xml
 import net.woggioni.rbcs.common.Xml.Companion.renderAttribute
@@ -31,6 +33,38 @@ class FileSystemCacheProvider : CacheProvider<FileSystemCacheConfiguration> {
             ?.let(String::toInt)
             ?: Deflater.DEFAULT_COMPRESSION
         val digestAlgorithm = el.renderAttribute("digest")
+        val compressionBlockSize = el.renderAttribute("compression-block-size")
+            ?.let(Integer::decode)
+        val compressionMode = el.renderAttribute("compression-mode")
+            ?.let {
+                when (it) {
+                    "zstd" -> CompressionMode.ZSTD
+                    "lz4" -> CompressionMode.LZ4
+                    else -> CompressionMode.DEFLATE
+                }
+            } ?: CompressionMode.DEFLATE
+        if (compressionMode == CompressionMode.DEFLATE && compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw ConfigurationException("Deflate compression level must be between -1 and 9")
+        }
+        val compressionDictionary = el.renderAttribute("compression-dictionary")
+            ?.let(Path::of)
+        val durability = el.renderAttribute("durability")
+            ?.let {
+                when (it) {
+                    "batch" -> FileSystemCacheConfiguration.Durability.BATCH
+                    "always" -> FileSystemCacheConfiguration.Durability.ALWAYS
+                    else -> FileSystemCacheConfiguration.Durability.NONE
+                }
+            } ?: FileSystemCacheConfiguration.Durability.NONE
+        val fsyncInterval = el.renderAttribute("fsync-interval")
+            ?.let(Duration::parse)
+            ?: Duration.ofMillis(10)
+        val fsyncBatchSize = el.renderAttribute("fsync-batch-size")
+            ?.let(String::toInt)
+            ?: 64
+        val deduplicationDigest = el.renderAttribute("deduplication-digest")
+        val presenceFilterCapacity = el.renderAttribute("presence-filter-capacity")
+            ?.let(String::toInt)
 
         return FileSystemCacheConfiguration(
             path,
@@ -38,6 +72,14 @@ class FileSystemCacheProvider : CacheProvider<FileSystemCacheConfiguration> {
             digestAlgorithm,
             enableCompression,
             compressionLevel,
+            durability,
+            fsyncInterval,
+            fsyncBatchSize,
+            deduplicationDigest,
+            compressionBlockSize,
+            compressionMode,
+            compressionDictionary,
+            presenceFilterCapacity,
         )
     }
 
@@ -59,6 +101,34 @@ class FileSystemCacheProvider : CacheProvider<FileSystemCacheConfiguration> {
             }?.let {
                 attr("compression-level", it.toString())
             }
+            compressionBlockSize?.let {
+                attr("compression-block-size", it.toString())
+            }
+            attr(
+                "compression-mode", when (compressionMode) {
+                    CompressionMode.DEFLATE -> "deflate"
+                    CompressionMode.ZSTD -> "zstd"
+                    CompressionMode.LZ4 -> "lz4"
+                }
+            )
+            compressionDictionary?.let {
+                attr("compression-dictionary", it.toString())
+            }
+            attr(
+                "durability", when (durability) {
+                    FileSystemCacheConfiguration.Durability.NONE -> "none"
+                    FileSystemCacheConfiguration.Durability.BATCH -> "batch"
+                    FileSystemCacheConfiguration.Durability.ALWAYS -> "always"
+                }
+            )
+            attr("fsync-interval", fsyncInterval.toString())
+            attr("fsync-batch-size", fsyncBatchSize.toString())
+            deduplicationDigest?.let {
+                attr("deduplication-digest", it)
+            }
+            presenceFilterCapacity?.let {
+                attr("presence-filter-capacity", it.toString())
+            }
         }
         result
     }
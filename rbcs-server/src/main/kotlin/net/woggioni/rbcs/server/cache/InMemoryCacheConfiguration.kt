@@ -1,12 +1,15 @@
 package net.woggioni.rbcs.server.cache
 
+import java.nio.file.Path
 import java.time.Duration
+import java.util.concurrent.CompletableFuture
 import io.netty.channel.ChannelFactory
 import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.DatagramChannel
 import io.netty.channel.socket.SocketChannel
 import net.woggioni.rbcs.api.CacheHandlerFactory
 import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.RBCS
 
 data class InMemoryCacheConfiguration(
@@ -15,18 +18,31 @@ data class InMemoryCacheConfiguration(
     val digestAlgorithm : String?,
     val compressionEnabled: Boolean,
     val compressionLevel: Int,
+    val compressionBlockSize: Int? = null,
+    val compressionMode: CompressionMode = CompressionMode.DEFLATE,
+    val compressionDictionary: Path? = null,
 ) : Configuration.Cache {
     override fun materialize() = object : CacheHandlerFactory {
         private val cache = InMemoryCache(maxAge, maxSize)
 
-        override fun asyncClose() = cache.asyncClose()
+        private val codec = compressionMode.takeIf { compressionEnabled }
+            ?.createCodec(compressionLevel, compressionDictionary)
+
+        override fun asyncClose(): CompletableFuture<Void> = cache.asyncClose().whenComplete { _, _ ->
+            codec?.close()
+        }
 
         override fun newHandler(
             cfg : Configuration,
             eventLoop: EventLoopGroup,
             socketChannelFactory: ChannelFactory<SocketChannel>,
             datagramChannelFactory: ChannelFactory<DatagramChannel>
-        ) = InMemoryCacheHandler(cache, digestAlgorithm, compressionEnabled, compressionLevel)
+        ) = InMemoryCacheHandler(
+            cache,
+            digestAlgorithm,
+            codec,
+            compressionBlockSize
+        )
     }
 
     override fun getNamespaceURI() = RBCS.RBCS_NAMESPACE_URI
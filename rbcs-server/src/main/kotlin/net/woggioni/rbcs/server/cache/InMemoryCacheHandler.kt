@@ -1,8 +1,5 @@
 package net.woggioni.rbcs.server.cache
 
-import java.util.zip.Deflater
-import java.util.zip.DeflaterOutputStream
-import java.util.zip.InflaterOutputStream
 import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
 import net.woggioni.rbcs.api.CacheHandler
@@ -14,17 +11,23 @@ import net.woggioni.rbcs.api.message.CacheMessage.CachePutResponse
 import net.woggioni.rbcs.api.message.CacheMessage.CacheValueFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.CacheValueNotFoundResponse
 import net.woggioni.rbcs.api.message.CacheMessage.LastCacheContent
+import net.woggioni.rbcs.common.BlockCodec
+import net.woggioni.rbcs.common.BlockCompression
 import net.woggioni.rbcs.common.ByteBufOutputStream
 import net.woggioni.rbcs.common.RBCS.processCacheKey
 
 class InMemoryCacheHandler(
     private val cache: InMemoryCache,
     private val digestAlgorithm: String?,
-    private val compressionEnabled: Boolean,
-    private val compressionLevel: Int
+    private val codec: BlockCodec?,
+    private val compressionBlockSize: Int?,
 ) : CacheHandler() {
 
     private interface InProgressRequest : AutoCloseable {
+        /**
+         * Releases the resources held by the request when it can't be completed
+         */
+        fun abort() = close()
     }
 
     private class InProgressGetRequest(val request: CacheGetRequest) : InProgressRequest {
@@ -58,22 +61,26 @@ class InMemoryCacheHandler(
 
     private inner class InProgressCompressedPutRequest(
         ctx: ChannelHandlerContext,
-        override val request: CachePutRequest
+        override val request: CachePutRequest,
+        codec: BlockCodec,
     ) : InProgressPutRequest {
 
         override val buf = ctx.alloc().heapBuffer()
 
-        private val stream = ByteBufOutputStream(buf).let {
-            DeflaterOutputStream(it, Deflater(compressionLevel))
-        }
+        private val stream = BlockCompression.compressingStream(ByteBufOutputStream(buf), codec, compressionBlockSize)
 
         override fun append(buf: ByteBuf) {
-            buf.readBytes(stream, buf.readableBytes())
+            BlockCompression.write(stream, buf)
         }
 
         override fun close() {
             stream.close()
         }
+
+        override fun abort() {
+            BlockCompression.abort(stream)
+            buf.release()
+        }
     }
 
     private var inProgressRequest: InProgressRequest? = null
@@ -93,8 +100,8 @@ class InMemoryCacheHandler(
     }
 
     private fun handlePutRequest(ctx: ChannelHandlerContext, msg: CachePutRequest) {
-        inProgressRequest = if (compressionEnabled) {
-            InProgressCompressedPutRequest(ctx, msg)
+        inProgressRequest = if (codec != null) {
+            InProgressCompressedPutRequest(ctx, msg, codec)
         } else {
             InProgressPlainPutRequest(ctx, msg)
         }
@@ -113,22 +120,24 @@ class InMemoryCacheHandler(
             is InProgressGetRequest -> {
 //                this.inProgressRequest = null
                 cache.get(processCacheKey(req.request.key, null, digestAlgorithm))?.let { value ->
-                    sendMessageAndFlush(ctx, CacheValueFoundResponse(req.request.key, value.metadata))
-                    if (compressionEnabled) {
-                        val buf = ctx.alloc().heapBuffer()
-                        InflaterOutputStream(ByteBufOutputStream(buf)).use {
+                    val buf = ctx.alloc().heapBuffer()
+                    if (codec != null) {
+                        BlockCompression.decompressingStream(ByteBufOutputStream(buf), codec).use {
                             it.write(value.content)
                             buf.retain()
                         }
-                        sendMessage(ctx, LastCacheContent(buf))
                     } else {
-                        val buf = ctx.alloc().heapBuffer()
                         ByteBufOutputStream(buf).use {
                             it.write(value.content)
                             buf.retain()
                         }
-                        sendMessage(ctx, LastCacheContent(buf))
                     }
+                    // The value is decompressed before answering, so that its size can be sent to the client
+                    sendMessageAndFlush(
+                        ctx,
+                        CacheValueFoundResponse(req.request.key, value.metadata, buf.readableBytes().toLong())
+                    )
+                    sendMessage(ctx, LastCacheContent(buf))
                 } ?: sendMessage(ctx, CacheValueNotFoundResponse(req.request.key))
             }
 
@@ -148,7 +157,7 @@ class InMemoryCacheHandler(
     }
 
     override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
-        inProgressRequest?.close()
+        inProgressRequest?.abort()
         inProgressRequest = null
         super.exceptionCaught(ctx, cause)
     }
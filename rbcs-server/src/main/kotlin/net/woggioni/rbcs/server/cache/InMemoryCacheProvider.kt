@@ -1,8 +1,11 @@
 package net.woggioni.rbcs.server.cache
 
+import java.nio.file.Path
 import java.time.Duration
 import java.util.zip.Deflater
 import net.woggioni.rbcs.api.CacheProvider
+import net.woggioni.rbcs.api.exception.ConfigurationException
+import net.woggioni.rbcs.common.CompressionMode
 import net.woggioni.rbcs.common.RBCS
 import net.woggioni.rbcs.common.Xml
 import net.woggioni.rbcs.common.Xml.Companion.renderAttribute
@@ -31,12 +34,30 @@ class InMemoryCacheProvider : CacheProvider<InMemoryCacheConfiguration> {
             ?.let(String::toInt)
             ?: Deflater.DEFAULT_COMPRESSION
         val digestAlgorithm = el.renderAttribute("digest")
+        val compressionBlockSize = el.renderAttribute("compression-block-size")
+            ?.let(Integer::decode)
+        val compressionMode = el.renderAttribute("compression-mode")
+            ?.let {
+                when (it) {
+                    "zstd" -> CompressionMode.ZSTD
+                    "lz4" -> CompressionMode.LZ4
+                    else -> CompressionMode.DEFLATE
+                }
+            } ?: CompressionMode.DEFLATE
+        if (compressionMode == CompressionMode.DEFLATE && compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw ConfigurationException("Deflate compression level must be between -1 and 9")
+        }
+        val compressionDictionary = el.renderAttribute("compression-dictionary")
+            ?.let(Path::of)
         return InMemoryCacheConfiguration(
             maxAge,
             maxSize,
             digestAlgorithm,
             enableCompression,
             compressionLevel,
+            compressionBlockSize,
+            compressionMode,
+            compressionDictionary,
         )
     }
 
@@ -56,6 +77,19 @@ class InMemoryCacheProvider : CacheProvider<InMemoryCacheConfiguration> {
             }?.let {
                 attr("compression-level", it.toString())
             }
+            compressionBlockSize?.let {
+                attr("compression-block-size", it.toString())
+            }
+            attr(
+                "compression-mode", when (compressionMode) {
+                    CompressionMode.DEFLATE -> "deflate"
+                    CompressionMode.ZSTD -> "zstd"
+                    CompressionMode.LZ4 -> "lz4"
+                }
+            )
+            compressionDictionary?.let {
+                attr("compression-dictionary", it.toString())
+            }
         }
         result
     }
@@ -5,6 +5,7 @@ import io.netty.channel.ChannelDuplexHandler
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelPromise
 import io.netty.handler.codec.http.LastHttpContent
+import net.woggioni.rbcs.api.CacheHandler
 import net.woggioni.rbcs.common.createLogger
 
 class ReadTriggerDuplexHandler : ChannelDuplexHandler() {
@@ -35,7 +36,10 @@ class ReadTriggerDuplexHandler : ChannelDuplexHandler() {
 
     private fun invokeRead(ctx : ChannelHandlerContext) {
         if(messageBuffer.isEmpty()) {
-            ctx.read()
+            // The cache handler issues the read itself when it resumes reading
+            if(ctx.channel().attr(CacheHandler.READ_SUSPENDED).get() != true) {
+                ctx.read()
+            }
         } else {
             this.channelRead(ctx, messageBuffer.removeFirst())
         }
@@ -64,6 +64,9 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
 
     private var cacheRequestInProgress : Boolean = false
 
+    // Whether the request being served is a HEAD request, whose response has no content
+    private var headRequest = false
+
     override fun channelRead(ctx: ChannelHandlerContext, msg: Any) {
         when (msg) {
             is HttpRequest -> handleRequest(ctx, msg)
@@ -120,7 +123,11 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
                         log.debug(ctx) {
                             "Retrieved value for key '${msg.key}'"
                         }
-                        val response = DefaultHttpResponse(httpVersion, HttpResponseStatus.OK)
+                        val response = if (headRequest) {
+                            DefaultFullHttpResponse(httpVersion, HttpResponseStatus.OK)
+                        } else {
+                            DefaultHttpResponse(httpVersion, HttpResponseStatus.OK)
+                        }
                         response.headers().apply {
                             set(HttpHeaderNames.CONTENT_TYPE, msg.metadata.mimeType ?: HttpHeaderValues.APPLICATION_OCTET_STREAM)
                             msg.metadata.contentDisposition?.let { contentDisposition ->
@@ -128,16 +135,24 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
                             }
                         }
                         setKeepAliveHeader(response.headers())
-                        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED)
+                        if (msg.contentLength >= 0) {
+                            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, msg.contentLength)
+                        } else {
+                            response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED)
+                        }
                         ctx.writeAndFlush(response)
                     }
 
-                    is LastCacheContent -> {
-                        ctx.writeAndFlush(DefaultLastHttpContent(msg.content()))
-                    }
-
                     is CacheContent -> {
-                        ctx.writeAndFlush(DefaultHttpContent(msg.content()))
+                        if (headRequest) {
+                            // The response to a HEAD request has already been sent in full
+                            msg.release()
+                            ctx.newSucceededFuture()
+                        } else if (msg is LastCacheContent) {
+                            ctx.writeAndFlush(DefaultLastHttpContent(msg.content()))
+                        } else {
+                            ctx.writeAndFlush(DefaultHttpContent(msg.content()))
+                        }
                     }
 
                     else -> throw UnsupportedOperationException("This should never happen")
@@ -161,7 +176,8 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
     private fun handleRequest(ctx: ChannelHandlerContext, msg: HttpRequest) {
         setRequestMetadata(msg)
         val method = msg.method()
-        if (method === HttpMethod.GET) {
+        headRequest = method === HttpMethod.HEAD
+        if (method === HttpMethod.GET || method === HttpMethod.HEAD) {
             val path = Path.of(msg.uri()).normalize()
             if (path.startsWith(serverPrefix)) {
                 cacheRequestInProgress = true
@@ -169,7 +185,7 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
                 val key : String = relativePath.toString()
                 val cacheHandler = cacheHandlerSupplier()
                 ctx.pipeline().addBefore(ExceptionHandler.NAME, null, cacheHandler)
-                key.let(::CacheGetRequest)
+                CacheGetRequest(key, headRequest)
                     .let(ctx::fireChannelRead)
             } else {
                 cacheRequestInProgress = false
@@ -192,7 +208,11 @@ class ServerHandler(private val serverPrefix: Path, private val cacheHandlerSupp
                 path.fileName?.toString()
                     ?.let {
                         val mimeType = HttpUtil.getMimeType(msg)?.toString()
-                        CachePutRequest(key, CacheValueMetadata(msg.headers().get(HttpHeaderNames.CONTENT_DISPOSITION), mimeType))
+                        CachePutRequest(
+                            key,
+                            CacheValueMetadata(msg.headers().get(HttpHeaderNames.CONTENT_DISPOSITION), mimeType),
+                            HttpUtil.getContentLength(msg, -1L)
+                        )
                     }
                     ?.let(ctx::fireChannelRead)
                     ?: ctx.channel().write(CacheValueNotFoundResponse(key))
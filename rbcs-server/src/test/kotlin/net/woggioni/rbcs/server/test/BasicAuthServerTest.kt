@@ -189,4 +189,97 @@ class BasicAuthServerTest : AbstractBasicAuthServerTest() {
         Assertions.assertEquals(HttpResponseStatus.OK.code(), response.statusCode())
         Assertions.assertArrayEquals(value, response.body())
     }
+
+    @Test
+    @Order(10)
+    fun wrongPasswordAfterAuthenticatingOnTheSameConnection() {
+        val client: HttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()
+
+        val (key, value) = keyValuePair
+        val user = cfg.users.values.find {
+            it.name == "user1"
+        } ?: throw RuntimeException("user1 not found")
+
+        val authenticated = newRequestBuilder(key)
+            .header("Authorization", buildAuthorizationHeader(user, PASSWORD))
+            .GET()
+        val response: HttpResponse<ByteArray> = client.send(authenticated.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response.statusCode())
+        Assertions.assertArrayEquals(value, response.body())
+
+        // The connection is kept alive, the credentials it was authenticated with must not be reused
+        val wrongPassword = newRequestBuilder(key)
+            .header("Authorization", buildAuthorizationHeader(user, PASSWORD + "!"))
+            .GET()
+        val response2: HttpResponse<ByteArray> = client.send(wrongPassword.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.UNAUTHORIZED.code(), response2.statusCode())
+    }
+
+    @Test
+    @Order(11)
+    fun changedCredentialsOnTheSameConnection() {
+        val client: HttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()
+
+        val (key, value) = newEntry(random)
+        val writer = cfg.users.values.find {
+            it.name == "user3"
+        } ?: throw RuntimeException("user3 not found")
+        val reader = cfg.users.values.find {
+            it.name == "user1"
+        } ?: throw RuntimeException("user1 not found")
+
+        val asWriter = newRequestBuilder(key)
+            .header("Content-Type", "application/octet-stream")
+            .header("Authorization", buildAuthorizationHeader(writer, PASSWORD))
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(value))
+        val response: HttpResponse<String> = client.send(asWriter.build(), HttpResponse.BodyHandlers.ofString())
+        Assertions.assertEquals(HttpResponseStatus.CREATED.code(), response.statusCode())
+
+        val asReader = newRequestBuilder(key)
+            .header("Content-Type", "application/octet-stream")
+            .header("Authorization", buildAuthorizationHeader(reader, PASSWORD))
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(value))
+        val response2: HttpResponse<String> = client.send(asReader.build(), HttpResponse.BodyHandlers.ofString())
+        Assertions.assertEquals(HttpResponseStatus.FORBIDDEN.code(), response2.statusCode())
+
+        val asWriterAgain = newRequestBuilder(key)
+            .header("Authorization", buildAuthorizationHeader(writer, PASSWORD))
+            .GET()
+        val response3: HttpResponse<ByteArray> = client.send(asWriterAgain.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response3.statusCode())
+        Assertions.assertArrayEquals(value, response3.body())
+    }
+
+    @Test
+    @Order(12)
+    fun headAsAReaderUser() {
+        val client: HttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()
+
+        val (key, value) = keyValuePair
+        val user = cfg.users.values.find {
+            it.name == "user1"
+        } ?: throw RuntimeException("user1 not found")
+
+        val head = newRequestBuilder(key)
+            .header("Authorization", buildAuthorizationHeader(user, PASSWORD))
+            .HEAD()
+        val response: HttpResponse<ByteArray> = client.send(head.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response.statusCode())
+        Assertions.assertEquals(value.size.toLong(), response.headers().firstValueAsLong("Content-Length").asLong)
+        Assertions.assertEquals(0, response.body().size)
+
+        // The connection must still be usable after the response to the HEAD request
+        val get = newRequestBuilder(key)
+            .header("Authorization", buildAuthorizationHeader(user, PASSWORD))
+            .GET()
+        val response2: HttpResponse<ByteArray> = client.send(get.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response2.statusCode())
+        Assertions.assertArrayEquals(value, response2.body())
+
+        val missing = newRequestBuilder(newEntry(random).first)
+            .header("Authorization", buildAuthorizationHeader(user, PASSWORD))
+            .HEAD()
+        val response3: HttpResponse<ByteArray> = client.send(missing.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.NOT_FOUND.code(), response3.statusCode())
+    }
 }
\ No newline at end of file
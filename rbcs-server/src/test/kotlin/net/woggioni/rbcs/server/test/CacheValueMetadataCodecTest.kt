@@ -0,0 +1,52 @@
+package net.woggioni.rbcs.server.test
+
+import java.io.ByteArrayOutputStream
+import java.io.ObjectOutputStream
+import io.netty.buffer.Unpooled
+import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.api.CacheValueMetadataCodec
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.MethodSource
+
+class CacheValueMetadataCodecTest {
+
+    companion object {
+        @JvmStatic
+        fun metadata() = listOf(
+            CacheValueMetadata(null, null),
+            CacheValueMetadata("attachment; filename=\"résumé.pdf\"", "application/pdf"),
+            CacheValueMetadata("x".repeat(200), null),
+        )
+    }
+
+    @ParameterizedTest
+    @MethodSource("metadata")
+    fun roundTrip(metadata: CacheValueMetadata) {
+        val buf = Unpooled.buffer()
+        CacheValueMetadataCodec.write(buf, metadata)
+        Assertions.assertEquals(CacheValueMetadataCodec.encodedSize(metadata), buf.readableBytes())
+        val decoded = CacheValueMetadataCodec.read(buf, buf.readableBytes())
+        Assertions.assertEquals(metadata.contentDisposition, decoded.contentDisposition)
+        Assertions.assertEquals(metadata.mimeType, decoded.mimeType)
+        Assertions.assertFalse(buf.isReadable)
+    }
+
+    @Test
+    fun legacy() {
+        val metadata = CacheValueMetadata("inline", "text/plain")
+        val serialized = ByteArrayOutputStream().let { baos ->
+            ObjectOutputStream(baos).use {
+                it.writeObject(metadata)
+            }
+            baos.toByteArray()
+        }
+        Assertions.assertTrue(CacheValueMetadataCodec.encodedSize(metadata) < serialized.size)
+        val buf = Unpooled.wrappedBuffer(serialized + byteArrayOf(42))
+        val decoded = CacheValueMetadataCodec.read(buf, serialized.size)
+        Assertions.assertEquals(metadata.contentDisposition, decoded.contentDisposition)
+        Assertions.assertEquals(metadata.mimeType, decoded.mimeType)
+        Assertions.assertEquals(42.toByte(), buf.readByte())
+    }
+}
@@ -0,0 +1,121 @@
+package net.woggioni.rbcs.server.test
+
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.time.temporal.ChronoUnit
+import java.util.Base64
+import java.util.zip.Deflater
+import kotlin.random.Random
+import io.netty.handler.codec.http.HttpResponseStatus
+import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.common.RBCS.getFreePort
+import net.woggioni.rbcs.server.cache.FileSystemCacheConfiguration
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Order
+import org.junit.jupiter.api.Test
+
+
+class CompressedFileSystemCacheServerTest : AbstractServerTest() {
+
+    private val random = Random(101325)
+    private val keyValuePair = newEntry(random)
+    private val serverPath = "rbcs"
+
+    override fun setUp() {
+        cfg = Configuration(
+            "127.0.0.1",
+            getFreePort(),
+            serverPath,
+            false,
+            emptyList(),
+            100,
+            Configuration.EventExecutor(false),
+            Configuration.RateLimiter(true, 0x100000, 50),
+            Configuration.Connection(
+                Duration.of(60, ChronoUnit.SECONDS),
+                Duration.of(30, ChronoUnit.SECONDS),
+                Duration.of(30, ChronoUnit.SECONDS),
+                0x1000,
+                0x10000
+            ),
+            emptyMap(),
+            emptyMap(),
+            FileSystemCacheConfiguration(
+                testDir.resolve("cache"),
+                maxAge = Duration.ofSeconds(3600 * 24),
+                digestAlgorithm = "MD5",
+                compressionEnabled = true,
+                compressionLevel = Deflater.DEFAULT_COMPRESSION,
+                compressionBlockSize = 0x400,
+            ),
+            null,
+            null,
+        )
+    }
+
+    override fun tearDown() {
+    }
+
+    private fun newRequestBuilder(key: String) = HttpRequest.newBuilder()
+        .uri(URI.create("http://${cfg.host}:${cfg.port}/$serverPath/$key"))
+
+    private fun newEntry(random: Random): Pair<String, ByteArray> {
+        val key = ByteArray(0x10).let {
+            random.nextBytes(it)
+            Base64.getUrlEncoder().encodeToString(it)
+        }
+        val value = ByteArray(0x3000).also {
+            random.nextBytes(it)
+        }
+        return key to value
+    }
+
+    @Test
+    @Order(1)
+    fun put() {
+        val client: HttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()
+        val (key, value) = keyValuePair
+
+        val requestBuilder = newRequestBuilder(key)
+            .header("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(value))
+
+        val response: HttpResponse<String> = client.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofString())
+        Assertions.assertEquals(HttpResponseStatus.CREATED.code(), response.statusCode())
+    }
+
+    @Test
+    @Order(2)
+    fun headExistingKey() {
+        val client: HttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()
+        val (key, value) = keyValuePair
+
+        val response: HttpResponse<ByteArray> =
+            client.send(newRequestBuilder(key).HEAD().build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response.statusCode())
+        // The size of the uncompressed value, read from the frame index
+        Assertions.assertEquals(value.size.toLong(), response.headers().firstValueAsLong("Content-Length").asLong)
+        Assertions.assertEquals(0, response.body().size)
+
+        // The connection must still be usable after the response to the HEAD request
+        val response2: HttpResponse<ByteArray> =
+            client.send(newRequestBuilder(key).GET().build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response2.statusCode())
+        Assertions.assertArrayEquals(value, response2.body())
+    }
+
+    @Test
+    @Order(3)
+    fun headMissingKey() {
+        val client: HttpClient = HttpClient.newHttpClient()
+        val (key, _) = newEntry(random)
+
+        val response: HttpResponse<ByteArray> =
+            client.send(newRequestBuilder(key).HEAD().build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.NOT_FOUND.code(), response.statusCode())
+        Assertions.assertEquals(0, response.body().size)
+    }
+}
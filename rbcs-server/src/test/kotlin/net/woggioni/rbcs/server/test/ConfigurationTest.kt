@@ -19,10 +19,13 @@ class ConfigurationTest {
         strings = [
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-default.xml",
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-memcached.xml",
+            "classpath:net/woggioni/rbcs/server/test/valid/rbcs-memcached-meta.xml",
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-tls.xml",
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-memcached-tls.xml",
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-redis.xml",
             "classpath:net/woggioni/rbcs/server/test/valid/rbcs-redis-tls.xml",
+            "classpath:net/woggioni/rbcs/server/test/valid/rbcs-redis-sentinel.xml",
+            "classpath:net/woggioni/rbcs/server/test/valid/rbcs-redis-cluster.xml",
         ]
     )
     @ParameterizedTest
@@ -0,0 +1,168 @@
+package net.woggioni.rbcs.server.test
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import net.woggioni.rbcs.api.CacheValueMetadata
+import net.woggioni.rbcs.server.cache.FileSystemCache
+import net.woggioni.rbcs.server.cache.FileSystemCacheConfiguration.Durability
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+
+class FileSystemCacheTest {
+
+    private val metadata = CacheValueMetadata(null, "application/octet-stream")
+
+    private val value = Random(101325).nextBytes(0x1000)
+
+    private fun FileSystemCache.store(key: String, content: ByteArray = value): CompletableFuture<Void> {
+        val sink = put(key, metadata)
+        sink.stream.write(content)
+        return sink.commit()
+    }
+
+    private fun FileSystemCache.read(key: String) = get(key)?.let { entry ->
+        entry.channel.use { channel ->
+            val buffer = ByteBuffer.allocate((entry.size - entry.offset).toInt())
+            while (buffer.hasRemaining() && channel.read(buffer, entry.offset + buffer.position()) >= 0) {
+            }
+            buffer.array()
+        }
+    }
+
+    private fun fileKey(path: Path) = Files.readAttributes(path, BasicFileAttributes::class.java).fileKey()
+
+    @Test
+    fun batchCommitCompletesWhenTheBatchIsFull(@TempDir root: Path) {
+        val cache = FileSystemCache(
+            root,
+            Duration.ofDays(1),
+            durability = Durability.BATCH,
+            fsyncInterval = Duration.ofHours(1),
+            fsyncBatchSize = 4,
+        )
+        try {
+            val commits = (0 until 3).map { cache.store("key-$it") }
+            Thread.sleep(100)
+            Assertions.assertTrue(commits.none(CompletableFuture<Void>::isDone))
+            val last = cache.store("key-3")
+            CompletableFuture.allOf(*(commits + last).toTypedArray()).get(10, TimeUnit.SECONDS)
+            for (i in 0 until 4) {
+                Assertions.assertArrayEquals(value, cache.read("key-$i"))
+            }
+        } finally {
+            cache.asyncClose().get()
+        }
+    }
+
+    @Test
+    fun batchCommitsRacingWithCloseComplete(@TempDir root: Path) {
+        repeat(20) { round ->
+            val cache = FileSystemCache(
+                root.resolve("cache-$round"),
+                Duration.ofDays(1),
+                durability = Durability.BATCH,
+                fsyncInterval = Duration.ofHours(1),
+                fsyncBatchSize = 0x100,
+            )
+            val commits = (0 until 4).map { i ->
+                CompletableFuture.supplyAsync {
+                    cache.store("key-$i")
+                }
+            }
+            val closed = cache.asyncClose()
+            // Whether enqueued before or after the close, every commit must be flushed
+            for (commit in commits) {
+                commit.thenCompose { it }.get(10, TimeUnit.SECONDS)
+            }
+            closed.get(10, TimeUnit.SECONDS)
+            for (i in 0 until 4) {
+                Assertions.assertArrayEquals(value, cache.read("key-$i"))
+            }
+        }
+    }
+
+    @Test
+    fun identicalContentIsStoredOnce(@TempDir root: Path) {
+        val cache = FileSystemCache(root, Duration.ofDays(1), deduplicationDigest = "SHA-256")
+        try {
+            cache.store("a").get()
+            cache.store("b").get()
+            Assertions.assertEquals(fileKey(root.resolve("a")), fileKey(root.resolve("b")))
+            val blobs = root.resolve(".blobs")
+            Assertions.assertEquals(1, Files.list(blobs).use { it.count() })
+
+            // The entry "a" is gone (e.g. it expired), the content must survive as long as "b" references it
+            Files.delete(root.resolve("a"))
+            cache.actualGc(Instant.now())
+            Assertions.assertNull(cache.read("a"))
+            Assertions.assertArrayEquals(value, cache.read("b"))
+            Assertions.assertEquals(1, Files.list(blobs).use { it.count() })
+
+            Files.delete(root.resolve("b"))
+            cache.actualGc(Instant.now())
+            Assertions.assertEquals(0, Files.list(blobs).use { it.count() })
+        } finally {
+            cache.asyncClose().get()
+        }
+    }
+
+    @Test
+    fun deduplicatedEntriesExpireIndependently(@TempDir root: Path) {
+        val cache = FileSystemCache(root, Duration.ofDays(1), deduplicationDigest = "SHA-256")
+        try {
+            cache.store("a").get()
+            val timestamps = root.resolve(".timestamps")
+            Files.setLastModifiedTime(timestamps.resolve("a"), FileTime.from(Instant.now().minus(Duration.ofDays(2))))
+            // Linking another entry to the same content must not make "a" younger
+            cache.store("b").get()
+            Assertions.assertEquals(fileKey(root.resolve("a")), fileKey(root.resolve("b")))
+            cache.actualGc(Instant.now())
+            Assertions.assertNull(cache.read("a"))
+            Assertions.assertFalse(Files.exists(timestamps.resolve("a")))
+            Assertions.assertArrayEquals(value, cache.read("b"))
+
+            cache.actualGc(Instant.now().plus(Duration.ofDays(2)))
+            Assertions.assertNull(cache.read("b"))
+            Assertions.assertEquals(0, Files.list(timestamps).use { it.count() })
+        } finally {
+            cache.asyncClose().get()
+        }
+    }
+
+    @Test
+    fun missesAreAnsweredByThePresenceFilter(@TempDir root: Path) {
+        FileSystemCache(root, Duration.ofDays(1)).let { previous ->
+            try {
+                previous.store("stored").get()
+            } finally {
+                previous.asyncClose().get()
+            }
+        }
+        val cache = FileSystemCache(root, Duration.ofDays(1), presenceFilterCapacity = 0x100)
+        try {
+            // Built by the gc thread at startup from the content of the cache folder
+            val deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos()
+            while (!cache.presenceFilterActive) {
+                Assertions.assertTrue(System.nanoTime() < deadline, "The presence filter hasn't been built")
+                Thread.sleep(10)
+            }
+            Assertions.assertArrayEquals(value, cache.read("stored"))
+            cache.store("present").get()
+            // Written behind the back of the cache, only the filter can make it look absent
+            Files.copy(root.resolve("present"), root.resolve("absent"))
+            Assertions.assertNull(cache.get("absent"))
+            Assertions.assertArrayEquals(value, cache.read("present"))
+        } finally {
+            cache.asyncClose().get()
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.woggioni.rbcs.server.test
+
+import java.io.BufferedReader
+import java.io.Writer
+import java.net.Socket
+import java.time.Duration
+import java.time.temporal.ChronoUnit
+import java.util.zip.Deflater
+import io.netty.handler.codec.http.HttpResponseStatus
+import net.woggioni.rbcs.api.Configuration
+import net.woggioni.rbcs.api.Role
+import net.woggioni.rbcs.common.Cidr
+import net.woggioni.rbcs.common.RBCS.getFreePort
+import net.woggioni.rbcs.server.cache.FileSystemCacheConfiguration
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Order
+import org.junit.jupiter.api.Test
+
+
+class ForwardedClientCertificateServerTest : AbstractServerTest() {
+
+    companion object {
+        private const val HEADER_NAME = "X-Client-Cert-Subject-DN"
+        private const val SUBJECT_DN = "CN=user1,O=woggioni.net"
+        private const val TRUSTED_PROXY = "127.0.0.1"
+        private const val UNTRUSTED_PROXY = "192.0.2.1"
+    }
+
+    private val serverPath = "rbcs"
+    private val readersGroup = Configuration.Group("readers", setOf(Role.Reader), null, null)
+
+    override fun setUp() {
+        val user = Configuration.User("user1", null, setOf(readersGroup), null)
+        cfg = Configuration.of(
+            "127.0.0.1",
+            getFreePort(),
+            true,
+            listOf(Cidr.from("127.0.0.0/8")),
+            50,
+            serverPath,
+            Configuration.EventExecutor(false),
+            Configuration.RateLimiter(true, 0x100000, 50),
+            Configuration.Connection(
+                Duration.of(60, ChronoUnit.SECONDS),
+                Duration.of(30, ChronoUnit.SECONDS),
+                Duration.of(30, ChronoUnit.SECONDS),
+                0x1000,
+                0x10000
+            ),
+            mapOf(user.name to user),
+            mapOf(readersGroup.name to readersGroup),
+            FileSystemCacheConfiguration(
+                testDir.resolve("cache"),
+                maxAge = Duration.ofSeconds(3600 * 24),
+                digestAlgorithm = "MD5",
+                compressionLevel = Deflater.DEFAULT_COMPRESSION,
+                compressionEnabled = false
+            ),
+            Configuration.ForwardedClientCertificateAuthentication(
+                HEADER_NAME,
+                Configuration.TlsCertificateExtractor("CN", "(.*)"),
+                null
+            ),
+            null,
+        )
+    }
+
+    override fun tearDown() {
+    }
+
+    /**
+     * Opens a connection that presents itself with a PROXY protocol header as forwarded for [clientAddress]
+     */
+    private fun <T> proxiedConnection(clientAddress: String, block: (Writer, BufferedReader) -> T): T {
+        return Socket(cfg.host, cfg.port).use { socket ->
+            val writer = socket.getOutputStream().writer(Charsets.US_ASCII)
+            val reader = socket.getInputStream().bufferedReader(Charsets.US_ASCII)
+            writer.write("PROXY TCP4 $clientAddress ${cfg.host} 50000 ${cfg.port}\r\n")
+            block(writer, reader)
+        }
+    }
+
+    /**
+     * Sends a GET request for [key] with [subjectDn] in the forwarded certificate header and returns the response status
+     */
+    private fun get(writer: Writer, reader: BufferedReader, key: String, subjectDn: String): Int {
+        writer.write("GET /$serverPath/$key HTTP/1.1\r\n")
+        writer.write("Host: ${cfg.host}:${cfg.port}\r\n")
+        writer.write("$HEADER_NAME: $subjectDn\r\n")
+        writer.write("\r\n")
+        writer.flush()
+        val status = reader.readLine()?.split(' ')?.get(1)?.toInt()
+            ?: throw RuntimeException("Connection closed before receiving a response")
+        var contentLength = 0L
+        while (true) {
+            val line = reader.readLine() ?: break
+            if (line.isEmpty()) break
+            val colon = line.indexOf(':')
+            if (line.substring(0, colon).equals("Content-Length", ignoreCase = true)) {
+                contentLength = line.substring(colon + 1).trim().toLong()
+            }
+        }
+        reader.skip(contentLength)
+        return status
+    }
+
+    @Test
+    @Order(1)
+    fun getFromTrustedProxy() {
+        proxiedConnection(TRUSTED_PROXY) { writer, reader ->
+            // The second request on the connection reuses the identity resolved by the first one
+            repeat(2) {
+                Assertions.assertEquals(
+                    HttpResponseStatus.NOT_FOUND.code(),
+                    get(writer, reader, "missing-key", SUBJECT_DN)
+                )
+            }
+        }
+    }
+
+    @Test
+    @Order(2)
+    fun getFromUntrustedProxy() {
+        // The subject DN has been resolved already, but it must not be trusted from a different address
+        proxiedConnection(UNTRUSTED_PROXY) { writer, reader ->
+            Assertions.assertEquals(
+                HttpResponseStatus.UNAUTHORIZED.code(),
+                get(writer, reader, "missing-key", SUBJECT_DN)
+            )
+        }
+    }
+}
@@ -169,6 +169,32 @@ class NoAuthServerTest : AbstractServerTest() {
         Assertions.assertArrayEquals(value, response.body())
     }
 
+    @Test
+    @Order(8)
+    fun headExistingKey() {
+        val client: HttpClient = HttpClient.newHttpClient()
+        val (key, value) = keyValuePair
+        val requestBuilder = newRequestBuilder(key).HEAD()
+        val response: HttpResponse<ByteArray> =
+            client.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.OK.code(), response.statusCode())
+        Assertions.assertEquals(value.size.toLong(), response.headers().firstValueAsLong("Content-Length").asLong)
+        Assertions.assertEquals(0, response.body().size)
+    }
+
+    @Test
+    @Order(9)
+    fun headMissingKey() {
+        val client: HttpClient = HttpClient.newHttpClient()
+        val (key, _) = newEntry(random)
+        val requestBuilder = newRequestBuilder(key).HEAD()
+        val response: HttpResponse<ByteArray> =
+            client.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray())
+        Assertions.assertEquals(HttpResponseStatus.NOT_FOUND.code(), response.statusCode())
+        Assertions.assertEquals(0L, response.headers().firstValueAsLong("Content-Length").asLong)
+        Assertions.assertEquals(0, response.body().size)
+    }
+
     @Test
     @Order(10)
     fun traceTest() {